@@ -1,13 +1,13 @@
 package uk.ac.ebi.mydas.examples;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
+import uk.ac.ebi.mydas.datasource.jdbc.JdbcConnectionPool;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
@@ -33,10 +33,13 @@ public class EnsemblTestManager {
 	 */
 	private DasMethod method;
 
-	private Connection connection;
+	/**
+	 * Connections to the ensembl database, so that concurrent requests do not share one
+	 */
+	private JdbcConnectionPool pool;
 	
 	private String database = "homo_sapiens_core_56_37a";
-	private Collection<DasEntryPoint> entryPoints=null;
+	private volatile List<DasEntryPoint> entryPoints=null;
 
 	public EnsemblTestManager() throws DataSourceException{
 		//Initialize types
@@ -50,41 +53,36 @@ public class EnsemblTestManager {
 		method = new DasMethod("not_recorded","not_recorded","ECO:0000037");
 
 
-		connection = null;
 		String userName = "anonymous";
 		String password = "";
 		
 		String url = "jdbc:mysql://ensembldb.ensembl.org:5306/"+database;
 		try {
-			Class.forName ("com.mysql.jdbc.Driver").newInstance ();
-			connection = DriverManager.getConnection (url, userName, password);
-		} catch (InstantiationException e) {
-			throw new DataSourceException("Problems loading the MySql driver",e);
-		} catch (IllegalAccessException e) {
-			throw new DataSourceException("Problems loading the MySql driver",e);
+			Class.forName ("com.mysql.jdbc.Driver");
 		} catch (ClassNotFoundException e) {
 			throw new DataSourceException("Problems loading the MySql driver",e);
-		} catch (SQLException e) {
-			throw new DataSourceException("Problems connecting to the ensembl database",e);
 		}
+		// Integer.MIN_VALUE is the fetch size that makes the MySql driver stream the rows.
+		pool = new JdbcConnectionPool(url, userName, password, 4, Integer.MIN_VALUE, 16, 10000);
+		pool.release(pool.acquire(), false);
 	}
 	public void close(){
-		try{
-			connection.close ();
-		} catch (Exception e) { /* ignore close errors */ }
-
+		pool.close();
 	}
-	public Collection<DasAnnotatedSegment> getSubmodelBySQL(String sql,int maxbins) throws DataSourceException{
+	public Collection<DasAnnotatedSegment> getSubmodelBySQL(String sql,int maxbins,Object... parameters) throws DataSourceException{
 		Collection<DasAnnotatedSegment> segments=null;
+		JdbcConnectionPool.PooledConnection connection = pool.acquire();
+		boolean broken = true;
 		try {
-			Statement s = connection.createStatement ();
-			s.executeQuery (sql);
-			ResultSet rs = s.getResultSet ();
+			PreparedStatement s = connection.prepare (sql);
+			for (int i=0; i<parameters.length; i++)
+				s.setObject(i+1, parameters[i]);
+			ResultSet rs = s.executeQuery ();
 			DasComponentFeature previousGene=null;
 			while (rs.next () && maxbins!=0) {
 				if (segments==null)
 					segments= new ArrayList<DasAnnotatedSegment>();
-				DasAnnotatedSegment segment = this.getSegment(segments,rs.getString ("chr"));
+				DasAnnotatedSegment segment = this.getSegment(segments,rs.getString ("chr"),rs.getInt ("chr_length"));
 				DasComponentFeature gene= this.getGene(rs.getString ("gene_id"),rs.getInt("gene_start"),rs.getInt("gene_end"),segment);
 				if (previousGene!=gene){
 					maxbins--;
@@ -95,9 +93,11 @@ public class EnsemblTestManager {
 				this.getExon(rs.getString ("exon_id"),rs.getInt("exon_start"),rs.getInt("exon_end"),transcript);
 			}
 			rs.close ();
-			s.close ();
+			broken = false;
 		} catch (SQLException e) {
 			throw new DataSourceException("Problems executing the sql query",e);
+		} finally {
+			pool.release(connection, broken);
 		}
 		return segments;
 	}
@@ -105,6 +105,7 @@ public class EnsemblTestManager {
 	public Collection<DasAnnotatedSegment> getSubmodelByFeatureId(Collection<String> featureIdCollection) throws DataSourceException{
 		String sql="SELECT " +
 		" sr.name AS chr, " +
+		" sr.length AS chr_length, " +
 		" gsi.stable_id AS gene_id, " +
 		" g.seq_region_start AS gene_start, " +
 		" g.seq_region_end AS gene_end, " +
@@ -132,13 +133,18 @@ public class EnsemblTestManager {
 		" e.exon_id = esi.exon_id and  " +
 		" g.seq_region_id = sr.seq_region_id and " +
 		" sr.coord_system_id = 2 and (";
-		String or ="";
-		for (String featureId:featureIdCollection){
-			sql += 		or +" gsi.stable_id = '"+featureId+ "' or tsi.stable_id = '"+featureId+ "' or esi.stable_id = '"+featureId+ "'" ;
-			or ="or";
-		}
-		sql += ")";
-		return getSubmodelBySQL(sql,-1);
+		if (featureIdCollection.isEmpty())
+			return null;
+		StringBuilder in = new StringBuilder("(");
+		for (int i=0; i<featureIdCollection.size(); i++)
+			in.append(i==0 ? "?" : ",?");
+		in.append(")");
+		sql += " gsi.stable_id IN "+in+" or tsi.stable_id IN "+in+" or esi.stable_id IN "+in+")";
+		// The ids are bound once for each of the three IN lists.
+		ArrayList<Object> parameters = new ArrayList<Object>(featureIdCollection);
+		parameters.addAll(featureIdCollection);
+		parameters.addAll(featureIdCollection);
+		return getSubmodelBySQL(sql,-1,parameters.toArray());
 	}
 
 	public DasAnnotatedSegment getSubmodelBySegmentId(String segmentId, int start, int stop) throws DataSourceException, BadReferenceObjectException{
@@ -147,6 +153,7 @@ public class EnsemblTestManager {
 	public DasAnnotatedSegment getSubmodelBySegmentId(String segmentId, int start, int stop, int maxbins) throws DataSourceException, BadReferenceObjectException{
 		String sql="SELECT " +
 		" sr.name AS chr, " +
+		" sr.length AS chr_length, " +
 		" gsi.stable_id AS gene_id, " +
 		" g.seq_region_start AS gene_start, " +
 		" g.seq_region_end AS gene_end, " +
@@ -175,11 +182,12 @@ public class EnsemblTestManager {
 		" e.exon_id = esi.exon_id and  " +
 		" g.seq_region_id = sr.seq_region_id and " +
 		" sr.coord_system_id = 2 and " +
-		" sr.name ='"+segmentId+"' ";
+		" sr.name = ? ";
+		Collection<DasAnnotatedSegment>segments;
 		if (start!=-1 && stop!=-1)
-			sql += " and g.seq_region_start>"+start+" and g.seq_region_end<"+stop;
-		sql += " ORDER BY size DESC";
-		Collection<DasAnnotatedSegment>segments= getSubmodelBySQL(sql,maxbins);
+			segments= getSubmodelBySQL(sql+" and g.seq_region_start > ? and g.seq_region_end < ? ORDER BY size DESC",maxbins,segmentId,start,stop);
+		else
+			segments= getSubmodelBySQL(sql+" ORDER BY size DESC",maxbins,segmentId);
 		if (segments!=null && segments.size()>0)
 			return segments.iterator().next();
 		else
@@ -208,28 +216,14 @@ public class EnsemblTestManager {
 	}
 
 	private DasAnnotatedSegment getSegment(
-			Collection<DasAnnotatedSegment> segments, String segmentId) throws DataSourceException {
+			Collection<DasAnnotatedSegment> segments, String segmentId, int length) throws DataSourceException {
 		for (DasAnnotatedSegment segment:segments)
 			if (segment.getSegmentId().equals(segmentId))
 				return segment;
-		Integer length = this.getSegmentLength(segmentId);
 		DasAnnotatedSegment newSegment = new DasAnnotatedSegment(segmentId,1,length,"FROM_DATABASE",segmentId, new ArrayList<DasFeature>());
 		segments.add(newSegment);
 		return newSegment;
 	}
-	private Integer getSegmentLength(String segmentId){
-		String sql="SELECT length FROM seq_region WHERE name='"+segmentId+"' and coord_system_id=2";
-		try{
-			Statement s = connection.createStatement ();
-			s.executeQuery (sql);
-			ResultSet rs = s.getResultSet ();
-			while (rs.next ()) 
-				return rs.getInt ("length");
-		} catch (SQLException e) {
-			return 1;
-		}
-		return 1;
-	}
 	public ArrayList<DasType> getTypes() {
 		return types;
 	}
@@ -243,37 +237,46 @@ public class EnsemblTestManager {
 			sql="SELECT count(stable_id) as num FROM transcript_stable_id;";
 		else if (typeId.equalsIgnoreCase("Exon"))
 			sql="SELECT count(stable_id) as num FROM exon_stable_id;";
+		JdbcConnectionPool.PooledConnection connection = pool.acquire();
+		boolean broken = true;
 		try {
-			Statement s = connection.createStatement ();
-			s.executeQuery (sql);
-			ResultSet rs = s.getResultSet ();
+			ResultSet rs = connection.prepare (sql).executeQuery ();
 			if (rs.next ()) {
 				count=rs.getInt("num");
 			}
 			rs.close ();
-			s.close ();
+			broken = false;
 		} catch (SQLException e) {
 			throw new DataSourceException("Problems executing the sql query",e);
+		} finally {
+			pool.release(connection, broken);
 		}
 		return count;
 	}
 	public DasSequence getSequence(String segmentId) throws DataSourceException, BadReferenceObjectException {
 		DasSequence seq=null;
 		String sql="";
-		sql="SELECT * FROM chromosome WHERE name="+segmentId;
+		sql="SELECT * FROM chromosome WHERE name = ?";
+		JdbcConnectionPool.PooledConnection connection = pool.acquire();
+		boolean broken = true;
 		try {
-			Statement s = connection.createStatement ();
-			s.executeQuery (sql);
-			ResultSet rs = s.getResultSet ();
-			if (rs.next ()) {
-				seq= new DasSequence(segmentId,rs.getString("SEQUENCE"),1,"homo_sapiens_core_56_37a", "Chromosome "+segmentId);
-			}else{
-				throw new BadReferenceObjectException("The segment ["+segmentId+"] was not found in this reference server", segmentId);
+			PreparedStatement s = connection.prepare (sql);
+			s.setString(1, segmentId);
+			ResultSet rs = s.executeQuery ();
+			try {
+				if (rs.next ()) {
+					seq= new DasSequence(segmentId,rs.getString("SEQUENCE"),1,"homo_sapiens_core_56_37a", "Chromosome "+segmentId);
+				}else{
+					throw new BadReferenceObjectException("The segment ["+segmentId+"] was not found in this reference server", segmentId);
+				}
+			} finally {
+				rs.close ();
 			}
-			rs.close ();
-			s.close ();
+			broken = false;
 		} catch (SQLException e) {
 			throw new DataSourceException("Problems executing the sql query",e);
+		} finally {
+			pool.release(connection, broken);
 		}
 		return seq;
 	}
@@ -281,30 +284,40 @@ public class EnsemblTestManager {
 		return database;
 	}
 	public Collection<DasEntryPoint> getEntryPoints(Integer start, Integer stop) throws DataSourceException{
-		if (entryPoints!=null){
-			if ((start != null) && (stop != null)) 
-				return ((ArrayList<DasEntryPoint>)entryPoints).subList(start, stop);
-			return entryPoints;
-		}
+		if (entryPoints!=null)
+			return rows(start, stop);
 		String sql="";
-		sql="SELECT * FROM seq_region WHERE seq_region.coord_system_id =2;";
+		sql="SELECT name, length FROM seq_region WHERE seq_region.coord_system_id = 2";
+		JdbcConnectionPool.PooledConnection connection = pool.acquire();
+		boolean broken = true;
 		try {
-			Statement s = connection.createStatement ();
-			s.executeQuery (sql);
-			ResultSet rs = s.getResultSet ();
-			entryPoints = new ArrayList<DasEntryPoint>();
+			ResultSet rs = connection.prepare (sql).executeQuery ();
+			List<DasEntryPoint> loaded = new ArrayList<DasEntryPoint>();
 			while (rs.next ()) {
-				entryPoints.add(new DasEntryPoint(rs.getString("name"), 1, rs.getInt("length"), "Chromosome", getDatabase(), DasEntryPointOrientation.POSITIVE_ORIENTATION, "Chromosome", true));
+				loaded.add(new DasEntryPoint(rs.getString("name"), 1, rs.getInt("length"), "Chromosome", getDatabase(), DasEntryPointOrientation.POSITIVE_ORIENTATION, "Chromosome", true));
 			}
 			rs.close ();
-			s.close ();
+			entryPoints = loaded;
+			broken = false;
 		} catch (SQLException e) {
 			throw new DataSourceException("Problems executing the sql query",e);
+		} finally {
+			pool.release(connection, broken);
 		}
-		if ((start != null) && (stop != null)) 
-			return ((ArrayList<DasEntryPoint>)entryPoints).subList(start, stop);
-
-		return entryPoints;
+		return rows(start, stop);
+	}
+	/**
+	 * @param start first row, from 1
+	 * @param stop last row, included; rows beyond the last entry point are ignored
+	 * @return the entry points of the rows, all of them if start or stop is null
+	 */
+	private Collection<DasEntryPoint> rows(Integer start, Integer stop){
+		if ((start == null) || (stop == null))
+			return entryPoints;
+		int from=Math.max(0, start-1), to=Math.min(entryPoints.size(), stop);
+		if (from>=to)
+			return new ArrayList<DasEntryPoint>();
+		return entryPoints.subList(from, to);
 	}
 
 }
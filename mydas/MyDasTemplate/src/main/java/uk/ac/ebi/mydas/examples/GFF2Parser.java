@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.util.Scanner;
 import java.util.Collection;
 import java.util.ArrayList;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
 import uk.ac.ebi.mydas.model.DasFeature;
 import uk.ac.ebi.mydas.model.DasFeatureOrientation;
@@ -25,6 +26,24 @@ public class GFF2Parser {
 		segments= new ArrayList<DasAnnotatedSegment>();
 		types= new ArrayList<DasType>();
 	}
+	/**
+	 * Continues a previous parse with the lines appended to the file. The segments and types
+	 * of the previous parse are copied, so that it is left untouched while it is still in use.
+	 * @param appended Stream with the lines added at the end of the file
+	 * @param previousSegments the segments of the previous parse
+	 * @param previousTypes the types of the previous parse
+	 * @throws DataSourceException In case of any error copying the segments
+	 */
+	public GFF2Parser(InputStream appended, Collection<DasAnnotatedSegment> previousSegments, Collection<DasType> previousTypes) throws DataSourceException{
+		this(appended);
+		for (DasAnnotatedSegment segment:previousSegments){
+			segments.add(new DasAnnotatedSegment(segment.getSegmentId(),segment.getStartCoordinate(),segment.getStopCoordinate(),segment.getVersion(),segment.getSegmentLabel(),new ArrayList<DasFeature>(segment.getFeatures())));
+			for (DasFeature feature:segment.getFeatures())
+				if (feature.getFeatureId().startsWith("GFF_feature_"))
+					featureid++;
+		}
+		types.addAll(previousTypes);
+	}
 	private final void processLineByLine() throws Exception{
 		try {
 			//first use a Scanner to get each line
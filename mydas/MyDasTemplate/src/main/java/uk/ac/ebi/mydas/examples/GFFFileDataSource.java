@@ -5,6 +5,9 @@ package uk.ac.ebi.mydas.examples;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.PropertyType;
 import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.DataSourceSnapshot;
+import uk.ac.ebi.mydas.datasource.FileWatcher;
+import uk.ac.ebi.mydas.datasource.VersionStampedDataSource;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
@@ -12,8 +15,10 @@ import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
 import uk.ac.ebi.mydas.model.*;
 
 import javax.servlet.ServletContext;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
 
@@ -21,53 +26,89 @@ import java.util.*;
  * Data Source that reads a GFF 2 file which path has been specified in the 
  * configuration file as a property of the datasource element
  */
-public class GFFFileDataSource implements AnnotationDataSource { 
+public class GFFFileDataSource implements AnnotationDataSource, VersionStampedDataSource { 
 
 	ServletContext svCon;
 	Map<String, PropertyType> globalParameters;
 	DataSourceConfiguration config;
 	String path;
-	private Collection<DasAnnotatedSegment> segments;
-	private Collection<DasType> types;
+	/**
+	 * Segments and types of the file, replaced as a whole when the file changes.
+	 */
+	private volatile ParsedModel model;
+	private FileWatcher watcher;
 
 
 	/**
 	 * The path is recovery from the configuration, the file is then parsed and 
-	 * keep in memory as a DasSegment collection object that is queried for each method
+	 * keep in memory as a DasSegment collection object that is queried for each method.
+	 * The parsed model is kept in a snapshot, which is used instead of the file while it does not change.
+	 * The file is then watched, and parsed again in the background when it changes; the lines
+	 * appended to it are parsed on their own.
 	 */
 	public void init(ServletContext servletContext, Map<String, PropertyType> globalParameters, DataSourceConfiguration dataSourceConfig) throws DataSourceException {
 		this.svCon = servletContext;
 		this.globalParameters = globalParameters;
 		this.config = dataSourceConfig;
 		path = config.getDataSourceProperties().get("gff_file").getValue();
-		try {
-			GFF2Parser parser = new GFF2Parser(new FileInputStream(servletContext.getRealPath(path)));
-			segments = parser.parse();
-            List<DasFeature> lstFeatures = new ArrayList<DasFeature>();
-            DasType dasType = new DasType("RNAi reagent", "RNAi reagent cat", null, "RNAi reagent label");
-            DasMethod dasMethod = new DasMethod("method id", "method label", "method cvid");
-            lstFeatures.add(new DasFeature("feature id", "features lable", dasType, dasMethod, 1, 1, 0.0, DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE, DasPhase.PHASE_NOT_APPLICABLE, null, null, null, null, null));
-            segments.add(new DasAnnotatedSegment("my_segment_1", 1, 1, "version 1", "my segment label", lstFeatures, 1));
-			types = parser.getTypes();
-            types.add(dasType);
-                        System.out.println("Finished initialisation============================");
-		} catch (FileNotFoundException e) {
-			throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
-		} catch (Exception e) {
-			throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+		final File gffFile = new File(servletContext.getRealPath(path));
+		final DataSourceSnapshot snapshot = DataSourceSnapshot.forDataSource(servletContext, dataSourceConfig, gffFile);
+		model = snapshot == null ? null : (ParsedModel) snapshot.load();
+		if (model == null) {
+			try {
+				model = parse(new FileInputStream(gffFile));
+				if (snapshot != null)
+					snapshot.store(model);
+				System.out.println("Finished initialisation============================");
+			} catch (FileNotFoundException e) {
+				throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
+			} catch (Exception e) {
+				throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+			}
 		}
+		watcher = FileWatcher.forDataSource(dataSourceConfig, new FileWatcher.Listener() {
+			public void fileChanged(FileWatcher.Change change) throws Exception {
+				ParsedModel updated;
+				if (change.isAppended()) {
+					ParsedModel current = model;
+					GFF2Parser parser = new GFF2Parser(change.openAppended(), current.getSegments(), current.getTypes());
+					updated = new ParsedModel(parser.parse(), parser.getTypes(), null);
+				} else {
+					updated = parse(change.open());
+				}
+				model = updated;
+				if (snapshot != null && gffFile.length() == change.getLength())
+					snapshot.store(updated);
+			}
+		}, gffFile);
+	}
+
+	private ParsedModel parse(InputStream gffStream) throws Exception {
+		GFF2Parser parser = new GFF2Parser(gffStream);
+		Collection<DasAnnotatedSegment> segments = parser.parse();
+		List<DasFeature> lstFeatures = new ArrayList<DasFeature>();
+		DasType dasType = new DasType("RNAi reagent", "RNAi reagent cat", null, "RNAi reagent label");
+		DasMethod dasMethod = new DasMethod("method id", "method label", "method cvid");
+		lstFeatures.add(new DasFeature("feature id", "features lable", dasType, dasMethod, 1, 1, 0.0, DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE, DasPhase.PHASE_NOT_APPLICABLE, null, null, null, null, null));
+		segments.add(new DasAnnotatedSegment("my_segment_1", 1, 1, "version 1", "my segment label", lstFeatures, 1));
+		Collection<DasType> types = parser.getTypes();
+		types.add(dasType);
+		return new ParsedModel(segments, types, null);
 	}
 
 	/**
-	 * Nothing to destroy
+	 * Stops watching the file
 	 */
-	public void destroy() { }
+	public void destroy() {
+		if (watcher != null)
+			watcher.stop();
+	}
 
 	/**
 	 * Look into the list of segments for the one with the same ID. if is not there it throws a BadReferenceObjectException
 	 */
 	public DasAnnotatedSegment getFeatures(String segmentId,Integer maxbins) throws BadReferenceObjectException, DataSourceException {
-		for(DasAnnotatedSegment segment:segments){
+		for(DasAnnotatedSegment segment:model.getSegments()){
 			if (segment.getSegmentId().equals(segmentId))
 				return segment;
 		}
@@ -78,7 +119,7 @@ public class GFFFileDataSource implements AnnotationDataSource {
 	 * return the already built list of types.
 	 */
 	public Collection<DasType> getTypes() throws DataSourceException {
-		return types;
+		return model.getTypes();
 	}
 
 	/**
@@ -86,6 +127,7 @@ public class GFFFileDataSource implements AnnotationDataSource {
 	 */
 	public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins)
 	throws UnimplementedFeatureException, DataSourceException {
+		Collection<DasAnnotatedSegment> segments = model.getSegments();
 		Collection<DasAnnotatedSegment> segmentsResponse =new ArrayList<DasAnnotatedSegment>();
 		for (String featureId:featureIdCollection){
 			boolean found=false;
@@ -106,7 +148,7 @@ public class GFFFileDataSource implements AnnotationDataSource {
 	 */
 	public Integer getTotalCountForType(DasType type) throws DataSourceException {
 		int count=0;
-		for (DasAnnotatedSegment segment:segments)
+		for (DasAnnotatedSegment segment:model.getSegments())
 			for(DasFeature feature:segment.getFeatures())
 				if(type.getId().equals(feature.getType().getId()))
 					count++;
@@ -119,8 +161,19 @@ public class GFFFileDataSource implements AnnotationDataSource {
 		throw new UnimplementedFeatureException("No implemented");
 	}
 
+    /**
+     * The version of the parsed file, so that the entry points are read again when it changes.
+     */
     public String getEntryPointVersion() throws DataSourceException {
-        return "1.0";
+        return model.getVersion();
+    }
+
+    public String getVersionStamp() throws DataSourceException {
+        return model.getVersion();
+    }
+
+    public Date getLastModified() throws DataSourceException {
+        return model.getParsed();
     }
 
     /**
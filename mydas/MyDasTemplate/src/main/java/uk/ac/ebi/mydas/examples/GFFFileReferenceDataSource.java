@@ -3,7 +3,10 @@ package uk.ac.ebi.mydas.examples;
 
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.datasource.DataSourceSnapshot;
+import uk.ac.ebi.mydas.datasource.FileWatcher;
 import uk.ac.ebi.mydas.datasource.ReferenceDataSource;
+import uk.ac.ebi.mydas.datasource.VersionStampedDataSource;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
@@ -11,12 +14,14 @@ import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
 import uk.ac.ebi.mydas.model.*;
 
 import javax.servlet.ServletContext;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -25,20 +30,23 @@ import java.util.Map;
  * Methods related to a Reference server (getSequence, getEntryPointVersion and getEntryPoints)
  * do not provide real data related to the GFF File. 
  */
-public class GFFFileReferenceDataSource implements ReferenceDataSource {
+public class GFFFileReferenceDataSource implements ReferenceDataSource, VersionStampedDataSource {
 
 	ServletContext svCon;
 	Map<String, PropertyType> globalParameters;
 	DataSourceConfiguration config;
 	String path,path2;
-	private Collection<DasAnnotatedSegment> segments;
-	private Collection<DasType> types;
-	private Map<String,DasSequence> sequences;
+	/**
+	 * Segments, types and sequences of the files, replaced as a whole when either file changes.
+	 */
+	private volatile ParsedModel model;
+	private FileWatcher watcher;
 
 
 	/**
 	 * The path is recovery from the configuration, the file is then parsed and
-	 * keep in memory as a DasSegment collection object that is queried for each method
+	 * keep in memory as a DasSegment collection object that is queried for each method.
+	 * Both files are then watched, and parsed again in the background when either changes.
 	 */
 	public void init(ServletContext servletContext, Map<String, PropertyType> globalParameters, DataSourceConfiguration dataSourceConfig) throws DataSourceException {
 		this.svCon = servletContext;
@@ -46,8 +54,32 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 		this.config = dataSourceConfig;
 		path = config.getDataSourceProperties().get("gff_file").getValue();
 		path2 = config.getDataSourceProperties().get("fasta_file").getValue();
+		final File gffFile = new File(servletContext.getRealPath(path));
+		final File fastaFile = new File(servletContext.getRealPath(path2));
+		// Both files are parsed again if either of them changes.
+		final DataSourceSnapshot snapshot = DataSourceSnapshot.forDataSource(servletContext, dataSourceConfig, gffFile, fastaFile);
+		model = snapshot == null ? null : (ParsedModel) snapshot.load();
+		if (model == null) {
+			model = parse(gffFile, fastaFile);
+			if (snapshot != null)
+				snapshot.store(model);
+		}
+		watcher = FileWatcher.forDataSource(dataSourceConfig, new FileWatcher.Listener() {
+			public void fileChanged(FileWatcher.Change change) throws Exception {
+				ParsedModel updated = parse(gffFile, fastaFile);
+				model = updated;
+				if (snapshot != null)
+					snapshot.store(updated);
+			}
+		}, gffFile, fastaFile);
+	}
+
+	private ParsedModel parse(File gffFile, File fastaFile) throws DataSourceException {
+		Collection<DasAnnotatedSegment> segments;
+		Collection<DasType> types;
+		Map<String,DasSequence> sequences;
 		try {
-			GFF2Parser parser = new GFF2Parser(new FileInputStream(servletContext.getRealPath(path)));
+			GFF2Parser parser = new GFF2Parser(new FileInputStream(gffFile));
 			segments = parser.parse();
 			types = parser.getTypes();
 		} catch (FileNotFoundException e) {
@@ -56,25 +88,29 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 			throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
 		}
 		try {
-			FastaParser parser2 = new FastaParser(new FileInputStream(servletContext.getRealPath(path2)),path2);
+			FastaParser parser2 = new FastaParser(new FileInputStream(fastaFile),path2);
 			sequences = parser2.parse();
 		} catch (FileNotFoundException e) {
 			throw new DataSourceException("The reference data source cannot be loaded. The fasta file couldn't be oppened",e);
 		} catch (Exception e) {
 			throw new DataSourceException("The reference data source cannot be loaded because of parsing problems with the fasta file",e);
 		}
+		return new ParsedModel(segments, types, sequences);
 	}
 
 	/**
-	 * Nothing to destroy
+	 * Stops watching the files
 	 */
-	public void destroy() { }
+	public void destroy() {
+		if (watcher != null)
+			watcher.stop();
+	}
 
 	/**
 	 * Look into the list of segments for the one with the same ID. if is not there it throws a BadReferenceObjectException
 	 */
 	public DasAnnotatedSegment getFeatures(String segmentId,Integer maxbins) throws BadReferenceObjectException, DataSourceException {
-		for(DasAnnotatedSegment segment:segments){
+		for(DasAnnotatedSegment segment:model.getSegments()){
 			if (segment.getSegmentId().equals(segmentId))
 				return segment;
 		}
@@ -85,7 +121,7 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 	 * return the already built list of types.
 	 */
 	public Collection<DasType> getTypes() throws DataSourceException {
-		return types;
+		return model.getTypes();
 	}
 
 	/**
@@ -93,6 +129,7 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 	 */
 	public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins)
 	throws UnimplementedFeatureException, DataSourceException {
+		Collection<DasAnnotatedSegment> segments = model.getSegments();
 		Collection<DasAnnotatedSegment> segmentsResponse =new ArrayList<DasAnnotatedSegment>();
 		for (String featureId:featureIdCollection){
 			boolean found=false;
@@ -113,7 +150,7 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 	 */
 	public Integer getTotalCountForType(DasType type) throws DataSourceException {
 		int count=0;
-		for (DasAnnotatedSegment segment:segments)
+		for (DasAnnotatedSegment segment:model.getSegments())
 			for(DasFeature feature:segment.getFeatures())
 				if(type.getId().equals(feature.getType().getId()))
 					count++;
@@ -127,14 +164,25 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 	}
 
 	public DasSequence getSequence(String segmentId) throws BadReferenceObjectException, DataSourceException {
-		DasSequence seq=sequences.get(segmentId);
+		DasSequence seq=model.getSequences().get(segmentId);
 		if (seq==null)
 			throw new BadReferenceObjectException("",segmentId);
 		return seq;
 	}
 
+	/**
+	 * The version of the parsed files, so that the entry points are read again when they change.
+	 */
 	public String getEntryPointVersion() throws DataSourceException {
-		return "1.0"; 
+		return model.getVersion();
+	}
+
+	public String getVersionStamp() throws DataSourceException {
+		return model.getVersion();
+	}
+
+	public Date getLastModified() throws DataSourceException {
+		return model.getParsed();
 	}
 
     /**
@@ -145,6 +193,7 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
      * @throws DataSourceException
      */
 	public Collection<DasEntryPoint> getEntryPoints(Integer start, Integer stop) throws DataSourceException {
+		Map<String,DasSequence> sequences = model.getSequences();
 		ArrayList<DasEntryPoint> entryPoints = new ArrayList<DasEntryPoint>();
 		for (String id:sequences.keySet()) {
 			DasSequence seq= sequences.get(id);
@@ -161,7 +210,7 @@ public class GFFFileReferenceDataSource implements ReferenceDataSource {
 	}
 
 	public int getTotalEntryPoints() throws DataSourceException {
-		return sequences.size();
+		return model.getSequences().size();
 	}
 
 	@Override
@@ -1,155 +1,124 @@
 package uk.ac.ebi.mydas.examples;
 
 import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
 
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.PropertyType;
-import uk.ac.ebi.mydas.datasource.RangeHandlingAnnotationDataSource;
-import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
-import uk.ac.ebi.mydas.exceptions.CoordinateErrorException;
+import uk.ac.ebi.mydas.datasource.jdbc.JdbcAnnotationDataSource;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
-import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
 import uk.ac.ebi.mydas.model.*;
 
-public class GenotypeDataSource implements RangeHandlingAnnotationDataSource{
-	ServletContext svCon;
-	Map<String, PropertyType> globalParameters;
-	DataSourceConfiguration config;
-	GenotypeManager genotypeManager;
+/**
+ * Serves the SNPs of a genotype table (rs_id, chromosome, position, bases), e.g. a 23andMe
+ * export loaded into MySQL.  The connection is configured with the jdbc_* data source
+ * properties of {@link JdbcAnnotationDataSource}; an index on (chromosome, position) makes the
+ * range queries cheap.
+ */
+public class GenotypeDataSource extends JdbcAnnotationDataSource {
+
+	private static final String DATABASE = "genotype1";
+
+	private static final String FEATURE_COLUMNS = "SELECT rs_id, chromosome AS segment_id, position, bases FROM genotype ";
+
+	private Collection<DasType> types;
+
+	private DasMethod method;
 
 	public void init(ServletContext servletContext,
 			Map<String, PropertyType> globalParameters,
 			DataSourceConfiguration dataSourceConfig)
 			throws DataSourceException {
-		this.svCon = servletContext;
-		this.globalParameters = globalParameters;
-		this.config = dataSourceConfig;
-		   String databaseUrl="";
-		   String databasePass="";
-		   String databaseUser="";
-		if (config.getDataSourceProperties().containsKey("databaseUrl")){
-			   databaseUrl=config.getDataSourceProperties().get("databaseUrl").getValue();
-		   }
-		if (config.getDataSourceProperties().containsKey("databaseUser")){
-			   databaseUser=config.getDataSourceProperties().get("databaseUser").getValue();
-		   }
-		if (config.getDataSourceProperties().containsKey("databasePass")){
-			   databasePass=config.getDataSourceProperties().get("databasePass").getValue();
-		   }
-		if(databaseUrl.equals("") || databaseUrl==null || databaseUser.equals("") || databaseUser==null|| databasePass.equals("") || databasePass==null){
-			throw new DataSourceException("a database url must be set such in the configuration for example: ");
-		}
-		try {
-			System.out.println("connection params="+databaseUrl+" user:"+databaseUser+" pass:"+databasePass);
-			genotypeManager=new GenotypeManager(databaseUrl, databaseUser, databasePass);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	public void destroy() {
-		genotypeManager.close();
+		super.init(servletContext, globalParameters, dataSourceConfig);
+		method = new DasMethod("23AndMe", "microarray", "");
+		final Collection<DasType> types = new ArrayList<DasType>();
+		query("SELECT DISTINCT bases FROM genotype", new RowHandler() {
+			public boolean handle(ResultSet row) throws SQLException {
+				types.add(new DasType(row.getString("bases"), "", "SO:0000694", ""));
+				return true;
+			}
+		});
+		this.types = types;
 	}
 
-	public DasAnnotatedSegment getFeatures(String segmentId, int start, int stop, Integer maxbins) 
-			throws BadReferenceObjectException, CoordinateErrorException, DataSourceException {
-		if (maxbins==null)
-			maxbins=-1;
-		return genotypeManager.getSubmodelBySegmentId(segmentId, start, stop,maxbins);
-	}
-	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins) 
-			throws BadReferenceObjectException, DataSourceException {
-		if (maxbins==null)
-			maxbins=-1;
-		return genotypeManager.getSubmodelBySegmentId(segmentId, -1, -1,maxbins);
+	@Override
+	protected String getSegmentQuery() {
+		return "SELECT MIN(position) AS start, MAX(position) AS stop FROM genotype WHERE chromosome = ?";
 	}
 
-	
-	private boolean lookInside(DasComponentFeature component,String featureId,Collection<DasAnnotatedSegment> segmentsResponse,DasAnnotatedSegment segment) throws DataSourceException{
-		if (component.hasSubParts()){
-			for (DasComponentFeature subcomponent: component.getReportableSubComponents()){
-				if(subcomponent.getFeatureId().equals(featureId)){
-					segmentsResponse.add(new DasAnnotatedSegment(segment.getSegmentId(),segment.getStartCoordinate(),segment.getStopCoordinate(),segment.getVersion(),segment.getSegmentLabel(),Collections.singleton((DasFeature)subcomponent)));
-					return true;
-				}else
-					if(this.lookInside(subcomponent, featureId, segmentsResponse, segment))
-						return true;
-			}
+	@Override
+	protected DasAnnotatedSegment newSegment(String segmentId, ResultSet segmentRow, Collection<DasFeature> features, Integer total)
+			throws SQLException, DataSourceException {
+		// The aggregate query returns a row of nulls for an unknown chromosome.
+		if (segmentRow.getObject("start") == null) {
+			return null;
 		}
-		return false;
+		return new DasAnnotatedSegment(segmentId, segmentRow.getInt("start"), segmentRow.getInt("stop"), DATABASE, segmentId, features, total);
 	}
 
-	public Collection<DasType> getTypes() throws DataSourceException {
-		return genotypeManager.getTypes();
-	}
-	public URL getLinkURL(String field, String id)
-			throws UnimplementedFeatureException, DataSourceException {
-		throw new UnimplementedFeatureException("No implemented");
+	@Override
+	protected String getFeaturesQuery() {
+		return FEATURE_COLUMNS + "WHERE chromosome = ? ORDER BY position";
 	}
 
-
-    public String getEntryPointVersion() throws UnimplementedFeatureException, DataSourceException {
-        return genotypeManager.getDatabase();
-    }
-
-   
-
-    public Integer getTotalCountForType(DasType type)
-			throws DataSourceException {
-		return genotypeManager.getTotalCountForType(type.getId());
+	@Override
+	protected String getFeaturesInRangeQuery() {
+		return FEATURE_COLUMNS + "WHERE chromosome = ? AND position <= ? AND position >= ? ORDER BY position";
 	}
 
 	@Override
-	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins,
-			Range rows) throws BadReferenceObjectException,
-			DataSourceException, UnimplementedFeatureException {
-		//  Auto-generated method stub
-		return null;
+	protected String getFeaturesByIdQuery(int count) {
+		return FEATURE_COLUMNS + "WHERE rs_id IN (" + placeholders(count) + ") ORDER BY chromosome, position";
 	}
 
 	@Override
-	public Collection<DasAnnotatedSegment> getFeatures(
-			Collection<String> featureIdCollection, Integer maxbins, Range rows)
-			throws UnimplementedFeatureException, DataSourceException {
-		//  Auto-generated method stub
-		return null;
+	protected DasFeature mapFeature(ResultSet row) throws SQLException, DataSourceException {
+		String id = row.getString("rs_id");
+		int position = row.getInt("position");
+		DasType type = new DasType(row.getString("bases"), "", "SO:0000694", "");
+		return new DasFeature(id, id, type, method, position, position, new Double(1),
+				DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE, DasPhase.PHASE_NOT_APPLICABLE, null, null, null, null, null);
 	}
 
 	@Override
-	public DasAnnotatedSegment getFeatures(String segmentId, int start,
-			int stop, Integer maxbins, Range rows)
-			throws BadReferenceObjectException, CoordinateErrorException,
-			DataSourceException, UnimplementedFeatureException {
-		//  Auto-generated method stub
-		return null;
+	protected String getEntryPointsQuery() {
+		return "SELECT chromosome AS segment_id, MIN(position) AS start, MAX(position) AS stop FROM genotype GROUP BY chromosome ORDER BY chromosome";
 	}
 
 	@Override
-	public Collection<DasAnnotatedSegment> getFeatures(
-			Collection<String> featureIdCollection, Integer maxbins)
-			throws UnimplementedFeatureException, DataSourceException {
-		//  Auto-generated method stub
-		return null;
+	protected String getTotalEntryPointsQuery() {
+		return "SELECT COUNT(DISTINCT chromosome) FROM genotype";
 	}
 
-	@Override
-	public Collection<DasEntryPoint> getEntryPoints(Integer start, Integer stop)
+	public Collection<DasType> getTypes() throws DataSourceException {
+		return types;
+	}
+
+	public URL getLinkURL(String field, String id)
 			throws UnimplementedFeatureException, DataSourceException {
-		//  Auto-generated method stub
-		return null;
+		throw new UnimplementedFeatureException("No implemented");
 	}
 
-	@Override
-	public int getTotalEntryPoints() throws UnimplementedFeatureException,
-			DataSourceException {
-		//  Auto-generated method stub
-		return 0;
+	public String getEntryPointVersion() throws UnimplementedFeatureException, DataSourceException {
+		return DATABASE;
+	}
+
+	public Integer getTotalCountForType(DasType type)
+			throws DataSourceException {
+		final int[] count = new int[1];
+		query("SELECT COUNT(bases) AS num FROM genotype WHERE bases = ?", new RowHandler() {
+			public boolean handle(ResultSet row) throws SQLException {
+				count[0] = row.getInt("num");
+				return false;
+			}
+		}, type.getId());
+		return count[0];
 	}
 }
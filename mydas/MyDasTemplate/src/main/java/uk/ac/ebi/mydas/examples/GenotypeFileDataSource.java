@@ -1,11 +1,13 @@
 package uk.ac.ebi.mydas.examples;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -13,19 +15,25 @@ import javax.servlet.ServletContext;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.PropertyType;
 import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.DataSourceSnapshot;
+import uk.ac.ebi.mydas.datasource.FileWatcher;
+import uk.ac.ebi.mydas.datasource.VersionStampedDataSource;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
 import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
 import uk.ac.ebi.mydas.model.*;
 
-public class GenotypeFileDataSource implements AnnotationDataSource {
+public class GenotypeFileDataSource implements AnnotationDataSource, VersionStampedDataSource {
 	ServletContext svCon;
 	Map<String, PropertyType> globalParameters;
 	DataSourceConfiguration config;
 	String path;
-	private Collection<DasAnnotatedSegment> segments;
-	private Collection<DasType> types;
+	/**
+	 * Segments and types of the files, replaced as a whole when either file changes.
+	 */
+	private volatile ParsedModel model;
+	private FileWatcher watcher;
 	private String entrypointspath;
 
 	public void init(ServletContext servletContext,
@@ -37,29 +45,50 @@ public class GenotypeFileDataSource implements AnnotationDataSource {
 		this.config = dataSourceConfig;
 		path = config.getDataSourceProperties().get("genotype_file").getValue();
 		entrypointspath = config.getDataSourceProperties().get("entrypoints_file").getValue();
-		try {
-			GenotypeFileParser parser = new GenotypeFileParser(new FileInputStream(servletContext.getRealPath(path)), new FileInputStream(servletContext.getRealPath(entrypointspath)));
-			segments = parser.parse();
-			types = parser.getTypes();
-		} catch (FileNotFoundException e) {
-			throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
-		} catch (Exception e) {
-			throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+		final File genotypeFile = new File(servletContext.getRealPath(path));
+		final File entryPointsFile = new File(servletContext.getRealPath(entrypointspath));
+		final DataSourceSnapshot snapshot = DataSourceSnapshot.forDataSource(servletContext, dataSourceConfig, genotypeFile, entryPointsFile);
+		model = snapshot == null ? null : (ParsedModel) snapshot.load();
+		if (model == null) {
+			try {
+				model = parse(genotypeFile, entryPointsFile);
+				if (snapshot != null)
+					snapshot.store(model);
+			} catch (FileNotFoundException e) {
+				throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
+			} catch (Exception e) {
+				throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+			}
 		}
+		// The SNPs are attached to the entry points, so both files are parsed again.
+		watcher = FileWatcher.forDataSource(dataSourceConfig, new FileWatcher.Listener() {
+			public void fileChanged(FileWatcher.Change change) throws Exception {
+				ParsedModel updated = parse(genotypeFile, entryPointsFile);
+				model = updated;
+				if (snapshot != null)
+					snapshot.store(updated);
+			}
+		}, genotypeFile, entryPointsFile);
+	}
+
+	private ParsedModel parse(File genotypeFile, File entryPointsFile) throws Exception {
+		GenotypeFileParser parser = new GenotypeFileParser(new FileInputStream(genotypeFile), new FileInputStream(entryPointsFile));
+		return new ParsedModel(parser.parse(), parser.getTypes(), null);
 	}
 
 	public void destroy() {
+		if (watcher != null)
+			watcher.stop();
+		this.watcher=null;
 		this.svCon=null;
 		this.globalParameters=null;
 		this.config=null;
 		this.path=null;
-		this.segments=null;
-		this.types=null;
 	}
 
 	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbeans)
 			throws BadReferenceObjectException, DataSourceException {
-		for(DasAnnotatedSegment segment:segments){
+		for(DasAnnotatedSegment segment:model.getSegments()){
 			if (segment.getSegmentId().equals(segmentId))
 				return segment;
 		}
@@ -69,6 +98,7 @@ public class GenotypeFileDataSource implements AnnotationDataSource {
 	public Collection<DasAnnotatedSegment> getFeatures(
 			Collection<String> featureIdCollection, Integer maxbins)
 			throws UnimplementedFeatureException, DataSourceException {
+		Collection<DasAnnotatedSegment> segments = model.getSegments();
 		Collection<DasAnnotatedSegment> segmentsResponse =new ArrayList<DasAnnotatedSegment>();
 		for (String featureId:featureIdCollection){
 			boolean found=false;
@@ -119,10 +149,18 @@ public class GenotypeFileDataSource implements AnnotationDataSource {
         throw new UnimplementedFeatureException("No implemented");
     }
 
+    public String getVersionStamp() throws DataSourceException {
+        return model.getVersion();
+    }
+
+    public Date getLastModified() throws DataSourceException {
+        return model.getParsed();
+    }
+
 	public Integer getTotalCountForType(DasType type)
 			throws DataSourceException {
 		int count=0;
-		for (DasAnnotatedSegment segment:segments)
+		for (DasAnnotatedSegment segment:model.getSegments())
 			for(DasFeature feature:segment.getFeatures())
 				if(type.getId().equals(feature.getType().getId()))
 					count++;
@@ -130,7 +168,7 @@ public class GenotypeFileDataSource implements AnnotationDataSource {
 	}
 
 	public Collection<DasType> getTypes() throws DataSourceException {
-		return types;
+		return model.getTypes();
 	}
 
 	@Override
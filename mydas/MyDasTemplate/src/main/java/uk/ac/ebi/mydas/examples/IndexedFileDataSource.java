@@ -0,0 +1,381 @@
+package uk.ac.ebi.mydas.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.datasource.RangeHandlingAnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.RequestContext;
+import uk.ac.ebi.mydas.datasource.tabix.TabixFormat;
+import uk.ac.ebi.mydas.datasource.tabix.TabixReader;
+import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
+import uk.ac.ebi.mydas.exceptions.CoordinateErrorException;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
+import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
+import uk.ac.ebi.mydas.model.*;
+
+/**
+ * Data source reading a bgzip compressed, coordinate sorted GFF, VCF or pipe separated file
+ * through its tabix index, instead of loading the whole file in memory.  Only the blocks of
+ * the file overlapping the requested segment:start,stop are decompressed, and the most
+ * recently used ones are cached.
+ * <p/>
+ * Properties of the data source:
+ * <ul>
+ * <li>indexed_file: path of the compressed file in the web application, its index being the same path followed by .tbi</li>
+ * <li>file_format: gff (the default), vcf or pipes</li>
+ * <li>block_cache_blocks: number of decompressed 64KiB blocks to cache, 256 by default</li>
+ * <li>feature_types: comma separated types of the features of a GFF file, reported by the types command</li>
+ * </ul>
+ * The index is built with the tabix tool, or with
+ * <code>java uk.ac.ebi.mydas.datasource.tabix.TabixIndexBuilder -p gff -c file.gff</code>
+ * which also compresses the file.  The lengths of the segments are taken from the
+ * ##sequence-region (GFF) or ##contig (VCF) header lines.
+ */
+public class IndexedFileDataSource implements RangeHandlingAnnotationDataSource {
+
+	private static final int DEFAULT_CACHE_BLOCKS = 256;
+
+	private static final String GFF_FEATURE_PREFIX = "GFF_feature_";
+
+	ServletContext svCon;
+	Map<String, PropertyType> globalParameters;
+	DataSourceConfiguration config;
+	private File dataFile;
+	private TabixFormat format;
+	private TabixReader reader;
+	private String version;
+	/**
+	 * Lengths of the segments given by the header of the file.
+	 */
+	private Map<String, Integer> lengths;
+	private List<String> segmentIds;
+	private Map<String, DasType> types;
+	private DasMethod method;
+	private DasType geneType, transcriptType, exonType, variantType;
+
+	public void init(ServletContext servletContext, Map<String, PropertyType> globalParameters, DataSourceConfiguration dataSourceConfig) throws DataSourceException {
+		this.svCon = servletContext;
+		this.globalParameters = globalParameters;
+		this.config = dataSourceConfig;
+		String path = getProperty("indexed_file", null);
+		if (path == null)
+			throw new DataSourceException("The indexed_file property of the data source is missing");
+		dataFile = new File(servletContext.getRealPath(path));
+		int cacheBlocks;
+		try {
+			format = TabixFormat.forName(getProperty("file_format", "gff"));
+			cacheBlocks = Integer.parseInt(getProperty("block_cache_blocks", Integer.toString(DEFAULT_CACHE_BLOCKS)));
+		} catch (IllegalArgumentException e) {
+			throw new DataSourceException("Bad file_format or block_cache_blocks property", e);
+		}
+		types = new ConcurrentHashMap<String, DasType>();
+		method = new DasMethod("not_recorded", "not_recorded", "ECO:0000037");
+		switch (format) {
+			case GFF:
+				for (String type : getProperty("feature_types", "").split(","))
+					if (type.trim().length() > 0)
+						getType(type.trim());
+				break;
+			case VCF:
+				variantType = new DasType("sequence_variant", null, "SO:0001060", "Sequence variant");
+				types.put(variantType.getId(), variantType);
+				break;
+			case PIPES:
+				geneType = new DasType("Gene", null, "SO:0000704", "Gene");
+				transcriptType = new DasType("Transcript", null, "SO:0000673", "Transcript");
+				exonType = new DasType("Exon", null, "SO:0000147", "Exon");
+				types.put(geneType.getId(), geneType);
+				types.put(transcriptType.getId(), transcriptType);
+				types.put(exonType.getId(), exonType);
+				break;
+		}
+		try {
+			reader = new TabixReader(dataFile, new File(dataFile.getPath() + ".tbi"), format, cacheBlocks);
+			segmentIds = reader.getSequenceNames();
+			lengths = new HashMap<String, Integer>();
+			for (String header : reader.readHeader())
+				processHeader(header);
+		} catch (IOException e) {
+			throw new DataSourceException("The indexed file " + dataFile + " cannot be opened", e);
+		}
+		version = Long.toString(dataFile.lastModified());
+	}
+
+	private String getProperty(String name, String defaultValue) {
+		PropertyType property = config.getDataSourceProperties().get(name);
+		return property == null || property.getValue().trim().length() == 0 ? defaultValue : property.getValue().trim();
+	}
+
+	private void processHeader(String header) {
+		try {
+			if (header.startsWith("##sequence-region")) {
+				String[] parts = header.substring(17).trim().split("\\s+");
+				if (parts.length == 3)
+					lengths.put(parts[0], Integer.parseInt(parts[2]));
+			} else if (header.startsWith("##contig=<")) {
+				String id = null;
+				Integer length = null;
+				for (String field : header.substring(10, header.length() - 1).split(",")) {
+					if (field.startsWith("ID="))
+						id = field.substring(3);
+					else if (field.startsWith("length="))
+						length = Integer.parseInt(field.substring(7));
+				}
+				if (id != null && length != null)
+					lengths.put(id, length);
+			}
+		} catch (NumberFormatException nfe) {
+			// A header line which is not understood does not prevent serving the file.
+		}
+	}
+
+	public void destroy() {
+		try {
+			if (reader != null)
+				reader.close();
+		} catch (IOException e) {
+			// Nothing to do while undeploying.
+		}
+		this.reader = null;
+		this.svCon = null;
+		this.globalParameters = null;
+		this.config = null;
+	}
+
+	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins) throws BadReferenceObjectException, DataSourceException {
+		if (!segmentIds.contains(segmentId))
+			throw new BadReferenceObjectException("The id is not in the file", segmentId);
+		Integer length = lengths.get(segmentId);
+		return query(segmentId, 1, length == null ? Integer.MAX_VALUE : length);
+	}
+
+	/**
+	 * Only reads the part of the file overlapping start and stop.
+	 */
+	public DasAnnotatedSegment getFeatures(String segmentId, int start, int stop, Integer maxbins) throws BadReferenceObjectException, CoordinateErrorException, DataSourceException {
+		if (!segmentIds.contains(segmentId))
+			throw new BadReferenceObjectException("The id is not in the file", segmentId);
+		Integer length = lengths.get(segmentId);
+		if (start > stop || (length != null && start > length))
+			throw new CoordinateErrorException(segmentId, start, stop);
+		return query(segmentId, start, length == null ? stop : Math.min(stop, length));
+	}
+
+	private DasAnnotatedSegment query(String segmentId, int start, int stop) throws DataSourceException {
+		final List<String[]> lines = new ArrayList<String[]>();
+		final List<Long> offsets = new ArrayList<Long>();
+		final int[] end = {1};
+		//stop reading a large region once the request has been abandoned
+		final RequestContext context = RequestContext.current();
+		try {
+			reader.query(segmentId, start, stop, new TabixReader.LineHandler() {
+				public boolean line(String line, String[] columns, long virtualOffset) throws IOException {
+					TabixFormat.Interval interval = format.parse(line);
+					end[0] = Math.max(end[0], interval.getEnd());
+					lines.add(columns);
+					offsets.add(virtualOffset);
+					return context == null || !context.isCancelled();
+				}
+			});
+		} catch (IOException e) {
+			if (context != null && context.isCancelled())
+				throw context.cancellation(e);
+			throw new DataSourceException("The indexed file " + dataFile + " cannot be read", e);
+		}
+		if (context != null)
+			context.checkCancelled();
+		if (stop == Integer.MAX_VALUE) {
+			// Whole segment of unknown length: report the extent of its features.
+			stop = end[0];
+		}
+		DasAnnotatedSegment segment = new DasAnnotatedSegment(segmentId, start, stop, version, segmentId, new ArrayList<DasFeature>());
+		Map<String, DasComponentFeature> components = new HashMap<String, DasComponentFeature>();
+		for (int i = 0; i < lines.size(); i++) {
+			try {
+				if (format == TabixFormat.PIPES)
+					addComponents(lines.get(i), segment, components);
+				else if (format == TabixFormat.GFF)
+					segment.getFeatures().add(gffFeature(lines.get(i), offsets.get(i)));
+				else
+					segment.getFeatures().add(vcfFeature(lines.get(i)));
+			} catch (NumberFormatException nfe) {
+				throw new DataSourceException("PARSE ERROR: bad coordinates or score in " + Arrays.toString(lines.get(i)), nfe);
+			}
+		}
+		return segment;
+	}
+
+	private DasFeature gffFeature(String[] parts, long virtualOffset) throws DataSourceException {
+		if (parts.length < 8)
+			throw new DataSourceException("A feature doesn't have the right number of fields");
+		Double score = parts[5].equals(".") ? null : Double.valueOf(parts[5]);
+		DasFeatureOrientation orientation = DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE;
+		if (parts[6].equals("+"))
+			orientation = DasFeatureOrientation.ORIENTATION_SENSE_STRAND;
+		else if (parts[6].equals("-"))
+			orientation = DasFeatureOrientation.ORIENTATION_ANTISENSE_STRAND;
+		DasPhase phase = DasPhase.PHASE_NOT_APPLICABLE;
+		if (parts[7].equals("0"))
+			phase = DasPhase.PHASE_READING_FRAME_0;
+		else if (parts[7].equals("1"))
+			phase = DasPhase.PHASE_READING_FRAME_1;
+		else if (parts[7].equals("2"))
+			phase = DasPhase.PHASE_READING_FRAME_2;
+		// The position of the line in the file is a stable id, which also locates it.
+		return new DasFeature(GFF_FEATURE_PREFIX + Long.toHexString(virtualOffset), null, getType(parts[2]), new DasMethod(parts[1], parts[1], null),
+				Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), score, orientation, phase, null, null, null, null, null);
+	}
+
+	private DasFeature vcfFeature(String[] parts) throws DataSourceException {
+		if (parts.length < 5)
+			throw new DataSourceException("A variant doesn't have the right number of fields");
+		int position = Integer.parseInt(parts[1]);
+		String id = parts[2].equals(".") ? parts[0] + ":" + position : parts[2];
+		Double score = parts.length < 6 || parts[5].equals(".") ? null : Double.valueOf(parts[5]);
+		return new DasFeature(id, parts[3] + ">" + parts[4], variantType, method, position, position + Math.max(parts[3].length(), 1) - 1, score,
+				DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE, DasPhase.PHASE_NOT_APPLICABLE, null, null, null, null, null);
+	}
+
+	/**
+	 * Adds the gene, transcript and exon of a line, as the SeparatedByPipesParser does.
+	 */
+	private void addComponents(String[] parts, DasAnnotatedSegment segment, Map<String, DasComponentFeature> components) throws DataSourceException {
+		if (parts.length < 11)
+			throw new DataSourceException("A line doesn't have the right number of fields");
+		DasComponentFeature gene = components.get(parts[2]);
+		if (gene == null) {
+			gene = segment.getSelfComponentFeature().addSubComponent(parts[2], Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+					parts[2], geneType, parts[2], parts[2], method, null, null, null, null, null);
+			components.put(parts[2], gene);
+		}
+		DasComponentFeature transcript = components.get(parts[5]);
+		if (transcript == null) {
+			transcript = gene.addSubComponent(parts[5], Integer.parseInt(parts[6]), Integer.parseInt(parts[7]), Integer.parseInt(parts[6]), Integer.parseInt(parts[7]),
+					parts[5], transcriptType, parts[5], parts[5], method, null, null, null, null, null);
+			components.put(parts[5], transcript);
+		}
+		if (!components.containsKey(parts[8])) {
+			components.put(parts[8], transcript.addSubComponent(parts[8], Integer.parseInt(parts[9]), Integer.parseInt(parts[10]), Integer.parseInt(parts[9]), Integer.parseInt(parts[10]),
+					parts[8], exonType, parts[8], parts[8], method, null, null, null, null, null));
+		}
+	}
+
+	private DasType getType(String type) throws DataSourceException {
+		DasType dasType = types.get(type);
+		if (dasType == null) {
+			dasType = new DasType(type, null, null, null);
+			types.put(type, dasType);
+		}
+		return dasType;
+	}
+
+	/**
+	 * The ids of the GFF features give their position in the file, so they are read directly;
+	 * the features of the other formats can only be found by segment.
+	 */
+	public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins) throws UnimplementedFeatureException, DataSourceException {
+		if (format != TabixFormat.GFF)
+			throw new UnimplementedFeatureException("Features are only found by id in GFF files");
+		Collection<DasAnnotatedSegment> segmentsResponse = new ArrayList<DasAnnotatedSegment>();
+		for (String featureId : featureIdCollection) {
+			DasAnnotatedSegment found = null;
+			if (featureId.startsWith(GFF_FEATURE_PREFIX)) {
+				try {
+					found = getFeature(featureId, Long.parseLong(featureId.substring(GFF_FEATURE_PREFIX.length()), 16));
+				} catch (NumberFormatException nfe) {
+					// Not one of our ids.
+				}
+			}
+			segmentsResponse.add(found == null ? new DasUnknownFeatureSegment(featureId) : found);
+		}
+		return segmentsResponse;
+	}
+
+	private DasAnnotatedSegment getFeature(String featureId, long virtualOffset) throws DataSourceException {
+		String line;
+		try {
+			line = reader.readLine(virtualOffset);
+		} catch (IOException e) {
+			return null;
+		}
+		if (line == null || format.isMeta(line))
+			return null;
+		TabixFormat.Interval interval = format.parse(line);
+		if (interval == null)
+			return null;
+		// The id could point anywhere in the file: only accept the start of a line the index knows.
+		DasAnnotatedSegment segment = query(interval.getSequence(), interval.getBegin() + 1, interval.getEnd());
+		for (DasFeature feature : segment.getFeatures())
+			if (feature.getFeatureId().equals(featureId)) {
+				Integer length = lengths.get(interval.getSequence());
+				return new DasAnnotatedSegment(interval.getSequence(), 1, length == null ? feature.getStopCoordinate() : length, version,
+						interval.getSequence(), Collections.singleton(feature));
+			}
+		return null;
+	}
+
+	public Collection<DasType> getTypes() throws DataSourceException {
+		return new ArrayList<DasType>(types.values());
+	}
+
+	/**
+	 * Counting the features of a type would read the whole file.
+	 */
+	public Integer getTotalCountForType(DasType type) throws DataSourceException {
+		return null;
+	}
+
+	public URL getLinkURL(String field, String id) throws UnimplementedFeatureException, DataSourceException {
+		throw new UnimplementedFeatureException("No implemented");
+	}
+
+	public String getEntryPointVersion() throws UnimplementedFeatureException, DataSourceException {
+		return version;
+	}
+
+	/**
+	 * The entry points are the sequences of the index, in the order of the file.
+	 */
+	public Collection<DasEntryPoint> getEntryPoints(Integer start, Integer stop) throws UnimplementedFeatureException, DataSourceException {
+		List<DasEntryPoint> entryPoints = new ArrayList<DasEntryPoint>();
+		int first = start == null ? 1 : Math.max(start, 1);
+		int last = stop == null ? segmentIds.size() : Math.min(stop, segmentIds.size());
+		for (int i = first; i <= last; i++) {
+			String segmentId = segmentIds.get(i - 1);
+			Integer length = lengths.get(segmentId);
+			entryPoints.add(new DasEntryPoint(segmentId, length == null ? null : 1, length, null, version,
+					DasEntryPointOrientation.NO_INTRINSIC_ORIENTATION, segmentId, false));
+		}
+		return entryPoints;
+	}
+
+	public int getTotalEntryPoints() throws UnimplementedFeatureException, DataSourceException {
+		return segmentIds.size();
+	}
+
+	public DasAnnotatedSegment getFeatures(String segmentId, int start, int stop, Integer maxbins, Range rows) throws BadReferenceObjectException, CoordinateErrorException, DataSourceException, UnimplementedFeatureException {
+		throw new UnimplementedFeatureException("No implemented");
+	}
+
+	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins, Range rows) throws BadReferenceObjectException, DataSourceException, UnimplementedFeatureException {
+		throw new UnimplementedFeatureException("No implemented");
+	}
+
+	public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins, Range rows) throws UnimplementedFeatureException, DataSourceException {
+		throw new UnimplementedFeatureException("No implemented");
+	}
+}
@@ -0,0 +1,65 @@
+package uk.ac.ebi.mydas.examples;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
+import uk.ac.ebi.mydas.model.DasSequence;
+import uk.ac.ebi.mydas.model.DasType;
+
+/**
+ * What the file based example data sources keep in memory once their files are parsed.
+ * It is stored as a {@link uk.ac.ebi.mydas.datasource.DataSourceSnapshot}, so that the files
+ * are only parsed again when they change.
+ * <p/>
+ * The time the model was parsed is its version: it changes whenever a watched file is parsed
+ * again, and is kept in the snapshot, so the data sources serve the same version after a restart.
+ */
+public class ParsedModel implements Serializable {
+
+	private static final long serialVersionUID = 2L;
+
+	private final Collection<DasAnnotatedSegment> segments;
+	private final Collection<DasType> types;
+	private final Map<String,DasSequence> sequences;
+	private final long parsed;
+
+	public ParsedModel(Collection<DasAnnotatedSegment> segments, Collection<DasType> types, Map<String,DasSequence> sequences) {
+		this.segments = segments;
+		this.types = types;
+		this.sequences = sequences;
+		this.parsed = System.currentTimeMillis();
+	}
+
+	public Collection<DasAnnotatedSegment> getSegments() {
+		return segments;
+	}
+
+	public Collection<DasType> getTypes() {
+		return types;
+	}
+
+	/**
+	 * @return the sequences of a reference data source, null otherwise.
+	 */
+	public Map<String,DasSequence> getSequences() {
+		return sequences;
+	}
+
+	/**
+	 * @return the version of the model, used as the version stamp and entry point version of the
+	 * data source.
+	 */
+	public String getVersion() {
+		return Long.toString(parsed, 36);
+	}
+
+	/**
+	 * @return when the model was parsed.
+	 */
+	public Date getParsed() {
+		return new Date(parsed);
+	}
+}
@@ -1,7 +1,9 @@
 package uk.ac.ebi.mydas.examples;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -13,6 +15,8 @@ import javax.servlet.ServletContext;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.PropertyType;
 import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.DataSourceSnapshot;
+import uk.ac.ebi.mydas.datasource.FileWatcher;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
@@ -24,8 +28,11 @@ public class SeparatedByPipesDataSource implements AnnotationDataSource {
 	Map<String, PropertyType> globalParameters;
 	DataSourceConfiguration config;
 	String path;
-	private Collection<DasAnnotatedSegment> segments;
-	private Collection<DasType> types;
+	/**
+	 * Segments and types of the file, replaced as a whole when the file changes.
+	 */
+	private volatile ParsedModel model;
+	private FileWatcher watcher;
 
 	public void init(ServletContext servletContext,
 			Map<String, PropertyType> globalParameters,
@@ -35,29 +42,49 @@ public class SeparatedByPipesDataSource implements AnnotationDataSource {
 		this.globalParameters = globalParameters;
 		this.config = dataSourceConfig;
 		path = config.getDataSourceProperties().get("pipes_file").getValue();
-		try {
-			SeparatedByPipesParser parser = new SeparatedByPipesParser(new FileInputStream(servletContext.getRealPath(path)));
-			segments = parser.parse();
-			types = parser.getTypes();
-		} catch (FileNotFoundException e) {
-			throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
-		} catch (Exception e) {
-			throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+		final File pipesFile = new File(servletContext.getRealPath(path));
+		final DataSourceSnapshot snapshot = DataSourceSnapshot.forDataSource(servletContext, dataSourceConfig, pipesFile);
+		model = snapshot == null ? null : (ParsedModel) snapshot.load();
+		if (model == null) {
+			try {
+				model = parse(new FileInputStream(pipesFile));
+				if (snapshot != null)
+					snapshot.store(model);
+			} catch (FileNotFoundException e) {
+				throw new DataSourceException("The data source cannot be loaded. The file couldn't be oppened",e);
+			} catch (Exception e) {
+				throw new DataSourceException("The data source cannot be loaded because of parsing problems",e);
+			}
 		}
+		// The features of a gene are spread over its lines, so the whole file is parsed again.
+		watcher = FileWatcher.forDataSource(dataSourceConfig, new FileWatcher.Listener() {
+			public void fileChanged(FileWatcher.Change change) throws Exception {
+				ParsedModel updated = parse(change.open());
+				model = updated;
+				if (snapshot != null && pipesFile.length() == change.getLength())
+					snapshot.store(updated);
+			}
+		}, pipesFile);
+	}
+
+	private ParsedModel parse(InputStream pipesStream) throws Exception {
+		SeparatedByPipesParser parser = new SeparatedByPipesParser(pipesStream);
+		return new ParsedModel(parser.parse(), parser.getTypes(), null);
 	}
 
 	public void destroy() {
+		if (watcher != null)
+			watcher.stop();
+		this.watcher=null;
 		this.svCon=null;
 		this.globalParameters=null;
 		this.config=null;
 		this.path=null;
-		this.segments=null;
-		this.types=null;
 	}
 
 	public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbeans)
 			throws BadReferenceObjectException, DataSourceException {
-		for(DasAnnotatedSegment segment:segments){
+		for(DasAnnotatedSegment segment:model.getSegments()){
 			if (segment.getSegmentId().equals(segmentId))
 				return segment;
 		}
@@ -67,6 +94,7 @@ public class SeparatedByPipesDataSource implements AnnotationDataSource {
 	public Collection<DasAnnotatedSegment> getFeatures(
 			Collection<String> featureIdCollection, Integer maxbins)
 			throws UnimplementedFeatureException, DataSourceException {
+		Collection<DasAnnotatedSegment> segments = model.getSegments();
 		Collection<DasAnnotatedSegment> segmentsResponse =new ArrayList<DasAnnotatedSegment>();
 		for (String featureId:featureIdCollection){
 			boolean found=false;
@@ -120,7 +148,7 @@ public class SeparatedByPipesDataSource implements AnnotationDataSource {
 	public Integer getTotalCountForType(DasType type)
 			throws DataSourceException {
 		int count=0;
-		for (DasAnnotatedSegment segment:segments)
+		for (DasAnnotatedSegment segment:model.getSegments())
 			for(DasFeature feature:segment.getFeatures())
 				if(type.getId().equals(feature.getType().getId()))
 					count++;
@@ -128,7 +156,7 @@ public class SeparatedByPipesDataSource implements AnnotationDataSource {
 	}
 
 	public Collection<DasType> getTypes() throws DataSourceException {
-		return types;
+		return model.getTypes();
 	}
 
 	@Override
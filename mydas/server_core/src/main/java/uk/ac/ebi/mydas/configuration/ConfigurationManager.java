@@ -1,6 +1,7 @@
 package uk.ac.ebi.mydas.configuration;
 
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
@@ -11,8 +12,11 @@ import java.util.regex.PatternSyntaxException;
 import org.apache.log4j.Logger;
 
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
 
 import uk.ac.ebi.mydas.exceptions.ConfigurationException;
 
@@ -31,6 +35,11 @@ public class ConfigurationManager {
 	 */
 	private Mydasserver configurationDocument;
 
+	/**
+	 * Context used for the unmarshalling, kept to compare configurations
+	 */
+	private JAXBContext context;
+
 	/**
 	 * Unmashall an inputstream that contains the configuration file and create the model for it in to the Mydasserver attribute
 	 * @param inputStream Stream with the content of a configuration file who follows the XML scheme
@@ -41,6 +50,37 @@ public class ConfigurationManager {
 		JAXBContext jc = JAXBContext.newInstance( "uk.ac.ebi.mydas.configuration" );
 		Unmarshaller u = jc.createUnmarshaller();
 		this.configurationDocument = (Mydasserver)u.unmarshal( inputStream );
+		this.context = jc;
+	}
+
+	/**
+	 * Gives a canonical form of the global section of the configuration file, so that
+	 * it can be compared with the one of a previously loaded configuration.
+	 * @return the global section, serialized back to XML
+	 * @throws JAXBException in case the marshalling fails
+	 */
+	public String getGlobalFingerprint() throws JAXBException {
+		return fingerprint("global", Mydasserver.Global.class, this.configurationDocument.getGlobal());
+	}
+
+	/**
+	 * Gives a canonical form of the configuration of a data source, so that it can be
+	 * compared with the one of a previously loaded configuration.  The data source does not
+	 * need to come from the configuration file unmarshalled by this manager.
+	 * @param dsnConfig configuration of a data source
+	 * @return the datasource element of the data source, serialized back to XML
+	 * @throws JAXBException in case the marshalling fails
+	 */
+	public String getDataSourceFingerprint(DataSourceConfiguration dsnConfig) throws JAXBException {
+		return fingerprint("datasource", Mydasserver.Datasources.Datasource.class, dsnConfig.getConfig());
+	}
+
+	private <T> String fingerprint(String name, Class<T> type, T value) throws JAXBException {
+		Marshaller m = this.context.createMarshaller();
+		m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+		StringWriter out = new StringWriter();
+		m.marshal(new JAXBElement<T>(new QName(name), type, value), out);
+		return out.toString();
 	}
 	/**
 	 * Maps the information of the configurationDocument into a ServerConfiguration object 
@@ -27,8 +27,10 @@ import org.apache.log4j.Logger;
 import uk.ac.ebi.mydas.configuration.Mydasserver.Datasources.Datasource.Version.Capability;
 import uk.ac.ebi.mydas.controller.MydasServlet;
 import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.EntryPointCatalog;
 import uk.ac.ebi.mydas.exceptions.ConfigurationException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -73,7 +75,50 @@ public class DataSourceConfiguration {
      * For dynamic data sources, this value can also be null, meaning we never
      * tried to instantiate the annotation data source.
      */
-    private Boolean datasourceOK;
+    private volatile Boolean datasourceOK;
+
+    /**
+     * Data source property which, when set to true, defers the initialisation of the data
+     * source to the first request that uses it.
+     */
+    public static final String PROPERTY_LAZY_INIT = "lazy_init";
+
+    /**
+     * True while the initialisation of a lazy data source has been deferred and not yet done.
+     */
+    private volatile boolean initialisationPending = false;
+
+    /**
+     * The thread running the deferred initialisation, so that its own calls to
+     * getDataSource do not wait for themselves.  Guarded by this.
+     */
+    private Thread initialisingThread;
+
+    /**
+     * The entry points of the data source, for the version of its entry points when they were loaded.
+     */
+    private volatile EntryPointCatalog entryPointCatalog;
+
+    /**
+     * The entry point version of the data source when it was found to have too many entry points
+     * to be catalogued, with their number, so that it is not asked again until the version changes.
+     */
+    private volatile Uncatalogued uncatalogued;
+
+    private final Object entryPointCatalogLock = new Object();
+
+    /**
+     * The number of entry points of a data source that has too many of them to be catalogued.  Immutable.
+     */
+    private static final class Uncatalogued {
+        private final String version;
+        private final int total;
+
+        private Uncatalogued(String version, int total) {
+            this.version = version;
+            this.total = total;
+        }
+    }
 
     private final Mydasserver.Datasources.Datasource config;
     private int versionPosition;
@@ -192,6 +237,84 @@ public class DataSourceConfiguration {
     }
 
 
+    /**
+     * Returns the entry points of the data source, loaded on first use and again whenever the
+     * entry point version of the data source changes.  Checking the version is the only call
+     * to the data source once they are loaded, or once the data source is found to have too many
+     * entry points for this version.
+     *
+     * @return the entry points, or null if they are not kept in memory: for dynamic data sources,
+     *         data sources with the entry_point_catalog property set to false, or with more entry
+     *         points than the entry_point_catalog_max property.
+     * @throws UnimplementedFeatureException if the data source does not implement entry points.
+     * @throws DataSourceException           if the data source fails.
+     */
+    public EntryPointCatalog getEntryPointCatalog() throws UnimplementedFeatureException, DataSourceException {
+        if (this.config.getPattern() != null) {
+            return null;
+        }
+        Map<String, PropertyType> properties = getDataSourceProperties();
+        PropertyType enabled = properties.get(EntryPointCatalog.PROPERTY_ENTRY_POINT_CATALOG);
+        if (enabled != null && "false".equalsIgnoreCase(enabled.getValue().trim())) {
+            return null;
+        }
+        String version = getDataSource().getEntryPointVersion();
+        if (version == null) {
+            return null;
+        }
+        EntryPointCatalog catalog = this.entryPointCatalog;
+        if (catalog != null && catalog.getVersion().equals(version)) {
+            return catalog;
+        }
+        Uncatalogued tooLarge = this.uncatalogued;
+        if (tooLarge != null && tooLarge.version.equals(version)) {
+            return null;
+        }
+        synchronized (this.entryPointCatalogLock) {
+            catalog = this.entryPointCatalog;
+            tooLarge = this.uncatalogued;
+            if (tooLarge != null && tooLarge.version.equals(version)) {
+                return null;
+            }
+            if (catalog == null || !catalog.getVersion().equals(version)) {
+                int maxSize = EntryPointCatalog.DEFAULT_MAX_ENTRY_POINTS;
+                PropertyType max = properties.get(EntryPointCatalog.PROPERTY_ENTRY_POINT_CATALOG_MAX);
+                if (max != null) {
+                    try {
+                        maxSize = Integer.parseInt(max.getValue().trim());
+                    } catch (NumberFormatException nfe) {
+                        logger.error("The " + EntryPointCatalog.PROPERTY_ENTRY_POINT_CATALOG_MAX + " property is not numeric, using " + maxSize);
+                    }
+                }
+                int total = getDataSource().getTotalEntryPoints();
+                if (total > maxSize) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("The " + total + " entry points of " + getName() + ", version " + version + ", are too many to be kept in memory");
+                    }
+                    this.uncatalogued = new Uncatalogued(version, total);
+                    this.entryPointCatalog = null;
+                    return null;
+                }
+                catalog = EntryPointCatalog.load(getDataSource(), getMaxEntryPoints(), maxSize);
+                if (catalog != null && logger.isDebugEnabled()) {
+                    logger.debug("Loaded " + catalog.getTotal() + " entry points of " + getName() + ", version " + catalog.getVersion());
+                }
+                this.entryPointCatalog = catalog;
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * @param version the entry point version of the data source.
+     * @return the number of entry points of the data source if getEntryPointCatalog found them too
+     *         many to be kept in memory for this version, null otherwise.
+     */
+    public Integer getUncataloguedTotal(String version) {
+        Uncatalogued tooLarge = this.uncatalogued;
+        return tooLarge != null && tooLarge.version.equals(version) ? tooLarge.total : null;
+    }
+
     /**
      * returns a flag to indicate if the dna command is enabled.
      *
@@ -280,6 +403,9 @@ public class DataSourceConfiguration {
      *                             checking first! (That would be a bug, by the way).
      */
     public AnnotationDataSource getDataSource() throws DataSourceException {
+        if (this.initialisationPending) {
+            initialiseOnFirstUse();
+        }
         if (Boolean.FALSE.equals(this.datasourceOK)) {
             throw new DataSourceException("An attempt has been made to access an AnnotationDataSource that has not been successfully loaded.");
         }
@@ -297,6 +423,50 @@ public class DataSourceConfiguration {
         return dataSource;
     }
 
+    /**
+     * Runs the deferred initialisation of a lazy data source.  Concurrent requests wait for the
+     * first one to initialise the data source, rather than initialising it again.
+     *
+     * @throws DataSourceException if the data source manager cannot initialise the data source.
+     */
+    private synchronized void initialiseOnFirstUse() throws DataSourceException {
+        if (!this.initialisationPending || this.initialisingThread == Thread.currentThread()) {
+            return;
+        }
+        this.initialisingThread = Thread.currentThread();
+        try {
+            MydasServlet.getDataSourceManager().initializeDataSource(this);
+        } catch (ConfigurationException e) {
+            throw new DataSourceException("Could not initialize lazy data source", e);
+        } finally {
+            this.initialisingThread = null;
+            this.initialisationPending = false;
+        }
+    }
+
+    /**
+     * @return true if the lazy_init property of the data source is set to true.
+     */
+    public boolean isLazyInit() {
+        PropertyType property = getDataSourceProperties().get(PROPERTY_LAZY_INIT);
+        return property != null && Boolean.parseBoolean(property.getValue().trim());
+    }
+
+    /**
+     * Called by the DataSourceManager instead of initialising a lazy data source: it will be
+     * loaded and initialised by the first call to {@link #getDataSource()}.
+     */
+    public void deferInitialisation() {
+        this.initialisationPending = true;
+    }
+
+    /**
+     * @return true if this is a lazy data source that has not been initialised yet.
+     */
+    public boolean isInitialisationPending() {
+        return this.initialisationPending;
+    }
+
     /**
      * The matcher obtained from the pattern configured for the (dynamic) data
      * source matched against the actual dsn name provided by the user.
@@ -368,7 +538,7 @@ public class DataSourceConfiguration {
      * @return false if things have gone wrong, true if all is good.
      */
     public boolean isOK() {
-        return this.datasourceOK == null || Boolean.TRUE.equals(datasourceOK);
+        return this.initialisationPending || this.datasourceOK == null || Boolean.TRUE.equals(datasourceOK);
     }
 
     /**
@@ -24,6 +24,7 @@
 package uk.ac.ebi.mydas.configuration;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,7 +37,11 @@ import java.util.regex.Pattern;
  */
 public class ServerConfiguration {
 
-    private List<String> liveDsnNames = null;
+    private volatile List<String> liveDsnNames = null;
+
+    private final AtomicLong healthGeneration = new AtomicLong();
+
+    private volatile long healthChangedMillis = 0;
 
     private final GlobalConfiguration globalConfiguration;
 
@@ -104,15 +109,42 @@ public class ServerConfiguration {
      * @return a List of successfully initilised dsns.
      */
     public List<String> getDsnNames() {
-        if (liveDsnNames == null){
-            liveDsnNames = new ArrayList<String> (dataSourceConfigMap.size());
+        List<String> names = liveDsnNames;
+        if (names == null){
+            names = new ArrayList<String> (dataSourceConfigMap.size());
             // Iterate over the dsns and return only the ones that report themselves as 'ok'.
             for (String dsnName : dataSourceConfigMap.keySet()){
                 if (dataSourceConfigMap.get(dsnName).isOK()){
-                    liveDsnNames.add(dsnName);
+                    names.add(dsnName);
                 }
             }
+            liveDsnNames = names;
         }
-        return liveDsnNames;
+        return names;
+    }
+
+    /**
+     * Records that a configured data source has been (re)initialised, so that the list of
+     * successfully initialised dsns, and anything rendered from it, is worked out again.
+     */
+    public void dataSourceHealthChanged() {
+        liveDsnNames = null;
+        healthChangedMillis = System.currentTimeMillis();
+        healthGeneration.incrementAndGet();
+    }
+
+    /**
+     * @return a number incremented every time the health of a configured data source changes.
+     */
+    public long getHealthGeneration() {
+        return healthGeneration.get();
+    }
+
+    /**
+     * @return the time at which the health of a configured data source last changed, 0 if it
+     *         has not changed since the configuration was loaded.
+     */
+    public long getHealthChangedMillis() {
+        return healthChangedMillis;
     }
 }
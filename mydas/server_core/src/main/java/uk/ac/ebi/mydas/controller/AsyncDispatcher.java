@@ -0,0 +1,170 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.datasource.RequestContext;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the requests over to a dedicated pool of threads with the asynchronous processing of
+ * Servlet 3.0, so that the threads of the container are not held while the data sources work,
+ * and the number of requests in progress is no longer bounded by the size of the container pool.
+ * <p/>
+ * Only used when the async init parameter of the servlet is true, so that the rest of the
+ * servlet keeps working in older containers.  A request is handled by the container thread as
+ * before if its filters do not support asynchronous processing, or if the pool and its queue
+ * are full.
+ * <p/>
+ * When the container reports an error or a timeout of an asynchronous request, e.g. because the
+ * client has gone, its {@link RequestContext} is cancelled so that the data source stops working
+ * for it.
+ */
+final class AsyncDispatcher {
+
+    private static final Logger logger = Logger.getLogger(AsyncDispatcher.class);
+
+    /**
+     * Request attribute holding the {@link RequestContext} of the request while it is handled.
+     */
+    static final String ATTRIBUTE_REQUEST_CONTEXT = RequestContext.class.getName();
+
+    /**
+     * Handles a request, on whatever thread it is given.
+     */
+    interface Handler {
+        void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads  maximum number of requests handled at the same time.
+     * @param queue    maximum number of requests waiting for a thread.
+     */
+    AsyncDispatcher(int threads, int queue) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "mydas-request-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Handles a request on a thread of the pool, or on the calling thread if it cannot be
+     * handed over.
+     *
+     * @param request  to handle.
+     * @param response to write to.
+     * @param handler  handling the request.
+     * @throws ServletException as thrown by the handler, if run on the calling thread.
+     * @throws IOException      as thrown by the handler, if run on the calling thread.
+     */
+    void dispatch(HttpServletRequest request, HttpServletResponse response, final Handler handler)
+            throws ServletException, IOException {
+        if (!request.isAsyncSupported()) {
+            handler.handle(request, response);
+            return;
+        }
+        final AsyncContext async = request.startAsync(request, response);
+        // The deadlines of the requests are enforced by the servlet, not by the container.
+        async.setTimeout(0);
+        async.addListener(new AsyncListener() {
+            public void onComplete(AsyncEvent event) {
+            }
+
+            public void onTimeout(AsyncEvent event) {
+                cancel(event);
+            }
+
+            public void onError(AsyncEvent event) {
+                cancel(event);
+            }
+
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    HttpServletResponse asyncResponse = (HttpServletResponse) async.getResponse();
+                    try {
+                        handler.handle((HttpServletRequest) async.getRequest(), asyncResponse);
+                    } catch (Exception e) {
+                        logger.error("Exception thrown when handling a request asynchronously", e);
+                        if (!asyncResponse.isCommitted()) {
+                            try {
+                                asyncResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                            } catch (IOException ioe) {
+                                // The client has gone.
+                            }
+                        }
+                    } finally {
+                        async.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            logger.warn("All the request threads are busy, handling the request on the container thread");
+            try {
+                handler.handle(request, response);
+            } finally {
+                async.complete();
+            }
+        }
+    }
+
+    private static void cancel(AsyncEvent event) {
+        RequestContext context = (RequestContext) event.getSuppliedRequest().getAttribute(ATTRIBUTE_REQUEST_CONTEXT);
+        if (context != null) {
+            logger.debug("Cancelling an asynchronous request after an error or a timeout", event.getThrowable());
+            context.cancel();
+        }
+    }
+
+    /**
+     * Stops the threads once the requests in progress are done.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
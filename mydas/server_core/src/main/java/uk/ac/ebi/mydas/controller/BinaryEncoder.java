@@ -0,0 +1,163 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the compact model as a stream of length-prefixed binary records.
+ * <p/>
+ * The stream starts with the four bytes <code>DASB</code> and a version byte.  Every record
+ * then starts with a one byte tag.  Numbers are big-endian; strings are written as a four
+ * byte length followed by that many bytes of UTF-8.  Member names are sent only once: a
+ * {@link #TAG_NAME} record assigns an index to a name, and later records refer to it by
+ * that two byte index ({@link #NO_NAME} for the members of an array).
+ * <pre>
+ * TAG_NAME         index string
+ * TAG_START_OBJECT index
+ * TAG_END_OBJECT
+ * TAG_START_ARRAY  index
+ * TAG_END_ARRAY
+ * TAG_STRING       index string
+ * TAG_INT          index int32
+ * TAG_DOUBLE       index float64
+ * TAG_BOOLEAN      index byte
+ * </pre>
+ */
+class BinaryEncoder extends CompactEncoder {
+
+    static final byte[] MAGIC = {'D', 'A', 'S', 'B'};
+    static final byte VERSION = 1;
+
+    static final byte TAG_NAME = 0;
+    static final byte TAG_START_OBJECT = 1;
+    static final byte TAG_END_OBJECT = 2;
+    static final byte TAG_START_ARRAY = 3;
+    static final byte TAG_END_ARRAY = 4;
+    static final byte TAG_STRING = 5;
+    static final byte TAG_INT = 6;
+    static final byte TAG_DOUBLE = 7;
+    static final byte TAG_BOOLEAN = 8;
+
+    static final int NO_NAME = 0xFFFF;
+
+    private final DataOutputStream out;
+
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+    private boolean started = false;
+
+    BinaryEncoder(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    void startObject(String name) throws IOException {
+        record(TAG_START_OBJECT, name);
+    }
+
+    void endObject() throws IOException {
+        out.writeByte(TAG_END_OBJECT);
+    }
+
+    void startArray(String name) throws IOException {
+        record(TAG_START_ARRAY, name);
+    }
+
+    void endArray() throws IOException {
+        out.writeByte(TAG_END_ARRAY);
+    }
+
+    void value(String name, String value) throws IOException {
+        if (value != null) {
+            record(TAG_STRING, name);
+            writeString(value);
+        }
+    }
+
+    void value(String name, int value) throws IOException {
+        record(TAG_INT, name);
+        out.writeInt(value);
+    }
+
+    void value(String name, double value) throws IOException {
+        record(TAG_DOUBLE, name);
+        out.writeDouble(value);
+    }
+
+    void value(String name, boolean value) throws IOException {
+        record(TAG_BOOLEAN, name);
+        out.writeBoolean(value);
+    }
+
+    void flush() throws IOException {
+        if (!started) {
+            writeMagic();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the tag and name index of a record, defining the name first if it has not
+     * been seen before in this stream.
+     */
+    private void record(byte tag, String name) throws IOException {
+        if (!started) {
+            writeMagic();
+        }
+        int index = NO_NAME;
+        if (name != null) {
+            Integer known = names.get(name);
+            if (known == null) {
+                known = names.size();
+                if (known >= NO_NAME) {
+                    throw new IOException("Too many distinct member names for the binary format");
+                }
+                names.put(name, known);
+                out.writeByte(TAG_NAME);
+                out.writeShort(known);
+                writeString(name);
+            }
+            index = known;
+        }
+        out.writeByte(tag);
+        out.writeShort(index);
+    }
+
+    private void writeMagic() throws IOException {
+        started = true;
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(DasCommandManager.ENCODE);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.GlobalConfiguration;
+import uk.ac.ebi.mydas.configuration.Mydasserver;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests a data source handles at the same time, so that a slow data
+ * source cannot take all the threads of the container and starve the others.
+ * <p/>
+ * A request beyond max_concurrent_requests waits for at most queue_timeout milliseconds, and
+ * is rejected straight away if max_queued_requests requests are already waiting.  The limits
+ * are data source properties, defaulting to the global parameters of the same names; without
+ * max_concurrent_requests the data source has no limit.
+ */
+final class Bulkhead {
+
+    private static final Logger logger = Logger.getLogger(Bulkhead.class);
+
+    static final String PROPERTY_MAX_CONCURRENT_REQUESTS = "max_concurrent_requests";
+    static final String PROPERTY_MAX_QUEUED_REQUESTS = "max_queued_requests";
+    static final String PROPERTY_QUEUE_TIMEOUT = "queue_timeout";
+
+    private static final int DEFAULT_MAX_QUEUED_REQUESTS = 0;
+    private static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    /**
+     * The bulkheads, by data source definition: dynamic data sources are instantiated per request,
+     * but share their definition, and the definitions are replaced when the configuration is reloaded.
+     */
+    private static final Map<Mydasserver.Datasources.Datasource, Bulkhead> BULKHEADS =
+            Collections.synchronizedMap(new WeakHashMap<Mydasserver.Datasources.Datasource, Bulkhead>());
+
+    /**
+     * Placeholder for the data sources without limit.
+     */
+    private static final Bulkhead UNLIMITED = new Bulkhead(null, 0, 0, 0);
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long queueTimeout;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queuedTotal = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+    private Bulkhead(String name, int maxConcurrent, int maxQueued, long queueTimeout) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.queueTimeout = queueTimeout;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * @param dsnConfig    the data source.
+     * @param globalConfig giving the default limits.
+     * @return the bulkhead of the data source, null if it has no limit.
+     */
+    static Bulkhead forDataSource(DataSourceConfiguration dsnConfig, GlobalConfiguration globalConfig) {
+        Mydasserver.Datasources.Datasource definition = dsnConfig.getConfig();
+        Bulkhead bulkhead;
+        synchronized (BULKHEADS) {
+            bulkhead = BULKHEADS.get(definition);
+            if (bulkhead == null) {
+                bulkhead = create(dsnConfig, globalConfig);
+                BULKHEADS.put(definition, bulkhead);
+            }
+        }
+        return bulkhead == UNLIMITED ? null : bulkhead;
+    }
+
+    /**
+     * @return the bulkheads of the data sources with a limit.
+     */
+    static List<Bulkhead> all() {
+        Set<Bulkhead> all = new LinkedHashSet<Bulkhead>();
+        synchronized (BULKHEADS) {
+            all.addAll(BULKHEADS.values());
+        }
+        all.remove(UNLIMITED);
+        return new ArrayList<Bulkhead>(all);
+    }
+
+    private static Bulkhead create(DataSourceConfiguration dsnConfig, GlobalConfiguration globalConfig) {
+        Map<String, PropertyType> properties = dsnConfig.getDataSourceProperties();
+        Map<String, PropertyType> globals = globalConfig.getGlobalParameters();
+        long maxConcurrent = longProperty(properties, globals, PROPERTY_MAX_CONCURRENT_REQUESTS, 0);
+        if (maxConcurrent <= 0) {
+            return UNLIMITED;
+        }
+        long maxQueued = longProperty(properties, globals, PROPERTY_MAX_QUEUED_REQUESTS, DEFAULT_MAX_QUEUED_REQUESTS);
+        long queueTimeout = longProperty(properties, globals, PROPERTY_QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT);
+        return new Bulkhead(dsnConfig.getName(), (int) Math.min(maxConcurrent, Integer.MAX_VALUE),
+                (int) Math.max(0, Math.min(maxQueued, Integer.MAX_VALUE)), Math.max(0, queueTimeout));
+    }
+
+    private static long longProperty(Map<String, PropertyType> properties, Map<String, PropertyType> globals, String key, long defaultValue) {
+        PropertyType property = properties == null ? null : properties.get(key);
+        if (property == null && globals != null) {
+            property = globals.get(key);
+        }
+        if (property != null) {
+            try {
+                return Long.parseLong(property.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                logger.error("The " + key + " property is not numeric, using " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Admits a request, waiting if the data source is busy.  A request admitted must call
+     * {@link #exit()} once handled.
+     *
+     * @return false if the request is rejected: too many requests are waiting, or it waited too long.
+     */
+    boolean enter() {
+        if (permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        queuedTotal.incrementAndGet();
+        long start = System.nanoTime();
+        boolean entered = false;
+        try {
+            entered = permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+            long wait = System.nanoTime() - start;
+            queueWaitNanos.addAndGet(wait);
+            long max;
+            while (wait > (max = maxQueueWaitNanos.get()) && !maxQueueWaitNanos.compareAndSet(max, wait)) {
+                // Retry with the new maximum.
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Request to " + name + " waited " + TimeUnit.NANOSECONDS.toMillis(wait) + "ms in the queue");
+            }
+        }
+        if (entered) {
+            admitted.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+        return entered;
+    }
+
+    /**
+     * Releases the place of a request admitted by {@link #enter()}.
+     */
+    void exit() {
+        permits.release();
+    }
+
+    /**
+     * @return the number of seconds a rejected client should wait before retrying.
+     */
+    int getRetryAfterSeconds() {
+        return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueTimeout));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    long getAdmitted() {
+        return admitted.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of requests which had to wait in the queue.
+     */
+    long getQueuedTotal() {
+        return queuedTotal.get();
+    }
+
+    /**
+     * @return the total time requests spent in the queue, in milliseconds.
+     */
+    long getQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(queueWaitNanos.get());
+    }
+
+    /**
+     * @return the longest time a request spent in the queue, in milliseconds.
+     */
+    long getMaxQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos.get());
+    }
+
+    public String toString() {
+        return "Bulkhead of " + name + ": active " + getActive() + '/' + maxConcurrent
+                + ", queued " + getQueued() + '/' + maxQueued
+                + ", admitted " + getAdmitted() + ", rejected " + getRejected()
+                + ", waited " + getQueuedTotal() + " times for " + getQueueWaitMillis() + "ms (max " + getMaxQueueWaitMillis() + "ms)";
+    }
+}
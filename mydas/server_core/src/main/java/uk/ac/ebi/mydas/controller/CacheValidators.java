@@ -0,0 +1,282 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.GlobalConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.VersionStampedDataSource;
+import uk.ac.ebi.mydas.datasource.WritebackDataSource;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * HTTP validators (ETag and Last-Modified) and Cache-Control of a response, used to answer
+ * conditional requests with 304 (Not Modified) before the data source is queried.
+ * <p/>
+ * The ETag is weak, as the same content may be sent either plain or gzipped, and is a digest of
+ * the version of the content, the command, the normalised query and the Accept header.  The version
+ * of a data source is its {@link VersionStampedDataSource} stamp if implemented, otherwise its entry
+ * point version; data sources with neither get no validators.  The sources and dsn documents only
+ * depend on the configuration and on which data sources initialised successfully, so are versioned
+ * by the time the configuration was loaded and the health generation of its data sources.
+ * <p/>
+ * Cache-Control is read from the global properties cache_control_&lt;command&gt; (e.g.
+ * cache_control_features), falling back on cache_control.
+ */
+final class CacheValidators {
+
+    private static final Logger logger = Logger.getLogger(CacheValidators.class);
+
+    /**
+     * Request attribute holding the validators of the current request, so that they are only
+     * sent with successful responses (see MydasServlet.writeHeader).
+     */
+    static final String REQUEST_ATTRIBUTE = CacheValidators.class.getName();
+
+    private static final String HEADER_KEY_ETAG = "ETag";
+    private static final String HEADER_KEY_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_KEY_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_KEY_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_KEY_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_KEY_ACCEPT = "Accept";
+
+    private static final String PROPERTY_CACHE_CONTROL = "cache_control";
+
+    private final String etag;
+
+    private final long lastModified;
+
+    private final String cacheControl;
+
+    private CacheValidators(String etag, long lastModified, String cacheControl) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
+    }
+
+    /**
+     * Builds the validators of a data source command.
+     *
+     * @param request     holding the Accept header.
+     * @param command     as found in the request URI.
+     * @param dsnConfig   of the requested data source, which must be OK.
+     * @param queryString of the request.
+     * @param global      configuration, holding the Cache-Control properties.
+     * @return the validators, or null if the response of this command cannot be validated.
+     * @throws DataSourceException if the data source fails while giving its version.
+     */
+    static CacheValidators forDataSource(HttpServletRequest request, MydasServlet.Commands command, DataSourceConfiguration dsnConfig,
+                                         String queryString, GlobalConfiguration global) throws DataSourceException {
+        AnnotationDataSource dataSource = dsnConfig.getDataSource();
+        String stamp;
+        long lastModified = -1;
+        if (dataSource instanceof VersionStampedDataSource) {
+            VersionStampedDataSource stamped = (VersionStampedDataSource) dataSource;
+            stamp = stamped.getVersionStamp();
+            Date date = stamped.getLastModified();
+            if (date != null) {
+                lastModified = date.getTime();
+            }
+        } else if (dataSource instanceof WritebackDataSource) {
+            // Features can be changed without the entry point version changing.
+            return null;
+        } else {
+            try {
+                stamp = dataSource.getEntryPointVersion();
+            } catch (UnimplementedFeatureException e) {
+                return null;
+            }
+        }
+        if (stamp == null || stamp.length() == 0) {
+            return null;
+        }
+        String etag = etag(dsnConfig.getId(), dsnConfig.getVersion(), stamp, command.getCommandString(),
+                normalise(queryString), request.getHeader(HEADER_KEY_ACCEPT));
+        return new CacheValidators(etag, lastModified, cacheControl(global, command));
+    }
+
+    /**
+     * Builds the validators of the sources and dsn commands.
+     *
+     * @param request       holding the Accept header.
+     * @param command       as found in the request URI.
+     * @param dsn           the data source requested by the sources command, null for all of them.
+     * @param queryString   of the request.
+     * @param global        configuration, holding the Cache-Control properties.
+     * @param configuration time the configuration was loaded.
+     * @param health        generation of the health of the data sources, see
+     *                      ServerConfiguration.getHealthGeneration.
+     * @param healthChanged time the health of a data source last changed, 0 if it has not.
+     * @return the validators.
+     */
+    static CacheValidators forServer(HttpServletRequest request, MydasServlet.Commands command, String dsn,
+                                     String queryString, GlobalConfiguration global, long configuration,
+                                     long health, long healthChanged) {
+        String etag = etag(dsn, Long.toString(configuration), Long.toString(health), command.getCommandString(),
+                normalise(queryString), request.getHeader(HEADER_KEY_ACCEPT));
+        return new CacheValidators(etag, Math.max(configuration, healthChanged), cacheControl(global, command));
+    }
+
+    /**
+     * Checks the If-None-Match header or, if the client sent none, the If-Modified-Since header.
+     *
+     * @param request holding the conditional headers.
+     * @return true if the client already has the current version of the response.
+     */
+    boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader(HEADER_KEY_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison: W/"x" matches "x".
+                if (tag.equals("*") || stripWeak(tag).equals(stripWeak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified >= 0) {
+            try {
+                long ifModifiedSince = request.getDateHeader(HEADER_KEY_IF_MODIFIED_SINCE);
+                // HTTP dates have a precision of one second.
+                return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+            } catch (IllegalArgumentException e) {
+                logger.debug("Ignoring unparseable If-Modified-Since header");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the ETag, Last-Modified and Cache-Control headers to the response.
+     *
+     * @param response to add the headers to.
+     */
+    void apply(HttpServletResponse response) {
+        response.setHeader(HEADER_KEY_ETAG, etag);
+        if (lastModified >= 0) {
+            response.setDateHeader(HEADER_KEY_LAST_MODIFIED, lastModified);
+        }
+        if (cacheControl != null) {
+            response.setHeader(HEADER_KEY_CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    /**
+     * @param command of the request.
+     * @return true if the responses of the command only depend on the data source version
+     *         and the request, so can be validated with an ETag.
+     */
+    static boolean isCacheable(MydasServlet.Commands command) {
+        switch (command) {
+            case COMMAND_DSN:
+            case COMMAND_SOURCES:
+            case COMMAND_DNA:
+            case COMMAND_TYPES:
+            case COMMAND_FEATURES:
+            case COMMAND_ENTRY_POINTS:
+            case COMMAND_SEQUENCE:
+            case COMMAND_ALIGNMENT:
+            case COMMAND_STRUCTURE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static String cacheControl(GlobalConfiguration global, MydasServlet.Commands command) {
+        Map<String, PropertyType> properties = global.getGlobalParameters();
+        if (properties == null) {
+            return null;
+        }
+        PropertyType property = properties.get(PROPERTY_CACHE_CONTROL + '_' + command.getCommandString());
+        if (property == null) {
+            property = properties.get(PROPERTY_CACHE_CONTROL);
+        }
+        return property == null || property.getValue().trim().length() == 0 ? null : property.getValue().trim();
+    }
+
+    /**
+     * Decodes the query string and removes empty parts, so that equivalent
+     * spellings of the same request share the same ETag.
+     */
+    static String normalise(String queryString) {
+        if (queryString == null) {
+            return "";
+        }
+        StringBuilder normalised = new StringBuilder(queryString.length());
+        for (String queryPart : queryString.split("[;&]")) {
+            queryPart = queryPart.trim();
+            if (queryPart.length() == 0) {
+                continue;
+            }
+            try {
+                queryPart = URLDecoder.decode(queryPart, DasCommandManager.ENCODE);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(DasCommandManager.ENCODE + " is not supported", e);
+            } catch (IllegalArgumentException e) {
+                // Badly escaped, use as it is.
+            }
+            normalised.append(queryPart).append(';');
+        }
+        return normalised.toString();
+    }
+
+    private static String etag(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String part : parts) {
+                if (part != null) {
+                    digest.update(part.getBytes(DasCommandManager.ENCODE));
+                }
+                digest.update((byte) 0);
+            }
+            StringBuilder etag = new StringBuilder("W/\"");
+            for (byte b : digest.digest()) {
+                etag.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(DasCommandManager.ENCODE + " is not supported", e);
+        }
+    }
+
+    static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics of a command of a data source, updated without locks.
+ */
+final class CommandMetrics implements CommandMetricsMBean {
+
+    private static final XDasStatus[] STATUSES = XDasStatus.values();
+
+    private final String dsn;
+
+    private final String command;
+
+    private final AtomicLongArray statusCounts = new AtomicLongArray(STATUSES.length + 1);
+
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    private final AtomicLong features = new AtomicLong();
+
+    private final Histogram total = new Histogram();
+
+    private final Histogram[] phases = new Histogram[RequestTimer.Phase.values().length];
+
+    CommandMetrics(String dsn, String command) {
+        this.dsn = dsn;
+        this.command = command;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    void record(RequestTimer timer) {
+        XDasStatus status = timer.getStatus();
+        // Requests which ended without a DAS status, e.g. redirected, are counted apart.
+        statusCounts.incrementAndGet(status == null ? STATUSES.length : status.ordinal());
+        responseBytes.addAndGet(timer.getBytes());
+        features.addAndGet(timer.getFeatures());
+        total.record(timer.getTotalNanos());
+        for (RequestTimer.Phase phase : RequestTimer.Phase.values()) {
+            long nanos = timer.getPhaseNanos(phase);
+            if (nanos > 0) {
+                phases[phase.ordinal()].record(nanos);
+            }
+        }
+    }
+
+    Histogram getTotal() {
+        return total;
+    }
+
+    Histogram getPhase(RequestTimer.Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * @param status X-DAS-Status, null for the requests without one.
+     * @return the number of requests answered with it.
+     */
+    long getStatusCount(XDasStatus status) {
+        return statusCounts.get(status == null ? STATUSES.length : status.ordinal());
+    }
+
+    public String getDsn() {
+        return dsn;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public long getRequestCount() {
+        return total.getCount();
+    }
+
+    public long getErrorCount() {
+        long errors = 0;
+        for (XDasStatus status : STATUSES) {
+            if (status != XDasStatus.STATUS_200_OK) {
+                errors += statusCounts.get(status.ordinal());
+            }
+        }
+        return errors;
+    }
+
+    public String getStatusCounts() {
+        StringBuilder counts = new StringBuilder();
+        for (XDasStatus status : STATUSES) {
+            long count = statusCounts.get(status.ordinal());
+            if (count > 0) {
+                if (counts.length() > 0) {
+                    counts.append(", ");
+                }
+                counts.append(status).append('=').append(count);
+            }
+        }
+        return counts.toString();
+    }
+
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    public long getFeatureCount() {
+        return features.get();
+    }
+
+    public double getMeanMillis() {
+        return total.getMeanMillis();
+    }
+
+    public double getMaxMillis() {
+        return total.getMaxMillis();
+    }
+
+    public double getMedianMillis() {
+        return total.getPercentileMillis(0.5);
+    }
+
+    public double get95thPercentileMillis() {
+        return total.getPercentileMillis(0.95);
+    }
+
+    public double get99thPercentileMillis() {
+        return total.getPercentileMillis(0.99);
+    }
+
+    public double getMeanParseMillis() {
+        return getPhase(RequestTimer.Phase.PARSE).getMeanMillis();
+    }
+
+    public double getMeanFetchMillis() {
+        return getPhase(RequestTimer.Phase.FETCH).getMeanMillis();
+    }
+
+    public double getMeanFilterMillis() {
+        return getPhase(RequestTimer.Phase.FILTER).getMeanMillis();
+    }
+
+    public double getMeanSerializeMillis() {
+        return getPhase(RequestTimer.Phase.SERIALIZE).getMeanMillis();
+    }
+
+    public double getMeanGzipMillis() {
+        return getPhase(RequestTimer.Phase.GZIP).getMeanMillis();
+    }
+}
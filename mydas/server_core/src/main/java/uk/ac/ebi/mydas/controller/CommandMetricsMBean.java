@@ -0,0 +1,71 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+/**
+ * JMX view of the metrics of a command of a data source.  Durations are in milliseconds, and
+ * the percentiles are the upper bounds of the histogram buckets holding them.
+ */
+public interface CommandMetricsMBean {
+
+    String getDsn();
+
+    String getCommand();
+
+    long getRequestCount();
+
+    /**
+     * @return the number of requests answered with an X-DAS-Status other than 200.
+     */
+    long getErrorCount();
+
+    /**
+     * @return the number of requests by X-DAS-Status, e.g. "200=10, 402=1".
+     */
+    String getStatusCounts();
+
+    long getResponseBytes();
+
+    long getFeatureCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getMedianMillis();
+
+    double get95thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    double getMeanParseMillis();
+
+    double getMeanFetchMillis();
+
+    double getMeanFilterMillis();
+
+    double getMeanSerializeMillis();
+
+    double getMeanGzipMillis();
+}
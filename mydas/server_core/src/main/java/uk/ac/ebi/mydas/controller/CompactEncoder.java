@@ -0,0 +1,91 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer for the compact (non XML) response formats.
+ * <p/>
+ * The model is a tree of objects and arrays holding named string, integer, double and
+ * boolean values.  Names are ignored for the members of an array.  Null strings are
+ * skipped, in the same way as optional attributes are left out of the XML.
+ */
+abstract class CompactEncoder {
+
+    /**
+     * Creates the encoder for the given format.
+     *
+     * @param format either JSON or BINARY.
+     * @param out    to which the encoded document is written.
+     * @return a new encoder writing to the stream.
+     */
+    static CompactEncoder newEncoder(ResponseFormat format, OutputStream out) {
+        switch (format) {
+            case JSON:
+                return new JsonEncoder(out);
+            case BINARY:
+                return new BinaryEncoder(out);
+            default:
+                throw new IllegalArgumentException("No compact encoder for the format " + format);
+        }
+    }
+
+    abstract void startObject(String name) throws IOException;
+
+    abstract void endObject() throws IOException;
+
+    abstract void startArray(String name) throws IOException;
+
+    abstract void endArray() throws IOException;
+
+    abstract void value(String name, String value) throws IOException;
+
+    abstract void value(String name, int value) throws IOException;
+
+    abstract void value(String name, double value) throws IOException;
+
+    abstract void value(String name, boolean value) throws IOException;
+
+    /**
+     * Convenience method for optional numbers.
+     *
+     * @param name  of the value.
+     * @param value is not written when null.
+     * @throws IOException during writing.
+     */
+    void value(String name, Integer value) throws IOException {
+        if (value != null) {
+            value(name, value.intValue());
+        }
+    }
+
+    /**
+     * Writes any pending data to the underlying stream, without closing it.
+     *
+     * @throws IOException during writing.
+     */
+    abstract void flush() throws IOException;
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import uk.ac.ebi.mydas.exceptions.CoordinateErrorException;
+import uk.ac.ebi.mydas.model.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes the responses of the features, types, entry_points and sequence commands through a
+ * {@link CompactEncoder}, i.e. as JSON or binary instead of DAS XML.
+ * <p/>
+ * The documents hold the same information as the XML ones, with the same rules for optional
+ * values; XML attributes and simple elements become named values, repeated elements become
+ * arrays.  Segments that could not be served are reported in place, in the order they were
+ * requested, as an object with an <code>error</code> value holding the name of the XML
+ * element (ERRORSEGMENT, UNKNOWNSEGMENT or UNKNOWNFEATURE).
+ */
+class CompactResponseWriter {
+
+    private final CompactEncoder encoder;
+
+    CompactResponseWriter(CompactEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Equivalent of the DASGFF document.
+     *
+     * @param href                          the URL of the request.
+     * @param filter                        used to decide which features are reported, and to report the total for paginated requests.
+     * @param segmentReporters              the segments found (or not) for the request.
+     * @param referenceSource               indicates if unknown segments should be reported as ERRORSEGMENT.
+     * @param isUseFeatureIdForFeatureLabel indicates if a feature should use the Id as a label in case that a label is null
+     * @throws IOException during writing.
+     */
+    void writeFeatures(String href, DasFeatureRequestFilter filter, Collection<SegmentReporter> segmentReporters,
+                       boolean referenceSource, boolean isUseFeatureIdForFeatureLabel) throws IOException {
+        encoder.startObject(null);
+        encoder.value("href", href);
+        if (filter.isPaginated() && filter.getTotalFeatures() != null) {
+            encoder.value("total", filter.getTotalFeatures());
+        }
+        encoder.startArray("segments");
+        for (SegmentReporter segmentReporter : segmentReporters) {
+            if (segmentReporter instanceof UnknownSegmentReporter) {
+                writeErrorSegment(referenceSource ? "ERRORSEGMENT" : "UNKNOWNSEGMENT", segmentReporter);
+            } else if (segmentReporter instanceof ErrorSegmentReporter) {
+                writeErrorSegment("ERRORSEGMENT", segmentReporter);
+            } else if (segmentReporter instanceof UnknownFeatureSegmentReporter) {
+                writeErrorSegment("UNKNOWNFEATURE", segmentReporter);
+            } else {
+                FoundFeaturesReporter featuresReporter = (FoundFeaturesReporter) segmentReporter;
+                encoder.startObject(null);
+                writeSegmentAttributes(featuresReporter);
+                encoder.value("total", featuresReporter.getTotalFeatures());
+                encoder.startArray("features");
+                for (DasFeature feature : featuresReporter.getFeatures()) {
+                    if (filter.featurePasses(feature)) {
+                        writeFeature(feature, isUseFeatureIdForFeatureLabel);
+                    }
+                }
+                encoder.endArray();
+                encoder.endObject();
+            }
+        }
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+    }
+
+    /**
+     * Equivalent of the DASTYPES document when no segments have been requested.
+     *
+     * @param href            the URL of the request.
+     * @param allTypesReport  types of the data source with their counts (null when unknown).
+     * @throws IOException during writing.
+     */
+    void writeAllTypes(String href, Map<DasType, Integer> allTypesReport) throws IOException {
+        encoder.startObject(null);
+        encoder.value("href", href);
+        encoder.startArray("segments");
+        encoder.startObject(null);
+        encoder.value("label", "Complete datasource summary");
+        writeTypeCounts(allTypesReport);
+        encoder.endObject();
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+    }
+
+    /**
+     * Equivalent of the DASTYPES document for specific segments.
+     *
+     * @param href            the URL of the request.
+     * @param typesReport     the type counts of each requested segment.
+     * @param referenceSource indicates if unknown segments should be reported as ERRORSEGMENT.
+     * @throws IOException during writing.
+     */
+    void writeSegmentTypes(String href, Map<SegmentReporter, Map<DasType, Integer>> typesReport,
+                           boolean referenceSource) throws IOException {
+        encoder.startObject(null);
+        encoder.value("href", href);
+        encoder.startArray("segments");
+        for (Map.Entry<SegmentReporter, Map<DasType, Integer>> entry : typesReport.entrySet()) {
+            SegmentReporter segmentReporter = entry.getKey();
+            if (segmentReporter instanceof UnknownSegmentReporter) {
+                writeErrorSegment(referenceSource ? "ERRORSEGMENT" : "UNKNOWNSEGMENT", segmentReporter);
+            } else if (segmentReporter instanceof ErrorSegmentReporter) {
+                writeErrorSegment("ERRORSEGMENT", segmentReporter);
+            } else if (segmentReporter instanceof FoundFeaturesReporter) {
+                encoder.startObject(null);
+                writeSegmentAttributes((FoundFeaturesReporter) segmentReporter);
+                writeTypeCounts(entry.getValue());
+                encoder.endObject();
+            }
+        }
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+    }
+
+    /**
+     * Equivalent of the DASEP document.
+     *
+     * @param href        the URL of the request.
+     * @param version     the entry point version reported by the data source.
+     * @param total       the total number of entry points.
+     * @param start       first row reported.
+     * @param stop        last row reported.
+     * @param entryPoints the entry points returned by the data source, at most stop - start + 1 are written.
+     * @throws IOException during writing.
+     */
+    void writeEntryPoints(String href, String version, int total, int start, int stop,
+                          Collection<DasEntryPoint> entryPoints) throws IOException {
+        encoder.startObject(null);
+        encoder.value("href", href);
+        encoder.value("version", version);
+        encoder.value("total", total);
+        encoder.value("start", start);
+        encoder.value("end", stop);
+        encoder.startArray("entryPoints");
+        Iterator<DasEntryPoint> iterator = entryPoints.iterator();
+        for (int i = start; (i <= stop) && (iterator.hasNext()); i++) {
+            DasEntryPoint entryPoint = iterator.next();
+            if (entryPoint == null) {
+                continue;
+            }
+            encoder.startObject(null);
+            encoder.value("id", entryPoint.getSegmentId());
+            if (entryPoint.getStartCoordinate() != null && entryPoint.getStopCoordinate() != null) {
+                encoder.value("start", entryPoint.getStartCoordinate());
+                encoder.value("stop", entryPoint.getStopCoordinate());
+            }
+            encoder.value("version", nonEmpty(entryPoint.getVersion()));
+            encoder.value("type", nonEmpty(entryPoint.getType()));
+            if (!entryPoint.getOrientation().equals(DasEntryPointOrientation.NO_INTRINSIC_ORIENTATION)) {
+                encoder.value("orientation", entryPoint.getOrientation().toString());
+            }
+            if (entryPoint.hasSubparts()) {
+                encoder.value("subparts", true);
+            }
+            encoder.value("description", nonEmpty(entryPoint.getDescription()));
+            encoder.endObject();
+        }
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+    }
+
+    /**
+     * Equivalent of the DASSEQUENCE document.
+     *
+     * @param sequences the sequences found (or not) for the request.
+     * @throws IOException              during writing.
+     * @throws CoordinateErrorException if the requested coordinates are out of range of a sequence.
+     */
+    void writeSequences(Collection<SequenceReporter> sequences) throws IOException, CoordinateErrorException {
+        encoder.startObject(null);
+        encoder.startArray("sequences");
+        for (SequenceReporter sequenceReporter : sequences) {
+            if (sequenceReporter instanceof FoundSequenceReporter) {
+                FoundSequenceReporter found = (FoundSequenceReporter) sequenceReporter;
+                encoder.startObject(null);
+                encoder.value("id", found.getSegmentName());
+                encoder.value("start", found.getStart());
+                encoder.value("stop", found.getStop());
+                encoder.value("version", found.getSequenceVersion());
+                encoder.value("label", nonEmpty(found.getSequenceLabel()));
+                encoder.value("sequence", found.getSequenceString());
+                encoder.endObject();
+            } else if (sequenceReporter instanceof ErrorSequenceReporter) {
+                encoder.startObject(null);
+                encoder.value("error", "ERRORSEGMENT");
+                encoder.value("id", sequenceReporter.getSegmentId());
+                encoder.value("start", sequenceReporter.getStart());
+                encoder.value("stop", sequenceReporter.getStop());
+                encoder.endObject();
+            }
+        }
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+    }
+
+    private void writeErrorSegment(String error, SegmentReporter segmentReporter) throws IOException {
+        encoder.startObject(null);
+        encoder.value("error", error);
+        encoder.value("id", segmentReporter.getSegmentId());
+        encoder.value("start", segmentReporter.getStart());
+        encoder.value("stop", segmentReporter.getStop());
+        encoder.endObject();
+    }
+
+    private void writeSegmentAttributes(FoundFeaturesReporter reporter) throws IOException {
+        encoder.value("id", reporter.getSegmentId());
+        //start and stop are an optional group
+        if (reporter.getStart() != null && reporter.getStop() != null) {
+            encoder.value("start", reporter.getStart());
+            encoder.value("stop", reporter.getStop());
+        }
+        encoder.value("type", nonEmpty(reporter.getType()));
+        encoder.value("version", reporter.getVersion());
+        encoder.value("label", nonEmpty(reporter.getSegmentLabel()));
+    }
+
+    private void writeTypeCounts(Map<DasType, Integer> typeCounts) throws IOException {
+        encoder.startArray("types");
+        for (Map.Entry<DasType, Integer> typeCount : typeCounts.entrySet()) {
+            DasType type = typeCount.getKey();
+            encoder.startObject(null);
+            encoder.value("id", type.getId());
+            encoder.value("cvId", nonEmpty(type.getCvId()));
+            encoder.value("category", nonEmpty(type.getCategory()));
+            encoder.value("count", typeCount.getValue());
+            encoder.endObject();
+        }
+        encoder.endArray();
+    }
+
+    private void writeFeature(DasFeature feature, boolean isUseFeatureIdForFeatureLabel) throws IOException {
+        encoder.startObject(null);
+        encoder.value("id", feature.getFeatureId());
+        if (feature.getFeatureLabel() != null && feature.getFeatureLabel().length() > 0) {
+            encoder.value("label", feature.getFeatureLabel());
+        } else if (isUseFeatureIdForFeatureLabel) {
+            encoder.value("label", feature.getFeatureId());
+        }
+
+        DasType type = feature.getType();
+        encoder.startObject("type");
+        encoder.value("id", type.getId());
+        encoder.value("cvId", nonEmpty(type.getCvId()));
+        encoder.value("category", nonEmpty(type.getCategory()));
+        encoder.value("label", nonEmpty(type.getLabel()));
+        if (feature instanceof DasComponentFeature) {
+            DasComponentFeature component = (DasComponentFeature) feature;
+            encoder.value("reference", true);
+            encoder.value("superparts", component.hasSuperParts());
+            encoder.value("subparts", component.hasSubParts());
+        }
+        encoder.endObject();
+
+        DasMethod method = feature.getMethod();
+        encoder.startObject("method");
+        encoder.value("id", nonEmpty(method.getId()));
+        encoder.value("cvId", nonEmpty(method.getCvId()));
+        encoder.value("label", nonEmpty(method.getLabel()));
+        encoder.endObject();
+
+        //start and end are optional for non positional features
+        if (feature.getStartCoordinate() != 0 && feature.getStopCoordinate() != 0) {
+            encoder.value("start", feature.getStartCoordinate());
+            encoder.value("end", feature.getStopCoordinate());
+        }
+        if (feature.getScore() != null) {
+            encoder.value("score", feature.getScore().doubleValue());
+        }
+        if (feature.getOrientation() != null && feature.getOrientation() != DasFeatureOrientation.ORIENTATION_NOT_APPLICABLE) {
+            encoder.value("orientation", feature.getOrientation().toString());
+        }
+        if (feature.getPhase() != null && feature.getPhase() != DasPhase.PHASE_NOT_APPLICABLE) {
+            encoder.value("phase", feature.getPhase().toString());
+        }
+        writeStrings("notes", feature.getNotes());
+        if (feature.getLinks() != null && !feature.getLinks().isEmpty()) {
+            encoder.startArray("links");
+            for (Map.Entry<URL, String> link : feature.getLinks().entrySet()) {
+                if (link.getKey() != null) {
+                    encoder.startObject(null);
+                    encoder.value("href", link.getKey().toString());
+                    encoder.value("text", nonEmpty(link.getValue()));
+                    encoder.endObject();
+                }
+            }
+            encoder.endArray();
+        }
+        if (feature.getTargets() != null && !feature.getTargets().isEmpty()) {
+            encoder.startArray("targets");
+            for (DasTarget target : feature.getTargets()) {
+                encoder.startObject(null);
+                encoder.value("id", target.getTargetId());
+                encoder.value("start", target.getStartCoordinate());
+                encoder.value("stop", target.getStopCoordinate());
+                encoder.value("name", nonEmpty(target.getTargetName()));
+                encoder.endObject();
+            }
+            encoder.endArray();
+        }
+        writeStrings("parents", feature.getParents());
+        writeStrings("parts", feature.getParts());
+        encoder.endObject();
+    }
+
+    private void writeStrings(String name, Collection<String> values) throws IOException {
+        if (values != null && !values.isEmpty()) {
+            encoder.startArray(name);
+            for (String value : values) {
+                encoder.value(null, value);
+            }
+            encoder.endArray();
+        }
+    }
+
+    /**
+     * Optional attributes are only written in the XML when they hold some text.
+     */
+    private static String nonEmpty(String value) {
+        return (value != null && value.length() > 0) ? value : null;
+    }
+}
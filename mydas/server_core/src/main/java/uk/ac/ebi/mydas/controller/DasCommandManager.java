@@ -5,13 +5,17 @@ import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.GlobalConfiguration;
 import uk.ac.ebi.mydas.configuration.Mydasserver.Datasources.Datasource;
 import uk.ac.ebi.mydas.configuration.Mydasserver.Datasources.Datasource.Version;
 import uk.ac.ebi.mydas.configuration.Mydasserver.Datasources.Datasource.Version.Capability;
 import uk.ac.ebi.mydas.configuration.Mydasserver.Datasources.Datasource.Version.Coordinates;
 import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.configuration.ServerConfiguration;
 import uk.ac.ebi.mydas.datasource.*;
 import uk.ac.ebi.mydas.exceptions.*;
+import uk.ac.ebi.mydas.export.ExportFormat;
+import uk.ac.ebi.mydas.export.Exporter;
 import uk.ac.ebi.mydas.extendedmodel.DasEntryPointE;
 import uk.ac.ebi.mydas.extendedmodel.DasTypeE;
 import uk.ac.ebi.mydas.extendedmodel.DasUnknownFeatureSegment;
@@ -20,6 +24,7 @@ import uk.ac.ebi.mydas.model.alignment.DasAlignment;
 import uk.ac.ebi.mydas.model.structure.DasStructure;
 import uk.ac.ebi.mydas.search.Indexer;
 import uk.ac.ebi.mydas.search.Searcher;
+import uk.ac.ebi.mydas.search.Typeahead;
 import uk.ac.ebi.mydas.writeback.MyDasParser;
 
 import javax.servlet.http.HttpServletRequest;
@@ -28,9 +33,9 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 public class DasCommandManager {
     /**
@@ -64,6 +69,62 @@ public class DasCommandManager {
     private static final Pattern SEGMENT_RANGE_PATTERN = Pattern.compile("^segment=([^:\\s]*)(:([-]?(\\d+)),([-]?(\\d+)))?$");
     private static final Pattern ROWS_RANGE_PATTERN = Pattern.compile("^rows=([-]?(\\d+))-([-]?(\\d+))$");
 
+    /**
+     * Number of segments the export command reads ahead of the client, unless the
+     * export_prefetch global property says otherwise.
+     */
+    private static final int DEFAULT_EXPORT_PREFETCH = 4;
+    private static final String EXPORT_CONTENT_TYPE = "application/x-gzip";
+    private static final String HEADER_KEY_EXPORT_VERSION = "X-DAS-Export-Version";
+    private static final int DEFAULT_TYPEAHEAD_SUGGESTIONS = 10;
+    private static final int MAX_TYPEAHEAD_SUGGESTIONS = 100;
+
+    /**
+     * Identical features and types requests arriving while one is computed wait for it and are
+     * sent a copy of its response, unless the coalesce_requests global property is false.  At most
+     * coalesce_max_waiters requests wait for the same one, for at most coalesce_timeout
+     * milliseconds; the others run on their own.
+     */
+    private static final int DEFAULT_COALESCE_MAX_WAITERS = 64;
+    private static final long DEFAULT_COALESCE_TIMEOUT = 30000;
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+
+    /**
+     * The dsn and sources documents, replaced as a whole when the configuration or the
+     * health of a data source changes.
+     */
+    private static volatile RenderedDocuments renderedDocuments = null;
+    private static final ReentrantLock RENDERING_LOCK = new ReentrantLock();
+
+    /**
+     * The compression settings of the current configuration, read again when it is reloaded.
+     */
+    private volatile ResponseCompression compression = null;
+
+    /**
+     * The stylesheets of the current configuration, replaced when it is reloaded.
+     */
+    private volatile StylesheetCache stylesheetCache = null;
+
+    /**
+     * Data source property which, when set to true, checks the requested segments against the
+     * entry points of the data source, answering unknown segments and coordinates out of their
+     * bounds without calling the data source.  Only for data sources whose features and sequences
+     * are all on entry points.
+     */
+    private static final String PROPERTY_SEGMENT_PRECHECK = "segment_precheck";
+
+    /**
+     * Data source property which, when set to true, answers feature_id requests from the feature
+     * ids written by the indexer command: each feature is fetched from its own segment and range,
+     * rather than looked for by the data source among all its features.  The data source must be
+     * indexed again when its features change; ids that are not indexed are still asked to it.
+     */
+    private static final String PROPERTY_FEATURE_ID_INDEX = "feature_id_index";
+
+    private static final String HEADER_KEY_ETAG = "ETag";
+    private static final String HEADER_KEY_IF_NONE_MATCH = "If-None-Match";
+
     public DasCommandManager(DataSourceManager dsm, MydasServlet mydasServlet) {
         this.mydasServlet = mydasServlet;
         DATA_SOURCE_MANAGER = dsm;
@@ -77,6 +138,16 @@ public class DasCommandManager {
                 throw new IllegalStateException("Fatal Exception thrown at initialisation.  Cannot initialise the PullParserFactory required to allow generation of the DAS XML.", xppe);
             }
         }
+        // Render the dsn and sources documents now rather than on the first request.
+        if (dsm.getServerConfiguration() != null) {
+            try {
+                getRenderedDocuments();
+            } catch (XmlPullParserException xppe) {
+                logger.error("Exception thrown when rendering the dsn and sources documents, they will be rendered on request.", xppe);
+            } catch (IOException ioe) {
+                logger.error("Exception thrown when rendering the dsn and sources documents, they will be rendered on request.", ioe);
+            }
+        }
     }
 
     /**
@@ -124,62 +195,7 @@ public class DasCommandManager {
             } else {
                 // At least one dsn is OK.
                 //DSN is a server command, just report the default capabilities
-                writeHeader(request, response, XDasStatus.STATUS_200_OK, true, null);
-                // Build the XML.
-                XmlSerializer serializer;
-                serializer = PULL_PARSER_FACTORY.newSerializer();
-                BufferedWriter out = null;
-                try {
-                    out = getResponseWriter(request, response);
-                    serializer.setOutput(out);
-                    serializer.setProperty(INDENTATION_PROPERTY, INDENTATION_PROPERTY_VALUE);
-                    serializer.startDocument(null, false);
-                    serializer.text("\n");
-                    if (DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getDsnXSLT() != null) {
-                        serializer.processingInstruction(DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getDsnXSLT());
-                        serializer.text("\n");
-                    }
-                    serializer.docdecl(" DASDSN SYSTEM \"http://www.biodas.org/dtd/dasdsn.dtd\"");
-                    serializer.text("\n");
-                    serializer.startTag(DAS_XML_NAMESPACE, "DASDSN");
-                    for (String dsn : dsns) {
-                        DataSourceConfiguration dsnConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsn);
-                        serializer.startTag(DAS_XML_NAMESPACE, "DSN");
-                        serializer.startTag(DAS_XML_NAMESPACE, "SOURCE");
-                        serializer.attribute(DAS_XML_NAMESPACE, "id", dsnConfig.getId());
-
-                        // Optional version attribute.
-                        if (dsnConfig.getVersion() != null && dsnConfig.getVersion().length() > 0) {
-                            serializer.attribute(DAS_XML_NAMESPACE, "version", dsnConfig.getVersion());
-                        }
-
-                        // If a name has been set, this is used for the element text.  Otherwise, the id is used.
-                        if (dsnConfig.getName() != null && dsnConfig.getName().length() > 0) {
-                            serializer.text(dsnConfig.getName());
-                        } else {
-                            serializer.text(dsnConfig.getId());
-                        }
-                        serializer.endTag(DAS_XML_NAMESPACE, "SOURCE");
-                        serializer.startTag(DAS_XML_NAMESPACE, "MAPMASTER");
-                        serializer.text(dsnConfig.getMapmaster());
-                        serializer.endTag(DAS_XML_NAMESPACE, "MAPMASTER");
-
-                        // Optional description element.
-                        if (dsnConfig.getDescription() != null && dsnConfig.getDescription().length() > 0) {
-                            serializer.startTag(DAS_XML_NAMESPACE, "DESCRIPTION");
-                            serializer.text(dsnConfig.getDescription());
-                            serializer.endTag(DAS_XML_NAMESPACE, "DESCRIPTION");
-                        }
-                        serializer.endTag(DAS_XML_NAMESPACE, "DSN");
-                        dsnConfig.destroy(); // not actually needed because data source is not loaded
-                    }
-                    serializer.endTag(DAS_XML_NAMESPACE, "DASDSN");
-                    serializer.flush();
-                } finally {
-                    if (out != null) {
-                        out.close();
-                    }
-                }
+                writeRenderedDocument(request, response, getRenderedDocuments().get(RenderedDocuments.DSN_KEY));
             }
         } else {
             // If fallen through to here, then the dsn command is not recognised
@@ -189,6 +205,62 @@ public class DasCommandManager {
         }
     }
 
+    /**
+     * Serializes the DASDSN document.
+     *
+     * @param out  to which the XML is written.
+     * @param dsns the names of the dsns that have initialised successfully.
+     * @throws XmlPullParserException in the event of an error being thrown when writing out the XML
+     * @throws IOException            in the event of an error being thrown when writing out the XML
+     */
+    private void serializeDsn(Writer out, List<String> dsns) throws XmlPullParserException, IOException {
+        XmlSerializer serializer = PULL_PARSER_FACTORY.newSerializer();
+        serializer.setOutput(out);
+        serializer.setProperty(INDENTATION_PROPERTY, INDENTATION_PROPERTY_VALUE);
+        serializer.startDocument(null, false);
+        serializer.text("\n");
+        if (DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getDsnXSLT() != null) {
+            serializer.processingInstruction(DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getDsnXSLT());
+            serializer.text("\n");
+        }
+        serializer.docdecl(" DASDSN SYSTEM \"http://www.biodas.org/dtd/dasdsn.dtd\"");
+        serializer.text("\n");
+        serializer.startTag(DAS_XML_NAMESPACE, "DASDSN");
+        for (String dsn : dsns) {
+            DataSourceConfiguration dsnConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsn);
+            serializer.startTag(DAS_XML_NAMESPACE, "DSN");
+            serializer.startTag(DAS_XML_NAMESPACE, "SOURCE");
+            serializer.attribute(DAS_XML_NAMESPACE, "id", dsnConfig.getId());
+
+            // Optional version attribute.
+            if (dsnConfig.getVersion() != null && dsnConfig.getVersion().length() > 0) {
+                serializer.attribute(DAS_XML_NAMESPACE, "version", dsnConfig.getVersion());
+            }
+
+            // If a name has been set, this is used for the element text.  Otherwise, the id is used.
+            if (dsnConfig.getName() != null && dsnConfig.getName().length() > 0) {
+                serializer.text(dsnConfig.getName());
+            } else {
+                serializer.text(dsnConfig.getId());
+            }
+            serializer.endTag(DAS_XML_NAMESPACE, "SOURCE");
+            serializer.startTag(DAS_XML_NAMESPACE, "MAPMASTER");
+            serializer.text(dsnConfig.getMapmaster());
+            serializer.endTag(DAS_XML_NAMESPACE, "MAPMASTER");
+
+            // Optional description element.
+            if (dsnConfig.getDescription() != null && dsnConfig.getDescription().length() > 0) {
+                serializer.startTag(DAS_XML_NAMESPACE, "DESCRIPTION");
+                serializer.text(dsnConfig.getDescription());
+                serializer.endTag(DAS_XML_NAMESPACE, "DESCRIPTION");
+            }
+            serializer.endTag(DAS_XML_NAMESPACE, "DSN");
+            dsnConfig.destroy(); // not actually needed because data source is not loaded
+        }
+        serializer.endTag(DAS_XML_NAMESPACE, "DASDSN");
+        serializer.flush();
+    }
+
     void dnaCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
             throws XmlPullParserException, IOException, DataSourceException, UnimplementedFeatureException,
             BadReferenceObjectException, BadCommandArgumentsException, CoordinateErrorException {
@@ -265,6 +337,7 @@ public class DasCommandManager {
             throw new DataSourceException("An attempt has been made to retrieve a sequenceString from datasource " + dsnConfig.getId() + " however the DataSource object is null.");
         }
         Collection<SequenceReporter> sequenceCollection = new ArrayList<SequenceReporter>();
+        EntryPointCatalog segmentCatalog = segmentCatalog(dsnConfig);
         // Parse the queryString to retrieve all the DasSequence objects.
         if (queryString == null || queryString.length() == 0) {
             throw new BadCommandArgumentsException("Expecting at least one reference in the query string, but found nothing.");
@@ -277,6 +350,9 @@ public class DasCommandManager {
                 SegmentQuery segmentQuery = new SegmentQuery(referenceStringMatcher);
                 DasSequence sequence;
                 try {
+                    if (segmentCatalog != null) {
+                        precheckSegment(segmentCatalog, segmentQuery);
+                    }
                     if (segmentQuery.getStartCoordinate() == null) {
                         // Request for a complete sequenceString
                         sequence = refDsn.getSequence(segmentQuery.getSegmentId());
@@ -348,12 +424,13 @@ public class DasCommandManager {
 
     @SuppressWarnings("unchecked")
     private Collection<DasType> getAllTypes(DataSourceConfiguration dsnConfig) throws DataSourceException {
+        RequestTimer.call("getTypes()");
         Collection<DasType> allTypes = dsnConfig.getDataSource().getTypes();
         return (allTypes == null) ? Collections.EMPTY_LIST : allTypes;
     }
 
     private void typesCommandAllTypes(HttpServletRequest request, HttpServletResponse response,
-                                      DataSourceConfiguration dsnConfig, List<String> typeFilter)
+                                      DataSourceConfiguration dsnConfig, List<String> typeFilter, ResponseFormat format)
             throws DataSourceException, XmlPullParserException, IOException {
         // Handle no segments indicated - just give a single 'dummy' segment that describes the types for the
         // whole dsn.
@@ -373,6 +450,7 @@ public class DasCommandManager {
                     // Attempt to get a count of the types from the dsn. (May not be implemented.)
                     Integer typeCount;
 
+                    RequestTimer.call("getTotalCountForType(type)");
                     if (typeFilter.size() != 0) {
                         typeCount = dsnConfig.getDataSource().getTotalCountForType(type);
                     } else {
@@ -383,7 +461,20 @@ public class DasCommandManager {
                 }
             }
         }
-        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities(), format);
+        if (format != ResponseFormat.XML) {
+            OutputStream out = null;
+            try {
+                out = getResponseOutputStream(request, response);
+                new CompactResponseWriter(CompactEncoder.newEncoder(format, out)).writeAllTypes(
+                        buildRequestHref(request), allTypesReport);
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            return;
+        }
         // Build the XML.
         XmlSerializer serializer;
         serializer = PULL_PARSER_FACTORY.newSerializer();
@@ -424,7 +515,7 @@ public class DasCommandManager {
         }
     }
 
-    private void typesCommandSpecificSegments(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, List<SegmentQuery> requestedSegments, List<String> typeFilter)
+    private void typesCommandSpecificSegments(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, List<SegmentQuery> requestedSegments, List<String> typeFilter, ResponseFormat format)
             throws DataSourceException, BadReferenceObjectException, XmlPullParserException, IOException, CoordinateErrorException {
         Map<SegmentReporter, Map<DasType, Integer>> typesReport =
                 new HashMap<SegmentReporter, Map<DasType, Integer>>(requestedSegments.size());
@@ -482,7 +573,20 @@ public class DasCommandManager {
         }
 
         // OK, successfully built a Map of the types for all the requested segments, so iterate over this and report.
-        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities(), format);
+        if (format != ResponseFormat.XML) {
+            OutputStream out = null;
+            try {
+                out = getResponseOutputStream(request, response);
+                new CompactResponseWriter(CompactEncoder.newEncoder(format, out)).writeSegmentTypes(
+                        buildRequestHref(request), typesReport, dsnConfig.getDataSource() instanceof ReferenceDataSource);
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            return;
+        }
         // Build the XML.
         XmlSerializer serializer;
         serializer = PULL_PARSER_FACTORY.newSerializer();
@@ -546,7 +650,8 @@ public class DasCommandManager {
     }
 
     /**
-     * Given that this command just return a copy of a predefined stylesheet, there is nothing to modify for DAS1.6
+     * Given that this command just return a copy of a predefined stylesheet, there is nothing to modify for DAS1.6.
+     * The stylesheets are kept in memory (see StylesheetCache), and revalidated with their ETag.
      *
      * @param request     HTTP request
      * @param response    HTTP response
@@ -576,36 +681,38 @@ public class DasCommandManager {
             throw new BadStylesheetException("This data source has not defined a stylesheet.");
         }
 
-//		Need to create a FileReader to read in the stylesheet, wrapped by a PrintStream to stream it out to the browser.
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
-        try {
-            ClassLoader cl = Thread.currentThread().getContextClassLoader();
-            reader = new BufferedReader(
-                    new InputStreamReader(
-                            cl.getResourceAsStream(MydasServlet.RESOURCE_FOLDER + stylesheetFileName)
-                    )
-            );
-
-            if (reader.ready()) {
-                //OK, managed to open an input reader from the stylesheet, so output the success header.
-                writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
-                writer = getResponseWriter(request, response);
-                while (reader.ready()) {
-                    writer.write(reader.readLine());
-                }
-                writer.flush();
-            } else {
-                throw new BadStylesheetException("A problem has occurred reading in the stylesheet from the open stream");
-            }
-        } finally {
-            if (reader != null) {
-                reader.close();
-            }
-            if (writer != null) {
-                writer.close();
-            }
+        StylesheetCache.Stylesheet stylesheet = stylesheets().get(stylesheetFileName, compression());
+        if (stylesheet == null) {
+            throw new BadStylesheetException("The stylesheet " + stylesheetFileName + " cannot be found.");
+        }
+        boolean gzipped = stylesheet.getDocument().isGzipped(this.mydasServlet.compressResponse(request));
+        if (stylesheet.isNotModified(request.getHeader(HEADER_KEY_IF_NONE_MATCH))) {
+            writeHeader(request, response, XDasStatus.STATUS_200_OK, false, dsnConfig.getCapabilities());
+            response.setHeader(HEADER_KEY_ETAG, stylesheet.getETag(gzipped));
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+        response.setHeader(HEADER_KEY_ETAG, stylesheet.getETag(gzipped));
+        String cacheControl = CacheValidators.cacheControl(DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration(),
+                MydasServlet.Commands.COMMAND_STYLESHEET);
+        if (cacheControl != null) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
+        writeDocumentBody(request, response, stylesheet.getDocument());
+    }
+
+    /**
+     * @return the stylesheets of the current configuration.
+     */
+    private StylesheetCache stylesheets() {
+        ServerConfiguration configuration = DATA_SOURCE_MANAGER.getServerConfiguration();
+        StylesheetCache current = stylesheetCache;
+        if (current == null || !current.isCurrent(configuration)) {
+            current = new StylesheetCache(configuration);
+            stylesheetCache = current;
         }
+        return current;
     }
 
     /**
@@ -630,7 +737,30 @@ public class DasCommandManager {
     void featuresCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
             throws XmlPullParserException, IOException, DataSourceException, BadCommandArgumentsException,
             UnimplementedFeatureException, BadReferenceObjectException, CoordinateErrorException {
+        InFlightRequests.Call call = joinInFlight(request, dsnConfig, MydasServlet.Commands.COMMAND_FEATURES.getCommandString());
+        if (call != null && !call.isLeader()) {
+            if (replay(call, response)) {
+                return;
+            }
+            call = null;
+        }
+        boolean succeeded = false;
+        try {
+            writeFeatures(request, call == null ? response : call.capture(response), dsnConfig, queryString);
+            succeeded = true;
+        } finally {
+            if (call != null) {
+                call.finish(succeeded);
+            }
+        }
+    }
+
+    private void writeFeatures(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
+            throws XmlPullParserException, IOException, DataSourceException, BadCommandArgumentsException,
+            UnimplementedFeatureException, BadReferenceObjectException, CoordinateErrorException {
         // Parse the queryString to retrieve the individual parts of the query.
+        ResponseFormat format = ResponseFormat.negotiate(request, queryString);
+        queryString = ResponseFormat.removeFormatParameter(queryString);
         if (queryString == null || queryString.length() == 0) {
             throw new BadCommandArgumentsException("Expecting at least one reference in the query string, but found nothing.");
         }
@@ -715,6 +845,7 @@ public class DasCommandManager {
 
         //if the query attribute has been included in the request a search is launched
         //the query, segment and feature_id are executed as a logic AND when used together
+        RequestTimer.enter(RequestTimer.Phase.FETCH);
 
 
         Collection<DasAnnotatedSegment> segmentsByFeatureId = null, segmentsBySegmentId = null;
@@ -728,6 +859,7 @@ public class DasCommandManager {
             Map<String, PropertyType> properties = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters();
             Searcher searcher = new Searcher(properties.get("indexerpath").getValue(), dsnConfig.getName());
             try {
+                RequestTimer.call("Searcher.search(filter)");
                 merged = searcher.search(filter);
             } catch (SearcherException e) {
                 logger.error("Searching/indexing thrown", e);
@@ -742,16 +874,22 @@ public class DasCommandManager {
             // (If neither of these are present, then throw a BadCommandArgumentsException)
 
             if (dsnConfig.getCapabilities().contains("feature-by-id") && filter.containsFeatureIds()) {
+                segmentsByFeatureId = getFeaturesByIndexedId(dsnConfig, filter.getFeatureIds(), filter.getMaxbins());
+            }
+            if (segmentsByFeatureId == null && dsnConfig.getCapabilities().contains("feature-by-id") && filter.containsFeatureIds()) {
                 try {
                     if (dsnConfig.getCapabilities().contains("rows-for-feature")) {
+                        RequestTimer.call("getFeatures(featureIds, maxbins, rows)");
                         segmentsByFeatureId = dsnConfig.getDataSource().getFeatures(filter.getFeatureIds(), filter.getMaxbins(), filter.getRows());
                         filter.setPaginated(true);
                     } else throw new UnimplementedFeatureException("rows-for-feature capability no declared");
                 } catch (UnimplementedFeatureException ufe) {
+                    RequestTimer.call("getFeatures(featureIds, maxbins)");
                     segmentsByFeatureId = dsnConfig.getDataSource().getFeatures(filter.getFeatureIds(), filter.getMaxbins());
                 }
             }
 
+            RequestTimer.enter(RequestTimer.Phase.FILTER);
             if (segmentsBySegmentId != null) {
                 if (segmentsByFeatureId != null) {
                     merged = merge(segmentsBySegmentId, segmentsByFeatureId, MERGE_TYPE_AND);
@@ -783,9 +921,36 @@ public class DasCommandManager {
             }
         }
         // OK - got a Collection of FoundFeaturesReporter objects, so get on with marshalling them out.
+        RequestTimer.enter(RequestTimer.Phase.FILTER);
         segmentReporterCollections = this.features2reporters(merged, requestedSegments);
+        RequestTimer timer = RequestTimer.current();
+        if (timer != null) {
+            timer.addSegments(requestedSegments.size());
+        }
+        if (timer != null && merged != null) {
+            for (DasAnnotatedSegment segment : merged) {
+                if (segment.getFeatures() != null) {
+                    timer.addFeatures(segment.getFeatures().size());
+                }
+            }
+        }
 
-        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities(), format);
+
+        if (format != ResponseFormat.XML) {
+            OutputStream out = null;
+            try {
+                out = getResponseOutputStream(request, response);
+                new CompactResponseWriter(CompactEncoder.newEncoder(format, out)).writeFeatures(
+                        buildRequestHref(request), filter, segmentReporterCollections,
+                        dsnConfig.getDataSource() instanceof ReferenceDataSource, dsnConfig.isUseFeatureIdForFeatureLabel());
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            return;
+        }
 
         /************************************************************************\
          * Build the XML                                                        *
@@ -925,9 +1090,13 @@ public class DasCommandManager {
         if (filter != null)
             maxbins = filter.getMaxbins();
         Integer current = 0;
+        EntryPointCatalog segmentCatalog = segmentCatalog(dsnConfig);
         for (SegmentQuery segmentQuery : requestedSegments) {
             try {
                 DasAnnotatedSegment annotatedSegment;
+                if (segmentCatalog != null) {
+                    precheckSegment(segmentCatalog, segmentQuery);
+                }
 
                 Range currentFeatureRange = null;
                 if (filter != null && dsnConfig.getCapabilities().contains("rows-for-feature") && filter.getRows() != null) {
@@ -939,9 +1108,11 @@ public class DasCommandManager {
                         if (currentFeatureRange == null)
                             throw new UnimplementedFeatureException("if is null is because there is not necessity for pagination");
                         //trying to use the user implementation of its pagination.
+                        RequestTimer.call("getFeatures(segmentId, maxbins, rows)");
                         annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins, currentFeatureRange);
                         filter.setPaginated(true);
                     } catch (UnimplementedFeatureException ufe) {
+                        RequestTimer.call("getFeatures(segmentId, maxbins)");
                         annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins);
                     }
                 } else {
@@ -952,6 +1123,7 @@ public class DasCommandManager {
                             if (currentFeatureRange == null)
                                 throw new UnimplementedFeatureException("if is null is because there is not necesity for pagination");
                             //trying to use the user implementation of its pagination.
+                            RequestTimer.call("getFeatures(segmentId, start, stop, maxbins, rows)");
                             annotatedSegment = ((RangeHandlingAnnotationDataSource) dataSource).getFeatures(
                                     segmentQuery.getSegmentId(),
                                     segmentQuery.getStartCoordinate(),
@@ -959,6 +1131,7 @@ public class DasCommandManager {
                                     maxbins, currentFeatureRange);
                             filter.setPaginated(true);
                         } catch (UnimplementedFeatureException ufe) {
+                            RequestTimer.call("getFeatures(segmentId, start, stop, maxbins)");
                             annotatedSegment = ((RangeHandlingAnnotationDataSource) dataSource).getFeatures(
                                     segmentQuery.getSegmentId(),
                                     segmentQuery.getStartCoordinate(),
@@ -970,6 +1143,7 @@ public class DasCommandManager {
                             if (currentFeatureRange == null)
                                 throw new UnimplementedFeatureException("if is null is because there is not necesity for pagination");
                             //trying to use the user implementation of its pagination.
+                            RequestTimer.call("getFeatures(segmentId, start, stop, maxbins, rows)");
                             annotatedSegment = ((RangeHandlingReferenceDataSource) dataSource).getFeatures(
                                     segmentQuery.getSegmentId(),
                                     segmentQuery.getStartCoordinate(),
@@ -977,6 +1151,7 @@ public class DasCommandManager {
                                     maxbins, currentFeatureRange);
                             filter.setPaginated(true);
                         } catch (UnimplementedFeatureException ufe) {
+                            RequestTimer.call("getFeatures(segmentId, start, stop, maxbins)");
                             annotatedSegment = ((RangeHandlingReferenceDataSource) dataSource).getFeatures(
                                     segmentQuery.getSegmentId(),
                                     segmentQuery.getStartCoordinate(),
@@ -988,10 +1163,12 @@ public class DasCommandManager {
                             if (currentFeatureRange == null)
                                 throw new UnimplementedFeatureException("if is null is because there is not necesity for pagination");
                             //trying to use the user implementation of its pagination.
-                            annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins, currentFeatureRange);
+                            RequestTimer.call("getFeatures(segmentId, maxbins, rows)");
+                        annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins, currentFeatureRange);
                             filter.setPaginated(true);
                         } catch (UnimplementedFeatureException ufe) {
-                            annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins);
+                            RequestTimer.call("getFeatures(segmentId, maxbins)");
+                        annotatedSegment = dataSource.getFeatures(segmentQuery.getSegmentId(), maxbins);
                         }
                     }
                 }
@@ -1047,6 +1224,172 @@ public class DasCommandManager {
         return segments;
     }
 
+    /**
+     * @param dsnConfig of the requested data source.
+     * @return the entry points to check the requested segments against, null unless the
+     *         segment_precheck property of the data source is true and its entry points are kept
+     *         in memory.
+     * @throws DataSourceException if the data source fails while loading its entry points.
+     */
+    private EntryPointCatalog segmentCatalog(DataSourceConfiguration dsnConfig) throws DataSourceException {
+        PropertyType precheck = dsnConfig.getDataSourceProperties().get(PROPERTY_SEGMENT_PRECHECK);
+        if (precheck == null || !"true".equalsIgnoreCase(precheck.getValue().trim())) {
+            return null;
+        }
+        try {
+            return dsnConfig.getEntryPointCatalog();
+        } catch (UnimplementedFeatureException e) {
+            logger.warn("The segment_precheck property of " + dsnConfig.getName() + " is ignored, as it has no entry points");
+            return null;
+        }
+    }
+
+    /**
+     * @return the feature id index written by the indexer for the data source, null unless the
+     *         feature_id_index property of the data source is true and it has been indexed.
+     */
+    private Typeahead featureIdIndex(DataSourceConfiguration dsnConfig) {
+        PropertyType enabled = dsnConfig.getDataSourceProperties().get(PROPERTY_FEATURE_ID_INDEX);
+        if (enabled == null || !"true".equalsIgnoreCase(enabled.getValue().trim())) {
+            return null;
+        }
+        PropertyType indexerPath = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()
+                .getGlobalParameters().get("indexerpath");
+        if (indexerPath == null || indexerPath.getValue().trim().length() == 0) {
+            logger.warn("The feature_id_index property of " + dsnConfig.getName() + " is ignored, as there is no indexer path");
+            return null;
+        }
+        try {
+            return Typeahead.forIndex(indexerPath.getValue(), dsnConfig.getName());
+        } catch (IOException e) {
+            logger.error("The feature id index of " + dsnConfig.getName() + " cannot be read", e);
+            return null;
+        }
+    }
+
+    /**
+     * Answers a feature_id request from the feature id index: the features are fetched from the
+     * segments, and ranges of them when the data source handles ranges, where the index says they
+     * are.  The ids missing from the index are asked to the data source.
+     *
+     * @param dsnConfig  holding configuration of the dsn and the data source object itself.
+     * @param featureIds requested.
+     * @param maxbins    optional maxbins of the request.
+     * @return the segments holding the requested features; null to ask the data source for all of
+     *         them, when there is no index or a feature is not where the index says.
+     * @throws DataSourceException           if the data source fails.
+     * @throws UnimplementedFeatureException if the data source cannot look for the ids that are not indexed.
+     */
+    private Collection<DasAnnotatedSegment> getFeaturesByIndexedId(DataSourceConfiguration dsnConfig,
+                                                                   Collection<String> featureIds, Integer maxbins) throws DataSourceException, UnimplementedFeatureException {
+        Typeahead index = featureIdIndex(dsnConfig);
+        if (index == null) {
+            return null;
+        }
+        RequestTimer.call("Typeahead.locate");
+        // The range of each segment holding requested features, in the order they were requested.
+        Map<String, int[]> ranges = new LinkedHashMap<String, int[]>();
+        Set<String> located = new HashSet<String>();
+        Collection<String> notIndexed = new ArrayList<String>();
+        for (String featureId : featureIds) {
+            List<Typeahead.Suggestion> locations = index.locate(featureId);
+            if (locations.isEmpty()) {
+                notIndexed.add(featureId);
+            }
+            for (Typeahead.Suggestion location : locations) {
+                located.add(featureId);
+                int[] range = ranges.get(location.getSegmentId());
+                if (range == null) {
+                    ranges.put(location.getSegmentId(), new int[]{location.getStart(), location.getStop()});
+                } else {
+                    range[0] = Math.min(range[0], location.getStart());
+                    range[1] = Math.max(range[1], location.getStop());
+                }
+            }
+        }
+
+        AnnotationDataSource dataSource = dsnConfig.getDataSource();
+        Collection<DasAnnotatedSegment> segments = new ArrayList<DasAnnotatedSegment>();
+        Set<String> found = new HashSet<String>();
+        try {
+            for (Map.Entry<String, int[]> range : ranges.entrySet()) {
+                String segmentId = range.getKey();
+                int start = range.getValue()[0];
+                int stop = range.getValue()[1];
+                DasAnnotatedSegment annotatedSegment;
+                if (start > 0 && start <= stop && dataSource instanceof RangeHandlingAnnotationDataSource) {
+                    RequestTimer.call("getFeatures(segmentId, start, stop, maxbins)");
+                    annotatedSegment = ((RangeHandlingAnnotationDataSource) dataSource).getFeatures(segmentId, start, stop, maxbins);
+                } else if (start > 0 && start <= stop && dataSource instanceof RangeHandlingReferenceDataSource) {
+                    RequestTimer.call("getFeatures(segmentId, start, stop, maxbins)");
+                    annotatedSegment = ((RangeHandlingReferenceDataSource) dataSource).getFeatures(segmentId, start, stop, maxbins);
+                } else {
+                    RequestTimer.call("getFeatures(segmentId, maxbins)");
+                    annotatedSegment = dataSource.getFeatures(segmentId, maxbins);
+                }
+                if (annotatedSegment == null || annotatedSegment.getFeatures() == null) {
+                    continue;
+                }
+                ArrayList<DasFeature> features = new ArrayList<DasFeature>();
+                for (DasFeature feature : annotatedSegment.getFeatures()) {
+                    if (located.contains(feature.getFeatureId())) {
+                        features.add(feature);
+                        found.add(feature.getFeatureId());
+                    }
+                }
+                if (!features.isEmpty()) {
+                    segments.add(new DasAnnotatedSegment(annotatedSegment.getSegmentId(), annotatedSegment.getStartCoordinate(),
+                            annotatedSegment.getStopCoordinate(), annotatedSegment.getVersion(), annotatedSegment.getSegmentLabel(), features));
+                }
+            }
+        } catch (BadReferenceObjectException e) {
+            logger.warn("The feature id index of " + dsnConfig.getName() + " is out of date, it should be indexed again", e);
+            return null;
+        } catch (CoordinateErrorException e) {
+            logger.warn("The feature id index of " + dsnConfig.getName() + " is out of date, it should be indexed again", e);
+            return null;
+        }
+        if (found.size() < located.size()) {
+            logger.warn("The feature id index of " + dsnConfig.getName() + " is out of date, it should be indexed again");
+            return null;
+        }
+        if (!notIndexed.isEmpty()) {
+            RequestTimer.call("getFeatures(featureIds, maxbins)");
+            Collection<DasAnnotatedSegment> others = dataSource.getFeatures(notIndexed, maxbins);
+            if (others != null) {
+                segments = merge(segments, others, MERGE_TYPE_OR);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Checks a requested segment against the entry points, the way the segments returned by the
+     * data source are checked, but before calling it.
+     *
+     * @param segmentCatalog entry points of the data source.
+     * @param segmentQuery   requested.
+     * @throws BadReferenceObjectException if the segment is not an entry point, or the requested
+     *                                     range is invalid or out of its bounds.
+     */
+    private void precheckSegment(EntryPointCatalog segmentCatalog, SegmentQuery segmentQuery) throws BadReferenceObjectException {
+        DasEntryPoint entryPoint = segmentCatalog.get(segmentQuery.getSegmentId());
+        if (entryPoint == null) {
+            RequestTimer.call("segment precheck: unknown segment");
+            throw new BadReferenceObjectException(segmentQuery.getSegmentId(), "Not an entry point of the data source");
+        }
+        Integer start = segmentQuery.getStartCoordinate();
+        Integer stop = segmentQuery.getStopCoordinate();
+        if (start != null && stop != null && entryPoint.getStartCoordinate() != null && entryPoint.getStopCoordinate() != null) {
+            if (start <= 0 || stop <= 0 || start > stop
+                    || start < entryPoint.getStartCoordinate() || start > entryPoint.getStopCoordinate()
+                    || stop < entryPoint.getStartCoordinate()) {
+                RequestTimer.call("segment precheck: out of bounds");
+                throw new BadReferenceObjectException(segmentQuery.getSegmentId(), "start and stop out of segment bounds", new IndexOutOfBoundsException("start and stop out of segment bounds"));
+            }
+        }
+    }
+
     private Collection<SegmentReporter> features2reporters(Collection<DasAnnotatedSegment> segments, Collection<SegmentQuery> segmentQueries) {
         List<SegmentReporter> segmentReporterLists = new ArrayList<SegmentReporter>(segments.size());
 
@@ -1205,25 +1548,32 @@ public class DasCommandManager {
     }
 
     /**
-     * Returns a PrintWriter for the response. First checks if the output should / can be
-     * gzipped. If so, wraps the OutputStream in a GZIPOutputStream and then returns
-     * a PrintWriter to this.
+     * Returns a writer for the response, encoding in UTF-8 to the stream returned by
+     * getResponseOutputStream, so gzipped under the same conditions.
      *
      * @param request  the HttpServletRequest, needed to check the capabilities of the
      *                 client.
      * @param response from which the OutputStream is obtained
-     * @return a PrintWriter that will either produce plain or gzipped output.
+     * @return a BufferedWriter that will either produce plain or gzipped output.
      * @throws IOException due to a problem with initiating the output stream or writer.
      */
     private BufferedWriter getResponseWriter(HttpServletRequest request, HttpServletResponse response)
             throws IOException {
-        if (this.mydasServlet.compressResponse(request)) {
-            // Wrap the response writer in a Zipstream.
-            GZIPOutputStream zipStream = new GZIPOutputStream(response.getOutputStream());
-            return new BufferedWriter(new PrintWriter(zipStream));
-        } else {
-            return new BufferedWriter(response.getWriter());
+        return new BufferedWriter(new OutputStreamWriter(getResponseOutputStream(request, response), ENCODE),
+                compression().getBufferSize());
+    }
+
+    /**
+     * @return the compression settings of the current configuration.
+     */
+    private ResponseCompression compression() {
+        GlobalConfiguration globalConfiguration = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration();
+        ResponseCompression current = compression;
+        if (current == null || current.getConfiguration() != globalConfiguration) {
+            current = new ResponseCompression(globalConfiguration);
+            compression = current;
         }
+        return current;
     }
 
     /**
@@ -1241,6 +1591,46 @@ public class DasCommandManager {
         this.mydasServlet.writeHeader(request, response, status, compressionAllowed, capabilities);
     }
 
+    /**
+     * Writes the response header for the commands that negotiate their output format.
+     *
+     * @param response           to which to write the headers.
+     * @param status             being the status to write.
+     * @param request            required to determine if the client will accept a compressed response
+     * @param compressionAllowed to indicate if the specific response should be gzipped.
+     * @param capabilities       describes the parts of of the specification the server implements
+     * @param format             the format of the response body.
+     * @throws IOException An error occurred when writing the headers
+     */
+    private void writeHeader(HttpServletRequest request, HttpServletResponse response, XDasStatus status, boolean compressionAllowed, String capabilities, ResponseFormat format) throws IOException {
+        this.mydasServlet.writeHeader(request, response, status, compressionAllowed, capabilities, format);
+    }
+
+    /**
+     * Returns the OutputStream for the response.  If the output can be gzipped, the stream
+     * gzips it, and sets the Content-Encoding header, as soon as the body is larger than the
+     * gzip_min_size global parameter (see ResponseCompression).
+     *
+     * @param request  the HttpServletRequest, needed to check the capabilities of the client.
+     * @param response from which the OutputStream is obtained
+     * @return an OutputStream that will either produce plain or gzipped output.
+     * @throws IOException due to a problem with initiating the output stream.
+     */
+    private OutputStream getResponseOutputStream(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RequestTimer timer = RequestTimer.current();
+        if (this.mydasServlet.compressResponse(request)) {
+            if (timer != null) {
+                return timer.timingGzip(compression().compressing(response, timer.counting(response.getOutputStream())));
+            }
+            return compression().compressing(response, response.getOutputStream());
+        } else if (timer != null) {
+            return timer.counting(response.getOutputStream());
+        } else {
+            return response.getOutputStream();
+        }
+    }
+
 
 //DAS 1.6 commands:
 
@@ -1273,61 +1663,170 @@ public class DasCommandManager {
             logger.error("The source command has been called, but no sources have been initialised successfully.");
         } else {
             // At least one dsn is OK.
-            if (source == null) {
-                //server sources command, just report the default capabilities
-                writeHeader(request, response, XDasStatus.STATUS_200_OK, true, null);
-            } else {
-                //datasource sources command, report capabilities
+            RenderedDocuments.Document document = getRenderedDocuments().get(RenderedDocuments.sourceKey(source));
+            if (document == null) {
+                // Data sources matched by a pattern (or not initialised) are not rendered in advance.
                 DataSourceConfiguration dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(source);
-                writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dataSourceConfig.getCapabilities());
+                String capabilities = dataSourceConfig.getCapabilities();
                 dataSourceConfig.destroy(); // not really needed; data source not loaded
+                document = new RenderedDocuments.Document(renderSources(dsns, source), capabilities, compression());
             }
-            // Build the XML.
-            XmlSerializer serializer;
-            serializer = PULL_PARSER_FACTORY.newSerializer();
-            BufferedWriter out = null;
-            try {
-                out = getResponseWriter(request, response);
-                serializer.setOutput(out);
-                serializer.setProperty(INDENTATION_PROPERTY, INDENTATION_PROPERTY_VALUE);
-                serializer.startDocument(null, false);
-                serializer.text("\n");
-                if (DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getSourcesXSLT() != null) {
-                    serializer.processingInstruction(DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getSourcesXSLT());
-                    serializer.text("\n");
-                }
-                serializer.startTag(DAS_XML_NAMESPACE, "SOURCES");
-
-                if(source == null) {
-                    List<String> versionsadded = new ArrayList<String>();
-                    for (String dsn : dsns) {
-                        if (!versionsadded.contains(dsn)) {
-                            DataSourceConfiguration dataSourceConfig = null;
-                            try {
-                                dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsn);
-                                versionsadded.addAll(serializeSources(serializer, dataSourceConfig));
-                            } finally {
-                                if(dataSourceConfig != null) dataSourceConfig.destroy();
-                            }
-                        }
-                    }
-                } else {
+            writeRenderedDocument(request, response, document);
+        }
+    }
+
+    /**
+     * Serializes the SOURCES document.
+     *
+     * @param out    to which the XML is written.
+     * @param dsns   the names of the dsns that have initialised successfully.
+     * @param source the data source to describe, null for all of them.
+     * @throws XmlPullParserException in the event of an error being thrown when writing out the XML
+     * @throws IOException            in the event of an error being thrown when writing out the XML
+     */
+    private void serializeSourcesDocument(Writer out, List<String> dsns, String source) throws XmlPullParserException, IOException {
+        XmlSerializer serializer = PULL_PARSER_FACTORY.newSerializer();
+        serializer.setOutput(out);
+        serializer.setProperty(INDENTATION_PROPERTY, INDENTATION_PROPERTY_VALUE);
+        serializer.startDocument(null, false);
+        serializer.text("\n");
+        if (DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getSourcesXSLT() != null) {
+            serializer.processingInstruction(DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getSourcesXSLT());
+            serializer.text("\n");
+        }
+        serializer.startTag(DAS_XML_NAMESPACE, "SOURCES");
+
+        if(source == null) {
+            List<String> versionsadded = new ArrayList<String>();
+            for (String dsn : dsns) {
+                if (!versionsadded.contains(dsn)) {
                     DataSourceConfiguration dataSourceConfig = null;
                     try {
-                        dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(source);
-                        serializeSources(serializer, dataSourceConfig);
+                        dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsn);
+                        versionsadded.addAll(serializeSources(serializer, dataSourceConfig));
                     } finally {
                         if(dataSourceConfig != null) dataSourceConfig.destroy();
                     }
                 }
-
-                serializer.endTag(DAS_XML_NAMESPACE, "SOURCES");
-                serializer.flush();
+            }
+        } else {
+            DataSourceConfiguration dataSourceConfig = null;
+            try {
+                dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(source);
+                serializeSources(serializer, dataSourceConfig);
             } finally {
-                if (out != null) {
-                    out.close();
+                if(dataSourceConfig != null) dataSourceConfig.destroy();
+            }
+        }
+
+        serializer.endTag(DAS_XML_NAMESPACE, "SOURCES");
+        serializer.flush();
+    }
+
+    /**
+     * @param dsns   the names of the dsns that have initialised successfully.
+     * @param source the data source to describe, null for all of them.
+     * @return the SOURCES document, encoded in UTF-8.
+     */
+    private byte[] renderSources(List<String> dsns, String source) throws XmlPullParserException, IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Writer out = new BufferedWriter(new OutputStreamWriter(buffer, ENCODE));
+        serializeSourcesDocument(out, dsns, source);
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Returns the dsn and sources documents of the current configuration, rendering them
+     * again if the configuration or the health of a data source has changed since they were
+     * last rendered.  Concurrent requests keep on using the previous documents until the
+     * new ones have been rendered completely; only the first documents are waited for.
+     *
+     * @return the documents for the current configuration.
+     * @throws XmlPullParserException in the event of an error being thrown when writing out the XML
+     * @throws IOException            in the event of an error being thrown when writing out the XML
+     */
+    private RenderedDocuments getRenderedDocuments() throws XmlPullParserException, IOException {
+        ServerConfiguration configuration = DATA_SOURCE_MANAGER.getServerConfiguration();
+        RenderedDocuments documents = renderedDocuments;
+        if (documents != null && documents.isCurrent(configuration)) {
+            return documents;
+        }
+        if (documents != null) {
+            // Another thread is rendering them: keep on using the previous documents meanwhile.
+            if (!RENDERING_LOCK.tryLock()) {
+                return documents;
+            }
+        } else {
+            RENDERING_LOCK.lock();
+        }
+        try {
+            documents = renderedDocuments;
+            if (documents == null || !documents.isCurrent(configuration)) {
+                // Read the generation first: a change during the rendering triggers another one.
+                long generation = configuration.getHealthGeneration();
+                List<String> dsns = configuration.getDsnNames();
+                Map<String, RenderedDocuments.Document> rendered = new HashMap<String, RenderedDocuments.Document>();
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                Writer out = new BufferedWriter(new OutputStreamWriter(buffer, ENCODE));
+                serializeDsn(out, dsns);
+                out.close();
+                rendered.put(RenderedDocuments.DSN_KEY, new RenderedDocuments.Document(buffer.toByteArray(), null, compression()));
+
+                rendered.put(RenderedDocuments.sourceKey(null), new RenderedDocuments.Document(renderSources(dsns, null), null, compression()));
+                for (String dsn : dsns) {
+                    DataSourceConfiguration dataSourceConfig = configuration.getDataSourceConfig(dsn);
+                    rendered.put(RenderedDocuments.sourceKey(dsn),
+                            new RenderedDocuments.Document(renderSources(dsns, dsn), dataSourceConfig.getCapabilities(), compression()));
+                }
+                documents = new RenderedDocuments(configuration, generation, rendered);
+                renderedDocuments = documents;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Rendered the dsn and sources documents for " + dsns.size() + " dsns");
                 }
             }
+            return documents;
+        } finally {
+            RENDERING_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Writes a rendered document, gzipped if the client accepts it.
+     *
+     * @param request  to check whether the client accepts a gzipped response
+     * @param response to which the HTTP header and document are written
+     * @param document to write.
+     * @throws IOException in the event of an error being thrown when writing out the document
+     */
+    private void writeRenderedDocument(HttpServletRequest request, HttpServletResponse response, RenderedDocuments.Document document)
+            throws IOException {
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, true, document.getCapabilities());
+        writeDocumentBody(request, response, document);
+    }
+
+    /**
+     * Writes a rendered document as the body of the response, gzipped if the client accepts it.
+     *
+     * @param request  to check whether the client accepts a gzipped response
+     * @param response to which the document is written, after its header
+     * @param document to write.
+     * @throws IOException in the event of an error being thrown when writing out the document
+     */
+    private void writeDocumentBody(HttpServletRequest request, HttpServletResponse response, RenderedDocuments.Document document)
+            throws IOException {
+        boolean acceptsGzip = this.mydasServlet.compressResponse(request);
+        if (document.isGzipped(acceptsGzip)) {
+            response.setHeader(MydasServlet.ENCODING_RESPONSE_HEADER_KEY, MydasServlet.ENCODING_GZIPPED);
+        }
+        byte[] body = document.getBody(acceptsGzip);
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
         }
     }
 
@@ -1413,6 +1912,8 @@ public class DasCommandManager {
     void entryPointsCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
             throws XmlPullParserException, IOException, DataSourceException, UnimplementedFeatureException, BadCommandArgumentsException {
 
+        ResponseFormat format = ResponseFormat.negotiate(request, queryString);
+        queryString = ResponseFormat.removeFormatParameter(queryString);
         Integer start = null;
         Integer stop = null;
         Integer expectedSize = null;
@@ -1448,26 +1949,80 @@ public class DasCommandManager {
             */
         }
 
+        RequestTimer.enter(RequestTimer.Phase.FETCH);
         if (dsnConfig.getDataSource() instanceof AnnotationDataSource) {
             // Fine - process command.
             AnnotationDataSource refDsn = dsnConfig.getDataSource();
+            // The entry points are served from memory unless the data source has too many of them.
+            EntryPointCatalog catalog = dsnConfig.getEntryPointCatalog();
+            String entryPointVersion;
+            int total;
+            if (catalog != null) {
+                entryPointVersion = catalog.getVersion();
+                total = catalog.getTotal();
+            } else {
+                entryPointVersion = refDsn.getEntryPointVersion();
+                Integer uncataloguedTotal = dsnConfig.getUncataloguedTotal(entryPointVersion);
+                total = uncataloguedTotal != null ? uncataloguedTotal : refDsn.getTotalEntryPoints();
+            }
             //If a client requests an invalid range of rows (completely beyond the range offered by the server)
             //the server responds with an X-DAS-Status of 402: BadCommandArgumentsException
             start = start == null ? 1 : start;
-            stop = stop == null ? refDsn.getTotalEntryPoints() : Math.min(stop, refDsn.getTotalEntryPoints());
+            stop = stop == null ? total : Math.min(stop, total);
             stop = dsnConfig.getMaxEntryPoints() != null ? Math.min(stop, start + dsnConfig.getMaxEntryPoints() - 1) : stop;
             expectedSize = stop - start + 1;
-            if (start > refDsn.getTotalEntryPoints()) {
+            if (start > total) {
                 throw new BadCommandArgumentsException("Unexpected arguments (both start ans stop out of bounds) have been passed to the entry_points command.");
             }
             //Reference data sources return only valid entry points from start to stop (since 1.6.1)
-            Collection<DasEntryPoint> entryPoints = refDsn.getEntryPoints(start, stop);
+            Collection<DasEntryPoint> entryPoints;
+            if (catalog != null) {
+                entryPoints = catalog.getRows(start, stop);
+            } else {
+                RequestTimer.call("getEntryPoints(start, stop)");
+                entryPoints = refDsn.getEntryPoints(start, stop);
+            }
             // Check that an entry point version has been set.
-            if (refDsn.getEntryPointVersion() == null) {
+            if (entryPointVersion == null) {
                 throw new DataSourceException("The dsn " + dsnConfig.getId() + "is returning null for the entry point version, which is invalid.");
             }
+            if (expectedSize == entryPoints.size()) { //From start to stop was returned, check that it is in accordance to max_entry_points
+                if (dsnConfig.getMaxEntryPoints() != null) {
+                    if (dsnConfig.getMaxEntryPoints() < entryPoints.size()) {
+                        stop = start + dsnConfig.getMaxEntryPoints() - 1;
+                    }
+                }
+            } else { //Less elements were returned, could be because less elements actually exist or because of max_entry_points
+                if (dsnConfig.getMaxEntryPoints() != null) {
+                    if (dsnConfig.getMaxEntryPoints() < entryPoints.size()) {
+                        stop = start + dsnConfig.getMaxEntryPoints() - 1;
+                    } else if (entryPoints.size() == 0) {
+                        //Both start ans stop where out of limits, do not change the stop variable
+                    } else {
+                        stop = start + entryPoints.size() - 1;
+                    }
+                } else {
+                    if (entryPoints.size() != 0) {
+                        stop = start + entryPoints.size() - 1;
+                    }
+                }
+            }
             // Looks like all is OK.
-            writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+            writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities(), format);
+            if (format != ResponseFormat.XML) {
+                OutputStream out = null;
+                try {
+                    out = getResponseOutputStream(request, response);
+                    new CompactResponseWriter(CompactEncoder.newEncoder(format, out)).writeEntryPoints(
+                            buildRequestHref(request), entryPointVersion, total,
+                            start, stop, entryPoints);
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+                return;
+            }
             //OK, got our entry points, so write out the XML.
             XmlSerializer serializer;
             serializer = PULL_PARSER_FACTORY.newSerializer();
@@ -1489,9 +2044,8 @@ public class DasCommandManager {
                 serializer.startTag(DAS_XML_NAMESPACE, "DASEP");
                 serializer.startTag(DAS_XML_NAMESPACE, "ENTRY_POINTS");
                 serializer.attribute(DAS_XML_NAMESPACE, "href", buildRequestHref(request));
-                if (refDsn.getEntryPointVersion() != null)
-                    serializer.attribute(DAS_XML_NAMESPACE, "version", refDsn.getEntryPointVersion());
-                serializer.attribute(DAS_XML_NAMESPACE, "total", "" + refDsn.getTotalEntryPoints());
+                serializer.attribute(DAS_XML_NAMESPACE, "version", entryPointVersion);
+                serializer.attribute(DAS_XML_NAMESPACE, "total", "" + total);
 
                 if (start != null) {
                     serializer.attribute(DAS_XML_NAMESPACE, "start", "" + start);
@@ -1502,27 +2056,6 @@ public class DasCommandManager {
 //                }
 
                 if (stop != null) {
-                    if (expectedSize == entryPoints.size()) { //From start to stop was returned, check that it is in accordance to max_entry_points
-                        if (dsnConfig.getMaxEntryPoints() != null) {
-                            if (dsnConfig.getMaxEntryPoints() < entryPoints.size()) {
-                                stop = start + dsnConfig.getMaxEntryPoints() - 1;
-                            }
-                        }
-                    } else { //Less elements were returned, could be because less elements actually exist or because of max_entry_points
-                        if (dsnConfig.getMaxEntryPoints() != null) {
-                            if (dsnConfig.getMaxEntryPoints() < entryPoints.size()) {
-                                stop = start + dsnConfig.getMaxEntryPoints() - 1;
-                            } else if (entryPoints.size() == 0) {
-                                //Both start ans stop where out of limits, do not change the stop variable
-                            } else {
-                                stop = start + entryPoints.size() - 1;
-                            }
-                        } else {
-                            if (entryPoints.size() != 0) {
-                                stop = start + entryPoints.size() - 1;
-                            }
-                        }
-                    }
                     serializer.attribute(DAS_XML_NAMESPACE, "end", "" + stop);
                 }
 //				else {
@@ -1582,13 +2115,28 @@ public class DasCommandManager {
     void sequenceCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
             throws XmlPullParserException, IOException, DataSourceException, UnimplementedFeatureException, BadReferenceObjectException, BadCommandArgumentsException, CoordinateErrorException {
 
+        ResponseFormat format = ResponseFormat.negotiate(request, queryString);
+        queryString = ResponseFormat.removeFormatParameter(queryString);
+        RequestTimer.enter(RequestTimer.Phase.FETCH);
         // Is this a reference source?
         if (dsnConfig.getDataSource() instanceof ReferenceDataSource) {
             // Fine - process command.
             //Always handle unknown segments (since 1.6.1)
             Collection<SequenceReporter> sequences = getSequences(dsnConfig, queryString, true);
             // Got some sequences, so all is OK.
-            writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities());
+            writeHeader(request, response, XDasStatus.STATUS_200_OK, true, dsnConfig.getCapabilities(), format);
+            if (format != ResponseFormat.XML) {
+                OutputStream out = null;
+                try {
+                    out = getResponseOutputStream(request, response);
+                    new CompactResponseWriter(CompactEncoder.newEncoder(format, out)).writeSequences(sequences);
+                } finally {
+                    if (out != null) {
+                        out.close();
+                    }
+                }
+                return;
+            }
             // Build the XML.
             XmlSerializer serializer;
             serializer = PULL_PARSER_FACTORY.newSerializer();
@@ -1629,8 +2177,30 @@ public class DasCommandManager {
 
     void typesCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
             throws BadCommandArgumentsException, BadReferenceObjectException, DataSourceException, CoordinateErrorException, IOException, XmlPullParserException {
+        InFlightRequests.Call call = joinInFlight(request, dsnConfig, MydasServlet.Commands.COMMAND_TYPES.getCommandString());
+        if (call != null && !call.isLeader()) {
+            if (replay(call, response)) {
+                return;
+            }
+            call = null;
+        }
+        boolean succeeded = false;
+        try {
+            writeTypes(request, call == null ? response : call.capture(response), dsnConfig, queryString);
+            succeeded = true;
+        } finally {
+            if (call != null) {
+                call.finish(succeeded);
+            }
+        }
+    }
+
+    private void writeTypes(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
+            throws BadCommandArgumentsException, BadReferenceObjectException, DataSourceException, CoordinateErrorException, IOException, XmlPullParserException {
 //		Parse the queryString to retrieve the individual parts of the query.
 
+        ResponseFormat format = ResponseFormat.negotiate(request, queryString);
+        queryString = ResponseFormat.removeFormatParameter(queryString);
         List<SegmentQuery> requestedSegments = new ArrayList<SegmentQuery>();
         List<String> typeFilter = new ArrayList<String>();
         /************************************************************************\
@@ -1664,12 +2234,13 @@ public class DasCommandManager {
                 // in the DAS 1.53E spec.  (Unknown parameters will just be ignored.)
             }
         }
+        RequestTimer.enter(RequestTimer.Phase.FETCH);
         if (requestedSegments.size() == 0) {
             // Process the types command for all types - not segment specific.
-            typesCommandAllTypes(request, response, dsnConfig, typeFilter);
+            typesCommandAllTypes(request, response, dsnConfig, typeFilter, format);
         } else {
             // Process the types command for specific segments.
-            typesCommandSpecificSegments(request, response, dsnConfig, requestedSegments, typeFilter);
+            typesCommandSpecificSegments(request, response, dsnConfig, requestedSegments, typeFilter, format);
         }
     }
 
@@ -1968,18 +2539,17 @@ public class DasCommandManager {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public void writebackDelete(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dataSourceConfig) throws WritebackException {
         Map<String, String[]> parameters = request.getParameterMap();
         Map<String, String> parameters2 = new HashMap<String, String>();
         String featureid = null, segmentid = null;
-        for (Object key : parameters.keySet()) {
-            if (((String) key).equals("featureid"))
-                featureid = ((String[]) parameters.get(key))[0];
-            else if (((String) key).equals("segmentid"))
-                segmentid = ((String[]) parameters.get(key))[0];
+        for (String key : parameters.keySet()) {
+            if (key.equals("featureid"))
+                featureid = parameters.get(key)[0];
+            else if (key.equals("segmentid"))
+                segmentid = parameters.get(key)[0];
             else
-                parameters2.put((String) key, ((String[]) parameters.get(key))[0]);
+                parameters2.put(key, parameters.get(key)[0]);
         }
         try {
             DasAnnotatedSegment segmentRes = ((WritebackDataSource) dataSourceConfig.getDataSource()).delete(segmentid, featureid, parameters2);
@@ -2091,6 +2661,327 @@ public class DasCommandManager {
         }
     }
 
+    /**
+     * Implements the reload command: reloads the configuration file in the background, keeping
+     * the data sources whose configuration has not changed.  Protected by the indexer keyphrase.
+     *
+     * @param request  holding the keyphrase parameter
+     * @param response to which the HTTP header is written
+     * @throws IOException in the event of an error being thrown when writing the header
+     */
+    void reloadCommand(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (checkKeyphrase(request, response, "reload")) {
+            DATA_SOURCE_MANAGER.scheduleReload();
+            writeHeader(request, response, XDasStatus.STATUS_200_OK, false, null);
+        }
+    }
+
+    /**
+     * Checks the keyphrase parameter of an administrative command against the keyphrase of the
+     * config file, writing an error header if it does not match.
+     *
+     * @param request  holding the keyphrase parameter
+     * @param response to which the HTTP header is written if the keyphrase does not match
+     * @param command  checked, for the log
+     * @return true if the keyphrase matches
+     * @throws IOException in the event of an error being thrown when writing the header
+     */
+    private boolean checkKeyphrase(HttpServletRequest request, HttpServletResponse response, String command) throws IOException {
+        Map<String, PropertyType> properties = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters();
+        if (properties.get("keyphrase") == null) {
+            writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, null);
+            logger.error("The keyphrase is empty in the config file, the " + command + " command cannot be used");
+            return false;
+        }
+        String keyphrase = request.getParameter("keyphrase");
+        if (properties.get("keyphrase").getValue().equals(keyphrase)) {
+            return true;
+        }
+        writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, null);
+        logger.error("The " + command + " keyphrase does not match with the one in the Config file");
+        return false;
+    }
+
+    /**
+     * Implements the slow_requests command: writes the most recent requests kept in the slow
+     * request log as plain text, one per line.  Protected by the indexer keyphrase.
+     *
+     * @param request  holding the keyphrase parameter
+     * @param response to which the slow requests are written
+     * @throws IOException in the event of an error being thrown when writing the requests
+     * @throws BadCommandException if the slow request log is disabled
+     */
+    void slowRequestsCommand(HttpServletRequest request, HttpServletResponse response) throws IOException, BadCommandException {
+        SlowRequestLog slowRequestLog = this.mydasServlet.getSlowRequestLog();
+        if (slowRequestLog == null) {
+            throw new BadCommandException("The slow request log is disabled on this server.");
+        }
+        if (!checkKeyphrase(request, response, "slow_requests")) {
+            return;
+        }
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, null);
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        try {
+            slowRequestLog.writeText(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Implements the metrics command: writes the request metrics as plain text, in the Prometheus
+     * exposition format, unless the metrics_endpoint global parameter is false.
+     *
+     * @param request  to allow writing of the HTTP header
+     * @param response to which the metrics are written
+     * @throws IOException in the event of an error being thrown when writing the metrics
+     * @throws BadCommandException if the metrics endpoint is disabled
+     */
+    void metricsCommand(HttpServletRequest request, HttpServletResponse response) throws IOException, BadCommandException {
+        PropertyType enabled = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()
+                .getGlobalParameters().get("metrics_endpoint");
+        if (enabled != null && "false".equalsIgnoreCase(enabled.getValue().trim())) {
+            throw new BadCommandException("The metrics command is disabled on this server.");
+        }
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, null);
+        response.setContentType(RequestMetrics.TEXT_CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        try {
+            this.mydasServlet.getRequestMetrics().writeText(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Implements the export command: streams all the features of the data source as a gzipped
+     * GFF3 (format=gff3, the default) or BED (format=bed) file.  An interrupted transfer can be
+     * resumed by sending the number of bytes already received as offset=N, as long as the
+     * X-DAS-Export-Version header has not changed.
+     *
+     * @param request     to allow writing of the HTTP header
+     * @param response    to which the HTTP header and the gzipped file are written
+     * @param dsnConfig   holding configuration of the dsn and the data source backing it.
+     * @param queryString with the optional format and offset parameters.
+     * @throws IOException                   in the event of an error being thrown when writing the file
+     * @throws DataSourceException           in the event of a problem with the data source
+     * @throws UnimplementedFeatureException if the data source does not implement the entry points
+     * @throws BadCommandArgumentsException  if the format or offset parameters are wrong
+     */
+    void exportCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
+            throws IOException, DataSourceException, UnimplementedFeatureException, BadCommandArgumentsException {
+        ExportFormat format = ExportFormat.GFF3;
+        long offset = 0;
+        if (queryString != null && queryString.trim().length() > 0) {
+            for (String queryPart : queryString.split("[;&]")) {
+                if (queryPart.length() == 0) {
+                    continue;
+                }
+                String[] keyValue = queryPart.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new BadCommandArgumentsException("Unexpected arguments have been passed to the export command.");
+                }
+                if ("format".equals(keyValue[0])) {
+                    format = ExportFormat.fromParameterValue(keyValue[1]);
+                    if (format == null) {
+                        throw new BadCommandArgumentsException("Unknown format for the export command: " + keyValue[1]);
+                    }
+                } else if ("offset".equals(keyValue[0])) {
+                    try {
+                        offset = Long.parseLong(keyValue[1]);
+                    } catch (NumberFormatException nfe) {
+                        throw new BadCommandArgumentsException("The offset of the export command is not numeric.", nfe);
+                    }
+                    if (offset < 0) {
+                        throw new BadCommandArgumentsException("The offset of the export command is negative.");
+                    }
+                } else {
+                    throw new BadCommandArgumentsException("Unexpected arguments have been passed to the export command.");
+                }
+            }
+        }
+
+        int prefetch = DEFAULT_EXPORT_PREFETCH;
+        PropertyType prefetchProperty = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()
+                .getGlobalParameters().get("export_prefetch");
+        if (prefetchProperty != null) {
+            try {
+                prefetch = Math.max(1, Integer.parseInt(prefetchProperty.getValue().trim()));
+            } catch (NumberFormatException nfe) {
+                logger.error("The export_prefetch property is not numeric, using " + DEFAULT_EXPORT_PREFETCH);
+            }
+        }
+
+        Exporter exporter = new Exporter(dsnConfig, format, prefetch);
+        // Any problem with the data source is reported before writing anything.
+        exporter.open();
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, dsnConfig.getCapabilities());
+        response.setContentType(EXPORT_CONTENT_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=\""
+                + dsnConfig.getId().replaceAll("[^A-Za-z0-9._-]", "_") + '.' + format.getParameterValue() + ".gz\"");
+        if (exporter.getVersion() != null) {
+            response.setHeader(HEADER_KEY_EXPORT_VERSION, exporter.getVersion());
+        }
+        // No Content-Length: the size is unknown until the end, so the response is chunked.
+        exporter.export(response.getOutputStream(), offset);
+    }
+
+    /**
+     * Implements the locate command: returns as JSON the data source, segment and coordinates of
+     * each feature_id=... requested (several separated by ;), from the feature ids written by
+     * the indexer command for all the data sources with the advanced-search capability.
+     *
+     * @param request     to allow writing of the HTTP header
+     * @param response    to which the locations are written
+     * @param queryString with the feature_id parameters.
+     * @throws IOException                  in the event of an error being thrown when writing the locations
+     * @throws BadCommandArgumentsException if no feature id is requested
+     * @throws BadCommandException          if there is no indexer path
+     */
+    void locateCommand(HttpServletRequest request, HttpServletResponse response, String queryString)
+            throws IOException, BadCommandArgumentsException, BadCommandException {
+        List<String> featureIds = new ArrayList<String>();
+        if (queryString != null) {
+            for (String queryPart : queryString.split("[;&]")) {
+                String[] keyValue = queryPart.split("=", 2);
+                if (keyValue.length == 2 && "feature_id".equals(keyValue[0]) && keyValue[1].length() > 0) {
+                    featureIds.add(URLDecoder.decode(keyValue[1], ENCODE));
+                }
+            }
+        }
+        if (featureIds.isEmpty()) {
+            throw new BadCommandArgumentsException("The locate command must be passed at least one feature_id argument.");
+        }
+        if (featureIds.size() > MAX_TYPEAHEAD_SUGGESTIONS) {
+            throw new BadCommandArgumentsException("The locate command accepts at most " + MAX_TYPEAHEAD_SUGGESTIONS + " feature ids.");
+        }
+        ServerConfiguration serverConfiguration = DATA_SOURCE_MANAGER.getServerConfiguration();
+        PropertyType indexerPath = serverConfiguration.getGlobalConfiguration().getGlobalParameters().get("indexerpath");
+        if (indexerPath == null || indexerPath.getValue().trim().length() == 0) {
+            throw new BadCommandException("The locate command needs an indexer path.");
+        }
+
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, null);
+        response.setContentType(ResponseFormat.JSON.getContentType());
+        OutputStream stream = getResponseOutputStream(request, response);
+        JsonEncoder out = new JsonEncoder(stream);
+        out.startObject(null);
+        out.startArray("locations");
+        for (String dsn : serverConfiguration.getDsnNames()) {
+            DataSourceConfiguration dsnConfig = serverConfiguration.getDataSourceConfig(dsn);
+            if (dsnConfig == null || dsnConfig.isMatchedDynamic() || !dsnConfig.getCapabilities().contains("advanced-search")) {
+                continue;
+            }
+            Typeahead index;
+            try {
+                index = Typeahead.forIndex(indexerPath.getValue(), dsn);
+            } catch (IOException e) {
+                logger.error("The feature id index of " + dsn + " cannot be read", e);
+                continue;
+            }
+            if (index == null) {
+                continue;
+            }
+            for (String featureId : featureIds) {
+                for (Typeahead.Suggestion location : index.locate(featureId)) {
+                    out.startObject(null);
+                    out.value("feature_id", location.getFeatureId());
+                    out.value("dsn", dsn);
+                    out.value("segment", location.getSegmentId());
+                    out.value("start", location.getStart());
+                    out.value("stop", location.getStop());
+                    out.endObject();
+                }
+            }
+        }
+        out.endArray();
+        out.endObject();
+        out.flush();
+        stream.close();
+    }
+
+    /**
+     * Implements the typeahead command: returns as JSON the features of the data source whose id or
+     * label starts with prefix=..., up to max=N (10 by default), with their segment and
+     * coordinates.  The suggestions are written by the indexer command, so the data source must
+     * have the advanced-search capability and have been indexed.
+     *
+     * @param request     to allow writing of the HTTP header
+     * @param response    to which the suggestions are written
+     * @param dsnConfig   holding configuration of the dsn.
+     * @param queryString with the prefix and the optional max parameters.
+     * @throws IOException                   in the event of an error being thrown when writing the suggestions
+     * @throws UnimplementedFeatureException if the data source has not been indexed
+     * @throws BadCommandArgumentsException  if the prefix is missing or max is wrong
+     */
+    void typeaheadCommand(HttpServletRequest request, HttpServletResponse response, DataSourceConfiguration dsnConfig, String queryString)
+            throws IOException, UnimplementedFeatureException, BadCommandArgumentsException {
+        String prefix = null;
+        int max = DEFAULT_TYPEAHEAD_SUGGESTIONS;
+        if (queryString != null) {
+            for (String queryPart : queryString.split("[;&]")) {
+                if (queryPart.length() == 0) {
+                    continue;
+                }
+                String[] keyValue = queryPart.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new BadCommandArgumentsException("Unexpected arguments have been passed to the typeahead command.");
+                }
+                if ("prefix".equals(keyValue[0])) {
+                    prefix = URLDecoder.decode(keyValue[1], ENCODE);
+                } else if ("max".equals(keyValue[0])) {
+                    try {
+                        max = Integer.parseInt(keyValue[1]);
+                    } catch (NumberFormatException nfe) {
+                        throw new BadCommandArgumentsException("The max of the typeahead command is not numeric.", nfe);
+                    }
+                    if (max < 1 || max > MAX_TYPEAHEAD_SUGGESTIONS) {
+                        throw new BadCommandArgumentsException("The max of the typeahead command must be between 1 and " + MAX_TYPEAHEAD_SUGGESTIONS + ".");
+                    }
+                }
+            }
+        }
+        if (prefix == null || prefix.trim().length() == 0) {
+            throw new BadCommandArgumentsException("The typeahead command must be passed a prefix argument.");
+        }
+        PropertyType indexerPath = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()
+                .getGlobalParameters().get("indexerpath");
+        if (!dsnConfig.getCapabilities().contains("advanced-search") || indexerPath == null
+                || indexerPath.getValue().trim().length() == 0) {
+            throw new UnimplementedFeatureException("The typeahead command needs the advanced-search capability and an indexer path.");
+        }
+        RequestTimer.call("Typeahead.forIndex");
+        Typeahead typeahead = Typeahead.forIndex(indexerPath.getValue(), dsnConfig.getName());
+        if (typeahead == null) {
+            throw new UnimplementedFeatureException("The data source " + dsnConfig.getName() + " has not been indexed.");
+        }
+        List<Typeahead.Suggestion> suggestions = typeahead.lookup(prefix.trim(), max);
+
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, dsnConfig.getCapabilities());
+        response.setContentType(ResponseFormat.JSON.getContentType());
+        OutputStream stream = getResponseOutputStream(request, response);
+        JsonEncoder out = new JsonEncoder(stream);
+        out.startObject(null);
+        out.value("prefix", prefix.trim());
+        out.startArray("suggestions");
+        for (Typeahead.Suggestion suggestion : suggestions) {
+            out.startObject(null);
+            out.value("id", suggestion.getFeatureId());
+            out.value("label", suggestion.getLabel());
+            out.value("segment", suggestion.getSegmentId());
+            out.value("start", suggestion.getStart());
+            out.value("stop", suggestion.getStop());
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+        out.flush();
+        stream.close();
+    }
+
     private Collection<DasAnnotatedSegment> merge(Collection<DasAnnotatedSegment> a, Collection<DasAnnotatedSegment> b, int type) throws DataSourceException {
         Collection<DasAnnotatedSegment> merged = new ArrayList<DasAnnotatedSegment>();
         switch (type) {
@@ -2157,4 +3048,100 @@ public class DasCommandManager {
                 return true;
         return false;
     }
+
+    /**
+     * Joins the computation of an identical request, if there is one in progress.  Requests are
+     * identical if they ask the same command of the same data source with the same URL and get the
+     * same representation (format and compression); the raw query string is used, as it is echoed
+     * in the responses.
+     *
+     * @param request   being handled.
+     * @param dsnConfig the data source.
+     * @param command   requested.
+     * @return the part of the request in the computation, null if it must run on its own.
+     */
+    private InFlightRequests.Call joinInFlight(HttpServletRequest request, DataSourceConfiguration dsnConfig, String command) {
+        Map<String, PropertyType> globalParameters = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters();
+        PropertyType enabled = globalParameters.get("coalesce_requests");
+        if (enabled != null && "false".equalsIgnoreCase(enabled.getValue().trim())) {
+            return null;
+        }
+        int maxWaiters = DEFAULT_COALESCE_MAX_WAITERS;
+        PropertyType maxWaitersProperty = globalParameters.get("coalesce_max_waiters");
+        if (maxWaitersProperty != null) {
+            try {
+                maxWaiters = Integer.parseInt(maxWaitersProperty.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                logger.error("The coalesce_max_waiters property is not numeric, using " + DEFAULT_COALESCE_MAX_WAITERS);
+            }
+        }
+        if (maxWaiters <= 0) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(dsnConfig.getName())
+                .append('\n').append(command)
+                .append('\n').append(request.getRequestURI())
+                .append('\n').append(request.getQueryString())
+                .append('\n').append(request.getHeader("Accept"))
+                .append('\n').append(this.mydasServlet.compressResponse(request));
+        return inFlightRequests.join(key.toString(), maxWaiters);
+    }
+
+    /**
+     * For a follower: waits for the leader of an identical request and sends its response, no
+     * longer than the coalesce timeout nor the deadline of the request, so that the followers of
+     * a slow leader do not hold their bulkhead permits past their own deadlines.
+     *
+     * @param call     joined as a follower.
+     * @param response of the follower.
+     * @return true if the response has been sent, false if the request must be run independently.
+     * @throws RequestCancelledException if the request has run past its deadline, or has been
+     *                                   cancelled, while waiting.
+     * @throws IOException               if the response cannot be written.
+     */
+    private boolean replay(InFlightRequests.Call call, HttpServletResponse response) throws RequestCancelledException, IOException {
+        RequestContext context = RequestContext.current();
+        long timeout = coalesceTimeout();
+        if (context != null) {
+            timeout = Math.min(timeout, context.getRemainingMillis());
+        }
+        if (call.replayTo(response, timeout)) {
+            timeReplayed();
+            return true;
+        }
+        if (context != null) {
+            context.checkCancelled();
+            if (context.hasDeadline() && context.getRemainingMillis() == 0) {
+                throw new RequestCancelledException("The request has run past its deadline while waiting for an identical one", true);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records, in the metrics of the request, that it has been sent the response of an identical
+     * request: only successful responses are shared.
+     */
+    private static void timeReplayed() {
+        RequestTimer timer = RequestTimer.current();
+        if (timer != null) {
+            timer.setStatus(XDasStatus.STATUS_200_OK);
+        }
+    }
+
+    /**
+     * @return how long, in milliseconds, a request waits for an identical one.
+     */
+    private long coalesceTimeout() {
+        PropertyType timeoutProperty = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()
+                .getGlobalParameters().get("coalesce_timeout");
+        if (timeoutProperty != null) {
+            try {
+                return Long.parseLong(timeoutProperty.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                logger.error("The coalesce_timeout property is not numeric, using " + DEFAULT_COALESCE_TIMEOUT);
+            }
+        }
+        return DEFAULT_COALESCE_TIMEOUT;
+    }
 }
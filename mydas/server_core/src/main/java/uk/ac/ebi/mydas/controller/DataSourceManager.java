@@ -26,14 +26,35 @@ package uk.ac.ebi.mydas.controller;
 import org.apache.log4j.Logger;
 import uk.ac.ebi.mydas.configuration.ConfigurationManager;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
 import uk.ac.ebi.mydas.configuration.ServerConfiguration;
 import uk.ac.ebi.mydas.exceptions.ConfigurationException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 
 import javax.servlet.ServletContext;
 import javax.xml.bind.JAXBException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created Using IntelliJ IDEA.
@@ -50,18 +71,76 @@ public class DataSourceManager {
      */
     private static final Logger LOGGER = Logger.getLogger(DataSourceManager.class);
 
+    /**
+     * Global property giving the number of seconds between two checks of the configuration
+     * file for changes.  The file is not watched if it is absent or 0.
+     */
+    static final String PROPERTY_RELOAD_INTERVAL = "config_reload_interval";
+
+    /**
+     * Maximum time to wait for the requests using a replaced configuration to complete,
+     * before destroying the data sources that are no longer configured.
+     */
+    private static final long DRAIN_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long DRAIN_POLL = 100;
+
+    /**
+     * Global property giving the number of threads initialising the data sources in parallel.
+     */
+    static final String PROPERTY_INIT_THREADS = "init_threads";
+
+    static final int DEFAULT_INIT_THREADS = 4;
+
+    /**
+     * A loaded configuration, with the number of requests currently using it.
+     */
+    static final class Generation {
+        private final ServerConfiguration configuration;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private Generation(ServerConfiguration configuration) {
+            this.configuration = configuration;
+        }
+    }
+
     private final ServletContext svCon;
 
-    private ServerConfiguration serverConfiguration;
-    private ConfigurationManager configManager;
+    private volatile Generation current;
+    private volatile ConfigurationManager configManager;
+    private volatile long loadTime;
+
+    private String configurationFileName;
+    private File watchedFile;
+    private long watchedLastModified;
+
+    /**
+     * Runs the reloads of the configuration, one at a time, and watches the configuration file.
+     */
+    private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mydas-configuration-reload");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     protected DataSourceManager(ServletContext servletContext) {
         this.svCon = servletContext;
     }
 
     public void init(String configurationFileName) throws IOException, ConfigurationException {
-        loadConfiguration(configurationFileName);
+        this.configurationFileName = configurationFileName;
+        this.watchedFile = configurationFile(configurationFileName);
+        if (watchedFile != null) {
+            watchedLastModified = watchedFile.lastModified();
+        }
+        ConfigurationManager manager = loadConfiguration(configurationFileName);
+        configManager = manager;
+        current = new Generation(manager.getServerConfiguration());
         initialiseDataSources();
+        loadTime = System.currentTimeMillis();
+        startWatching();
     }
 
     /**
@@ -69,26 +148,30 @@ public class DataSourceManager {
      * individual data sources.
      *
      * @param fileName being the name of the configuration XML file.
+     * @return the manager holding the unmarshalled configuration.
      * @throws uk.ac.ebi.mydas.exceptions.ConfigurationException
      *                             if the XML file is badly formed or does
      *                             not validate against the schema.
      * @throws java.io.IOException in the event of a problem with reading the file.
      */
-    private void loadConfiguration(String fileName) throws IOException, ConfigurationException {
-        configManager = new ConfigurationManager();
+    private ConfigurationManager loadConfiguration(String fileName) throws IOException, ConfigurationException {
+        ConfigurationManager manager = new ConfigurationManager();
         try {
             ClassLoader cl = Thread.currentThread().getContextClassLoader();
 
             InputStream stream = cl.getResourceAsStream(fileName);
+            if (stream == null) {
+                throw new ConfigurationException("The configuration file " + fileName + " could not be found.");
+            }
             try {
-                configManager.unmarshal(stream);
+                manager.unmarshal(stream);
             } finally {
                 stream.close();
             }
-            serverConfiguration = configManager.getServerConfiguration();
         } catch (JAXBException e) {
             throw new IllegalStateException("JAXBException thrown when attempting to unmarshall the DAS source configuration.", e);
         }
+        return manager;
     }
 
     /**
@@ -100,19 +183,124 @@ public class DataSourceManager {
      *          (a logic error) or has failed to load the expected objects.
      */
     private void initialiseDataSources() throws ConfigurationException {
+        ServerConfiguration serverConfiguration = getServerConfiguration();
         if (serverConfiguration == null) {
             throw new ConfigurationException("An attempt to initialise the data sources has been made, but there is no valid ServerConfiguration object.");
         }
         if (serverConfiguration.getGlobalConfiguration() == null) {
             throw new ConfigurationException("An attempt to initialise the data sources has been made, but the Global Configuration has not been loaded.");
         }
-        // Iterate over the DSN configs and attempt to initialise each in turn.
-        for (DataSourceConfiguration dsnConfig : serverConfiguration.getDataSourceConfigs()) {
-            initializeDataSource(dsnConfig);
+        initialiseDataSources(serverConfiguration.getDataSourceConfigs(), serverConfiguration);
+    }
+
+    /**
+     * Initialises data sources in parallel, on at most init_threads threads, so that a slow data
+     * source does not hold up the others.  Data sources with the lazy_init property are only
+     * initialised by the first request using them.  The time taken by each data source is logged
+     * once all of them are initialised.
+     *
+     * @param dsnConfigs          to initialise.
+     * @param serverConfiguration which the data sources are part of (not necessarily the one in use yet).
+     */
+    private void initialiseDataSources(Collection<DataSourceConfiguration> dsnConfigs, final ServerConfiguration serverConfiguration) {
+        long start = System.currentTimeMillis();
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        int threads = getInitThreads(serverConfiguration);
+        ExecutorService initialisers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mydas-datasource-init-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                // Data source classes are loaded with the context class loader of the web application.
+                thread.setContextClassLoader(classLoader);
+                return thread;
+            }
+        });
+        Map<DataSourceConfiguration, Future<Long>> timings = new IdentityHashMap<DataSourceConfiguration, Future<Long>>();
+        List<DataSourceConfiguration> deferred = new ArrayList<DataSourceConfiguration>();
+        try {
+            for (final DataSourceConfiguration dsnConfig : dsnConfigs) {
+                if (dsnConfig.isLazyInit() && !dsnConfig.isUnmatchedDynamic()) {
+                    dsnConfig.deferInitialisation();
+                    deferred.add(dsnConfig);
+                } else {
+                    timings.put(dsnConfig, initialisers.submit(new Callable<Long>() {
+                        public Long call() {
+                            return initializeDataSource(dsnConfig, serverConfiguration);
+                        }
+                    }));
+                }
+            }
+            final Map<DataSourceConfiguration, Long> durations = new IdentityHashMap<DataSourceConfiguration, Long>();
+            for (Map.Entry<DataSourceConfiguration, Future<Long>> timing : timings.entrySet()) {
+                try {
+                    durations.put(timing.getKey(), timing.getValue().get());
+                } catch (ExecutionException e) {
+                    LOGGER.error("Data Source Failed to Load and Initialise: " + timing.getKey().toString(), e.getCause());
+                    durations.put(timing.getKey(), -1L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.error("Interrupted while initialising the data sources");
+                    return;
+                }
+            }
+            if (LOGGER.isInfoEnabled()) {
+                List<DataSourceConfiguration> slowestFirst = new ArrayList<DataSourceConfiguration>(durations.keySet());
+                Collections.sort(slowestFirst, new Comparator<DataSourceConfiguration>() {
+                    public int compare(DataSourceConfiguration a, DataSourceConfiguration b) {
+                        return durations.get(b).compareTo(durations.get(a));
+                    }
+                });
+                StringBuilder report = new StringBuilder("Data sources initialised in ")
+                        .append(System.currentTimeMillis() - start).append("ms on ").append(threads).append(" thread(s):");
+                for (DataSourceConfiguration dsnConfig : slowestFirst) {
+                    report.append("\n  ").append(dsnConfig.getId()).append(": ");
+                    long duration = durations.get(dsnConfig);
+                    report.append(duration < 0 ? "error" : duration + "ms").append(dsnConfig.isOK() ? "" : " (FAILED)");
+                }
+                for (DataSourceConfiguration dsnConfig : deferred) {
+                    report.append("\n  ").append(dsnConfig.getId()).append(": lazy, on first request");
+                }
+                LOGGER.info(report);
+            }
+        } finally {
+            initialisers.shutdownNow();
+        }
+    }
+
+    private static int getInitThreads(ServerConfiguration serverConfiguration) {
+        PropertyType property = serverConfiguration.getGlobalConfiguration().getGlobalParameters().get(PROPERTY_INIT_THREADS);
+        if (property != null) {
+            try {
+                int threads = Integer.parseInt(property.getValue().trim());
+                if (threads > 0) {
+                    return threads;
+                }
+            } catch (NumberFormatException e) {
+                // Use the default below.
+            }
+            LOGGER.error("The " + PROPERTY_INIT_THREADS + " property must be a positive number, using " + DEFAULT_INIT_THREADS);
         }
+        return DEFAULT_INIT_THREADS;
     }
 
     public void initializeDataSource(DataSourceConfiguration dsnConfig) throws ConfigurationException {
+        long duration = initializeDataSource(dsnConfig, getServerConfiguration());
+        if (dsnConfig.isInitialisationPending()) {
+            LOGGER.info("Lazy data source " + dsnConfig.getId() + " initialised in " + duration + "ms");
+        }
+    }
+
+    /**
+     * Loads and initialises a data source, with the global parameters of the configuration it belongs to.
+     *
+     * @param dsnConfig           of the data source.
+     * @param serverConfiguration which the data source is part of (not necessarily the one in use yet).
+     * @return the time taken, in milliseconds.
+     */
+    private long initializeDataSource(DataSourceConfiguration dsnConfig, ServerConfiguration serverConfiguration) {
+        long start = System.currentTimeMillis();
         try {
             // Load and initialise the DSN.
             if (dsnConfig.loadDataSource()) {
@@ -125,12 +313,19 @@ public class DataSourceManager {
         } catch (DataSourceException e) {
             // This particular data source has failed to initialise.  Still try to do the rest and log this failure.
             LOGGER.error("Data Source Failed to Load and Initialise: " + dsnConfig.toString());
+        } finally {
+            // Instances matched by dynamic data sources are not listed by the sources command.
+            if (!dsnConfig.isMatchedDynamic()) {
+                serverConfiguration.dataSourceHealthChanged();
+            }
         }
+        return System.currentTimeMillis() - start;
     }
 
     public void destroyDataSource(DataSourceConfiguration dataSourceConfiguration) {
         try {
-            if (dataSourceConfiguration.isOK()) {
+            // A lazy data source that was never used has nothing to destroy.
+            if (dataSourceConfiguration.isOK() && !dataSourceConfiguration.isInitialisationPending()) {
                 dataSourceConfiguration.getDataSource().destroy();
             }
         } catch (Exception e) {
@@ -149,6 +344,11 @@ public class DataSourceManager {
      * on to the rest.
      */
     public void destroy() {
+        reloader.shutdownNow();
+        ServerConfiguration serverConfiguration = getServerConfiguration();
+        if (serverConfiguration == null) {
+            return;
+        }
         for (DataSourceConfiguration dataSourceConfiguration : serverConfiguration.getDataSourceConfigs()) {
             destroyDataSource(dataSourceConfiguration);
         }
@@ -160,11 +360,209 @@ public class DataSourceManager {
      * @return the loaded ServerConfiguration object.
      */
     public ServerConfiguration getServerConfiguration() {
-        return serverConfiguration;
+        Generation generation = current;
+        return generation == null ? null : generation.configuration;
     }
 
     public ConfigurationManager getConfigManager() {
         return configManager;
     }
 
+    /**
+     * @return the time at which the configuration in use was loaded and its data sources initialised.
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Registers a request, so that the data sources it may use are not destroyed by a
+     * configuration reload until it has completed.
+     *
+     * @return the configuration generation to pass to {@link #endRequest(Generation)}, null if
+     *         no configuration has been loaded.
+     */
+    Generation beginRequest() {
+        while (true) {
+            Generation generation = current;
+            if (generation == null) {
+                return null;
+            }
+            generation.requests.incrementAndGet();
+            if (generation == current) {
+                return generation;
+            }
+            // A reload has swapped the configuration meanwhile: use the new one.
+            generation.requests.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param generation as returned by {@link #beginRequest()}.
+     */
+    void endRequest(Generation generation) {
+        if (generation != null) {
+            generation.requests.decrementAndGet();
+        }
+    }
+
+    /**
+     * Asks for the configuration file to be reloaded in the background.  The current
+     * configuration keeps on serving the requests until the new one is ready.
+     */
+    public void scheduleReload() {
+        reloader.execute(new Runnable() {
+            public void run() {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    LOGGER.error("The configuration could not be reloaded, the previous one is still in use.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reloads the configuration file and swaps it with the configuration in use.
+     * <p/>
+     * Data sources whose configuration has not changed keep their initialised instance, so
+     * they do not lose their state or caches.  Added and changed data sources are initialised
+     * before the swap (all of them if the global configuration has changed, as data sources
+     * are initialised with the global properties).  The data sources that are not part of the
+     * new configuration are destroyed once the requests still using them have completed.
+     *
+     * @throws IOException            in the event of a problem with reading the file.
+     * @throws ConfigurationException if the new configuration is not valid.
+     * @throws JAXBException          if the configurations cannot be compared.
+     */
+    synchronized void reload() throws IOException, ConfigurationException, JAXBException {
+        ConfigurationManager newManager = loadConfiguration(configurationFileName);
+        ServerConfiguration loaded = newManager.getServerConfiguration();
+        Generation old = current;
+        ConfigurationManager oldManager = configManager;
+        boolean globalUnchanged = newManager.getGlobalFingerprint().equals(oldManager.getGlobalFingerprint());
+
+        Map<String, DataSourceConfiguration> oldConfigs = new HashMap<String, DataSourceConfiguration>();
+        for (DataSourceConfiguration dsnConfig : old.configuration.getDataSourceConfigs()) {
+            oldConfigs.put(dsnConfig.getId(), dsnConfig);
+        }
+        Map<String, DataSourceConfiguration> merged = new HashMap<String, DataSourceConfiguration>();
+        List<DataSourceConfiguration> toInitialise = new ArrayList<DataSourceConfiguration>();
+        for (DataSourceConfiguration dsnConfig : loaded.getDataSourceConfigs()) {
+            DataSourceConfiguration previous = oldConfigs.get(dsnConfig.getId());
+            if (globalUnchanged && previous != null && previous.isOK()
+                    && newManager.getDataSourceFingerprint(dsnConfig).equals(newManager.getDataSourceFingerprint(previous))) {
+                merged.put(dsnConfig.getId(), previous);
+            } else {
+                merged.put(dsnConfig.getId(), dsnConfig);
+                toInitialise.add(dsnConfig);
+            }
+        }
+        ServerConfiguration configuration = new ServerConfiguration(loaded.getGlobalConfiguration(), merged);
+        initialiseDataSources(toInitialise, configuration);
+
+        configManager = newManager;
+        loadTime = System.currentTimeMillis();
+        current = new Generation(configuration);
+        LOGGER.info("Configuration reloaded: " + toInitialise.size() + " data source(s) initialised, "
+                + (merged.size() - toInitialise.size()) + " kept");
+
+        // Destroy the data sources that have been replaced or removed, once nobody uses them.
+        Map<DataSourceConfiguration, Boolean> kept = new IdentityHashMap<DataSourceConfiguration, Boolean>();
+        for (DataSourceConfiguration dsnConfig : merged.values()) {
+            kept.put(dsnConfig, Boolean.TRUE);
+        }
+        final List<DataSourceConfiguration> retired = new ArrayList<DataSourceConfiguration>();
+        for (DataSourceConfiguration dsnConfig : oldConfigs.values()) {
+            if (!kept.containsKey(dsnConfig)) {
+                retired.add(dsnConfig);
+            }
+        }
+        if (!retired.isEmpty()) {
+            final Generation replaced = old;
+            Thread drain = new Thread(new Runnable() {
+                public void run() {
+                    drainAndDestroy(replaced, retired);
+                }
+            }, "mydas-configuration-drain");
+            drain.setDaemon(true);
+            drain.start();
+        }
+    }
+
+    /**
+     * Waits for the requests of a replaced configuration to complete, then destroys its data sources.
+     */
+    private void drainAndDestroy(Generation old, List<DataSourceConfiguration> retired) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        try {
+            while (old.requests.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(DRAIN_POLL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (old.requests.get() > 0) {
+            LOGGER.warn(old.requests.get() + " request(s) still running on the previous configuration, destroying its data sources anyway");
+        }
+        for (DataSourceConfiguration dsnConfig : retired) {
+            destroyDataSource(dsnConfig);
+        }
+    }
+
+    /**
+     * Checks the configuration file periodically if the config_reload_interval global
+     * property is set, and the configuration file is a file of the file system.
+     */
+    private void startWatching() {
+        PropertyType property = getServerConfiguration().getGlobalConfiguration().getGlobalParameters().get(PROPERTY_RELOAD_INTERVAL);
+        if (property == null) {
+            return;
+        }
+        long interval;
+        try {
+            interval = Long.parseLong(property.getValue().trim());
+        } catch (NumberFormatException e) {
+            LOGGER.error("The " + PROPERTY_RELOAD_INTERVAL + " property is not numeric, the configuration file will not be watched.");
+            return;
+        }
+        if (interval <= 0) {
+            return;
+        }
+        if (watchedFile == null) {
+            LOGGER.warn("The configuration file " + configurationFileName + " is not a file, it cannot be watched for changes.");
+            return;
+        }
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long lastModified = watchedFile.lastModified();
+                if (lastModified != watchedLastModified) {
+                    watchedLastModified = lastModified;
+                    try {
+                        reload();
+                    } catch (Exception e) {
+                        LOGGER.error("The modified configuration could not be loaded, the previous one is still in use.", e);
+                    }
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param fileName of the configuration, as a resource name.
+     * @return the file the configuration resource is read from, null if it is not a plain file.
+     */
+    private static File configurationFile(String fileName) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(fileName);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the requests being computed, so that identical requests arriving meanwhile wait
+ * for the first one and are sent a copy of its response, instead of querying the data source
+ * and serialising the same document again (single flight).
+ * <p/>
+ * The first request of a key is the leader: its response is captured while it is written, then
+ * sent to the client and shared with the followers.  A follower runs its own request instead if
+ * there are already too many followers, if the leader takes too long, or if the leader fails or
+ * its response is too large to be shared.
+ */
+final class InFlightRequests {
+
+    /**
+     * Largest response body kept in memory to be shared; larger responses are streamed.
+     */
+    static final int MAX_SHARED_BYTES = 16 * 1024 * 1024;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * A computation in progress.
+     */
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger followers = new AtomicInteger();
+        private volatile CapturedResponse result;
+    }
+
+    /**
+     * @param key        identifying identical requests: everything the response depends on.
+     * @param maxWaiters maximum number of requests waiting for the same leader.
+     * @return the part of the request in the flight.
+     */
+    Call join(String key, int maxWaiters) {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            return new Call(key, flight, true);
+        }
+        if (existing.followers.incrementAndGet() > maxWaiters) {
+            return null;
+        }
+        return new Call(key, existing, false);
+    }
+
+    /**
+     * @return the number of requests being computed.
+     */
+    int size() {
+        return flights.size();
+    }
+
+    /**
+     * The part a request takes in a flight, either as its leader or as a follower.
+     */
+    final class Call {
+        private final String key;
+        private final Flight flight;
+        private final boolean leader;
+        private CapturingResponse capture;
+
+        private Call(String key, Flight flight, boolean leader) {
+            this.key = key;
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * For a follower: waits for the leader, and sends its response.
+         *
+         * @param response      of the follower.
+         * @param timeoutMillis maximum time to wait.
+         * @return true if the response has been sent, false if the request must be run independently.
+         * @throws IOException if the response cannot be written.
+         */
+        boolean replayTo(HttpServletResponse response, long timeoutMillis) throws IOException {
+            try {
+                if (!flight.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            CapturedResponse result = flight.result;
+            if (result == null) {
+                return false;
+            }
+            result.replayTo(response);
+            return true;
+        }
+
+        /**
+         * For the leader: wraps its response to capture what is written to it.
+         *
+         * @param response of the leader.
+         * @return the response to write to.
+         */
+        HttpServletResponse capture(HttpServletResponse response) {
+            capture = new CapturingResponse(response);
+            return capture;
+        }
+
+        /**
+         * For the leader, once its response has been written: shares it with the followers and
+         * sends the captured body to the client.  Must be called whatever the outcome.
+         *
+         * @param succeeded false if the request failed, the followers then run on their own.
+         * @throws IOException if the body cannot be sent.
+         */
+        void finish(boolean succeeded) throws IOException {
+            CapturedResponse result = null;
+            try {
+                if (succeeded && capture != null && capture.isShareable()) {
+                    result = capture.toCapturedResponse();
+                    flight.result = result;
+                }
+            } finally {
+                flights.remove(key, flight);
+                flight.done.countDown();
+            }
+            if (succeeded && capture != null) {
+                capture.sendBody();
+            }
+        }
+    }
+
+    /**
+     * How a recorded header was set, compared by identity.
+     */
+    private static final String SET = "set", ADD = "add", SET_DATE = "setDate", ADD_DATE = "addDate";
+
+    /**
+     * The status, headers and body of a response, as sent to the leader.
+     */
+    private static final class CapturedResponse {
+        private final int status;
+        private final List<String[]> headers;
+        private final String contentType;
+        private final byte[] body;
+
+        private CapturedResponse(int status, List<String[]> headers, String contentType, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        private void replayTo(HttpServletResponse response) throws IOException {
+            response.setStatus(status);
+            for (String[] header : headers) {
+                if (header[0] == SET) {
+                    response.setHeader(header[1], header[2]);
+                } else if (header[0] == ADD) {
+                    response.addHeader(header[1], header[2]);
+                } else if (header[0] == SET_DATE) {
+                    response.setDateHeader(header[1], Long.parseLong(header[2]));
+                } else {
+                    response.addDateHeader(header[1], Long.parseLong(header[2]));
+                }
+            }
+            if (contentType != null) {
+                response.setContentType(contentType);
+            }
+            response.setContentLength(body.length);
+            OutputStream out = response.getOutputStream();
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    /**
+     * Passes the status and headers through to the real response, recording them, and buffers
+     * the body until it is complete or too large to be shared.
+     */
+    private static final class CapturingResponse extends HttpServletResponseWrapper {
+
+        private int status = SC_OK;
+        private final List<String[]> headers = new ArrayList<String[]>();
+        private String contentType;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        private OutputStream passThrough;
+        private boolean shareable = true;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        private CapturingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        private boolean isShareable() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return shareable && passThrough == null;
+        }
+
+        private CapturedResponse toCapturedResponse() {
+            return new CapturedResponse(status, new ArrayList<String[]>(headers), contentType, buffer.toByteArray());
+        }
+
+        private void sendBody() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (passThrough == null && buffer.size() > 0) {
+                OutputStream out = getResponse().getOutputStream();
+                buffer.writeTo(out);
+                out.flush();
+            }
+            buffer = null;
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String message) {
+            status = sc;
+            super.setStatus(sc, message);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            shareable = false;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String message) throws IOException {
+            shareable = false;
+            super.sendError(sc, message);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            shareable = false;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.add(new String[]{SET, name, value});
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.add(new String[]{ADD, name, value});
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            headers.add(new String[]{SET, name, Integer.toString(value)});
+            super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            headers.add(new String[]{ADD, name, Integer.toString(value)});
+            super.addIntHeader(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            headers.add(new String[]{SET_DATE, name, Long.toString(date)});
+            super.setDateHeader(name, date);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            headers.add(new String[]{ADD_DATE, name, Long.toString(date)});
+            super.addDateHeader(name, date);
+        }
+
+        @Override
+        public void setContentType(String type) {
+            contentType = type;
+            super.setContentType(type);
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            // The length of the body is set when it is sent.
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            status = SC_OK;
+            headers.clear();
+            contentType = null;
+            resetBuffer();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (passThrough == null) {
+                buffer.reset();
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            // Nothing is sent before the body is complete.
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        if (passThrough == null && buffer.size() + length > MAX_SHARED_BYTES) {
+                            // Too large to keep: stream it, and let the followers run on their own.
+                            passThrough = CapturingResponse.super.getOutputStream();
+                            buffer.writeTo(passThrough);
+                            buffer.reset();
+                        }
+                        if (passThrough != null) {
+                            passThrough.write(bytes, offset, length);
+                        } else {
+                            buffer.write(bytes, offset, length);
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        if (passThrough != null) {
+                            passThrough.flush();
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+    }
+}
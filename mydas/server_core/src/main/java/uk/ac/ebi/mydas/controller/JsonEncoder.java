@@ -0,0 +1,173 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes the compact model as JSON, without any whitespace.
+ */
+class JsonEncoder extends CompactEncoder {
+
+    private final Writer out;
+
+    /**
+     * One entry per open object / array: whether the container is an array, and whether
+     * a member has already been written to it (so a separating comma is needed).
+     */
+    private boolean[] array = new boolean[16];
+
+    private boolean[] hasMembers = new boolean[16];
+
+    private int depth = 0;
+
+    JsonEncoder(OutputStream out) {
+        try {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, DasCommandManager.ENCODE));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(DasCommandManager.ENCODE + " is not supported by this JVM", e);
+        }
+    }
+
+    void startObject(String name) throws IOException {
+        open(name, false);
+        out.write('{');
+    }
+
+    void endObject() throws IOException {
+        depth--;
+        out.write('}');
+    }
+
+    void startArray(String name) throws IOException {
+        open(name, true);
+        out.write('[');
+    }
+
+    void endArray() throws IOException {
+        depth--;
+        out.write(']');
+    }
+
+    void value(String name, String value) throws IOException {
+        if (value != null) {
+            member(name);
+            writeString(value);
+        }
+    }
+
+    void value(String name, int value) throws IOException {
+        member(name);
+        out.write(Integer.toString(value));
+    }
+
+    void value(String name, double value) throws IOException {
+        member(name);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.write("null");
+        } else {
+            out.write(Double.toString(value));
+        }
+    }
+
+    void value(String name, boolean value) throws IOException {
+        member(name);
+        out.write(value ? "true" : "false");
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void open(String name, boolean isArray) throws IOException {
+        member(name);
+        if (depth == array.length) {
+            array = Arrays.copyOf(array, depth * 2);
+            hasMembers = Arrays.copyOf(hasMembers, depth * 2);
+        }
+        array[depth] = isArray;
+        hasMembers[depth] = false;
+        depth++;
+    }
+
+    /**
+     * Writes the separator and, inside an object, the name of the next member.
+     */
+    private void member(String name) throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        if (hasMembers[depth - 1]) {
+            out.write(',');
+        }
+        hasMembers[depth - 1] = true;
+        if (!array[depth - 1]) {
+            writeString(name);
+            out.write(':');
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        String hex = Integer.toHexString(c);
+                        out.write("\\u");
+                        for (int pad = hex.length(); pad < 4; pad++) {
+                            out.write('0');
+                        }
+                        out.write(hex);
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -27,7 +27,11 @@ import org.apache.log4j.Logger;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.configuration.ServerConfiguration;
+import uk.ac.ebi.mydas.datasource.RequestContext;
 import uk.ac.ebi.mydas.exceptions.*;
+import uk.ac.ebi.mydas.search.Searcher;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -35,6 +39,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,6 +56,11 @@ import java.util.regex.Pattern;
  * <a href="http://biodas.org/documents/spec.html">
  * Distributed Sequence Annotation Systems (DAS) Version 1.53
  * </a>
+ * <p/>
+ * With a Servlet 3.0 container, the GET requests can be handled asynchronously on a dedicated
+ * pool of threads, by setting the async init parameter of the servlet to true and declaring it
+ * &lt;async-supported&gt; in a version 3.0 web.xml.  The async_threads and async_queue init
+ * parameters size the pool and its queue.
  *
  * @author Phil Jones, EMBL EBI, pjones@ebi.ac.uk
  */
@@ -92,6 +102,59 @@ public class MydasServlet extends HttpServlet {
 
     private DasCommandManager dasCommands = null;
 
+    /**
+     * Init parameters of the asynchronous mode.
+     */
+    private static final String INIT_PARAM_ASYNC = "async";
+    private static final String INIT_PARAM_ASYNC_THREADS = "async_threads";
+    private static final String INIT_PARAM_ASYNC_QUEUE = "async_queue";
+    private static final int DEFAULT_ASYNC_THREADS = 200;
+    private static final int DEFAULT_ASYNC_QUEUE = 1000;
+
+    /**
+     * Hands the GET requests over to its own threads, null unless the async init parameter is true.
+     */
+    private AsyncDispatcher asyncDispatcher = null;
+
+    /**
+     * Metrics of the requests handled by this servlet.
+     */
+    private RequestMetrics requestMetrics = null;
+
+    /**
+     * Global parameter with the duration, in milliseconds, from which a request is kept in the
+     * slow request log; 0 to disable it.
+     */
+    private static final String PROPERTY_SLOW_REQUEST_THRESHOLD = "slow_request_threshold";
+
+    private static final long DEFAULT_SLOW_REQUEST_THRESHOLD = 5000;
+
+    /**
+     * Global parameter with the number of slow requests kept in memory.
+     */
+    private static final String PROPERTY_SLOW_REQUEST_LOG_SIZE = "slow_request_log_size";
+
+    private static final int DEFAULT_SLOW_REQUEST_LOG_SIZE = 100;
+
+    /**
+     * The most recent slow requests, null if the slow request log is disabled.
+     */
+    private SlowRequestLog slowRequestLog = null;
+
+    /**
+     * Global parameter which, when true, adds a Server-Timing header with the duration of the
+     * phases of the request done before the response is written.
+     */
+    private static final String PROPERTY_SERVER_TIMING = "server_timing";
+    private static final String HEADER_KEY_SERVER_TIMING = "Server-Timing";
+    private static final String HEADER_KEY_TIMING_ALLOW_ORIGIN = "Timing-Allow-Origin";
+
+    private final AsyncDispatcher.Handler getHandler = new AsyncDispatcher.Handler() {
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+            handleGet(request, response);
+        }
+    };
+
     private static final Pattern REQUEST_URI_PATTERN = Pattern.compile("/das/([^\\s/?]+)/?([^\\s/?]*)$");
 //	private static final Pattern REQUEST_URI_PATTERN = Pattern.compile ("/([^\\s/?]+)/?([^\\s/?]*)$");
 
@@ -126,6 +189,7 @@ public class MydasServlet extends HttpServlet {
     private static final String HEADER_KEY_CORS_METHODS = "Access-Control-Allow-Methods";
     private static final String HEADER_KEY_CORS_HEADERS = "Access-Control-Allow-Headers";
     private static final String HEADER_KEY_CORS_AGE = "Access-Control-Max-Age";
+    private static final String HEADER_KEY_VARY = "Vary";
 
     /*
 	Response Header line values
@@ -142,6 +206,14 @@ public class MydasServlet extends HttpServlet {
     private static final String HEADER_VALUE_CORS_METHODS = "GET, POST, OPTIONS";
     private static final String HEADER_VALUE_CORS_HEADERS = "X-DAS-Version, X-DAS-Client";
     private static final String HEADER_VALUE_CORS_AGE = "2592000";
+    private static final String HEADER_VALUE_VARY = "Accept";
+    private static final String HEADER_KEY_RETRY_AFTER = "Retry-After";
+
+    /**
+     * Data source property or global parameter giving the time allowed to handle a request, in
+     * milliseconds.  Suffixed with _&lt;command&gt;, it applies to a single command.
+     */
+    static final String PROPERTY_REQUEST_TIMEOUT = "request_timeout";
 
     /**
      * Private enum that is used by this class to match valid commands.
@@ -161,7 +233,13 @@ public class MydasServlet extends HttpServlet {
         COMMAND_STRUCTURE("structure"),
         COMMAND_SOURCES("sources"),
         COMMAND_HISTORICAL("historical"),
-        COMMAND_INDEXER("indexer");
+        COMMAND_INDEXER("indexer"),
+        COMMAND_RELOAD("reload"),
+        COMMAND_METRICS("metrics"),
+        COMMAND_SLOW_REQUESTS("slow_requests"),
+        COMMAND_EXPORT("export"),
+        COMMAND_TYPEAHEAD("typeahead"),
+        COMMAND_LOCATE("locate");
 
         private String commandString;
 
@@ -183,6 +261,28 @@ public class MydasServlet extends HttpServlet {
         boolean matches(String command) {
             return this.commandString.equals(command);
         }
+
+        /**
+         * @return the String signifying the command.
+         */
+        String getCommandString() {
+            return commandString;
+        }
+
+        /**
+         * Returns the command matching the String passed in as argument.
+         *
+         * @param command being the string parsed from the URL.
+         * @return the command, or null if the command is not recognised.
+         */
+        static Commands fromCommandString(String command) {
+            for (Commands candidate : values()) {
+                if (candidate.matches(command)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
     }
 
     public static DataSourceManager getDataSourceManager() {
@@ -194,8 +294,8 @@ public class MydasServlet extends HttpServlet {
          Content encoding
       */
     private static final String ENCODING_REQUEST_HEADER_KEY = "Accept-Encoding";
-    private static final String ENCODING_RESPONSE_HEADER_KEY = "Content-Encoding";
-    private static final String ENCODING_GZIPPED = "gzip";
+    static final String ENCODING_RESPONSE_HEADER_KEY = "Content-Encoding";
+    static final String ENCODING_GZIPPED = "gzip";
 
     private static XmlPullParserFactory PULL_PARSER_FACTORY = null;
 
@@ -223,6 +323,15 @@ public class MydasServlet extends HttpServlet {
             }
         }
         dasCommands = new DasCommandManager(DATA_SOURCE_MANAGER, this);
+        requestMetrics = new RequestMetrics(getServletContext().getServletContextName() != null
+                ? getServletContext().getServletContextName() : getServletName());
+        initSlowRequestLog();
+
+        if (Boolean.parseBoolean(getInitParameter(INIT_PARAM_ASYNC))) {
+            asyncDispatcher = new AsyncDispatcher(intInitParameter(INIT_PARAM_ASYNC_THREADS, DEFAULT_ASYNC_THREADS),
+                    intInitParameter(INIT_PARAM_ASYNC_QUEUE, DEFAULT_ASYNC_QUEUE));
+            logger.info("GET requests are handled asynchronously");
+        }
 
         // Initialize XMLPullParserFactory for marshaller.
         if (PULL_PARSER_FACTORY == null) {
@@ -238,6 +347,43 @@ public class MydasServlet extends HttpServlet {
 
     }
 
+    private void initSlowRequestLog() {
+        Map<String, PropertyType> globalParameters = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters();
+        long threshold = DEFAULT_SLOW_REQUEST_THRESHOLD;
+        int size = DEFAULT_SLOW_REQUEST_LOG_SIZE;
+        PropertyType thresholdProperty = globalParameters.get(PROPERTY_SLOW_REQUEST_THRESHOLD);
+        if (thresholdProperty != null) {
+            try {
+                threshold = Long.parseLong(thresholdProperty.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                logger.error("The " + PROPERTY_SLOW_REQUEST_THRESHOLD + " property is not numeric, using " + threshold);
+            }
+        }
+        PropertyType sizeProperty = globalParameters.get(PROPERTY_SLOW_REQUEST_LOG_SIZE);
+        if (sizeProperty != null) {
+            try {
+                size = Math.max(1, Integer.parseInt(sizeProperty.getValue().trim()));
+            } catch (NumberFormatException nfe) {
+                logger.error("The " + PROPERTY_SLOW_REQUEST_LOG_SIZE + " property is not numeric, using " + size);
+            }
+        }
+        if (threshold > 0) {
+            slowRequestLog = new SlowRequestLog(threshold, size);
+        }
+    }
+
+    private int intInitParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException nfe) {
+                logger.error("The " + name + " init parameter is not numeric, using " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * This method will ensure that call the corresponding destroy() method on
      * all of the registered plugins to allow them to clean up resources.
@@ -245,6 +391,17 @@ public class MydasServlet extends HttpServlet {
     public void destroy() {
         super.destroy();
 
+        if (asyncDispatcher != null) {
+            asyncDispatcher.shutdown();
+        }
+        if (requestMetrics != null) {
+            requestMetrics.unregister();
+        }
+        if (slowRequestLog != null) {
+            slowRequestLog.shutdown();
+        }
+        Searcher.closeSearchers();
+
         if (DATA_SOURCE_MANAGER != null) {
             DATA_SOURCE_MANAGER.destroy();
         }
@@ -259,7 +416,53 @@ public class MydasServlet extends HttpServlet {
      * @throws IOException      as defined in the HTTPServlet interface.
      */
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        parseAndHandleRequest(request, response);
+        if (asyncDispatcher != null) {
+            asyncDispatcher.dispatch(request, response, getHandler);
+        } else {
+            handleGet(request, response);
+        }
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        DataSourceManager.Generation generation = DATA_SOURCE_MANAGER.beginRequest();
+        RequestTimer timer = RequestTimer.begin(request.getQueryString());
+        try {
+            parseAndHandleRequest(request, response);
+        } finally {
+            timer.end();
+            requestMetrics.record(timer);
+            if (slowRequestLog != null) {
+                slowRequestLog.record(timer);
+            }
+            DATA_SOURCE_MANAGER.endRequest(generation);
+        }
+    }
+
+    /**
+     * @return the metrics of the requests handled by this servlet.
+     */
+    RequestMetrics getRequestMetrics() {
+        return requestMetrics;
+    }
+
+    /**
+     * @return the slow request log, null if it is disabled.
+     */
+    SlowRequestLog getSlowRequestLog() {
+        return slowRequestLog;
+    }
+
+    /**
+     * Names the command of the request being handled, for its metrics.
+     *
+     * @param dsn     name of the data source, null for the server commands.
+     * @param command requested.
+     */
+    private static void timeCommand(String dsn, String command) {
+        RequestTimer timer = RequestTimer.current();
+        if (timer != null) {
+            timer.setCommand(dsn, command);
+        }
     }
 
     /**
@@ -271,6 +474,7 @@ public class MydasServlet extends HttpServlet {
      * @throws IOException      as defined in the HTTPServlet interface.
      */
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        DataSourceManager.Generation generation = DATA_SOURCE_MANAGER.beginRequest();
         DataSourceConfiguration dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig("writeback");
         try {
             dasCommands.writebackCreate(request, response, dataSourceConfig);
@@ -280,10 +484,12 @@ public class MydasServlet extends HttpServlet {
             reportError(XDasStatus.STATUS_500_SERVER_ERROR, "Writeback error creating a feature.", request, response);
         } finally {
             dataSourceConfig.destroy();
+            DATA_SOURCE_MANAGER.endRequest(generation);
         }
     }
 
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        DataSourceManager.Generation generation = DATA_SOURCE_MANAGER.beginRequest();
         DataSourceConfiguration dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig("writeback");
         try {
             dasCommands.writebackDelete(request, response, dataSourceConfig);
@@ -293,10 +499,12 @@ public class MydasServlet extends HttpServlet {
             reportError(XDasStatus.STATUS_500_SERVER_ERROR, "Writeback error deleting a feature.", request, response);
         } finally {
             dataSourceConfig.destroy();
+            DATA_SOURCE_MANAGER.endRequest(generation);
         }
     }
 
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        DataSourceManager.Generation generation = DATA_SOURCE_MANAGER.beginRequest();
         DataSourceConfiguration dataSourceConfig = DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig("writeback");
         try {
             dasCommands.writebackUpdate(request, response, dataSourceConfig);
@@ -306,6 +514,7 @@ public class MydasServlet extends HttpServlet {
             reportError(XDasStatus.STATUS_500_SERVER_ERROR, "Writeback error creating a feature.", request, response);
         } finally {
             dataSourceConfig.destroy();
+            DATA_SOURCE_MANAGER.endRequest(generation);
         }
     }
 
@@ -353,9 +562,13 @@ public class MydasServlet extends HttpServlet {
             if (match.find()) {
                 // Check first for the dsn command (has a different format to all the others, so start here).
                 if (Commands.COMMAND_DSN.matches(match.group(1))) {
+                    timeCommand(null, Commands.COMMAND_DSN.getCommandString());
                     // Handle dsn command, after checking there is no guff in the URI after it.
                     if (match.group(2) == null || match.group(2).length() == 0) {
                         // All good, send command.
+                        if (notModified(request, response, serverValidators(request, Commands.COMMAND_DSN, null, queryString), null)) {
+                            return;
+                        }
                         dasCommands.dsnCommand(request, response, queryString);
                     } else {
                         // Starts off looking like the dsn command, but has some other stuff after it...
@@ -363,12 +576,31 @@ public class MydasServlet extends HttpServlet {
                     }
                     // Check for the source command (similar command to dsn).
                 } else if (Commands.COMMAND_SOURCES.matches(match.group(1))) {
+                    timeCommand(null, Commands.COMMAND_SOURCES.getCommandString());
                     // Handle source command, in contrast with dsn, source can have extra info
+                    if (notModified(request, response, serverValidators(request, Commands.COMMAND_SOURCES, null, queryString), null)) {
+                        return;
+                    }
                     dasCommands.sourceCommand(request, response, queryString, null);
                     // Check for the source command (similar command to dsn).
                 } else if (Commands.COMMAND_INDEXER.matches(match.group(1))) {
                     // Handle indexer command, in contrast with dsn, indexer can have extra info
+                    timeCommand(null, Commands.COMMAND_INDEXER.getCommandString());
                     dasCommands.indexerCommand(request, response);
+                } else if (Commands.COMMAND_RELOAD.matches(match.group(1))) {
+                    // Handle reload command, checked with the same keyphrase as the indexer
+                    timeCommand(null, Commands.COMMAND_RELOAD.getCommandString());
+                    dasCommands.reloadCommand(request, response);
+                } else if (Commands.COMMAND_METRICS.matches(match.group(1))) {
+                    timeCommand(null, Commands.COMMAND_METRICS.getCommandString());
+                    dasCommands.metricsCommand(request, response);
+                } else if (Commands.COMMAND_SLOW_REQUESTS.matches(match.group(1))) {
+                    // Checked with the same keyphrase as the indexer
+                    timeCommand(null, Commands.COMMAND_SLOW_REQUESTS.getCommandString());
+                    dasCommands.slowRequestsCommand(request, response);
+                } else if (Commands.COMMAND_LOCATE.matches(match.group(1))) {
+                    timeCommand(null, Commands.COMMAND_LOCATE.getCommandString());
+                    dasCommands.locateCommand(request, response, queryString);
                 }
 
                 // Not the dsn the source command either the source(explicit), so handle other commands (which are datasource specific)
@@ -378,6 +610,10 @@ public class MydasServlet extends HttpServlet {
                         // Source command for an specific DSN
                         // Attempt to retrieve the DataSource
                         if (null != DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsnName)) {
+                            timeCommand(DATA_SOURCE_MANAGER.getServerConfiguration().getDataSourceConfig(dsnName).getName(), Commands.COMMAND_SOURCES.getCommandString());
+                            if (notModified(request, response, serverValidators(request, Commands.COMMAND_SOURCES, dsnName, queryString), null)) {
+                                return;
+                            }
                             dasCommands.sourceCommand(request, response, queryString, dsnName);
                             return;
                         }
@@ -396,30 +632,78 @@ public class MydasServlet extends HttpServlet {
                         try {
                             //Get datasource capabilities so they will be display in the headers
                             capabilities = dataSourceConfig.getCapabilities();
+                            // Commands unknown to the server are counted together.
+                            Commands timedCommand = Commands.fromCommandString(command);
+                            timeCommand(dataSourceConfig.getName(), timedCommand == null ? "other" : timedCommand.getCommandString());
                             // Check the datasource is alive.
                             if (dataSourceConfig.isOK()) {
-                                if (Commands.COMMAND_DNA.matches(command)) {
-                                    dasCommands.dnaCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_TYPES.matches(command)) {
-                                    dasCommands.typesCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_STYLESHEET.matches(command)) {
-                                    dasCommands.stylesheetCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_FEATURES.matches(command)) {
-                                    dasCommands.featuresCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_ENTRY_POINTS.matches(command)) {
-                                    dasCommands.entryPointsCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_SEQUENCE.matches(command)) {
-                                    dasCommands.sequenceCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_STRUCTURE.matches(command)) { //for the command structure DAS1.6
-                                    dasCommands.structureCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_ALIGNMENT.matches(command)) { //for the command alignment DAS1.6
-                                    dasCommands.alignmentCommand(request, response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_LINK.matches(command)) {
-                                    dasCommands.linkCommand(response, dataSourceConfig, queryString);
-                                } else if (Commands.COMMAND_HISTORICAL.matches(command)) {
-                                    dasCommands.writebackHistorical(request, response, dataSourceConfig);
-                                } else {
-                                    dasCommands.otherCommand(request, response, dataSourceConfig, command, queryString);
+                                // Answer revalidations before the data source is queried.
+                                Commands knownCommand = Commands.fromCommandString(command);
+                                if (knownCommand != null && CacheValidators.isCacheable(knownCommand)
+                                        && notModified(request, response, CacheValidators.forDataSource(request, knownCommand, dataSourceConfig, queryString,
+                                        DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration()), capabilities)) {
+                                    return;
+                                }
+                                // Keep a slow data source from taking all the threads.
+                                Bulkhead bulkhead = Bulkhead.forDataSource(dataSourceConfig,
+                                        DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration());
+                                if (bulkhead != null && !bulkhead.enter()) {
+                                    logger.warn("Rejected a request to a busy data source: " + bulkhead);
+                                    writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, capabilities);
+                                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                                    response.setIntHeader(HEADER_KEY_RETRY_AFTER, bulkhead.getRetryAfterSeconds());
+                                    reportError(XDasStatus.STATUS_500_SERVER_ERROR, "The data source is too busy to handle the request, please try again later.", request, response);
+                                    return;
+                                }
+                                RequestContext context = RequestContext.begin(request.getRequestURI(), requestTimeout(dataSourceConfig, command));
+                                // For the asynchronous dispatcher, which cancels it if the container reports an error.
+                                request.setAttribute(AsyncDispatcher.ATTRIBUTE_REQUEST_CONTEXT, context);
+                                try {
+                                    if (Commands.COMMAND_DNA.matches(command)) {
+                                        dasCommands.dnaCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_TYPES.matches(command)) {
+                                        dasCommands.typesCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_STYLESHEET.matches(command)) {
+                                        dasCommands.stylesheetCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_FEATURES.matches(command)) {
+                                        dasCommands.featuresCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_ENTRY_POINTS.matches(command)) {
+                                        dasCommands.entryPointsCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_SEQUENCE.matches(command)) {
+                                        dasCommands.sequenceCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_STRUCTURE.matches(command)) { //for the command structure DAS1.6
+                                        dasCommands.structureCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_ALIGNMENT.matches(command)) { //for the command alignment DAS1.6
+                                        dasCommands.alignmentCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_LINK.matches(command)) {
+                                        dasCommands.linkCommand(response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_HISTORICAL.matches(command)) {
+                                        dasCommands.writebackHistorical(request, response, dataSourceConfig);
+                                    } else if (Commands.COMMAND_EXPORT.matches(command)) {
+                                        dasCommands.exportCommand(request, response, dataSourceConfig, queryString);
+                                    } else if (Commands.COMMAND_TYPEAHEAD.matches(command)) {
+                                        dasCommands.typeaheadCommand(request, response, dataSourceConfig, queryString);
+                                    } else {
+                                        dasCommands.otherCommand(request, response, dataSourceConfig, command, queryString);
+                                    }
+                                } catch (DataSourceException dse) {
+                                    if (context.isCancelled() && !(dse instanceof RequestCancelledException)) {
+                                        throw context.cancellation(dse);
+                                    }
+                                    throw dse;
+                                } catch (IOException ioe) {
+                                    if (context.isCancelled()) {
+                                        throw context.cancellation(ioe);
+                                    }
+                                    // The response could not be written: stop any work left for the client that has gone.
+                                    context.cancel();
+                                    throw ioe;
+                                } finally {
+                                    request.removeAttribute(AsyncDispatcher.ATTRIBUTE_REQUEST_CONTEXT);
+                                    context.end();
+                                    if (bulkhead != null) {
+                                        bulkhead.exit();
+                                    }
                                 }
                             } else {
                                 throw new BadDataSourceException("The datasource was not correctly initialised.");
@@ -436,6 +720,10 @@ public class MydasServlet extends HttpServlet {
                     && DAS_ONLY_URI_PATTERN.matcher(request.getRequestURI()).find()) {
                 // Just /das or /das/ has been given as the URL.  This server is configured to point
                 // this to the sources command, so do so.
+                timeCommand(null, Commands.COMMAND_SOURCES.getCommandString());
+                if (notModified(request, response, serverValidators(request, Commands.COMMAND_SOURCES, null, queryString), null)) {
+                    return;
+                }
                 dasCommands.sourceCommand(request, response, queryString, null);
                 //dasCommands.dsnCommand (request, response, queryString); //since 1.6.1 sources is the default command
             } else {
@@ -469,6 +757,16 @@ public class MydasServlet extends HttpServlet {
             logger.error("XmlPullParserException thrown when attempting to ouput XML.", xppe);
             writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, capabilities);
             reportError(XDasStatus.STATUS_500_SERVER_ERROR, "An error has occurred when attempting to output the DAS XML.", request, response);
+        } catch (RequestCancelledException rce) {
+            if (rce.isTimeout()) {
+                logger.warn(rce.getMessage());
+                writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, capabilities);
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                reportError(XDasStatus.STATUS_500_SERVER_ERROR, "Timeout - the request has taken longer than this server allows.", request, response);
+            } else if (logger.isInfoEnabled()) {
+                // Nobody to report the error to.
+                logger.info(rce.getMessage());
+            }
         } catch (DataSourceException dse) {
             logger.error("DataSourceException thrown by a data source.", dse);
             writeHeader(request, response, XDasStatus.STATUS_500_SERVER_ERROR, false, capabilities);
@@ -527,6 +825,22 @@ public class MydasServlet extends HttpServlet {
      * @throws IOException
      */
     void writeHeader(HttpServletRequest request, HttpServletResponse response, XDasStatus status, boolean compressionAllowed, String capabilities) throws IOException {
+        writeHeader(request, response, status, compressionAllowed, capabilities, null);
+    }
+
+    /**
+     * Writes the response header with the additional DAS Http headers, for a command whose
+     * output format is negotiated with the client.
+     *
+     * @param response           to which to write the headers.
+     * @param status             being the status to write.
+     * @param request            required to determine if the client will accept a compressed response
+     * @param compressionAllowed to indicate if the specific response should be gzipped.
+     * @param capabilities       describes the parts of of the specification the server implements
+     * @param format             the format of the response body, null for commands that only produce XML.
+     * @throws IOException
+     */
+    void writeHeader(HttpServletRequest request, HttpServletResponse response, XDasStatus status, boolean compressionAllowed, String capabilities, ResponseFormat format) throws IOException {
 
         response.setHeader(HEADER_KEY_X_DAS_VERSION, HEADER_VALUE_DAS_VERSION);
         if (capabilities != null) {
@@ -535,10 +849,21 @@ public class MydasServlet extends HttpServlet {
             response.setHeader(HEADER_KEY_X_DAS_CAPABILITIES, HEADER_VALUE_X_DAS_DEFAULT_CAPABILITIES);
         }
         response.setHeader(HEADER_KEY_X_DAS_STATUS, status.toString());
-        response.setHeader(HEADER_KEY_X_DAS_SERVER, HEADER_VALUE_DAS_SERVER);
-        if (compressionAllowed && compressResponse(request)) {
-            response.setHeader(ENCODING_RESPONSE_HEADER_KEY, ENCODING_GZIPPED);
+        RequestTimer timer = RequestTimer.current();
+        if (timer != null) {
+            timer.setStatus(status);
+            // The body is written next.
+            RequestTimer.enter(RequestTimer.Phase.SERIALIZE);
+            PropertyType serverTiming = DATA_SOURCE_MANAGER == null || DATA_SOURCE_MANAGER.getServerConfiguration() == null ? null
+                    : DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters().get(PROPERTY_SERVER_TIMING);
+            if (serverTiming != null && "true".equalsIgnoreCase(serverTiming.getValue().trim())) {
+                response.setHeader(HEADER_KEY_SERVER_TIMING, timer.toServerTiming());
+                response.setHeader(HEADER_KEY_TIMING_ALLOW_ORIGIN, "*");
+            }
         }
+        response.setHeader(HEADER_KEY_X_DAS_SERVER, HEADER_VALUE_DAS_SERVER);
+        // The Content-Encoding is set when the body is written, as small bodies are not gzipped.
+        boolean varyEncoding = compressionAllowed && DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().isGzipped();
         //CORS headers since 1.6.1
         response.setHeader(HEADER_KEY_CORS, HEADER_VALUE_CORS);
         response.setHeader(HEADER_KEY_CORS_EXPOSE, HEADER_VALUE_CORS_EXPOSE);
@@ -559,9 +884,95 @@ public class MydasServlet extends HttpServlet {
             //response.sendError(500);
             response.setStatus(500);
         }
-        response.setContentType("application/xml;charset=UTF-8");
+        if (status == XDasStatus.STATUS_200_OK) {
+            CacheValidators validators = (CacheValidators) request.getAttribute(CacheValidators.REQUEST_ATTRIBUTE);
+            if (validators != null) {
+                validators.apply(response);
+            }
+        }
+        if (format == null) {
+            if (varyEncoding) {
+                response.setHeader(HEADER_KEY_VARY, ENCODING_REQUEST_HEADER_KEY);
+            }
+            response.setContentType(ResponseFormat.XML.getContentType());
+        } else {
+            // The same URL may produce XML, JSON or binary depending on the Accept header.
+            response.setHeader(HEADER_KEY_VARY, varyEncoding ? HEADER_VALUE_VARY + ", " + ENCODING_REQUEST_HEADER_KEY : HEADER_VALUE_VARY);
+            response.setContentType(format.getContentType());
+        }
+    }
+
+
+    /**
+     * Builds the validators of the sources and dsn documents, which only change
+     * when the configuration is loaded or a data source is (re)initialised.
+     */
+    private CacheValidators serverValidators(HttpServletRequest request, Commands command, String dsn, String queryString) {
+        ServerConfiguration configuration = DATA_SOURCE_MANAGER.getServerConfiguration();
+        return CacheValidators.forServer(request, command, dsn, queryString,
+                configuration.getGlobalConfiguration(), DATA_SOURCE_MANAGER.getLoadTime(),
+                configuration.getHealthGeneration(), configuration.getHealthChangedMillis());
+    }
+
+    /**
+     * Answers a conditional request with 304 (Not Modified) if the client already has the
+     * current version of the response.  Otherwise the validators are kept as a request
+     * attribute, to be sent by writeHeader with a successful response.
+     *
+     * @param request      holding the conditional headers.
+     * @param response     to which the 304 is written.
+     * @param validators   of the response, null if it cannot be validated.
+     * @param capabilities describes the parts of of the specification the server implements
+     * @return true if a 304 has been sent and the request has been handled.
+     * @throws IOException An error occurred when writing the headers
+     */
+    private boolean notModified(HttpServletRequest request, HttpServletResponse response,
+                                CacheValidators validators, String capabilities) throws IOException {
+        if (validators == null) {
+            return false;
+        }
+        request.setAttribute(CacheValidators.REQUEST_ATTRIBUTE, validators);
+        if (!validators.isNotModified(request)) {
+            return false;
+        }
+        writeHeader(request, response, XDasStatus.STATUS_200_OK, false, capabilities);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
     }
 
+    /**
+     * Returns the time allowed to handle a command of a data source, from the first property set of
+     * request_timeout_&lt;command&gt; and request_timeout, in milliseconds, looked up in the data
+     * source properties and then in the global parameters.  The export command, which streams a
+     * whole data source, is only limited by request_timeout_export.
+     *
+     * @param dsnConfig the data source.
+     * @param command   requested.
+     * @return the timeout in milliseconds, 0 for none.
+     */
+    private long requestTimeout(DataSourceConfiguration dsnConfig, String command) {
+        Map<String, PropertyType> properties = dsnConfig.getDataSourceProperties();
+        Map<String, PropertyType> globals = DATA_SOURCE_MANAGER.getServerConfiguration().getGlobalConfiguration().getGlobalParameters();
+        String commandKey = PROPERTY_REQUEST_TIMEOUT + '_' + command;
+        PropertyType timeout = properties == null ? null : properties.get(commandKey);
+        if (timeout == null && globals != null) {
+            timeout = globals.get(commandKey);
+        }
+        if (timeout == null && !Commands.COMMAND_EXPORT.matches(command)) {
+            timeout = properties == null ? null : properties.get(PROPERTY_REQUEST_TIMEOUT);
+            if (timeout == null && globals != null) {
+                timeout = globals.get(PROPERTY_REQUEST_TIMEOUT);
+            }
+        }
+        if (timeout != null) {
+            try {
+                return Math.max(0, Long.parseLong(timeout.getValue().trim()));
+            } catch (NumberFormatException nfe) {
+                logger.error("The request timeout of " + dsnConfig.getName() + " is not numeric, the request has no deadline");
+            }
+        }
+        return 0;
+    }
 
     /**
      * Checks in the configuration to see if the output should be gzipped and also
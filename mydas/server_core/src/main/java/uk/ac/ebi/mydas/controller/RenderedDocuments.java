@@ -0,0 +1,121 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import uk.ac.ebi.mydas.configuration.ServerConfiguration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The dsn and sources documents, rendered once (plain and gzipped) for a given configuration
+ * and data source health.  Instances are immutable: when the configuration or the health of a
+ * data source changes, a new instance is rendered and replaces this one as a whole, so a
+ * request always sees a consistent set of documents.
+ */
+final class RenderedDocuments {
+
+    static final String DSN_KEY = "dsn";
+
+    static final String SOURCES_KEY = "sources";
+
+    /**
+     * A rendered response body, with the capabilities to report in its header.  The body is
+     * gzipped once, when it is rendered, unless it is too small to be worth it.
+     */
+    static final class Document {
+        private final byte[] plain;
+        private final byte[] gzipped;
+        private final String capabilities;
+
+        Document(byte[] plain, String capabilities, ResponseCompression compression) throws IOException {
+            this.plain = plain;
+            this.capabilities = capabilities;
+            this.gzipped = compression.isWorthCompressing(plain.length) ? compression.gzip(plain) : null;
+        }
+
+        /**
+         * @param acceptsGzip true if the client accepts a gzipped body.
+         * @return true if the body returned by {@link #getBody(boolean)} is gzipped.
+         */
+        boolean isGzipped(boolean acceptsGzip) {
+            return acceptsGzip && gzipped != null;
+        }
+
+        /**
+         * @param acceptsGzip true if the client accepts a gzipped body.
+         * @return the body, which must not be modified; gzipped if {@link #isGzipped(boolean)}.
+         */
+        byte[] getBody(boolean acceptsGzip) {
+            return isGzipped(acceptsGzip) ? gzipped : plain;
+        }
+
+        String getCapabilities() {
+            return capabilities;
+        }
+    }
+
+    private final ServerConfiguration configuration;
+
+    private final long healthGeneration;
+
+    private final Map<String, Document> documents;
+
+    /**
+     * @param configuration    the documents were rendered from.
+     * @param healthGeneration of the configuration when the rendering started.
+     * @param documents        by key (see {@link #sourceKey(String)}).
+     */
+    RenderedDocuments(ServerConfiguration configuration, long healthGeneration, Map<String, Document> documents) {
+        this.configuration = configuration;
+        this.healthGeneration = healthGeneration;
+        this.documents = Collections.unmodifiableMap(new HashMap<String, Document>(documents));
+    }
+
+    /**
+     * @param dsn name of a data source, null for the sources document of the whole server.
+     * @return the key of the sources document.
+     */
+    static String sourceKey(String dsn) {
+        return dsn == null ? SOURCES_KEY : SOURCES_KEY + '/' + dsn;
+    }
+
+    /**
+     * @param current the configuration currently in use by the server.
+     * @return true if these documents were rendered from the current configuration and health.
+     */
+    boolean isCurrent(ServerConfiguration current) {
+        return configuration == current && healthGeneration == current.getHealthGeneration();
+    }
+
+    /**
+     * @param key of the document.
+     * @return the document, null if it has not been rendered (e.g. a dynamic data source).
+     */
+    Document get(String key) {
+        return documents.get(key);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics of the requests, by data source and command: counts by X-DAS-Status, latency
+ * histograms of the whole request and of its phases, response bytes and feature counts.
+ * <p/>
+ * Each command of each data source is registered as an MBean named
+ * uk.ac.ebi.mydas:type=CommandMetrics,webapp=...,dsn=...,command=...; all of them can also be
+ * read as plain text, in the Prometheus exposition format, with the metrics command.
+ */
+final class RequestMetrics {
+
+    private static final Logger logger = Logger.getLogger(RequestMetrics.class);
+
+    static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+    private final String webapp;
+
+    private final ConcurrentMap<String, CommandMetrics> metrics = new ConcurrentHashMap<String, CommandMetrics>();
+
+    private final List<ObjectName> registered = new CopyOnWriteArrayList<ObjectName>();
+
+    /**
+     * @param webapp the context path of the web application, to tell the MBeans of several
+     *               applications in the same JVM apart.
+     */
+    RequestMetrics(String webapp) {
+        this.webapp = webapp == null || webapp.length() == 0 ? "/" : webapp;
+    }
+
+    /**
+     * @param timer of a request that has ended.
+     */
+    void record(RequestTimer timer) {
+        String key = timer.getDsn() + '\n' + timer.getCommand();
+        CommandMetrics commandMetrics = metrics.get(key);
+        if (commandMetrics == null) {
+            CommandMetrics created = new CommandMetrics(timer.getDsn(), timer.getCommand());
+            commandMetrics = metrics.putIfAbsent(key, created);
+            if (commandMetrics == null) {
+                commandMetrics = created;
+                register(created);
+            }
+        }
+        commandMetrics.record(timer);
+    }
+
+    private void register(CommandMetrics commandMetrics) {
+        try {
+            ObjectName name = new ObjectName("uk.ac.ebi.mydas:type=CommandMetrics,webapp=" + ObjectName.quote(webapp)
+                    + ",dsn=" + ObjectName.quote(commandMetrics.getDsn()) + ",command=" + ObjectName.quote(commandMetrics.getCommand()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(commandMetrics, CommandMetricsMBean.class), name);
+                registered.add(name);
+            }
+        } catch (Exception e) {
+            logger.warn("The metrics of " + commandMetrics.getDsn() + '/' + commandMetrics.getCommand() + " cannot be registered with JMX", e);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans, when the servlet is destroyed.
+     */
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                logger.warn("Cannot unregister the MBean " + name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format.
+     *
+     * @param out to write to.
+     * @throws IOException if writing fails.
+     */
+    void writeText(Writer out) throws IOException {
+        List<CommandMetrics> all = new ArrayList<CommandMetrics>(metrics.values());
+
+        family(out, "mydas_requests_total", "counter", "Requests handled, by X-DAS-Status.");
+        for (CommandMetrics m : all) {
+            for (XDasStatus status : XDasStatus.values()) {
+                long count = m.getStatusCount(status);
+                if (count > 0) {
+                    sample(out, "mydas_requests_total", labels(m) + ",status=\"" + status + '"', count);
+                }
+            }
+            long other = m.getStatusCount(null);
+            if (other > 0) {
+                sample(out, "mydas_requests_total", labels(m) + ",status=\"none\"", other);
+            }
+        }
+
+        family(out, "mydas_request_duration_seconds", "histogram",
+                "Duration of the requests (phase=\"total\") and of their phases.");
+        for (CommandMetrics m : all) {
+            histogram(out, labels(m) + ",phase=\"total\"", m.getTotal());
+            for (RequestTimer.Phase phase : RequestTimer.Phase.values()) {
+                Histogram histogram = m.getPhase(phase);
+                if (histogram.getCount() > 0) {
+                    histogram(out, labels(m) + ",phase=\"" + phase.getLabel() + '"', histogram);
+                }
+            }
+        }
+
+        family(out, "mydas_response_bytes_total", "counter", "Bytes of the response bodies.");
+        for (CommandMetrics m : all) {
+            sample(out, "mydas_response_bytes_total", labels(m), m.getResponseBytes());
+        }
+
+        family(out, "mydas_features_total", "counter", "Features returned.");
+        for (CommandMetrics m : all) {
+            if (m.getFeatureCount() > 0) {
+                sample(out, "mydas_features_total", labels(m), m.getFeatureCount());
+            }
+        }
+
+        List<Bulkhead> bulkheads = Bulkhead.all();
+        if (!bulkheads.isEmpty()) {
+            family(out, "mydas_bulkhead_active", "gauge", "Requests being handled by a data source with a concurrency limit.");
+            for (Bulkhead b : bulkheads) {
+                sample(out, "mydas_bulkhead_active", dsnLabel(b.getName()), b.getActive());
+            }
+            family(out, "mydas_bulkhead_queued", "gauge", "Requests waiting for a data source with a concurrency limit.");
+            for (Bulkhead b : bulkheads) {
+                sample(out, "mydas_bulkhead_queued", dsnLabel(b.getName()), b.getQueued());
+            }
+            family(out, "mydas_bulkhead_rejected_total", "counter", "Requests rejected because a data source was busy.");
+            for (Bulkhead b : bulkheads) {
+                sample(out, "mydas_bulkhead_rejected_total", dsnLabel(b.getName()), b.getRejected());
+            }
+            family(out, "mydas_bulkhead_queue_wait_seconds_total", "counter", "Time requests spent waiting for a busy data source.");
+            for (Bulkhead b : bulkheads) {
+                out.write("mydas_bulkhead_queue_wait_seconds_total{" + dsnLabel(b.getName()) + "} "
+                        + seconds(b.getQueueWaitMillis() * 1000000L) + '\n');
+            }
+        }
+    }
+
+    private static void family(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + ' ' + help + '\n');
+        out.write("# TYPE " + name + ' ' + type + '\n');
+    }
+
+    private static void sample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + '{' + labels + "} " + value + '\n');
+    }
+
+    private static void histogram(Writer out, String labels, Histogram histogram) throws IOException {
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.BOUNDS_MILLIS.length; i++) {
+            cumulative += histogram.getBucketCount(i);
+            out.write("mydas_request_duration_seconds_bucket{" + labels + ",le=\""
+                    + seconds(Histogram.BOUNDS_MILLIS[i] * 1000000L) + "\"} " + cumulative + '\n');
+        }
+        cumulative += histogram.getBucketCount(Histogram.BOUNDS_MILLIS.length);
+        out.write("mydas_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + '\n');
+        out.write("mydas_request_duration_seconds_sum{" + labels + "} " + seconds(histogram.getSumNanos()) + '\n');
+        out.write("mydas_request_duration_seconds_count{" + labels + "} " + histogram.getCount() + '\n');
+    }
+
+    private static String labels(CommandMetrics m) {
+        return dsnLabel(m.getDsn()) + ",command=\"" + escape(m.getCommand()) + '"';
+    }
+
+    private static String dsnLabel(String dsn) {
+        return "dsn=\"" + escape(dsn) + '"';
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ENGLISH, "%.6f", nanos / 1e9);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times the phases of the request handled by the current thread, and counts what it returns,
+ * for {@link RequestMetrics}.  Only used by the thread handling the request, so without any
+ * synchronisation.
+ */
+final class RequestTimer {
+
+    /**
+     * The phases of a request, in order.
+     */
+    enum Phase {
+        PARSE("parse"),
+        FETCH("fetch"),
+        FILTER("filter"),
+        SERIALIZE("serialize"),
+        GZIP("gzip");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+    }
+
+    static final String UNKNOWN = "-";
+
+    /**
+     * Maximum number of different data source calls noted for a request.
+     */
+    private static final int MAX_CALLS = 32;
+
+    private static final ThreadLocal<RequestTimer> CURRENT = new ThreadLocal<RequestTimer>();
+
+    private final long start = System.nanoTime();
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final String queryString;
+
+    private long end;
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private Phase phase = Phase.PARSE;
+
+    private long phaseStart = start;
+
+    /**
+     * Time spent in another phase since the current phase started, e.g. compressing the output
+     * while serialising it.
+     */
+    private long diverted = 0;
+
+    private String dsn = UNKNOWN;
+
+    private String command = UNKNOWN;
+
+    private XDasStatus status = null;
+
+    private long bytes = 0;
+
+    private long features = 0;
+
+    private int segments = 0;
+
+    /**
+     * The data source methods called, in order, with the number of calls.  Created on the first call.
+     */
+    private Map<String, Integer> calls = null;
+
+    private RequestTimer(String queryString) {
+        this.queryString = queryString;
+    }
+
+    /**
+     * @param queryString of the request, kept for the slow request log.
+     * @return a new timer for the request handled by the current thread.
+     */
+    static RequestTimer begin(String queryString) {
+        RequestTimer timer = new RequestTimer(queryString);
+        CURRENT.set(timer);
+        return timer;
+    }
+
+    /**
+     * @return the timer of the request handled by the current thread, null if it is not timed.
+     */
+    static RequestTimer current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Moves the request handled by the current thread, if it is timed, on to a phase, unless it
+     * is already in that phase or a later one.
+     *
+     * @param next phase.
+     */
+    static void enter(Phase next) {
+        RequestTimer timer = CURRENT.get();
+        if (timer != null && timer.phase != null && timer.phase.ordinal() < next.ordinal()) {
+            timer.mark(next);
+        }
+    }
+
+    /**
+     * Notes a call to a data source method by the request handled by the current thread, if it is
+     * timed, e.g. to show the fallback to another overload after an UnimplementedFeatureException.
+     *
+     * @param method called, e.g. "getFeatures(segmentId, maxbins, rows)".
+     */
+    static void call(String method) {
+        RequestTimer timer = CURRENT.get();
+        if (timer == null) {
+            return;
+        }
+        if (timer.calls == null) {
+            timer.calls = new LinkedHashMap<String, Integer>();
+        }
+        Integer count = timer.calls.get(method);
+        if (count != null) {
+            timer.calls.put(method, count + 1);
+        } else if (timer.calls.size() < MAX_CALLS) {
+            timer.calls.put(method, 1);
+        }
+    }
+
+    /**
+     * Ends the timing of the request.
+     */
+    void end() {
+        mark(null);
+        end = System.nanoTime();
+        CURRENT.remove();
+    }
+
+    /**
+     * Ends the current phase and starts the next one.
+     *
+     * @param next phase, null to end the timing.
+     */
+    void mark(Phase next) {
+        long now = System.nanoTime();
+        if (phase != null) {
+            phaseNanos[phase.ordinal()] += Math.max(0, now - phaseStart - diverted);
+        }
+        phase = next;
+        phaseStart = now;
+        diverted = 0;
+    }
+
+    /**
+     * Charges time spent within the current phase to another one.
+     */
+    void divert(Phase other, long nanos) {
+        phaseNanos[other.ordinal()] += nanos;
+        diverted += nanos;
+    }
+
+    void setCommand(String dsn, String command) {
+        this.dsn = dsn == null ? UNKNOWN : dsn;
+        this.command = command;
+    }
+
+    void setStatus(XDasStatus status) {
+        this.status = status;
+    }
+
+    void addFeatures(long count) {
+        features += count;
+    }
+
+    void addSegments(int count) {
+        segments += count;
+    }
+
+    String getDsn() {
+        return dsn;
+    }
+
+    String getCommand() {
+        return command;
+    }
+
+    XDasStatus getStatus() {
+        return status;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getFeatures() {
+        return features;
+    }
+
+    String getQueryString() {
+        return queryString;
+    }
+
+    int getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return the data source methods called, with the number of calls, in the order of the first call.
+     */
+    Map<String, Integer> getCalls() {
+        return calls == null ? Collections.<String, Integer>emptyMap() : calls;
+    }
+
+    /**
+     * @return the time the request started, in milliseconds since the epoch.
+     */
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    long getTotalNanos() {
+        return end - start;
+    }
+
+    long getPhaseNanos(Phase p) {
+        return phaseNanos[p.ordinal()];
+    }
+
+    /**
+     * @return the value of a Server-Timing header with the phases done so far.
+     */
+    String toServerTiming() {
+        StringBuilder timing = new StringBuilder();
+        long now = System.nanoTime();
+        for (Phase p : Phase.values()) {
+            long nanos = phaseNanos[p.ordinal()];
+            if (p == phase) {
+                nanos += Math.max(0, now - phaseStart - diverted);
+            }
+            if (nanos > 0) {
+                timing.append(p.getLabel()).append(";dur=")
+                        .append(String.format(Locale.ENGLISH, "%.1f", nanos / 1e6)).append(", ");
+            }
+        }
+        timing.append("total;dur=").append(String.format(Locale.ENGLISH, "%.1f", (now - start) / 1e6));
+        return timing.toString();
+    }
+
+    /**
+     * @param out the output stream of the response.
+     * @return the stream, counting the bytes written to it.
+     */
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes += len;
+            }
+        };
+    }
+
+    /**
+     * @param out the writer of the response.
+     * @return the writer, counting the characters written to it as bytes.
+     */
+    Writer counting(Writer out) {
+        return new FilterWriter(out) {
+            @Override
+            public void write(int c) throws IOException {
+                out.write(c);
+                bytes++;
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                out.write(cbuf, off, len);
+                bytes += len;
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                out.write(str, off, len);
+                bytes += len;
+            }
+        };
+    }
+
+    /**
+     * @param gzip compressing stream.
+     * @return the stream, charging the time spent in it, compressing and sending the compressed
+     *         bytes, to the gzip phase.
+     */
+    OutputStream timingGzip(OutputStream gzip) {
+        return new FilterOutputStream(gzip) {
+            @Override
+            public void write(int b) throws IOException {
+                long t = System.nanoTime();
+                out.write(b);
+                divert(Phase.GZIP, System.nanoTime() - t);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long t = System.nanoTime();
+                out.write(b, off, len);
+                divert(Phase.GZIP, System.nanoTime() - t);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                long t = System.nanoTime();
+                out.flush();
+                divert(Phase.GZIP, System.nanoTime() - t);
+            }
+
+            @Override
+            public void close() throws IOException {
+                long t = System.nanoTime();
+                out.close();
+                divert(Phase.GZIP, System.nanoTime() - t);
+            }
+        };
+    }
+}
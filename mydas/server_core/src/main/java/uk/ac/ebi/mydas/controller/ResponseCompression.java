@@ -0,0 +1,228 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.GlobalConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the responses are gzipped, read from the global parameters of a configuration:
+ * <ul>
+ * <li>gzip_min_size: responses of up to this many bytes (default 1024) are sent uncompressed, as
+ * gzip would save little on them and cost the same fixed overhead;</li>
+ * <li>gzip_level: the deflate level, from 1 (fastest) to 9 (smallest), by default 6;</li>
+ * <li>gzip_buffer_size: the size of the compression and encoding buffers, by default 8192 bytes.</li>
+ * </ul>
+ * Whether a response is gzipped at all still depends on the gzipped element of the configuration
+ * and on the Accept-Encoding header of the request.
+ */
+final class ResponseCompression {
+
+    private static final Logger logger = Logger.getLogger(ResponseCompression.class);
+
+    static final String PROPERTY_GZIP_MIN_SIZE = "gzip_min_size";
+
+    static final String PROPERTY_GZIP_LEVEL = "gzip_level";
+
+    static final String PROPERTY_GZIP_BUFFER_SIZE = "gzip_buffer_size";
+
+    private static final int DEFAULT_MIN_SIZE = 1024;
+
+    private static final int DEFAULT_LEVEL = 6;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final GlobalConfiguration configuration;
+
+    private final int minSize;
+
+    private final int level;
+
+    private final int bufferSize;
+
+    /**
+     * @param configuration holding the global parameters.
+     */
+    ResponseCompression(GlobalConfiguration configuration) {
+        this.configuration = configuration;
+        this.minSize = Math.max(0, intParameter(configuration, PROPERTY_GZIP_MIN_SIZE, DEFAULT_MIN_SIZE));
+        this.level = Math.min(Deflater.BEST_COMPRESSION,
+                Math.max(Deflater.BEST_SPEED, intParameter(configuration, PROPERTY_GZIP_LEVEL, DEFAULT_LEVEL)));
+        this.bufferSize = Math.max(512, intParameter(configuration, PROPERTY_GZIP_BUFFER_SIZE, DEFAULT_BUFFER_SIZE));
+    }
+
+    private static int intParameter(GlobalConfiguration configuration, String name, int defaultValue) {
+        PropertyType property = configuration.getGlobalParameters().get(name);
+        if (property != null) {
+            try {
+                return Integer.parseInt(property.getValue().trim());
+            } catch (NumberFormatException nfe) {
+                logger.error("The " + name + " property is not numeric, using " + defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the configuration the settings were read from.
+     */
+    GlobalConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param size of a response body, in bytes.
+     * @return true if a body of this size is worth gzipping.
+     */
+    boolean isWorthCompressing(int size) {
+        return size > minSize;
+    }
+
+    /**
+     * @param plain body.
+     * @return the body gzipped at the configured level, e.g. to keep it along with the plain one.
+     * @throws IOException if compressing fails.
+     */
+    byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(plain.length / 4 + 64);
+        OutputStream gzip = gzipStream(buffer);
+        gzip.write(plain);
+        gzip.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Returns a stream that gzips what is written to it, setting the Content-Encoding header of the
+     * response, unless the whole body is no larger than gzip_min_size, in which case it is sent as it is.
+     * Nothing is written to the response until that has been decided.
+     *
+     * @param response whose Content-Encoding is set, which must not be committed yet.
+     * @param out      the output stream of the response.
+     * @return the stream to write the body to.
+     */
+    OutputStream compressing(HttpServletResponse response, OutputStream out) {
+        return new AdaptiveGzipOutputStream(response, out);
+    }
+
+    private GZIPOutputStream gzipStream(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, bufferSize) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    /**
+     * Holds back the first gzip_min_size bytes, then gzips everything if there is more.
+     */
+    private final class AdaptiveGzipOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+
+        private final OutputStream out;
+
+        private byte[] pending = new byte[minSize];
+
+        private int count = 0;
+
+        private OutputStream gzip = null;
+
+        private boolean closed = false;
+
+        private AdaptiveGzipOutputStream(HttpServletResponse response, OutputStream out) {
+            this.response = response;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (gzip == null && count < pending.length) {
+                pending[count++] = (byte) b;
+                return;
+            }
+            startGzip();
+            gzip.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (gzip == null && count + length <= pending.length) {
+                System.arraycopy(bytes, offset, pending, count, length);
+                count += length;
+                return;
+            }
+            startGzip();
+            gzip.write(bytes, offset, length);
+        }
+
+        private void startGzip() throws IOException {
+            if (gzip == null) {
+                response.setHeader(MydasServlet.ENCODING_RESPONSE_HEADER_KEY, MydasServlet.ENCODING_GZIPPED);
+                gzip = gzipStream(out);
+                gzip.write(pending, 0, count);
+                pending = null;
+            }
+        }
+
+        /**
+         * Does nothing until the body is known to be gzipped, so that flushing does not commit the
+         * response before its Content-Encoding is set.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (gzip != null) {
+                gzip.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (gzip != null) {
+                gzip.close();
+            } else {
+                try {
+                    out.write(pending, 0, count);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import uk.ac.ebi.mydas.exceptions.BadCommandArgumentsException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Output formats offered by the features, types, entry_points and sequence commands.
+ * <p/>
+ * The format is chosen with the <code>format=xml|json|binary</code> query parameter or, when it
+ * is absent, from the media types listed in the Accept header of the request. DAS XML is
+ * the default so that existing clients are not affected.
+ */
+enum ResponseFormat {
+
+    XML("xml", "application/xml", "application/xml;charset=UTF-8"),
+    JSON("json", "application/json", "application/json;charset=UTF-8"),
+    BINARY("binary", "application/x-das-binary", "application/x-das-binary");
+
+    /**
+     * Name of the query parameter that selects the format explicitly.
+     */
+    static final String FORMAT_PARAMETER = "format";
+
+    private final String parameterValue;
+
+    private final String mediaType;
+
+    private final String contentType;
+
+    ResponseFormat(String parameterValue, String mediaType, String contentType) {
+        this.parameterValue = parameterValue;
+        this.mediaType = mediaType;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the value of the Content-Type header for a response in this format.
+     */
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Works out the format requested by the client.  An explicit format parameter in the
+     * query string has priority over the Accept header.
+     *
+     * @param request     to read the Accept header from.
+     * @param queryString the (normalised) query string of the request.
+     * @return the format to use for the response, XML if nothing else has been asked for.
+     * @throws BadCommandArgumentsException if the format parameter holds an unknown value.
+     */
+    static ResponseFormat negotiate(HttpServletRequest request, String queryString) throws BadCommandArgumentsException {
+        if (queryString != null && queryString.length() > 0) {
+            for (String queryPart : queryString.split("[;&]")) {
+                if (queryPart.startsWith(FORMAT_PARAMETER + "=")) {
+                    String value = queryPart.substring(FORMAT_PARAMETER.length() + 1);
+                    for (ResponseFormat format : values()) {
+                        if (format.parameterValue.equalsIgnoreCase(value)) {
+                            return format;
+                        }
+                    }
+                    throw new BadCommandArgumentsException("Unknown response format requested: " + value);
+                }
+            }
+        }
+        return fromAcceptHeader(request.getHeader("Accept"));
+    }
+
+    /**
+     * Picks the known media type with the highest quality value from an Accept header.  Ties are
+     * resolved in the order the client listed them; wildcards are left to the XML default.
+     *
+     * @param accept the value of the Accept header, may be null.
+     * @return the preferred format.
+     */
+    static ResponseFormat fromAcceptHeader(String accept) {
+        if (accept == null || accept.length() == 0) {
+            return XML;
+        }
+        ResponseFormat preferred = XML;
+        float preferredQuality = -1f;
+        for (String mediaRange : accept.split(",")) {
+            String[] parameters = mediaRange.split(";");
+            String type = parameters[0].trim();
+            float quality = 1f;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException nfe) {
+                        quality = 0f;
+                    }
+                }
+            }
+            for (ResponseFormat format : values()) {
+                if (format.mediaType.equalsIgnoreCase(type) && quality > 0f && quality > preferredQuality) {
+                    preferred = format;
+                    preferredQuality = quality;
+                }
+            }
+        }
+        return preferred;
+    }
+
+    /**
+     * Removes the format parameter from a query string, so the commands can keep on
+     * parsing their own arguments as before.
+     *
+     * @param queryString the query string of the request, may be null.
+     * @return the query string without any format parameter, using ';' as separator.
+     */
+    static String removeFormatParameter(String queryString) {
+        if (queryString == null || !queryString.contains(FORMAT_PARAMETER + "=")) {
+            return queryString;
+        }
+        StringBuilder remaining = new StringBuilder(queryString.length());
+        for (String queryPart : queryString.split("[;&]")) {
+            if (queryPart.length() > 0 && !queryPart.startsWith(FORMAT_PARAMETER + "=")) {
+                if (remaining.length() > 0) {
+                    remaining.append(';');
+                }
+                remaining.append(queryPart);
+            }
+        }
+        return remaining.toString();
+    }
+}
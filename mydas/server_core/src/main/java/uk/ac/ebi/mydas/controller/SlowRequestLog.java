@@ -0,0 +1,267 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent requests slower than a threshold in a ring buffer, with what they asked
+ * for, what they returned, where their time went and which data source methods they called.
+ * <p/>
+ * Recording never blocks the request: the ring buffer is lock free, and the requests are also
+ * written to the uk.ac.ebi.mydas.slowrequests log4j logger by a thread of its own, through a
+ * bounded queue whose overflow is dropped (and counted).  The buffer can be read with the
+ * slow_requests command.
+ */
+final class SlowRequestLog {
+
+    /**
+     * Logger the slow requests are written to, so that they can be sent to an appender of their own.
+     */
+    private static final Logger slowLogger = Logger.getLogger("uk.ac.ebi.mydas.slowrequests");
+
+    private static final Logger logger = Logger.getLogger(SlowRequestLog.class);
+
+    private static final int WRITER_QUEUE_SIZE = 1024;
+
+    /**
+     * Parameter of the administrative commands holding the keyphrase, never recorded.
+     */
+    private static final String PARAMETER_KEYPHRASE = "keyphrase";
+
+    private final long thresholdNanos;
+
+    private final AtomicReferenceArray<Entry> entries;
+
+    /**
+     * Number of requests recorded so far; the next one goes to this index modulo the size.
+     */
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final BlockingQueue<Entry> toWrite = new ArrayBlockingQueue<Entry>(WRITER_QUEUE_SIZE);
+
+    private final Thread writer;
+
+    /**
+     * A slow request.  Immutable.
+     */
+    static final class Entry {
+        private final long startMillis;
+        private final String dsn;
+        private final String command;
+        private final XDasStatus status;
+        private final String query;
+        private final int segments;
+        private final long features;
+        private final long bytes;
+        private final long totalNanos;
+        private final long[] phaseNanos;
+        private final String calls;
+
+        private Entry(RequestTimer timer) {
+            this.startMillis = timer.getStartMillis();
+            this.dsn = timer.getDsn();
+            this.command = timer.getCommand();
+            this.status = timer.getStatus();
+            this.query = CacheValidators.normalise(withoutKeyphrase(timer.getQueryString()));
+            this.segments = timer.getSegments();
+            this.features = timer.getFeatures();
+            this.bytes = timer.getBytes();
+            this.totalNanos = timer.getTotalNanos();
+            this.phaseNanos = new long[RequestTimer.Phase.values().length];
+            for (RequestTimer.Phase phase : RequestTimer.Phase.values()) {
+                phaseNanos[phase.ordinal()] = timer.getPhaseNanos(phase);
+            }
+            StringBuilder called = new StringBuilder();
+            for (Map.Entry<String, Integer> call : timer.getCalls().entrySet()) {
+                if (called.length() > 0) {
+                    called.append(", ");
+                }
+                called.append(call.getKey());
+                if (call.getValue() > 1) {
+                    called.append(" x").append(call.getValue());
+                }
+            }
+            this.calls = called.toString();
+        }
+
+        /**
+         * @return the request on one line: time, duration, data source, command, status, counts,
+         *         phase durations, normalised query and data source calls.
+         */
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            StringBuilder line = new StringBuilder(256);
+            line.append(format.format(new Date(startMillis)))
+                    .append(' ').append(millis(totalNanos)).append("ms")
+                    .append(" dsn=").append(dsn)
+                    .append(" command=").append(command)
+                    .append(" status=").append(status == null ? "none" : status.toString())
+                    .append(" segments=").append(segments)
+                    .append(" features=").append(features)
+                    .append(" bytes=").append(bytes);
+            for (RequestTimer.Phase phase : RequestTimer.Phase.values()) {
+                line.append(' ').append(phase.getLabel()).append('=').append(millis(phaseNanos[phase.ordinal()])).append("ms");
+            }
+            line.append(" query=\"").append(query).append('"');
+            line.append(" calls=[").append(calls).append(']');
+            return line.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ENGLISH, "%.1f", nanos / 1e6);
+        }
+    }
+
+    /**
+     * Removes the keyphrase parameter of the administrative commands (indexer, reload,
+     * slow_requests) from a query string, so that it is neither logged nor returned by the
+     * slow_requests command.
+     *
+     * @param queryString of the request, may be null.
+     * @return the other parts of the query string, still encoded.
+     */
+    static String withoutKeyphrase(String queryString) {
+        if (queryString == null) {
+            return null;
+        }
+        StringBuilder kept = new StringBuilder(queryString.length());
+        for (String queryPart : queryString.split("[;&]")) {
+            int equals = queryPart.indexOf('=');
+            String name = (equals < 0 ? queryPart : queryPart.substring(0, equals)).trim();
+            try {
+                name = URLDecoder.decode(name, DasCommandManager.ENCODE);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(DasCommandManager.ENCODE + " is not supported", e);
+            } catch (IllegalArgumentException e) {
+                // Badly escaped, use as it is.
+            }
+            if (name.equalsIgnoreCase(PARAMETER_KEYPHRASE)) {
+                continue;
+            }
+            if (kept.length() > 0) {
+                kept.append(';');
+            }
+            kept.append(queryPart);
+        }
+        return kept.toString();
+    }
+
+    /**
+     * @param thresholdMillis duration from which a request is recorded.
+     * @param size            number of requests kept.
+     */
+    SlowRequestLog(long thresholdMillis, int size) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        slowLogger.warn("Slow request: " + toWrite.take());
+                    }
+                } catch (InterruptedException e) {
+                    // Shut down.
+                }
+            }
+        }, "mydas-slow-requests");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records the request if it was slower than the threshold.  Does not block.
+     *
+     * @param timer of a request that has ended.
+     */
+    void record(RequestTimer timer) {
+        if (timer.getTotalNanos() < thresholdNanos) {
+            return;
+        }
+        Entry entry = new Entry(timer);
+        long index = recorded.getAndIncrement();
+        entries.set((int) (index % entries.length()), entry);
+        if (!toWrite.offer(entry) && dropped.getAndIncrement() == 0) {
+            logger.warn("Too many slow requests to log, some are only kept in memory");
+        }
+    }
+
+    /**
+     * @return the requests kept, the most recent first.
+     */
+    List<Entry> getEntries() {
+        long last = recorded.get();
+        int size = entries.length();
+        List<Entry> recent = new ArrayList<Entry>((int) Math.min(last, size));
+        for (long index = last - 1; index >= 0 && index >= last - size; index--) {
+            Entry entry = entries.get((int) (index % size));
+            if (entry != null) {
+                recent.add(entry);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Writes the requests kept as plain text, one per line, the most recent first.
+     *
+     * @param out to write to.
+     * @throws IOException if writing fails.
+     */
+    void writeText(Writer out) throws IOException {
+        out.write("# " + recorded.get() + " requests slower than " + thresholdNanos / 1000000L + "ms since the server started, "
+                + dropped.get() + " not logged\n");
+        for (Entry entry : getEntries()) {
+            out.write(entry.toString());
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Stops the log writer, when the servlet is destroyed.
+     */
+    void shutdown() {
+        writer.interrupt();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import uk.ac.ebi.mydas.configuration.ServerConfiguration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The stylesheets of a configuration, read from the resource folder the first time they are
+ * requested and then served from memory, plain or gzipped, with a strong ETag.  A new cache is
+ * made when the configuration is reloaded, so edited stylesheets are read again.
+ */
+final class StylesheetCache {
+
+    /**
+     * A stylesheet, with its ETags: a digest of its content, with a suffix for the gzipped body
+     * as it is a different representation.
+     */
+    static final class Stylesheet {
+        private final RenderedDocuments.Document document;
+        private final String etag;
+        private final String gzippedEtag;
+
+        private Stylesheet(RenderedDocuments.Document document, String digest) {
+            this.document = document;
+            this.etag = '"' + digest + '"';
+            this.gzippedEtag = '"' + digest + "-gzip\"";
+        }
+
+        RenderedDocuments.Document getDocument() {
+            return document;
+        }
+
+        /**
+         * @param gzipped true for the ETag of the gzipped body.
+         * @return the ETag.
+         */
+        String getETag(boolean gzipped) {
+            return gzipped ? gzippedEtag : etag;
+        }
+
+        /**
+         * @param ifNoneMatch header of the request, may be null.
+         * @return true if it holds the ETag of either body of the stylesheet.
+         */
+        boolean isNotModified(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = CacheValidators.stripWeak(tag.trim());
+                if (tag.equals("*") || tag.equals(etag) || tag.equals(gzippedEtag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final ServerConfiguration configuration;
+
+    private final ConcurrentMap<String, Stylesheet> stylesheets = new ConcurrentHashMap<String, Stylesheet>();
+
+    /**
+     * @param configuration the stylesheets are configured in.
+     */
+    StylesheetCache(ServerConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @param current configuration of the server.
+     * @return true if this cache belongs to it.
+     */
+    boolean isCurrent(ServerConfiguration current) {
+        return configuration == current;
+    }
+
+    /**
+     * @param fileName    of the stylesheet in the resource folder.
+     * @param compression to gzip it with.
+     * @return the stylesheet, null if there is no such resource.
+     * @throws IOException if the stylesheet cannot be read.
+     */
+    Stylesheet get(String fileName, ResponseCompression compression) throws IOException {
+        Stylesheet stylesheet = stylesheets.get(fileName);
+        if (stylesheet == null) {
+            byte[] content = read(MydasServlet.RESOURCE_FOLDER + fileName);
+            if (content == null) {
+                return null;
+            }
+            // Two requests may read it at the same time; either copy will do.
+            stylesheet = new Stylesheet(new RenderedDocuments.Document(content, null, compression), digest(content));
+            Stylesheet previous = stylesheets.putIfAbsent(fileName, stylesheet);
+            if (previous != null) {
+                stylesheet = previous;
+            }
+        }
+        return stylesheet;
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            return content.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            StringBuilder digest = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                digest.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return digest.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
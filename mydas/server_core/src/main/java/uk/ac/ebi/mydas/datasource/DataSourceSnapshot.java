@@ -0,0 +1,348 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+
+import javax.servlet.ServletContext;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the model a data source has parsed from its files, so that the next
+ * startup can skip the parsing when the files have not changed.
+ * <p/>
+ * The snapshot is the Java serialisation of any Serializable object (typically the collections
+ * of DasAnnotatedSegment, DasType and DasEntryPoint objects built by the parser), preceded by
+ * the path, size and modification time of each source file and a CRC32 of the serialised
+ * data.  It is memory mapped when read back, and ignored if any source file has changed or
+ * the snapshot is damaged.
+ * <p/>
+ * Usage in the init method of a data source:
+ * <pre>
+ * DataSourceSnapshot snapshot = DataSourceSnapshot.forDataSource(servletContext, dataSourceConfig, gffFile);
+ * MyModel model = snapshot == null ? null : (MyModel) snapshot.load();
+ * if (model == null) {
+ *     model = parse(gffFile);
+ *     if (snapshot != null) snapshot.store(model);
+ * }
+ * </pre>
+ * The snapshot file is set with the snapshot_file data source property, and is otherwise kept
+ * in the temporary directory of the web application.  Setting the snapshot property to false
+ * disables snapshots for the data source.
+ */
+public final class DataSourceSnapshot {
+
+    private static final Logger logger = Logger.getLogger(DataSourceSnapshot.class);
+
+    /**
+     * Data source property giving the path of the snapshot file.
+     */
+    public static final String PROPERTY_SNAPSHOT_FILE = "snapshot_file";
+
+    /**
+     * Data source property which, when set to false, disables the snapshot.
+     */
+    public static final String PROPERTY_SNAPSHOT = "snapshot";
+
+    private static final String SERVLET_TEMP_DIR = "javax.servlet.context.tempdir";
+
+    private static final int MAGIC = 0x4d794461; // "MyDa"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int CRC_CHUNK = 64 * 1024;
+
+    private final File file;
+
+    private final File[] sources;
+
+    /**
+     * @param file    the snapshot is kept in.
+     * @param sources the files the snapshot is built from.
+     */
+    public DataSourceSnapshot(File file, File... sources) {
+        this.file = file;
+        this.sources = sources;
+    }
+
+    /**
+     * @param servletContext   of the web application, giving the temporary directory.
+     * @param dataSourceConfig of the data source, with the snapshot properties.
+     * @param sources          the files the data source is built from.
+     * @return the snapshot of the data source, null if snapshots are disabled or there is
+     *         nowhere to keep them.
+     */
+    public static DataSourceSnapshot forDataSource(ServletContext servletContext, DataSourceConfiguration dataSourceConfig,
+                                                   File... sources) {
+        PropertyType enabled = dataSourceConfig.getDataSourceProperties().get(PROPERTY_SNAPSHOT);
+        if (enabled != null && "false".equalsIgnoreCase(enabled.getValue().trim())) {
+            return null;
+        }
+        PropertyType path = dataSourceConfig.getDataSourceProperties().get(PROPERTY_SNAPSHOT_FILE);
+        if (path != null && path.getValue().trim().length() > 0) {
+            return new DataSourceSnapshot(new File(path.getValue().trim()), sources);
+        }
+        Object tempDir = servletContext == null ? null : servletContext.getAttribute(SERVLET_TEMP_DIR);
+        if (!(tempDir instanceof File)) {
+            return null;
+        }
+        String name = dataSourceConfig.getId().replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot";
+        return new DataSourceSnapshot(new File((File) tempDir, name), sources);
+    }
+
+    /**
+     * @return the snapshot file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the snapshot back, if it is up to date.
+     *
+     * @return the object stored by {@link #store(Serializable)}, or null if there is no snapshot,
+     *         a source file has changed since it was stored, or it cannot be read.
+     */
+    public Object load() {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            MappedByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // The mapping stays valid once the file is closed.
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                logger.info("Ignoring snapshot " + file + " written by another version");
+                return null;
+            }
+            if (buffer.getInt() != sources.length) {
+                return null;
+            }
+            for (File source : sources) {
+                byte[] path = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(path);
+                long length = buffer.getLong();
+                long lastModified = buffer.getLong();
+                if (!source.getAbsolutePath().equals(new String(path, "UTF-8"))
+                        || source.length() != length || source.lastModified() != lastModified) {
+                    logger.info("Snapshot " + file + " is out of date, " + source + " has changed");
+                    return null;
+                }
+            }
+            long payloadLength = buffer.getLong();
+            long crc = buffer.getLong();
+            if (payloadLength != buffer.remaining()) {
+                logger.warn("Ignoring truncated snapshot " + file);
+                return null;
+            }
+            ByteBuffer payload = buffer.slice();
+            if (crc(payload.duplicate()) != crc) {
+                logger.warn("Ignoring damaged snapshot " + file);
+                return null;
+            }
+            ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(payload)) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    // The classes of the data source plugin are loaded by the web application.
+                    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                    if (loader != null) {
+                        try {
+                            return Class.forName(desc.getName(), false, loader);
+                        } catch (ClassNotFoundException e) {
+                            // Fall back on the default resolution below.
+                        }
+                    }
+                    return super.resolveClass(desc);
+                }
+            };
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Snapshot " + file + " could not be read, the source files will be parsed", e);
+        } catch (ClassNotFoundException e) {
+            logger.warn("Snapshot " + file + " refers to missing classes, the source files will be parsed", e);
+        } catch (RuntimeException e) {
+            // e.g. BufferUnderflowException, ClassCastException on a damaged header.
+            logger.warn("Snapshot " + file + " could not be read, the source files will be parsed", e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the snapshot, replacing the previous one.  Failures are logged, as a data source
+     * can run without its snapshot.
+     *
+     * @param model to store, built from the current content of the source files.
+     */
+    public void store(Serializable model) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = new File(parent, file.getName() + ".tmp");
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("The directory " + parent + " cannot be created");
+            }
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            long payloadPosition;
+            CheckedOutputStream checked;
+            CountingOutputStream counted;
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                header.writeInt(sources.length);
+                for (File source : sources) {
+                    byte[] path = source.getAbsolutePath().getBytes("UTF-8");
+                    header.writeShort(path.length);
+                    header.write(path);
+                    header.writeLong(source.length());
+                    header.writeLong(source.lastModified());
+                }
+                // Placeholders for the length and CRC of the payload, written once known.
+                header.writeLong(0);
+                header.writeLong(0);
+                payloadPosition = header.size();
+                counted = new CountingOutputStream(header);
+                checked = new CheckedOutputStream(counted, new CRC32());
+                ObjectOutputStream out = new ObjectOutputStream(checked);
+                out.writeObject(model);
+                out.flush();
+            } finally {
+                header.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                raf.seek(payloadPosition - 16);
+                raf.writeLong(counted.count);
+                raf.writeLong(checked.getChecksum().getValue());
+            } finally {
+                raf.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("The previous snapshot " + file + " cannot be replaced");
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("The snapshot " + temp + " cannot be renamed to " + file);
+            }
+        } catch (IOException e) {
+            logger.warn("The snapshot " + file + " could not be written", e);
+            temp.delete();
+        }
+    }
+
+    private static long crc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(CRC_CHUNK, Math.max(buffer.remaining(), 1))];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a byte buffer, here the memory mapped snapshot.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Counts the bytes of the payload.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
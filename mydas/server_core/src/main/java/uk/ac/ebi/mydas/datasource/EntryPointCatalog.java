@@ -0,0 +1,233 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource;
+
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
+import uk.ac.ebi.mydas.model.DasEntryPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * All the entry points of a data source, loaded once for a given entry point version, so that
+ * the entry_points command, the indexer and segment checks do not call the data source again.
+ * <p/>
+ * The entry points are kept in an array in the order of the data source, so a range of rows is a
+ * view of it, with an index of the segment ids sorted for binary searches.  A bloom filter of the
+ * segment ids answers most lookups of unknown segments, e.g. from crawlers, without searching.
+ * Immutable, so shared by all the requests.
+ */
+public final class EntryPointCatalog {
+
+    /**
+     * Data source property which, when set to false, disables the catalog of the data source.
+     */
+    public static final String PROPERTY_ENTRY_POINT_CATALOG = "entry_point_catalog";
+
+    /**
+     * Data source property with the largest number of entry points kept in the catalog; the
+     * entry points of larger data sources are read from the data source on each request.
+     */
+    public static final String PROPERTY_ENTRY_POINT_CATALOG_MAX = "entry_point_catalog_max";
+
+    public static final int DEFAULT_MAX_ENTRY_POINTS = 1000000;
+
+    /**
+     * Number of entry points asked for at once when max_entry_points is not set.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 10000;
+
+    /**
+     * Bits of the bloom filter per segment id, and hashes per id: about 1% false positives.
+     */
+    private static final int BLOOM_BITS_PER_ID = 10;
+
+    private static final int BLOOM_HASHES = 7;
+
+    private final String version;
+
+    private final DasEntryPoint[] rows;
+
+    /**
+     * The same entry points, sorted by segment id.
+     */
+    private final DasEntryPoint[] bySegmentId;
+
+    private final long[] bloom;
+
+    private final int bloomBits;
+
+    private EntryPointCatalog(String version, DasEntryPoint[] rows) {
+        this.version = version;
+        this.rows = rows;
+        List<DasEntryPoint> identified = new ArrayList<DasEntryPoint>(rows.length);
+        for (DasEntryPoint entryPoint : rows) {
+            if (entryPoint != null && entryPoint.getSegmentId() != null) {
+                identified.add(entryPoint);
+            }
+        }
+        this.bySegmentId = identified.toArray(new DasEntryPoint[identified.size()]);
+        Arrays.sort(bySegmentId, new Comparator<DasEntryPoint>() {
+            public int compare(DasEntryPoint a, DasEntryPoint b) {
+                return a.getSegmentId().compareTo(b.getSegmentId());
+            }
+        });
+        this.bloom = new long[Math.max(1, (bySegmentId.length * BLOOM_BITS_PER_ID + 63) / 64)];
+        this.bloomBits = bloom.length * 64;
+        for (DasEntryPoint entryPoint : bySegmentId) {
+            String segmentId = entryPoint.getSegmentId();
+            int hash1 = segmentId.hashCode();
+            int hash2 = secondHash(segmentId);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bloomBits;
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * @return false if the segment id is certainly not in the catalog.
+     */
+    private boolean mightContain(String segmentId) {
+        int hash1 = segmentId.hashCode();
+        int hash2 = secondHash(segmentId);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bloomBits;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a over the characters, independent of String.hashCode.
+     */
+    private static int secondHash(String segmentId) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < segmentId.length(); i++) {
+            hash ^= segmentId.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+
+    /**
+     * Reads all the entry points of a data source, a page at a time.
+     *
+     * @param dataSource to read.
+     * @param pageSize   number of entry points to ask for at once, e.g. the max_entry_points of
+     *                   the data source; null for a default.
+     * @param maxSize    largest number of entry points to load.
+     * @return the catalog, null if the data source has more than maxSize entry points or no
+     *         entry point version.
+     * @throws UnimplementedFeatureException if the data source has no entry points.
+     * @throws DataSourceException           if the data source fails.
+     */
+    public static EntryPointCatalog load(AnnotationDataSource dataSource, Integer pageSize, int maxSize)
+            throws UnimplementedFeatureException, DataSourceException {
+        String version = dataSource.getEntryPointVersion();
+        int total = dataSource.getTotalEntryPoints();
+        if (version == null || total > maxSize) {
+            return null;
+        }
+        int page = pageSize == null || pageSize <= 0 ? DEFAULT_PAGE_SIZE : pageSize;
+        List<DasEntryPoint> entryPoints = new ArrayList<DasEntryPoint>(Math.max(0, total));
+        while (entryPoints.size() < total) {
+            int start = entryPoints.size() + 1;
+            Collection<DasEntryPoint> read = dataSource.getEntryPoints(start, Math.min(total, start + page - 1));
+            if (read == null || read.isEmpty()) {
+                break;
+            }
+            entryPoints.addAll(read);
+        }
+        return new EntryPointCatalog(version, entryPoints.toArray(new DasEntryPoint[entryPoints.size()]));
+    }
+
+    /**
+     * @return the entry point version of the data source when the catalog was loaded.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of entry points.
+     */
+    public int getTotal() {
+        return rows.length;
+    }
+
+    /**
+     * @param start first row, from 1.
+     * @param stop  last row, included; rows beyond the last entry point are ignored.
+     * @return the entry points of the rows, empty if start is beyond the last entry point.
+     */
+    public List<DasEntryPoint> getRows(int start, int stop) {
+        int from = Math.max(0, start - 1);
+        int to = Math.min(rows.length, stop);
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(rows).subList(from, to));
+    }
+
+    /**
+     * @param segmentId of an entry point.
+     * @return the entry point, null if there is none with this id.
+     */
+    public DasEntryPoint get(String segmentId) {
+        if (segmentId == null || !mightContain(segmentId)) {
+            return null;
+        }
+        int low = 0;
+        int high = bySegmentId.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            DasEntryPoint entryPoint = bySegmentId[middle];
+            int comparison = entryPoint.getSegmentId().compareTo(segmentId);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return entryPoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param segmentId to look for.
+     * @return true if it is the id of an entry point.
+     */
+    public boolean contains(String segmentId) {
+        return get(segmentId) != null;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Polls the files a data source is built from, and tells the data source when one of them
+ * has changed, so that it can parse it again in the background and swap the new model in.
+ * <p/>
+ * A change is only reported once the size and modification time of the file have been the
+ * same for two polls, so that a file being copied is not parsed half written.  When a file
+ * has only been appended to, the change says so, and the data source may parse only the new
+ * lines, from {@link Change#openAppended()}.
+ * <p/>
+ * Usage in a data source:
+ * <pre>
+ * watcher = FileWatcher.forDataSource(dataSourceConfig, new FileWatcher.Listener() {
+ *     public void fileChanged(FileWatcher.Change change) throws Exception {
+ *         model = parse(change.open());
+ *     }
+ * }, gffFile);
+ * </pre>
+ * and <code>watcher.stop()</code> in the destroy method.  The watch_interval data source
+ * property sets the polling interval in seconds (5 by default); 0 disables the watching.
+ * <p/>
+ * All the watchers share one background thread, which runs the listeners.
+ */
+public final class FileWatcher {
+
+    private static final Logger logger = Logger.getLogger(FileWatcher.class);
+
+    /**
+     * Data source property giving the polling interval in seconds, 0 to disable the watching.
+     */
+    public static final String PROPERTY_WATCH_INTERVAL = "watch_interval";
+
+    public static final long DEFAULT_WATCH_INTERVAL = 5;
+
+    /**
+     * Bytes before the previous end of a file compared to detect that it was only appended to.
+     */
+    private static final int TAIL_LENGTH = 4096;
+
+    private static ScheduledExecutorService scheduler;
+
+    private static int watcherCount = 0;
+
+    /**
+     * Receives the changes of the watched files.
+     */
+    public interface Listener {
+        /**
+         * Called on the watcher thread; the data source keeps serving its current model meanwhile.
+         *
+         * @param change of a watched file.
+         * @throws Exception if the file cannot be parsed; the error is logged, and the change
+         *                   reported again at the next modification of the file.
+         */
+        void fileChanged(Change change) throws Exception;
+    }
+
+    /**
+     * A change of a watched file.  The streams it opens stop at the length the file had when
+     * the change was detected, which the watcher takes as the new state of the file.
+     */
+    public static final class Change {
+        private final File file;
+        private final long previousLength;
+        private final long length;
+        private final boolean appended;
+
+        private Change(File file, long previousLength, long length, boolean appended) {
+            this.file = file;
+            this.previousLength = previousLength;
+            this.length = length;
+            this.appended = appended;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return true if lines have only been added at the end of the file.
+         */
+        public boolean isAppended() {
+            return appended;
+        }
+
+        /**
+         * @return the length of the file when it was last read, where the appended lines start.
+         */
+        public long getPreviousLength() {
+            return previousLength;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the whole content of the file.
+         * @throws IOException if the file cannot be opened.
+         */
+        public InputStream open() throws IOException {
+            return new BoundedInputStream(new FileInputStream(file), length);
+        }
+
+        /**
+         * @return the lines appended since the previous change.
+         * @throws IOException if the file cannot be opened.
+         * @throws IllegalStateException if the file has not been appended to.
+         */
+        public InputStream openAppended() throws IOException {
+            if (!appended) {
+                throw new IllegalStateException(file + " has been rewritten, not appended to");
+            }
+            FileInputStream in = new FileInputStream(file);
+            long skipped = 0;
+            while (skipped < previousLength) {
+                long count = in.skip(previousLength - skipped);
+                if (count <= 0) {
+                    in.close();
+                    throw new IOException(file + " is shorter than expected");
+                }
+                skipped += count;
+            }
+            return new BoundedInputStream(in, length - previousLength);
+        }
+    }
+
+    /**
+     * The state of a file at a poll.
+     */
+    private static final class State {
+        private final long length;
+        private final long lastModified;
+
+        private State(File file) {
+            this(file.length(), file.lastModified());
+        }
+
+        private State(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        private boolean sameAs(State other) {
+            return other != null && length == other.length && lastModified == other.lastModified;
+        }
+    }
+
+    private final File[] files;
+
+    private final Listener listener;
+
+    private final long intervalMillis;
+
+    private final State[] seen;
+
+    private final long[] tailCrcs;
+
+    private final State[] pending;
+
+    private ScheduledFuture<?> future;
+
+    /**
+     * @param dataSourceConfig of the data source, with the watch_interval property.
+     * @param listener         receiving the changes.
+     * @param files            to watch.
+     * @return the started watcher, null if watching is disabled for the data source.
+     */
+    public static FileWatcher forDataSource(DataSourceConfiguration dataSourceConfig, Listener listener, File... files) {
+        long interval = DEFAULT_WATCH_INTERVAL;
+        PropertyType property = dataSourceConfig.getDataSourceProperties().get(PROPERTY_WATCH_INTERVAL);
+        if (property != null) {
+            try {
+                interval = Long.parseLong(property.getValue().trim());
+            } catch (NumberFormatException e) {
+                logger.error("The " + PROPERTY_WATCH_INTERVAL + " property of " + dataSourceConfig.getId()
+                        + " is not numeric, its files will not be watched.");
+                return null;
+            }
+        }
+        if (interval <= 0) {
+            return null;
+        }
+        FileWatcher watcher = new FileWatcher(TimeUnit.SECONDS.toMillis(interval), listener, files);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Takes the current content of the files as already read by the listener.
+     *
+     * @param intervalMillis between two polls.
+     * @param listener       receiving the changes.
+     * @param files          to watch.
+     */
+    public FileWatcher(long intervalMillis, Listener listener, File... files) {
+        this.intervalMillis = intervalMillis;
+        this.listener = listener;
+        this.files = files;
+        this.seen = new State[files.length];
+        this.tailCrcs = new long[files.length];
+        this.pending = new State[files.length];
+        for (int i = 0; i < files.length; i++) {
+            seen[i] = new State(files[i]);
+            tailCrcs[i] = tailCrc(files[i], seen[i].length);
+        }
+    }
+
+    public void start() {
+        synchronized (FileWatcher.class) {
+            if (future != null) {
+                return;
+            }
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "mydas-file-watcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            watcherCount++;
+            future = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    poll();
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops watching; the shared thread ends with the last watcher, e.g. when the web
+     * application is undeployed.
+     */
+    public void stop() {
+        synchronized (FileWatcher.class) {
+            if (future == null) {
+                return;
+            }
+            future.cancel(false);
+            future = null;
+            if (--watcherCount == 0) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+    }
+
+    /**
+     * Checks the files once, reporting the changes of the files which have stopped changing.
+     */
+    void poll() {
+        for (int i = 0; i < files.length; i++) {
+            State state = new State(files[i]);
+            if (state.sameAs(seen[i]) || !files[i].isFile()) {
+                pending[i] = null;
+                continue;
+            }
+            if (!state.sameAs(pending[i])) {
+                // Still being written: wait for it to settle.
+                pending[i] = state;
+                continue;
+            }
+            pending[i] = null;
+            long previousLength = seen[i].length;
+            boolean appended = state.length > previousLength && previousLength > 0
+                    && tailCrc(files[i], previousLength) == tailCrcs[i];
+            long length = state.length;
+            if (appended) {
+                // Leave an unfinished last line for the next change.
+                length = endOfLastLine(files[i], previousLength, state.length);
+                if (length == previousLength) {
+                    continue;
+                }
+            }
+            Change change = new Change(files[i], previousLength, length, appended);
+            try {
+                long start = System.currentTimeMillis();
+                listener.fileChanged(change);
+                logger.info("Reloaded " + files[i] + (appended ? " (" + (length - previousLength) + " bytes appended)" : "")
+                        + " in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (Exception e) {
+                logger.error("The modified file " + files[i] + " could not be loaded, the previous content is still in use.", e);
+            }
+            // Failed changes are not retried until the file changes again.
+            seen[i] = length == state.length ? state : new State(length, state.lastModified);
+            tailCrcs[i] = tailCrc(files[i], length);
+        }
+    }
+
+    /**
+     * @return the CRC32 of the bytes before length, -1 if they cannot be read.
+     */
+    private static long tailCrc(File file, long length) {
+        int count = (int) Math.min(TAIL_LENGTH, length);
+        byte[] tail = new byte[count];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(length - count);
+                raf.readFully(tail);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tail);
+        return crc.getValue();
+    }
+
+    /**
+     * @return the position after the last line feed between from and to, from if there is none.
+     */
+    private static long endOfLastLine(File file, long from, long to) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] buffer = new byte[TAIL_LENGTH];
+                long end = to;
+                while (end > from) {
+                    int count = (int) Math.min(buffer.length, end - from);
+                    raf.seek(end - count);
+                    raf.readFully(buffer, 0, count);
+                    for (int i = count - 1; i >= 0; i--) {
+                        if (buffer[i] == '\n') {
+                            return end - count + i + 1;
+                        }
+                    }
+                    end -= count;
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Nothing appended which can be read.
+        }
+        return from;
+    }
+
+    /**
+     * Reads a stream up to a given length.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = super.read(bytes, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.exceptions.RequestCancelledException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline and cancellation state of the request being handled by the current thread.
+ * <p/>
+ * Data sources doing long work may check it, to give up as soon as the result is no longer
+ * wanted and release their CPU and connections:
+ * <pre>
+ *     RequestContext context = RequestContext.current();
+ *     for (...) {
+ *         if (context != null) {
+ *             context.checkCancelled();
+ *         }
+ *         ...
+ *     }
+ * </pre>
+ * When the deadline passes the thread handling the request is also interrupted, which ends most
+ * blocking waits, and the cancellation handlers registered by the data source are run, e.g. to
+ * cancel a JDBC statement.  Data sources which ignore the context are unaffected.
+ */
+public final class RequestContext {
+
+    private static final Logger logger = Logger.getLogger(RequestContext.class);
+
+    private static final ThreadLocal<RequestContext> CURRENT = new ThreadLocal<RequestContext>();
+
+    /**
+     * Expires the deadlines.
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mydas-request-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String description;
+
+    private final long deadline;
+
+    private final Thread thread;
+
+    private ScheduledFuture<?> expiry;
+
+    private final List<Runnable> handlers = new ArrayList<Runnable>(2);
+
+    /**
+     * Guarded by this.
+     */
+    private boolean ended = false;
+
+    private volatile boolean cancelled = false;
+
+    private volatile boolean expired = false;
+
+    private RequestContext(String description, long timeoutMillis) {
+        this.description = description;
+        this.deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        this.thread = Thread.currentThread();
+    }
+
+    /**
+     * @return the context of the request handled by the current thread, null outside a request.
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts the context of the request handled by the current thread.  Called by the servlet,
+     * which must call {@link #end()} once the request has been handled.
+     *
+     * @param description   of the request, for the logs.
+     * @param timeoutMillis time allowed to handle the request, 0 or less for no deadline.
+     * @return the new context.
+     */
+    public static RequestContext begin(String description, long timeoutMillis) {
+        final RequestContext context = new RequestContext(description, timeoutMillis);
+        if (timeoutMillis > 0) {
+            context.expiry = TIMER.schedule(new Runnable() {
+                public void run() {
+                    context.expire();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        CURRENT.set(context);
+        return context;
+    }
+
+    /**
+     * Ends the context, once the request has been handled.  Clears the interruption of the
+     * thread if it was caused by the deadline, so that it does not affect the next request.
+     */
+    public void end() {
+        synchronized (this) {
+            ended = true;
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        CURRENT.remove();
+        if (expired) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * @return true if the request has a deadline.
+     */
+    public boolean hasDeadline() {
+        return deadline != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the time left before the deadline in milliseconds, 0 once it has passed,
+     *         Long.MAX_VALUE without a deadline.
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the request should stop: it has run past its deadline or its client has gone.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the request has run past its deadline.
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * @throws RequestCancelledException if the request should stop.
+     */
+    public void checkCancelled() throws RequestCancelledException {
+        if (cancelled) {
+            throw cancellation(null);
+        }
+    }
+
+    /**
+     * @param cause of the failure of the request, if it failed because of the cancellation.
+     * @return the exception reporting the cancellation of the request.
+     */
+    public RequestCancelledException cancellation(Throwable cause) {
+        if (expired) {
+            return new RequestCancelledException("The request " + description + " has run past its deadline", true, cause);
+        }
+        return new RequestCancelledException("The request " + description + " has been cancelled", false, cause);
+    }
+
+    /**
+     * Registers a handler to run when the request is cancelled, from another thread, e.g. to
+     * cancel a database query.  Runs it straight away if the request is already cancelled.
+     *
+     * @param handler to run once.
+     */
+    public void addCancellationHandler(Runnable handler) {
+        synchronized (this) {
+            if (!cancelled) {
+                handlers.add(handler);
+                return;
+            }
+        }
+        run(handler);
+    }
+
+    /**
+     * @param handler registered with {@link #addCancellationHandler(Runnable)}, once no longer needed.
+     */
+    public synchronized void removeCancellationHandler(Runnable handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * Cancels the request, e.g. when the client has gone.  The thread handling it is not
+     * interrupted, as it may be the one cancelling it.
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<Runnable>(handlers);
+            handlers.clear();
+        }
+        for (Runnable handler : toRun) {
+            run(handler);
+        }
+    }
+
+    private void expire() {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            expired = true;
+        }
+        logger.warn("The request " + description + " has run past its deadline, interrupting it");
+        cancel();
+        synchronized (this) {
+            // Interrupted while the lock is held, so that the request cannot end in between.
+            if (!ended) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void run(Runnable handler) {
+        try {
+            handler.run();
+        } catch (RuntimeException e) {
+            logger.error("Exception thrown by the cancellation handler of the request " + description, e);
+        }
+    }
+}
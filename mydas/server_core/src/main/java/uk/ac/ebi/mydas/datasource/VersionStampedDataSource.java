@@ -0,0 +1,55 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource;
+
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+
+import java.util.Date;
+
+/**
+ * Optional interface for data sources that can tell cheaply whether their content has changed.
+ * <p/>
+ * MyDas uses the version stamp to build the ETag of the responses of the data source, so that
+ * clients revalidating a response get a 304 (Not Modified) without the data source being queried.
+ * Data sources that do not implement this interface are validated with their entry point version,
+ * if they implement getEntryPointVersion; otherwise no validators are sent.
+ * <p/>
+ * Both methods are called for every cacheable request, so should not hit the underlying database.
+ */
+public interface VersionStampedDataSource {
+
+    /**
+     * @return an opaque string that changes whenever the content served by the data source changes.
+     *         Returning null disables the validation of the responses.
+     * @throws DataSourceException in case of problems retrieving the stamp.
+     */
+    public String getVersionStamp() throws DataSourceException;
+
+    /**
+     * @return the time the content served by the data source last changed, sent as
+     *         Last-Modified; null if unknown.
+     * @throws DataSourceException in case of problems retrieving the date.
+     */
+    public Date getLastModified() throws DataSourceException;
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.jdbc;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.datasource.RangeHandlingAnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.RequestContext;
+import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
+import uk.ac.ebi.mydas.exceptions.CoordinateErrorException;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
+import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
+import uk.ac.ebi.mydas.model.DasEntryPoint;
+import uk.ac.ebi.mydas.model.DasEntryPointOrientation;
+import uk.ac.ebi.mydas.model.DasFeature;
+import uk.ac.ebi.mydas.model.Range;
+
+import javax.servlet.ServletContext;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for annotation data sources backed by a relational database.
+ * <p/>
+ * The subclass gives the SQL of its queries and maps the rows of their result sets to
+ * {@link DasFeature} objects; this class takes care of the rest:
+ * <ul>
+ * <li>connections are taken from a bounded {@link JdbcConnectionPool}, so concurrent requests
+ * never share a connection;</li>
+ * <li>every query is a prepared statement, cached per connection, with bind parameters;</li>
+ * <li>rows are mapped one at a time as they are fetched (the fetch size is configurable), so
+ * a result set is never copied as a whole into memory, and pagination with the
+ * 'rows-for-feature' capability only builds the features of the requested rows;</li>
+ * <li>feature_id lookups are run as a few batched <code>IN (?,...)</code> queries;</li>
+ * <li>coordinate restricted requests are given to the database as a range query, which
+ * should be backed by an index on the segment and coordinate columns.</li>
+ * </ul>
+ * The connection is configured with the following data source properties in MydasServerConfig.xml:
+ * <ul>
+ * <li><b>jdbc_url</b> (required) the JDBC url of the database;</li>
+ * <li><b>jdbc_driver</b> class of the JDBC driver, if it is not registered automatically;</li>
+ * <li><b>jdbc_user</b> and <b>jdbc_password</b>;</li>
+ * <li><b>jdbc_pool_size</b> maximum number of connections (default 8);</li>
+ * <li><b>jdbc_pool_timeout</b> milliseconds to wait for a free connection (default 10000);</li>
+ * <li><b>jdbc_fetch_size</b> rows fetched per round trip (default 500; MySQL needs
+ * -2147483648 to stream);</li>
+ * <li><b>jdbc_statement_cache</b> prepared statements kept per connection (default 32);</li>
+ * <li><b>jdbc_in_batch_size</b> maximum number of feature ids per IN query (default 100).</li>
+ * </ul>
+ * The methods of AnnotationDataSource that are not about features (getTypes,
+ * getTotalCountForType, getLinkURL, getEntryPointVersion) are left to the subclass, which can use
+ * {@link #query(String, RowHandler, Object...)} for them.
+ */
+public abstract class JdbcAnnotationDataSource implements RangeHandlingAnnotationDataSource {
+
+    private static final Logger logger = Logger.getLogger(JdbcAnnotationDataSource.class);
+
+    public static final String PROPERTY_URL = "jdbc_url";
+    public static final String PROPERTY_DRIVER = "jdbc_driver";
+    public static final String PROPERTY_USER = "jdbc_user";
+    public static final String PROPERTY_PASSWORD = "jdbc_password";
+    public static final String PROPERTY_POOL_SIZE = "jdbc_pool_size";
+    public static final String PROPERTY_POOL_TIMEOUT = "jdbc_pool_timeout";
+    public static final String PROPERTY_FETCH_SIZE = "jdbc_fetch_size";
+    public static final String PROPERTY_STATEMENT_CACHE = "jdbc_statement_cache";
+    public static final String PROPERTY_IN_BATCH_SIZE = "jdbc_in_batch_size";
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final int DEFAULT_POOL_TIMEOUT = 10000;
+    public static final int DEFAULT_FETCH_SIZE = 500;
+    public static final int DEFAULT_STATEMENT_CACHE = 32;
+    public static final int DEFAULT_IN_BATCH_SIZE = 100;
+
+    /**
+     * Column names read by the default implementations of {@link #newSegment} and
+     * {@link #mapEntryPoint(ResultSet)}.
+     */
+    public static final String COLUMN_SEGMENT_ID = "segment_id";
+    public static final String COLUMN_START = "start";
+    public static final String COLUMN_STOP = "stop";
+    public static final String COLUMN_VERSION = "version";
+
+    /**
+     * Called for each row of a result set, as it is fetched.
+     */
+    protected interface RowHandler {
+        /**
+         * @param row the result set, positioned on the current row.
+         * @return false to stop reading the result set.
+         * @throws SQLException        when reading the row fails.
+         * @throws DataSourceException when the row cannot be mapped.
+         */
+        boolean handle(ResultSet row) throws SQLException, DataSourceException;
+    }
+
+    protected ServletContext svCon;
+
+    protected Map<String, PropertyType> globalParameters;
+
+    protected DataSourceConfiguration config;
+
+    private JdbcConnectionPool pool;
+
+    private int inBatchSize;
+
+    /**
+     * Reads the connection properties, registers the driver and opens a first connection to check
+     * that the database can be reached.  Subclasses overriding this method must call it first.
+     */
+    public void init(ServletContext servletContext, Map<String, PropertyType> globalParameters,
+                     DataSourceConfiguration dataSourceConfig) throws DataSourceException {
+        this.svCon = servletContext;
+        this.globalParameters = globalParameters;
+        this.config = dataSourceConfig;
+        String url = getProperty(PROPERTY_URL, null);
+        if (url == null) {
+            throw new DataSourceException("The data source property " + PROPERTY_URL + " must be set for " + dataSourceConfig.getId());
+        }
+        String driver = getProperty(PROPERTY_DRIVER, null);
+        if (driver != null) {
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new DataSourceException("The JDBC driver " + driver + " is not in the classpath", e);
+            }
+        }
+        inBatchSize = getIntProperty(PROPERTY_IN_BATCH_SIZE, DEFAULT_IN_BATCH_SIZE);
+        if (inBatchSize < 1) {
+            throw new DataSourceException("The data source property " + PROPERTY_IN_BATCH_SIZE + " must be at least 1");
+        }
+        pool = new JdbcConnectionPool(url, getProperty(PROPERTY_USER, null), getProperty(PROPERTY_PASSWORD, null),
+                getIntProperty(PROPERTY_POOL_SIZE, DEFAULT_POOL_SIZE),
+                getIntProperty(PROPERTY_FETCH_SIZE, DEFAULT_FETCH_SIZE),
+                getIntProperty(PROPERTY_STATEMENT_CACHE, DEFAULT_STATEMENT_CACHE),
+                getIntProperty(PROPERTY_POOL_TIMEOUT, DEFAULT_POOL_TIMEOUT));
+        pool.release(pool.acquire(), false);
+    }
+
+    /**
+     * Closes the connections of the pool.  Subclasses overriding this method must call it.
+     */
+    public void destroy() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @return SQL selecting the segment whose id is the only parameter, or no row if it does not
+     *         exist.  The row is given to {@link #newSegment}, which by default reads the columns
+     *         start, stop and version.
+     */
+    protected abstract String getSegmentQuery();
+
+    /**
+     * @return SQL selecting the features of the segment whose id is the only parameter,
+     *         in the order they should be served.
+     */
+    protected abstract String getFeaturesQuery();
+
+    /**
+     * @return SQL selecting the features of a segment overlapping a range, in the order they
+     *         should be served.  The parameters are the segment id, the stop of the range and the
+     *         start of the range, e.g.
+     *         <code>... WHERE seq_region = ? AND feature_start &lt;= ? AND feature_end &gt;= ?</code>,
+     *         which should be backed by an index on (seq_region, feature_start).
+     */
+    protected abstract String getFeaturesInRangeQuery();
+
+    /**
+     * @param count number of feature ids.
+     * @return SQL selecting the features with any of <code>count</code> feature ids, which are the
+     *         parameters, typically built with {@link #placeholders(int)}.  The segment of each row is
+     *         read by {@link #mapSegmentId(ResultSet)}.
+     */
+    protected abstract String getFeaturesByIdQuery(int count);
+
+    /**
+     * Maps the current row of a features query.
+     *
+     * @param row the result set, positioned on the row to map.  Must not be moved.
+     * @return the feature.
+     * @throws SQLException        when reading the row fails.
+     * @throws DataSourceException when the feature cannot be built.
+     */
+    protected abstract DasFeature mapFeature(ResultSet row) throws SQLException, DataSourceException;
+
+    /**
+     * @param row of the feature_id query.
+     * @return the id of the segment the feature is on, by default the segment_id column.
+     * @throws SQLException when reading the row fails.
+     */
+    protected String mapSegmentId(ResultSet row) throws SQLException {
+        return row.getString(COLUMN_SEGMENT_ID);
+    }
+
+    /**
+     * Builds the annotated segment from the row of the segment query.
+     *
+     * @param segmentId  of the segment.
+     * @param segmentRow row of {@link #getSegmentQuery()}.
+     * @param features   of the segment.
+     * @param total      number of features of the segment, when only some of them are
+     *                   included for pagination; otherwise null.
+     * @return the annotated segment, or null if the row does not describe an existing segment.
+     * @throws SQLException        when reading the row fails.
+     * @throws DataSourceException when the segment cannot be built.
+     */
+    protected DasAnnotatedSegment newSegment(String segmentId, ResultSet segmentRow, Collection<DasFeature> features,
+                                             Integer total) throws SQLException, DataSourceException {
+        return new DasAnnotatedSegment(segmentId, segmentRow.getInt(COLUMN_START), segmentRow.getInt(COLUMN_STOP),
+                segmentRow.getString(COLUMN_VERSION), segmentId, features, total);
+    }
+
+    /**
+     * @return SQL selecting all the entry points in a stable order, or null (the default) if this
+     *         data source does not serve entry points.
+     */
+    protected String getEntryPointsQuery() {
+        return null;
+    }
+
+    /**
+     * @return SQL counting the entry points in a single column, or null (the default) if this data
+     *         source does not serve entry points.
+     */
+    protected String getTotalEntryPointsQuery() {
+        return null;
+    }
+
+    /**
+     * Maps the current row of the entry points query, by default from the segment_id, start and
+     * stop columns.
+     *
+     * @param row the result set, positioned on the row to map.
+     * @return the entry point.
+     * @throws SQLException        when reading the row fails.
+     * @throws DataSourceException when the entry point cannot be built.
+     */
+    protected DasEntryPoint mapEntryPoint(ResultSet row) throws SQLException, DataSourceException {
+        return new DasEntryPoint(row.getString(COLUMN_SEGMENT_ID), row.getInt(COLUMN_START), row.getInt(COLUMN_STOP),
+                null, null, DasEntryPointOrientation.NO_INTRINSIC_ORIENTATION, null, false);
+    }
+
+    public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins)
+            throws BadReferenceObjectException, DataSourceException {
+        return segmentFeatures(segmentId, getFeaturesQuery(), null, segmentId);
+    }
+
+    public DasAnnotatedSegment getFeatures(String segmentId, Integer maxbins, Range rows)
+            throws BadReferenceObjectException, DataSourceException, UnimplementedFeatureException {
+        return segmentFeatures(segmentId, getFeaturesQuery(), rows, segmentId);
+    }
+
+    public DasAnnotatedSegment getFeatures(String segmentId, int start, int stop, Integer maxbins)
+            throws BadReferenceObjectException, CoordinateErrorException, DataSourceException {
+        return segmentFeatures(segmentId, getFeaturesInRangeQuery(), null, segmentId, stop, start);
+    }
+
+    public DasAnnotatedSegment getFeatures(String segmentId, int start, int stop, Integer maxbins, Range rows)
+            throws BadReferenceObjectException, CoordinateErrorException, DataSourceException, UnimplementedFeatureException {
+        return segmentFeatures(segmentId, getFeaturesInRangeQuery(), rows, segmentId, stop, start);
+    }
+
+    public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins)
+            throws UnimplementedFeatureException, DataSourceException {
+        final Map<String, List<DasFeature>> featuresBySegment = new LinkedHashMap<String, List<DasFeature>>();
+        List<String> featureIds = new ArrayList<String>(new LinkedHashSet<String>(featureIdCollection));
+        for (int from = 0; from < featureIds.size(); from += inBatchSize) {
+            List<String> batch = featureIds.subList(from, Math.min(from + inBatchSize, featureIds.size()));
+            // Pad the batch to a power of two by repeating its last id, so that only a few
+            // distinct statements are prepared whatever the number of ids requested.
+            int count = Math.min(Integer.highestOneBit(batch.size() * 2 - 1), inBatchSize);
+            Object[] parameters = new Object[count];
+            for (int i = 0; i < count; i++) {
+                parameters[i] = batch.get(Math.min(i, batch.size() - 1));
+            }
+            query(getFeaturesByIdQuery(count), new RowHandler() {
+                public boolean handle(ResultSet row) throws SQLException, DataSourceException {
+                    String segmentId = mapSegmentId(row);
+                    List<DasFeature> features = featuresBySegment.get(segmentId);
+                    if (features == null) {
+                        features = new ArrayList<DasFeature>();
+                        featuresBySegment.put(segmentId, features);
+                    }
+                    features.add(mapFeature(row));
+                    return true;
+                }
+            }, parameters);
+        }
+        Collection<DasAnnotatedSegment> segments = new ArrayList<DasAnnotatedSegment>(featuresBySegment.size());
+        for (Map.Entry<String, List<DasFeature>> entry : featuresBySegment.entrySet()) {
+            DasAnnotatedSegment segment = segment(entry.getKey(), entry.getValue(), null);
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Not implemented: MyDas paginates the segments returned by
+     * {@link #getFeatures(Collection, Integer)} itself.
+     */
+    public Collection<DasAnnotatedSegment> getFeatures(Collection<String> featureIdCollection, Integer maxbins, Range rows)
+            throws UnimplementedFeatureException, DataSourceException {
+        throw new UnimplementedFeatureException("Pagination of feature_id requests is done by MyDas");
+    }
+
+    public Collection<DasEntryPoint> getEntryPoints(Integer start, Integer stop)
+            throws UnimplementedFeatureException, DataSourceException {
+        String sql = getEntryPointsQuery();
+        if (sql == null) {
+            throw new UnimplementedFeatureException("The entry_points command is not implemented by " + config.getId());
+        }
+        final int first = start == null ? 1 : start;
+        final int last = stop == null ? Integer.MAX_VALUE : stop;
+        final List<DasEntryPoint> entryPoints = new ArrayList<DasEntryPoint>();
+        query(sql, new RowHandler() {
+            private int rowNumber = 0;
+
+            public boolean handle(ResultSet row) throws SQLException, DataSourceException {
+                rowNumber++;
+                if (rowNumber >= first) {
+                    entryPoints.add(mapEntryPoint(row));
+                }
+                return rowNumber < last;
+            }
+        });
+        return entryPoints;
+    }
+
+    public int getTotalEntryPoints() throws UnimplementedFeatureException, DataSourceException {
+        String sql = getTotalEntryPointsQuery();
+        if (sql == null) {
+            throw new UnimplementedFeatureException("The entry_points command is not implemented by " + config.getId());
+        }
+        final int[] total = new int[1];
+        query(sql, new RowHandler() {
+            public boolean handle(ResultSet row) throws SQLException {
+                total[0] = row.getInt(1);
+                return false;
+            }
+        });
+        return total[0];
+    }
+
+    /**
+     * Runs a query with a pooled connection and a cached prepared statement, handing each row to
+     * the handler as it is fetched.
+     *
+     * @param sql        with ? placeholders.
+     * @param handler    called for each row, until it returns false.
+     * @param parameters bound in order with setObject.
+     * @throws DataSourceException if the query fails, or as thrown by the handler.
+     */
+    protected final void query(String sql, RowHandler handler, Object... parameters) throws DataSourceException {
+        RequestContext context = RequestContext.current();
+        if (context != null) {
+            context.checkCancelled();
+        }
+        JdbcConnectionPool.PooledConnection connection = pool.acquire();
+        boolean broken = true;
+        Runnable canceller = null;
+        try {
+            final PreparedStatement statement = connection.prepare(sql);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            // The statements are cached, so the timeout of a previous request is always replaced.
+            statement.setQueryTimeout(context == null || !context.hasDeadline()
+                    ? 0 : (int) Math.max(1, (context.getRemainingMillis() + 999) / 1000));
+            if (context != null) {
+                canceller = new Runnable() {
+                    public void run() {
+                        try {
+                            statement.cancel();
+                        } catch (SQLException e) {
+                            logger.warn("Could not cancel the query of an abandoned request", e);
+                        }
+                    }
+                };
+                context.addCancellationHandler(canceller);
+            }
+            ResultSet rs = statement.executeQuery();
+            try {
+                while (rs.next() && handler.handle(rs)) {
+                    // handled
+                }
+            } finally {
+                rs.close();
+            }
+            broken = false;
+        } catch (SQLException e) {
+            if (context != null && context.isCancelled()) {
+                throw context.cancellation(e);
+            }
+            throw new DataSourceException("Problems executing the sql query " + sql, e);
+        } finally {
+            if (canceller != null) {
+                context.removeCancellationHandler(canceller);
+            }
+            pool.release(connection, broken);
+        }
+    }
+
+    /**
+     * @param count number of placeholders.
+     * @return "?,?,...,?" with <code>count</code> placeholders, for an IN clause.
+     */
+    protected static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    /**
+     * Streams the features of a segment, keeping only the requested rows if paginated.
+     */
+    private DasAnnotatedSegment segmentFeatures(String segmentId, String sql, Range rows, Object... parameters)
+            throws BadReferenceObjectException, DataSourceException {
+        final List<DasFeature> features = new ArrayList<DasFeature>();
+        final Range range = rows;
+        final int[] total = new int[1];
+        query(sql, new RowHandler() {
+            public boolean handle(ResultSet row) throws SQLException, DataSourceException {
+                total[0]++;
+                if (range == null || (total[0] >= range.getFrom() && total[0] <= range.getTo())) {
+                    features.add(mapFeature(row));
+                }
+                return true;
+            }
+        }, parameters);
+        DasAnnotatedSegment segment = segment(segmentId, features, rows == null ? null : total[0]);
+        if (segment == null) {
+            throw new BadReferenceObjectException(segmentId, "The segment is not known by " + config.getId());
+        }
+        return segment;
+    }
+
+    /**
+     * @return the annotated segment, or null if the segment does not exist.
+     */
+    private DasAnnotatedSegment segment(final String segmentId, final Collection<DasFeature> features, final Integer total)
+            throws DataSourceException {
+        final DasAnnotatedSegment[] segment = new DasAnnotatedSegment[1];
+        query(getSegmentQuery(), new RowHandler() {
+            public boolean handle(ResultSet row) throws SQLException, DataSourceException {
+                segment[0] = newSegment(segmentId, row, features, total);
+                return false;
+            }
+        }, segmentId);
+        return segment[0];
+    }
+
+    private String getProperty(String name, String defaultValue) {
+        Map<String, PropertyType> properties = config.getDataSourceProperties();
+        PropertyType property = properties == null ? null : properties.get(name);
+        if (property == null || property.getValue() == null || property.getValue().trim().length() == 0) {
+            return defaultValue;
+        }
+        return property.getValue().trim();
+    }
+
+    private int getIntProperty(String name, int defaultValue) throws DataSourceException {
+        String value = getProperty(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new DataSourceException("The data source property " + name + " must be an integer: " + value, e);
+        }
+    }
+}
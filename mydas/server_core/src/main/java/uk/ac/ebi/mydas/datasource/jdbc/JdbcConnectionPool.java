@@ -0,0 +1,280 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.jdbc;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of JDBC connections, each of them keeping a cache of its prepared statements.
+ * <p/>
+ * At most <code>size</code> connections are open at any time; a thread asking for a connection
+ * when all of them are in use waits up to the configured timeout.  Connections are opened lazily
+ * and validated when they are taken from the pool after having been idle for a while.
+ * <p/>
+ * Usage:
+ * <pre>
+ * JdbcConnectionPool.PooledConnection connection = pool.acquire();
+ * boolean broken = true;
+ * try {
+ *     PreparedStatement statement = connection.prepare(sql);
+ *     ...
+ *     broken = false;
+ * } finally {
+ *     pool.release(connection, broken);
+ * }
+ * </pre>
+ */
+public final class JdbcConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(JdbcConnectionPool.class);
+
+    /**
+     * Connections idle for longer than this are validated before being handed out.
+     */
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30000;
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final String url;
+
+    private final String user;
+
+    private final String password;
+
+    private final int fetchSize;
+
+    private final int statementCacheSize;
+
+    private final long timeoutMillis;
+
+    private final Semaphore permits;
+
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param url                JDBC url of the database; the driver must already be registered.
+     * @param user               to connect as, may be null.
+     * @param password           of the user, may be null.
+     * @param size               maximum number of open connections.
+     * @param fetchSize          set on every prepared statement, 0 to leave the driver default.
+     * @param statementCacheSize maximum number of prepared statements kept open per connection.
+     * @param timeoutMillis      maximum time to wait for a free connection.
+     */
+    public JdbcConnectionPool(String url, String user, String password, int size, int fetchSize,
+                              int statementCacheSize, long timeoutMillis) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The size of the connection pool must be at least 1");
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.fetchSize = fetchSize;
+        this.statementCacheSize = statementCacheSize;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if none is idle.  The connection must be
+     * given back with {@link #release(PooledConnection, boolean)}.
+     *
+     * @return a connection for the exclusive use of the calling thread.
+     * @throws DataSourceException if the pool is closed, no connection became free in time or
+     *                             the database cannot be reached.
+     */
+    public PooledConnection acquire() throws DataSourceException {
+        if (closed) {
+            throw new DataSourceException("The connection pool to " + url + " is closed");
+        }
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new DataSourceException("Timed out after " + timeoutMillis + "ms waiting for a connection to " + url);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataSourceException("Interrupted while waiting for a connection to " + url, e);
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idle.poll()) != null) {
+                if (connection.isUsable()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            permits.release();
+            throw new DataSourceException("Problems connecting to the database " + url, e);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool.
+     *
+     * @param connection taken with {@link #acquire()}, may be null.
+     * @param broken     true if the connection failed while in use, in which case it is closed
+     *                   rather than reused.
+     */
+    public void release(PooledConnection connection, boolean broken) {
+        if (connection == null) {
+            return;
+        }
+        if (broken || closed) {
+            connection.close();
+        } else {
+            connection.lastUsed = System.currentTimeMillis();
+            idle.offer(connection);
+            // The pool may have been closed while the connection was being returned.
+            if (closed && idle.remove(connection)) {
+                connection.close();
+            }
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes the idle connections and refuses further requests.  Connections still in use are
+     * closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A connection of the pool, with its cache of prepared statements.  Not thread safe: it
+     * belongs to the thread that acquired it until it is released.
+     */
+    public final class PooledConnection {
+
+        private final Connection connection;
+
+        private final Map<String, PreparedStatement> statements;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Prepares a statement, or takes it from the cache of this connection if the same SQL
+         * has already been prepared.  Its parameters are cleared and its fetch size set.
+         * The statement must not be closed by the caller.
+         *
+         * @param sql with ? placeholders for the parameters.
+         * @return the prepared statement.
+         * @throws SQLException if the statement cannot be prepared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                if (statementCacheSize > 0) {
+                    statements.put(sql, statement);
+                }
+            } else {
+                statement.clearParameters();
+            }
+            if (fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            statement.setMaxRows(0);
+            return statement;
+        }
+
+        /**
+         * @return the underlying connection, for anything the statement cache does not cover.
+         *         It must not be closed by the caller.
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        private boolean isUsable() {
+            if (System.currentTimeMillis() - lastUsed < VALIDATE_AFTER_IDLE_MILLIS) {
+                return true;
+            }
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            } catch (AbstractMethodError e) {
+                // Pre JDBC 4 driver, assume the connection is fine.
+                return true;
+            }
+        }
+
+        private void close() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Problems closing a connection to " + url, e);
+            }
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            logger.debug("Problems closing a prepared statement", e);
+        }
+    }
+}
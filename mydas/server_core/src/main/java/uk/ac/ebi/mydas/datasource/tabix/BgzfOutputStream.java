@@ -0,0 +1,163 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (blocked gzip) data, compatible with bgzip: any gzip reader can decompress it,
+ * and {@link BgzfReader} can read it at random.  Used for tabix indexes and to compress
+ * annotation files before indexing them.
+ */
+public final class BgzfOutputStream extends FilterOutputStream {
+
+    /**
+     * Uncompressed bytes per block, small enough for any compressed block to stay under 64KiB.
+     */
+    private static final int BLOCK_DATA_SIZE = 0xff00;
+
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+
+    private final byte[] buffer = new byte[BLOCK_DATA_SIZE];
+
+    private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final Deflater storer = new Deflater(Deflater.NO_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private int count = 0;
+
+    private boolean closed = false;
+
+    public BgzfOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBlock();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeBlock();
+            }
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Ends the current block, so that what has been written so far can be read back.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the last block and the empty end of file block.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                writeBlock();
+            }
+            writeBlock(); // The empty block bgzip uses as an end of file marker.
+            out.flush();
+        } finally {
+            deflater.end();
+            storer.end();
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int size = deflate(deflater);
+        if (size < 0) {
+            // Incompressible data: store it instead, which always fits.
+            size = deflate(storer);
+        }
+        crc.reset();
+        crc.update(buffer, 0, count);
+        int blockSize = BgzfReader.HEADER_SIZE + size + 8;
+        byte[] header = {
+                31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 'B', 'C', 2, 0,
+                (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)
+        };
+        out.write(header);
+        out.write(compressed, 0, size);
+        writeInt((int) crc.getValue());
+        writeInt(count);
+        count = 0;
+    }
+
+    /**
+     * @return the compressed size, -1 if the data does not fit in a block once compressed.
+     */
+    private int deflate(Deflater compressor) {
+        int limit = MAX_BLOCK_SIZE - BgzfReader.HEADER_SIZE - 8;
+        compressor.reset();
+        compressor.setInput(buffer, 0, count);
+        compressor.finish();
+        int size = 0;
+        while (!compressor.finished()) {
+            if (size == limit) {
+                return -1;
+            }
+            size += compressor.deflate(compressed, size, limit - size);
+        }
+        return size;
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access reader of a BGZF (blocked gzip, as written by bgzip) file.
+ * <p/>
+ * A BGZF file is a series of gzip members of at most 64KiB each, so a position in the
+ * uncompressed data is given by a virtual offset: the offset of its block in the file
+ * shifted left by 16 bits, plus its offset in the uncompressed block.  Only the blocks that
+ * are read are decompressed, and the most recently used ones are kept in an LRU cache.
+ * <p/>
+ * The reader is thread safe; each thread reads through its own {@link Cursor}.
+ */
+public final class BgzfReader {
+
+    static final int HEADER_SIZE = 18;
+
+    private static final int TRAILER_SIZE = 8;
+
+    private final File file;
+
+    /**
+     * Replaced when an interrupted reader closes the channel.  Guarded by this.
+     */
+    private RandomAccessFile raf;
+
+    private volatile FileChannel channel;
+
+    private volatile boolean closed = false;
+
+    private final long length;
+
+    private final Map<Long, Block> cache;
+
+    /**
+     * A decompressed block.
+     */
+    static final class Block {
+        final long offset;
+        final int compressedSize;
+        final byte[] data;
+
+        private Block(long offset, int compressedSize, byte[] data) {
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param file        BGZF file to read.
+     * @param cacheBlocks maximum number of decompressed blocks (of up to 64KiB) to keep in memory.
+     * @throws IOException if the file cannot be opened or is not a BGZF file.
+     */
+    public BgzfReader(File file, final int cacheBlocks) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.length = raf.length();
+        this.cache = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+        if (length > 0) {
+            try {
+                block(0);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param file to check.
+     * @return true if the file starts with a BGZF block.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isBgzf(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            return raf.length() >= HEADER_SIZE && raf.read(header) == HEADER_SIZE && isBlockHeader(header);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param virtualOffset to start reading from, 0 for the start of the file.
+     * @return a new cursor, for the use of one thread.
+     * @throws IOException if the block cannot be read.
+     */
+    public Cursor cursor(long virtualOffset) throws IOException {
+        return new Cursor(virtualOffset);
+    }
+
+    /**
+     * @return the whole uncompressed content as a stream, e.g. to read a tabix index.
+     * @throws IOException if the first block cannot be read.
+     */
+    public InputStream inputStream() throws IOException {
+        final Cursor cursor = cursor(0);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int count) throws IOException {
+                return cursor.read(bytes, offset, count);
+            }
+        };
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            raf.close();
+        }
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param offset of the block in the file.
+     * @return the decompressed block, null at the end of the file.
+     * @throws IOException if the block cannot be read or is damaged.
+     */
+    Block block(long offset) throws IOException {
+        if (offset >= length) {
+            return null;
+        }
+        Long key = offset;
+        synchronized (cache) {
+            Block block = cache.get(key);
+            if (block != null) {
+                return block;
+            }
+        }
+        // Decompressed outside the lock; two threads may occasionally both decompress a block.
+        Block block = readBlock(offset);
+        synchronized (cache) {
+            cache.put(key, block);
+        }
+        return block;
+    }
+
+    private Block readBlock(long offset) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(ByteBuffer.wrap(header), offset);
+        if (!isBlockHeader(header)) {
+            throw new IOException(file + " is not a BGZF file (no block at offset " + offset + ")");
+        }
+        int blockSize = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+        byte[] raw = new byte[blockSize];
+        readFully(ByteBuffer.wrap(raw), offset);
+        int trailer = blockSize - TRAILER_SIZE;
+        long crc = littleEndianInt(raw, trailer) & 0xFFFFFFFFL;
+        int size = littleEndianInt(raw, trailer + 4);
+        byte[] data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw, HEADER_SIZE, trailer - HEADER_SIZE);
+            int inflated = 0;
+            while (inflated < size) {
+                int count = inflater.inflate(data, inflated, size - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != size) {
+                throw new IOException("Damaged BGZF block at offset " + offset + " of " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged BGZF block at offset " + offset + " of " + file + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data);
+        if (check.getValue() != crc) {
+            throw new IOException("CRC error in the BGZF block at offset " + offset + " of " + file);
+        }
+        return new Block(offset, blockSize, data);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            FileChannel current = channel;
+            int count;
+            try {
+                count = current.read(buffer, position + buffer.position());
+            } catch (ClosedChannelException e) {
+                // A thread interrupted while reading, e.g. at the deadline of its request, closes
+                // the channel for every thread: open it again, and only fail the interrupted one.
+                if (closed) {
+                    throw e;
+                }
+                reopen(current);
+                if (e instanceof ClosedByInterruptException) {
+                    throw e;
+                }
+                continue;
+            }
+            if (count < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel closedChannel) throws IOException {
+        if (channel == closedChannel && !closed) {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+        }
+    }
+
+    private static boolean isBlockHeader(byte[] header) {
+        return (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139 && (header[3] & 4) != 0
+                && header[12] == 'B' && header[13] == 'C';
+    }
+
+    private static int littleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8)
+                | ((bytes[offset + 2] & 0xFF) << 16) | ((bytes[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * A reading position in the uncompressed data.  Not thread safe.
+     */
+    public final class Cursor {
+
+        private Block block;
+
+        private int position;
+
+        private byte[] line = new byte[256];
+
+        private Cursor(long virtualOffset) throws IOException {
+            block = block(virtualOffset >>> 16);
+            position = (int) (virtualOffset & 0xFFFF);
+        }
+
+        /**
+         * @return the virtual offset of the next byte to read.
+         * @throws IOException if the next block cannot be read.
+         */
+        public long getVirtualOffset() throws IOException {
+            skipExhaustedBlocks();
+            return block == null ? length << 16 : (block.offset << 16) | position;
+        }
+
+        /**
+         * Reads a line, without its line terminator.
+         *
+         * @return the line decoded as UTF-8, null at the end of the file.
+         * @throws IOException if a block cannot be read.
+         */
+        public String readLine() throws IOException {
+            int size = 0;
+            while (true) {
+                skipExhaustedBlocks();
+                if (block == null) {
+                    return size == 0 ? null : decode(size);
+                }
+                byte[] data = block.data;
+                int end = position;
+                while (end < data.length && data[end] != '\n') {
+                    end++;
+                }
+                int count = end - position;
+                if (size + count > line.length) {
+                    byte[] larger = new byte[Math.max(line.length * 2, size + count)];
+                    System.arraycopy(line, 0, larger, 0, size);
+                    line = larger;
+                }
+                System.arraycopy(data, position, line, size, count);
+                size += count;
+                if (end < data.length) {
+                    position = end + 1;
+                    return decode(size);
+                }
+                position = end;
+            }
+        }
+
+        int read(byte[] bytes, int offset, int count) throws IOException {
+            skipExhaustedBlocks();
+            if (block == null) {
+                return -1;
+            }
+            count = Math.min(count, block.data.length - position);
+            System.arraycopy(block.data, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        private void skipExhaustedBlocks() throws IOException {
+            while (block != null && position >= block.data.length) {
+                block = block(block.offset + block.compressedSize);
+                position = 0;
+            }
+        }
+
+        private String decode(int size) throws IOException {
+            if (size > 0 && line[size - 1] == '\r') {
+                size--;
+            }
+            return new String(line, 0, size, "UTF-8");
+        }
+    }
+}
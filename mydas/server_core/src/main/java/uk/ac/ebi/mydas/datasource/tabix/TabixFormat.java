@@ -0,0 +1,204 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+/**
+ * The tab (or pipe) separated formats a tabix index can be built for, with the columns of
+ * the sequence name and coordinates of each line.  The columns of GFF and VCF are those of
+ * the tabix presets, so indexes are interchangeable with those built by the tabix tool.
+ */
+public enum TabixFormat {
+
+    /**
+     * GFF, 1-based inclusive coordinates in columns 4 and 5.
+     */
+    GFF('\t', 1, 4, 5, 0),
+
+    /**
+     * VCF, 1-based position in column 2, the end being given by the length of the REF column.
+     */
+    VCF('\t', 1, 2, 0, 2),
+
+    /**
+     * The pipe separated format of the SeparatedByPipes example data source, with the segment
+     * in column 2 and the 1-based inclusive coordinates of the gene in columns 4 and 5.
+     */
+    PIPES('|', 2, 4, 5, 0);
+
+    private static final char META = '#';
+
+    private static final int VCF_REF_COLUMN = 4;
+
+    private final char delimiter;
+
+    private final int sequenceColumn;
+
+    private final int beginColumn;
+
+    private final int endColumn;
+
+    private final int formatCode;
+
+    private TabixFormat(char delimiter, int sequenceColumn, int beginColumn, int endColumn, int formatCode) {
+        this.delimiter = delimiter;
+        this.sequenceColumn = sequenceColumn;
+        this.beginColumn = beginColumn;
+        this.endColumn = endColumn;
+        this.formatCode = formatCode;
+    }
+
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * @return the 1-based column of the sequence name.
+     */
+    public int getSequenceColumn() {
+        return sequenceColumn;
+    }
+
+    /**
+     * @return the 1-based column of the start coordinate.
+     */
+    public int getBeginColumn() {
+        return beginColumn;
+    }
+
+    /**
+     * @return the 1-based column of the end coordinate, 0 if there is none.
+     */
+    public int getEndColumn() {
+        return endColumn;
+    }
+
+    /**
+     * @return the format code of the tabix index header (0 generic, 2 VCF).
+     */
+    public int getFormatCode() {
+        return formatCode;
+    }
+
+    public char getMeta() {
+        return META;
+    }
+
+    /**
+     * @param line of the file.
+     * @return true for header and comment lines, and empty lines, which are not indexed.
+     */
+    public boolean isMeta(String line) {
+        return line.length() == 0 || line.charAt(0) == META;
+    }
+
+    /**
+     * @param name of the format, case insensitive (gff, vcf or pipes).
+     * @return the format.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static TabixFormat forName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Finds the sequence and the interval of a line.
+     *
+     * @param line of the file, not a meta line.
+     * @return the interval, with a 0-based start and an exclusive end as in the index, or null
+     *         if the line does not have the columns of the format.
+     */
+    public Interval parse(String line) {
+        String[] columns = split(line);
+        int needed = Math.max(Math.max(sequenceColumn, beginColumn), endColumn == 0 ? VCF_REF_COLUMN : endColumn);
+        if (columns.length < needed) {
+            return null;
+        }
+        try {
+            int begin = Integer.parseInt(columns[beginColumn - 1].trim()) - 1;
+            int end;
+            if (endColumn == 0) {
+                end = begin + Math.max(columns[VCF_REF_COLUMN - 1].trim().length(), 1);
+            } else {
+                end = Integer.parseInt(columns[endColumn - 1].trim());
+            }
+            if (begin < 0 || end < begin) {
+                return null;
+            }
+            return new Interval(columns[sequenceColumn - 1].trim(), begin, Math.max(end, begin + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param line of the file.
+     * @return its columns, including the trailing empty ones.
+     */
+    public String[] split(String line) {
+        int count = 1;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == delimiter) {
+                count++;
+            }
+        }
+        String[] columns = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = line.indexOf(delimiter, start);
+            if (end < 0) {
+                end = line.length();
+            }
+            columns[i] = line.substring(start, end);
+            start = end + 1;
+        }
+        return columns;
+    }
+
+    /**
+     * The sequence and 0-based, half open interval of a line.
+     */
+    public static final class Interval {
+        private final String sequence;
+        private final int begin;
+        private final int end;
+
+        Interval(String sequence, int begin, int end) {
+            this.sequence = sequence;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        public String getSequence() {
+            return sequence;
+        }
+
+        public int getBegin() {
+            return begin;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binned index of a coordinate sorted, BGZF compressed file, in the format of the tabix
+ * tool (.tbi).
+ * <p/>
+ * Each line is put in the smallest bin of the UCSC binning scheme containing its interval,
+ * and each bin keeps the list of chunks (ranges of virtual offsets) holding its lines.  A
+ * linear index gives, for each 16kb window of a sequence, the smallest virtual offset of the
+ * lines overlapping it, which prunes the chunks of the large bins.  A query therefore only
+ * reads the few blocks which may hold overlapping lines.
+ */
+public final class TabixIndex {
+
+    private static final byte[] MAGIC = {'T', 'B', 'I', 1};
+
+    private static final int LINEAR_SHIFT = 14;
+
+    private static final int MAX_BIN = 37450;
+
+    /**
+     * Coordinates covered by the binning scheme.
+     */
+    private static final int MAX_COORDINATE = 1 << 29;
+
+    /**
+     * Linear index window without lines yet; 0 is the offset of the first line of a file
+     * without header, so it cannot be used.
+     */
+    private static final long NO_OFFSET = -1L;
+
+    private final TabixFormat format;
+
+    private final int skip;
+
+    private final Map<String, Integer> sequenceIds;
+
+    private final List<Reference> references;
+
+    /**
+     * The bins and linear index of one sequence.
+     */
+    private static final class Reference {
+        /**
+         * Chunks of each bin, as pairs of begin and end virtual offsets.
+         */
+        private final Map<Integer, long[]> bins;
+
+        private final long[] linear;
+
+        private Reference(Map<Integer, long[]> bins, long[] linear) {
+            this.bins = bins;
+            this.linear = linear;
+        }
+    }
+
+    private TabixIndex(TabixFormat format, int skip, List<String> names, List<Reference> references) {
+        this.format = format;
+        this.skip = skip;
+        this.sequenceIds = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            sequenceIds.put(names.get(i), i);
+        }
+        this.references = references;
+    }
+
+    /**
+     * @return the format the index was built for.
+     */
+    public TabixFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the names of the sequences, in the order of the file.
+     */
+    public List<String> getSequenceNames() {
+        return new ArrayList<String>(sequenceIds.keySet());
+    }
+
+    /**
+     * Finds the parts of the file which may hold lines overlapping a region.
+     *
+     * @param sequence name.
+     * @param begin    0-based start of the region.
+     * @param end      exclusive end of the region.
+     * @return sorted, non overlapping pairs of begin and end virtual offsets; empty if the
+     *         sequence is not in the index.
+     */
+    public long[] query(String sequence, int begin, int end) {
+        Integer id = sequenceIds.get(sequence);
+        if (id == null || end <= begin) {
+            return new long[0];
+        }
+        Reference reference = references.get(id);
+        begin = Math.max(begin, 0);
+        end = Math.min(end, MAX_COORDINATE);
+        long minOffset = 0;
+        if (reference.linear.length > 0) {
+            int window = begin >> LINEAR_SHIFT;
+            minOffset = reference.linear[Math.min(window, reference.linear.length - 1)];
+        }
+        List<long[]> chunks = new ArrayList<long[]>();
+        for (int bin : regionToBins(begin, end)) {
+            long[] pairs = reference.bins.get(bin);
+            if (pairs == null) {
+                continue;
+            }
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (compare(pairs[i + 1], minOffset) > 0) {
+                    chunks.add(new long[]{pairs[i], pairs[i + 1]});
+                }
+            }
+        }
+        Collections.sort(chunks, new Comparator<long[]>() {
+            public int compare(long[] first, long[] second) {
+                return TabixIndex.compare(first[0], second[0]);
+            }
+        });
+        long[] merged = new long[chunks.size() * 2];
+        int count = 0;
+        for (long[] chunk : chunks) {
+            long chunkBegin = compare(chunk[0], minOffset) < 0 ? minOffset : chunk[0];
+            if (count > 0 && compare(merged[count - 1], chunkBegin) >= 0) {
+                if (compare(chunk[1], merged[count - 1]) > 0) {
+                    merged[count - 1] = chunk[1];
+                }
+            } else {
+                merged[count++] = chunkBegin;
+                merged[count++] = chunk[1];
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param indexFile the .tbi file.
+     * @return the index.
+     * @throws IOException if the file cannot be read or is not a tabix index.
+     */
+    public static TabixIndex read(File indexFile) throws IOException {
+        BgzfReader bgzf = new BgzfReader(indexFile, 4);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(bgzf.inputStream()));
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(indexFile + " is not a tabix index");
+            }
+            int referenceCount = readInt(in);
+            int formatCode = readInt(in) & 0xFFFF;
+            int sequenceColumn = readInt(in);
+            int beginColumn = readInt(in);
+            int endColumn = readInt(in);
+            readInt(in); // meta character
+            int skip = readInt(in);
+            byte[] nameBytes = new byte[readInt(in)];
+            in.readFully(nameBytes);
+            List<String> names = new ArrayList<String>(referenceCount);
+            int start = 0;
+            for (int i = 0; i < nameBytes.length; i++) {
+                if (nameBytes[i] == 0) {
+                    names.add(new String(nameBytes, start, i - start, "UTF-8"));
+                    start = i + 1;
+                }
+            }
+            if (names.size() != referenceCount) {
+                throw new IOException("Damaged sequence names in " + indexFile);
+            }
+            List<Reference> references = new ArrayList<Reference>(referenceCount);
+            for (int i = 0; i < referenceCount; i++) {
+                int binCount = readInt(in);
+                Map<Integer, long[]> bins = new HashMap<Integer, long[]>(binCount * 2);
+                for (int b = 0; b < binCount; b++) {
+                    int bin = readInt(in);
+                    long[] pairs = new long[readInt(in) * 2];
+                    for (int c = 0; c < pairs.length; c++) {
+                        pairs[c] = readLong(in);
+                    }
+                    bins.put(bin, pairs);
+                }
+                long[] linear = new long[readInt(in)];
+                for (int w = 0; w < linear.length; w++) {
+                    linear[w] = readLong(in);
+                }
+                references.add(new Reference(bins, linear));
+            }
+            return new TabixIndex(formatFor(formatCode, sequenceColumn, beginColumn, endColumn), skip, names, references);
+        } finally {
+            bgzf.close();
+        }
+    }
+
+    /**
+     * Writes the index, BGZF compressed like those of the tabix tool.
+     *
+     * @param indexFile to write, usually the data file name followed by .tbi.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(File indexFile) throws IOException {
+        OutputStream out = new BgzfOutputStream(new FileOutputStream(indexFile));
+        try {
+            out.write(MAGIC);
+            writeInt(out, references.size());
+            writeInt(out, format.getFormatCode());
+            writeInt(out, format.getSequenceColumn());
+            writeInt(out, format.getBeginColumn());
+            writeInt(out, format.getEndColumn());
+            writeInt(out, format.getMeta());
+            writeInt(out, skip);
+            byte[][] names = new byte[sequenceIds.size()][];
+            int nameLength = 0;
+            int i = 0;
+            for (String name : sequenceIds.keySet()) {
+                names[i] = name.getBytes("UTF-8");
+                nameLength += names[i++].length + 1;
+            }
+            writeInt(out, nameLength);
+            for (byte[] name : names) {
+                out.write(name);
+                out.write(0);
+            }
+            for (Reference reference : references) {
+                writeInt(out, reference.bins.size());
+                for (Map.Entry<Integer, long[]> bin : reference.bins.entrySet()) {
+                    writeInt(out, bin.getKey());
+                    writeInt(out, bin.getValue().length / 2);
+                    for (long offset : bin.getValue()) {
+                        writeLong(out, offset);
+                    }
+                }
+                writeInt(out, reference.linear.length);
+                for (long offset : reference.linear) {
+                    writeLong(out, offset);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Indexes a BGZF compressed file.
+     *
+     * @param data   reader of the file, which must be sorted by sequence then start.
+     * @param format of the lines.
+     * @return the index.
+     * @throws IOException if the file cannot be read, or is not sorted.
+     */
+    public static TabixIndex build(BgzfReader data, TabixFormat format) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<Reference> references = new ArrayList<Reference>();
+        Map<Integer, List<Long>> bins = null;
+        List<Long> linear = null;
+        String current = null;
+        int lastBegin = 0;
+        int lineNumber = 0;
+        BgzfReader.Cursor cursor = data.cursor(0);
+        long offset = cursor.getVirtualOffset();
+        String line;
+        while ((line = cursor.readLine()) != null) {
+            lineNumber++;
+            long next = cursor.getVirtualOffset();
+            if (format.isMeta(line)) {
+                offset = next;
+                continue;
+            }
+            TabixFormat.Interval interval = format.parse(line);
+            if (interval == null) {
+                throw new IOException("Line " + lineNumber + " of " + data.getFile() + " is not in " + format + " format");
+            }
+            if (!interval.getSequence().equals(current)) {
+                if (names.contains(interval.getSequence())) {
+                    throw new IOException(data.getFile() + " is not sorted: " + interval.getSequence()
+                            + " is split at line " + lineNumber);
+                }
+                if (current != null) {
+                    references.add(toReference(bins, linear));
+                }
+                current = interval.getSequence();
+                names.add(current);
+                bins = new HashMap<Integer, List<Long>>();
+                linear = new ArrayList<Long>();
+                lastBegin = 0;
+            } else if (interval.getBegin() < lastBegin) {
+                throw new IOException(data.getFile() + " is not sorted by start at line " + lineNumber);
+            }
+            lastBegin = interval.getBegin();
+
+            int bin = regionToBin(interval.getBegin(), interval.getEnd());
+            List<Long> chunks = bins.get(bin);
+            if (chunks == null) {
+                chunks = new ArrayList<Long>();
+                bins.put(bin, chunks);
+            }
+            int last = chunks.size() - 1;
+            if (last > 0 && (chunks.get(last) >>> 16) == (offset >>> 16)) {
+                // Lines of the same block are read together anyway.
+                chunks.set(last, next);
+            } else {
+                chunks.add(offset);
+                chunks.add(next);
+            }
+            int firstWindow = interval.getBegin() >> LINEAR_SHIFT;
+            int lastWindow = (interval.getEnd() - 1) >> LINEAR_SHIFT;
+            while (linear.size() <= lastWindow) {
+                linear.add(NO_OFFSET);
+            }
+            for (int window = firstWindow; window <= lastWindow; window++) {
+                if (linear.get(window) == NO_OFFSET) {
+                    linear.set(window, offset);
+                }
+            }
+            offset = next;
+        }
+        if (current != null) {
+            references.add(toReference(bins, linear));
+        }
+        return new TabixIndex(format, 0, names, references);
+    }
+
+    private static Reference toReference(Map<Integer, List<Long>> bins, List<Long> linear) {
+        Map<Integer, long[]> pairs = new HashMap<Integer, long[]>(bins.size() * 2);
+        for (Map.Entry<Integer, List<Long>> bin : bins.entrySet()) {
+            long[] offsets = new long[bin.getValue().size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = bin.getValue().get(i);
+            }
+            pairs.put(bin.getKey(), offsets);
+        }
+        long[] windows = new long[linear.size()];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = linear.get(i);
+            // Windows without lines start where the previous one does, as in tabix.
+            if (windows[i] == NO_OFFSET) {
+                windows[i] = i > 0 ? windows[i - 1] : 0L;
+            }
+        }
+        return new Reference(pairs, windows);
+    }
+
+    private static TabixFormat formatFor(int formatCode, int sequenceColumn, int beginColumn, int endColumn) {
+        for (TabixFormat format : TabixFormat.values()) {
+            if (format.getFormatCode() == formatCode && format.getSequenceColumn() == sequenceColumn
+                    && format.getBeginColumn() == beginColumn && format.getEndColumn() == endColumn) {
+                return format;
+            }
+        }
+        return formatCode == TabixFormat.VCF.getFormatCode() ? TabixFormat.VCF : null;
+    }
+
+    /**
+     * @return the bin of the UCSC binning scheme for a 0-based, half open region.
+     */
+    static int regionToBin(int begin, int end) {
+        --end;
+        if (begin >> 14 == end >> 14) return 4681 + (begin >> 14);
+        if (begin >> 17 == end >> 17) return 585 + (begin >> 17);
+        if (begin >> 20 == end >> 20) return 73 + (begin >> 20);
+        if (begin >> 23 == end >> 23) return 9 + (begin >> 23);
+        if (begin >> 26 == end >> 26) return 1 + (begin >> 26);
+        return 0;
+    }
+
+    /**
+     * @return the bins which may hold lines overlapping a 0-based, half open region.
+     */
+    static int[] regionToBins(int begin, int end) {
+        --end;
+        int[] bins = new int[MAX_BIN];
+        int count = 0;
+        bins[count++] = 0;
+        for (int k = 1 + (begin >> 26); k <= 1 + (end >> 26); k++) bins[count++] = k;
+        for (int k = 9 + (begin >> 23); k <= 9 + (end >> 23); k++) bins[count++] = k;
+        for (int k = 73 + (begin >> 20); k <= 73 + (end >> 20); k++) bins[count++] = k;
+        for (int k = 585 + (begin >> 17); k <= 585 + (end >> 17); k++) bins[count++] = k;
+        for (int k = 4681 + (begin >> 14); k <= 4681 + (end >> 14); k++) bins[count++] = k;
+        return Arrays.copyOf(bins, count);
+    }
+
+    /**
+     * Virtual offsets are unsigned.
+     */
+    private static int compare(long first, long second) {
+        return first == second ? 0 : ((first ^ Long.MIN_VALUE) < (second ^ Long.MIN_VALUE) ? -1 : 1);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new EOFException("Truncated tabix index");
+        }
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        return (readInt(in) & 0xFFFFFFFFL) | ((long) readInt(in) << 32);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, (int) value);
+        writeInt(out, (int) (value >>> 32));
+    }
+}
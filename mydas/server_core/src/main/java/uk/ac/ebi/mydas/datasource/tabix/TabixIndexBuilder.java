@@ -0,0 +1,135 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Command line tool building the tabix index of an annotation file, for the indexed file data
+ * sources:
+ * <pre>
+ * java -cp mydas.jar uk.ac.ebi.mydas.datasource.tabix.TabixIndexBuilder [-p gff|vcf|pipes] [-c] file
+ * </pre>
+ * The file must be sorted by sequence then start.  With -c a plain text file is first
+ * compressed to file.gz; otherwise it must already be BGZF compressed (e.g. by bgzip).  The
+ * index is written next to the compressed file, with the .tbi extension.
+ */
+public final class TabixIndexBuilder {
+
+    private TabixIndexBuilder() {
+    }
+
+    /**
+     * Builds and writes the index of a BGZF compressed file.
+     *
+     * @param dataFile compressed, sorted file.
+     * @param format   of the lines.
+     * @return the index file.
+     * @throws IOException if the file cannot be read or is not sorted, or the index cannot be written.
+     */
+    public static File buildIndex(File dataFile, TabixFormat format) throws IOException {
+        if (!BgzfReader.isBgzf(dataFile)) {
+            throw new IOException(dataFile + " is not BGZF compressed; compress it with bgzip or the -c option");
+        }
+        BgzfReader reader = new BgzfReader(dataFile, 2);
+        try {
+            File indexFile = new File(dataFile.getPath() + ".tbi");
+            TabixIndex.build(reader, format).write(indexFile);
+            return indexFile;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Compresses a plain text file in BGZF.
+     *
+     * @param source     plain text file.
+     * @param compressed file to write.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void compress(File source, File compressed) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(source));
+        try {
+            OutputStream out = new BgzfOutputStream(new FileOutputStream(compressed));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        TabixFormat format = TabixFormat.GFF;
+        boolean compress = false;
+        File file = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-p".equals(args[i]) && i + 1 < args.length) {
+                    format = TabixFormat.forName(args[++i]);
+                } else if ("-c".equals(args[i])) {
+                    compress = true;
+                } else if (file == null && !args[i].startsWith("-")) {
+                    file = new File(args[i]);
+                } else {
+                    file = null;
+                    break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            file = null;
+        }
+        if (file == null) {
+            System.err.println("Usage: TabixIndexBuilder [-p gff|vcf|pipes] [-c] file");
+            System.err.println("  -p  format of the file, gff by default");
+            System.err.println("  -c  compress the plain text file to file.gz before indexing it");
+            System.exit(2);
+        }
+        try {
+            if (compress) {
+                File compressed = new File(file.getPath() + ".gz");
+                compress(file, compressed);
+                file = compressed;
+            }
+            File index = buildIndex(file, format);
+            System.out.println("Wrote " + index);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
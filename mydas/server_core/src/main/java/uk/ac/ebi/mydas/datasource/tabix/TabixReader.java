@@ -0,0 +1,153 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the lines of a BGZF compressed, tabix indexed file overlapping a region, decompressing
+ * only the blocks the index points to.  Thread safe.
+ */
+public final class TabixReader {
+
+    /**
+     * Receives the lines of a query.
+     */
+    public interface LineHandler {
+        /**
+         * @param line          overlapping the region, with its columns.
+         * @param columns       of the line.
+         * @param virtualOffset of the line in the file, which identifies it.
+         * @return false to stop the query.
+         * @throws IOException to abort the query.
+         */
+        boolean line(String line, String[] columns, long virtualOffset) throws IOException;
+    }
+
+    private final BgzfReader data;
+
+    private final TabixIndex index;
+
+    private final TabixFormat format;
+
+    /**
+     * @param dataFile    the BGZF compressed file.
+     * @param indexFile   its tabix index.
+     * @param format      of the lines, which must be the one the index was built for.
+     * @param cacheBlocks number of decompressed blocks to cache.
+     * @throws IOException if the files cannot be read, or the index is for another format.
+     */
+    public TabixReader(File dataFile, File indexFile, TabixFormat format, int cacheBlocks) throws IOException {
+        this.index = TabixIndex.read(indexFile);
+        if (index.getFormat() != null && index.getFormat().getFormatCode() != format.getFormatCode()) {
+            throw new IOException(indexFile + " is an index of " + index.getFormat() + " data, not " + format);
+        }
+        this.format = format;
+        this.data = new BgzfReader(dataFile, cacheBlocks);
+    }
+
+    public TabixFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the names of the sequences of the file.
+     */
+    public List<String> getSequenceNames() {
+        return index.getSequenceNames();
+    }
+
+    /**
+     * @return the meta lines (starting with #) at the start of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public List<String> readHeader() throws IOException {
+        List<String> header = new ArrayList<String>();
+        BgzfReader.Cursor cursor = data.cursor(0);
+        String line;
+        while ((line = cursor.readLine()) != null && format.isMeta(line)) {
+            if (line.length() > 0) {
+                header.add(line);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Reads the lines overlapping a region, in the order of the file.
+     *
+     * @param sequence name.
+     * @param start    1-based start of the region, inclusive.
+     * @param stop     1-based end of the region, inclusive.
+     * @param handler  receiving the lines.
+     * @throws IOException if the file cannot be read.
+     */
+    public void query(String sequence, int start, int stop, LineHandler handler) throws IOException {
+        int begin = start - 1;
+        int end = stop;
+        long[] chunks = index.query(sequence, begin, end);
+        for (int i = 0; i < chunks.length; i += 2) {
+            BgzfReader.Cursor cursor = data.cursor(chunks[i]);
+            long offset = cursor.getVirtualOffset();
+            while (offset < chunks[i + 1]) {
+                String line = cursor.readLine();
+                if (line == null) {
+                    return;
+                }
+                long next = cursor.getVirtualOffset();
+                if (!format.isMeta(line)) {
+                    TabixFormat.Interval interval = format.parse(line);
+                    if (interval != null) {
+                        if (!interval.getSequence().equals(sequence) || interval.getBegin() >= end) {
+                            // Sorted file: nothing further can overlap.
+                            return;
+                        }
+                        if (interval.getEnd() > begin && !handler.line(line, format.split(line), offset)) {
+                            return;
+                        }
+                    }
+                }
+                offset = next;
+            }
+        }
+    }
+
+    /**
+     * Reads the line at a virtual offset, e.g. one passed to a {@link LineHandler} earlier.
+     *
+     * @param virtualOffset of the start of the line.
+     * @return the line, null at the end of the file.
+     * @throws IOException if the offset is not in the file.
+     */
+    public String readLine(long virtualOffset) throws IOException {
+        return data.cursor(virtualOffset).readLine();
+    }
+
+    public void close() throws IOException {
+        data.close();
+    }
+}
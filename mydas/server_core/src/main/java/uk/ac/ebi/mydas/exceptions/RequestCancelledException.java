@@ -0,0 +1,51 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.exceptions;
+
+/**
+ * Thrown when a request is abandoned, either because it has run past its deadline or because
+ * the client has gone.  Data sources may throw it from any of their methods when
+ * {@link uk.ac.ebi.mydas.datasource.RequestContext#checkCancelled()} tells them to stop.
+ */
+public class RequestCancelledException extends DataSourceException {
+
+    private final boolean timeout;
+
+    public RequestCancelledException(String message, boolean timeout) {
+        super(message);
+        this.timeout = timeout;
+    }
+
+    public RequestCancelledException(String message, boolean timeout, Throwable cause) {
+        super(message, cause);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return true if the request ran past its deadline, false if the client has gone.
+     */
+    public boolean isTimeout() {
+        return timeout;
+    }
+}
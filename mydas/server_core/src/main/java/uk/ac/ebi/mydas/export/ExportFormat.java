@@ -0,0 +1,196 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.export;
+
+import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
+import uk.ac.ebi.mydas.model.DasFeature;
+import uk.ac.ebi.mydas.model.DasFeatureOrientation;
+import uk.ac.ebi.mydas.model.DasPhase;
+
+import java.util.Collection;
+
+/**
+ * Flat file formats offered by the export command.  Both formats can only describe
+ * positional features, so features without coordinates are left out of the export.
+ */
+public enum ExportFormat {
+
+    /**
+     * GFF3, with one sequence-region pragma per segment.
+     */
+    GFF3("gff3") {
+        String header() {
+            return "##gff-version 3\n";
+        }
+
+        void appendSegment(StringBuilder lines, DasAnnotatedSegment segment) {
+            String seqId = escape(segment.getSegmentId(), false);
+            if (segment.getStartCoordinate() != null && segment.getStopCoordinate() != null) {
+                lines.append("##sequence-region ").append(seqId).append(' ')
+                        .append(segment.getStartCoordinate()).append(' ')
+                        .append(segment.getStopCoordinate()).append('\n');
+            }
+            for (DasFeature feature : segment.getFeatures()) {
+                if (!isPositional(feature)) {
+                    continue;
+                }
+                lines.append(seqId).append('\t');
+                String source = feature.getMethod() == null ? null : feature.getMethod().getId();
+                lines.append(source == null || source.length() == 0 ? "." : escape(source, false)).append('\t');
+                lines.append(escape(feature.getType().getId(), false)).append('\t');
+                lines.append(feature.getStartCoordinate()).append('\t');
+                lines.append(feature.getStopCoordinate()).append('\t');
+                lines.append(feature.getScore() == null ? "." : Double.toString(feature.getScore())).append('\t');
+                lines.append(strand(feature.getOrientation(), ".")).append('\t');
+                lines.append(feature.getPhase() == null || feature.getPhase() == DasPhase.PHASE_NOT_APPLICABLE
+                        ? "." : feature.getPhase().toString()).append('\t');
+                lines.append("ID=").append(escape(feature.getFeatureId(), true));
+                if (feature.getFeatureLabel() != null && feature.getFeatureLabel().length() > 0) {
+                    lines.append(";Name=").append(escape(feature.getFeatureLabel(), true));
+                }
+                appendAttribute(lines, "Parent", feature.getParents());
+                appendAttribute(lines, "Note", feature.getNotes());
+                if (feature.getType().getCvId() != null && feature.getType().getCvId().length() > 0) {
+                    lines.append(";Ontology_term=").append(escape(feature.getType().getCvId(), true));
+                }
+                lines.append('\n');
+            }
+        }
+    },
+
+    /**
+     * BED6: chrom, chromStart (0-based), chromEnd, name, score and strand.
+     */
+    BED("bed") {
+        String header() {
+            return null;
+        }
+
+        void appendSegment(StringBuilder lines, DasAnnotatedSegment segment) {
+            String chrom = segment.getSegmentId().replaceAll("\\s", "_");
+            for (DasFeature feature : segment.getFeatures()) {
+                if (!isPositional(feature)) {
+                    continue;
+                }
+                lines.append(chrom).append('\t');
+                lines.append(feature.getStartCoordinate() - 1).append('\t');
+                lines.append(feature.getStopCoordinate()).append('\t');
+                lines.append(feature.getFeatureId().replaceAll("\\s", "_")).append('\t');
+                // BED scores are integers between 0 and 1000.
+                Double score = feature.getScore();
+                lines.append(score != null && score >= 0 && score <= 1000 ? Math.round(score) : 0).append('\t');
+                lines.append(strand(feature.getOrientation(), ".")).append('\n');
+            }
+        }
+    };
+
+    private final String parameterValue;
+
+    ExportFormat(String parameterValue) {
+        this.parameterValue = parameterValue;
+    }
+
+    /**
+     * @return the value of the format parameter of the export command, also used as file extension.
+     */
+    public String getParameterValue() {
+        return parameterValue;
+    }
+
+    /**
+     * @param value of the format parameter.
+     * @return the matching format, or null if the value is not recognised.
+     */
+    public static ExportFormat fromParameterValue(String value) {
+        for (ExportFormat format : values()) {
+            if (format.parameterValue.equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the lines written once at the beginning of the export, null if none.
+     */
+    abstract String header();
+
+    /**
+     * Appends the lines describing all the (positional) features of a segment.
+     *
+     * @param lines   to which the lines are appended.
+     * @param segment as returned by the data source.
+     */
+    abstract void appendSegment(StringBuilder lines, DasAnnotatedSegment segment);
+
+    private static boolean isPositional(DasFeature feature) {
+        return feature.getStartCoordinate() != 0 && feature.getStopCoordinate() != 0;
+    }
+
+    private static String strand(DasFeatureOrientation orientation, String notApplicable) {
+        if (orientation == DasFeatureOrientation.ORIENTATION_SENSE_STRAND
+                || orientation == DasFeatureOrientation.ORIENTATION_ANTISENSE_STRAND) {
+            return orientation.toString();
+        }
+        return notApplicable;
+    }
+
+    private static void appendAttribute(StringBuilder lines, String name, Collection<String> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+        lines.append(';').append(name).append('=');
+        boolean first = true;
+        for (String value : values) {
+            if (!first) {
+                lines.append(',');
+            }
+            lines.append(escape(value, true));
+            first = false;
+        }
+    }
+
+    /**
+     * Percent-encodes the characters with a meaning in GFF3: tabs, new lines, control
+     * characters and '%' in every column, plus ';', '=', '&amp;' and ',' in attribute values.
+     */
+    private static String escape(String value, boolean attribute) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            boolean reserved = c < 0x20 || c == 0x7F || c == '%'
+                    || (attribute && (c == ';' || c == '=' || c == '&' || c == ','));
+            if (reserved) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+                }
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+}
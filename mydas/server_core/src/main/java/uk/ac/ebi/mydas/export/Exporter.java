@@ -0,0 +1,253 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.export;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.exceptions.UnimplementedFeatureException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams all the features of an annotation data source as a gzipped flat file.
+ * <p/>
+ * The output is a concatenation of gzip members, the first one holding the header of the
+ * format and then one member per entry point.  Such a file is a valid gzip file, and as the
+ * members are compressed independently the output is identical for every request on the same
+ * entry point version.  That makes it possible to resume an interrupted transfer from a byte
+ * offset: the exporter remembers at which byte offsets some of the entry points started, so
+ * it only needs to restart from the closest entry point before the requested offset and
+ * discard the few bytes preceding it.
+ */
+public class Exporter {
+
+    private static final Logger logger = Logger.getLogger(Exporter.class);
+
+    /**
+     * Minimum number of bytes between two recorded resume points, keeping the
+     * resume index small for data sources with a lot of small entry points.
+     */
+    static final long RESUME_INTERVAL = 64 * 1024;
+
+    /**
+     * Number of entry points requested at once when the data source does not define max_entry_points.
+     */
+    static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Resume points of previous exports, by data source id and format.
+     */
+    private static final ConcurrentMap<String, ResumeIndex> RESUME_INDEXES = new ConcurrentHashMap<String, ResumeIndex>();
+
+    private final DataSourceConfiguration dsnConfig;
+
+    private final ExportFormat format;
+
+    private final int prefetchSize;
+
+    private AnnotationDataSource dataSource;
+
+    private int total;
+
+    private String version;
+
+    /**
+     * @param dsnConfig    of the data source to export.
+     * @param format       of the exported file.
+     * @param prefetchSize maximum number of segments read ahead of the client.
+     */
+    public Exporter(DataSourceConfiguration dsnConfig, ExportFormat format, int prefetchSize) {
+        this.dsnConfig = dsnConfig;
+        this.format = format;
+        this.prefetchSize = prefetchSize;
+    }
+
+    /**
+     * Checks that the data source can be exported, before anything is written to the client.
+     *
+     * @throws UnimplementedFeatureException if the data source does not implement the entry points.
+     * @throws DataSourceException           if the data source fails.
+     */
+    public void open() throws UnimplementedFeatureException, DataSourceException {
+        dataSource = dsnConfig.getDataSource();
+        total = dataSource.getTotalEntryPoints();
+        version = dataSource.getEntryPointVersion();
+    }
+
+    /**
+     * @return the entry point version the export corresponds to.  Resuming a transfer only
+     *         makes sense if this version has not changed.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Writes the export, starting at the given byte offset of the complete file.
+     *
+     * @param out    to which the gzipped file is written.  It is not closed.
+     * @param offset number of bytes of the complete file the client already has.
+     * @throws IOException         if writing to the client fails.
+     * @throws DataSourceException if the data source fails while reading the features.
+     */
+    public void export(OutputStream out, long offset) throws IOException, DataSourceException {
+        ResumeIndex index = resumeIndex();
+        Map.Entry<Long, Integer> resumePoint = index.floor(offset);
+        OffsetOutputStream target = new OffsetOutputStream(out, resumePoint.getKey(), offset);
+        int row = resumePoint.getValue();
+        if (row == 0) {
+            writeMember(target, format.header());
+            row = 1;
+        }
+        long lastRecorded = target.position;
+        SegmentPrefetcher prefetcher = new SegmentPrefetcher(dataSource, row, total,
+                pageSize(), prefetchSize);
+        prefetcher.start();
+        try {
+            StringBuilder lines = new StringBuilder();
+            SegmentPrefetcher.Prefetched prefetched;
+            while (!(prefetched = prefetcher.next()).isEnd()) {
+                if (target.position - lastRecorded >= RESUME_INTERVAL) {
+                    index.record(target.position, prefetched.row);
+                    lastRecorded = target.position;
+                }
+                if (prefetched.segment != null) {
+                    lines.setLength(0);
+                    format.appendSegment(lines, prefetched.segment);
+                    writeMember(target, lines.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The export was interrupted");
+        } finally {
+            prefetcher.stop();
+        }
+        out.flush();
+    }
+
+    private int pageSize() {
+        Integer max = dsnConfig.getMaxEntryPoints();
+        return (max == null || max <= 0) ? DEFAULT_PAGE_SIZE : max;
+    }
+
+    /**
+     * @return the resume index of this data source and format, discarding it
+     *         if it was built for a different entry point version.
+     */
+    private ResumeIndex resumeIndex() {
+        String key = dsnConfig.getId() + '|' + format.getParameterValue();
+        ResumeIndex index = RESUME_INDEXES.get(key);
+        if (index == null || !index.isFor(version)) {
+            // Concurrent exports may race here; the loser only loses its resume points.
+            index = new ResumeIndex(version);
+            RESUME_INDEXES.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Compresses some text as a single gzip member.  Nothing is written for empty text, so
+     * that entry points without (positional) features do not add empty members.
+     */
+    private static void writeMember(OutputStream out, String text) throws IOException {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        ByteArrayOutputStream member = new ByteArrayOutputStream(Math.max(64, text.length() / 4));
+        GZIPOutputStream gzip = new GZIPOutputStream(member);
+        gzip.write(text.getBytes("UTF-8"));
+        gzip.close();
+        member.writeTo(out);
+    }
+
+    /**
+     * Byte offsets at which the export of some entry points started.  Offset 0 is
+     * always known, and corresponds to the header (row 0).
+     */
+    private static class ResumeIndex {
+        private final String version;
+        private final TreeMap<Long, Integer> rows = new TreeMap<Long, Integer>();
+
+        ResumeIndex(String version) {
+            this.version = version;
+            rows.put(0L, 0);
+        }
+
+        boolean isFor(String version) {
+            return this.version == null ? version == null : this.version.equals(version);
+        }
+
+        synchronized Map.Entry<Long, Integer> floor(long offset) {
+            return rows.floorEntry(offset);
+        }
+
+        synchronized void record(long offset, int row) {
+            if (logger.isDebugEnabled() && !rows.containsKey(offset)) {
+                logger.debug("Export resume point: row " + row + " at byte " + offset);
+            }
+            rows.put(offset, row);
+        }
+    }
+
+    /**
+     * Keeps track of the position in the complete file, and discards the bytes the client already has.
+     */
+    private static class OffsetOutputStream extends FilterOutputStream {
+        private long position;
+        private final long skipUntil;
+
+        OffsetOutputStream(OutputStream out, long position, long skipUntil) {
+            super(out);
+            this.position = position;
+            this.skipUntil = skipUntil;
+        }
+
+        public void write(int b) throws IOException {
+            if (position >= skipUntil) {
+                out.write(b);
+            }
+            position++;
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            long skip = Math.min(length, Math.max(0, skipUntil - position));
+            if (skip < length) {
+                out.write(bytes, offset + (int) skip, length - (int) skip);
+            }
+            position += length;
+        }
+    }
+}
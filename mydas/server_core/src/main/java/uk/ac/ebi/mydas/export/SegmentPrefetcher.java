@@ -0,0 +1,191 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.export;
+
+import org.apache.log4j.Logger;
+import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
+import uk.ac.ebi.mydas.model.DasEntryPoint;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the segments of a data source, entry point by entry point, on a background thread,
+ * keeping at most a fixed number of them waiting for the consumer.  The data source is
+ * therefore queried while the previous segments are being written to the client, but a
+ * slow client never makes the server hold more than that number of segments in memory.
+ */
+class SegmentPrefetcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(SegmentPrefetcher.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mydas-export-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A segment read from the data source, or the end of the export (row -1), or a failure.
+     */
+    static class Prefetched {
+        final int row;
+        final DasAnnotatedSegment segment;
+        final Exception error;
+
+        Prefetched(int row, DasAnnotatedSegment segment, Exception error) {
+            this.row = row;
+            this.segment = segment;
+            this.error = error;
+        }
+
+        boolean isEnd() {
+            return row < 0;
+        }
+    }
+
+    private static final Prefetched END = new Prefetched(-1, null, null);
+
+    private final AnnotationDataSource dataSource;
+
+    private final int firstRow;
+
+    private final int total;
+
+    private final int pageSize;
+
+    private final BlockingQueue<Prefetched> queue;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private Future<?> future;
+
+    /**
+     * @param dataSource   to read the entry points and their features from.
+     * @param firstRow     first entry point (1 based) to read.
+     * @param total        total number of entry points of the data source.
+     * @param pageSize     number of entry points requested from the data source at once.
+     * @param prefetchSize maximum number of segments waiting to be written.
+     */
+    SegmentPrefetcher(AnnotationDataSource dataSource, int firstRow, int total, int pageSize, int prefetchSize) {
+        this.dataSource = dataSource;
+        this.firstRow = firstRow;
+        this.total = total;
+        this.pageSize = pageSize;
+        this.queue = new ArrayBlockingQueue<Prefetched>(prefetchSize);
+    }
+
+    void start() {
+        future = EXECUTOR.submit(this);
+    }
+
+    public void run() {
+        try {
+            for (int start = firstRow; start <= total; start += pageSize) {
+                int stop = Math.min(total, start + pageSize - 1);
+                Collection<DasEntryPoint> entryPoints = dataSource.getEntryPoints(start, stop);
+                if (entryPoints == null) {
+                    throw new DataSourceException("The data source returned no entry points for rows " + start + "-" + stop);
+                }
+                int row = start;
+                for (DasEntryPoint entryPoint : entryPoints) {
+                    DasAnnotatedSegment segment = null;
+                    try {
+                        segment = dataSource.getFeatures(entryPoint.getSegmentId(), null);
+                    } catch (BadReferenceObjectException e) {
+                        logger.error("The entry point was ignored by the export: " + entryPoint.getSegmentId());
+                    }
+                    queue.put(new Prefetched(row++, segment, null));
+                }
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // The consumer has gone away, nothing else to do.
+        } catch (Exception e) {
+            try {
+                queue.put(new Prefetched(0, null, e));
+            } catch (InterruptedException ie) {
+                // The consumer has gone away, nothing else to do.
+            }
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits for the next segment.
+     *
+     * @return the next segment (whose segment may be null if the entry point is unknown to the
+     *         data source), or a Prefetched object for which isEnd() is true.
+     * @throws DataSourceException  if the data source failed while reading the segments.
+     * @throws InterruptedException if the request thread is interrupted while waiting.
+     */
+    Prefetched next() throws DataSourceException, InterruptedException {
+        while (true) {
+            Prefetched prefetched = queue.poll(1, TimeUnit.SECONDS);
+            if (prefetched != null) {
+                if (prefetched.error != null) {
+                    if (prefetched.error instanceof DataSourceException) {
+                        throw (DataSourceException) prefetched.error;
+                    }
+                    throw new DataSourceException("Error reading the segments to export", prefetched.error);
+                }
+                return prefetched;
+            }
+            if (finished.getCount() == 0 && queue.isEmpty()) {
+                throw new DataSourceException("The export of the data source stopped unexpectedly");
+            }
+        }
+    }
+
+    /**
+     * Stops reading from the data source and waits until the background thread has let go of it,
+     * so that the data source can be safely released afterwards.
+     */
+    void stop() {
+        if (future != null) {
+            future.cancel(true);
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
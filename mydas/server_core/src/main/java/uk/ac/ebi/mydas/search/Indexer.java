@@ -11,6 +11,7 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.FSDirectory;
@@ -19,6 +20,7 @@ import org.apache.lucene.util.Version;
 import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
 import uk.ac.ebi.mydas.configuration.ServerConfiguration;
 import uk.ac.ebi.mydas.datasource.AnnotationDataSource;
+import uk.ac.ebi.mydas.datasource.EntryPointCatalog;
 import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
 import uk.ac.ebi.mydas.exceptions.DataSourceException;
 import uk.ac.ebi.mydas.exceptions.SearcherException;
@@ -60,33 +62,41 @@ public class Indexer {
 								AnnotationDataSource refDsn = dsnConfig.getDataSource();
 								FSDirectory dir = FSDirectory.open(new File(dirPath+"/"+dsn));
 								IndexWriter writer = new IndexWriter(dir, new StandardAnalyzer(Version.LUCENE_30),true, IndexWriter.MaxFieldLength.LIMITED);
-								
-								Integer max =dsnConfig.getMaxEntryPoints();
-								int total = refDsn.getTotalEntryPoints();
-								if (max ==null)
-									max=total;
-								for (int i=0;i<=total;i+=max){
-									Collection<DasEntryPoint> entryPoints = refDsn.getEntryPoints(i+1, i+max);
-									if (entryPoints==null)
-										throw  new SearcherException("Entry points is null,The entry-point capability is not well implemented.");
-									Collection <DasEntryPoint> ignored = new ArrayList<DasEntryPoint>();
-									for (DasEntryPoint entryPoint:entryPoints){
-										try {
-											this.processEntryPoint(entryPoint,refDsn,writer);
-										} catch (BadReferenceObjectException e) {
-											ignored.add(entryPoint);
+								Typeahead.Builder typeahead = new Typeahead.Builder(Typeahead.getFile(dirPath, dsn));
+								try {
+									// Reuse the entry points already loaded for the entry_points command, if any.
+									EntryPointCatalog catalog = dsnConfig.getEntryPointCatalog();
+									Integer max =dsnConfig.getMaxEntryPoints();
+									int total = catalog!=null? catalog.getTotal() : refDsn.getTotalEntryPoints();
+									if (max ==null)
+										max=total;
+									for (int i=0;i<=total;i+=max){
+										Collection<DasEntryPoint> entryPoints = catalog!=null? catalog.getRows(i+1, i+max) : refDsn.getEntryPoints(i+1, i+max);
+										if (entryPoints==null)
+											throw  new SearcherException("Entry points is null,The entry-point capability is not well implemented.");
+										Collection <DasEntryPoint> ignored = new ArrayList<DasEntryPoint>();
+										for (DasEntryPoint entryPoint:entryPoints){
+											try {
+												this.processEntryPoint(entryPoint,refDsn,writer,typeahead);
+											} catch (BadReferenceObjectException e) {
+												ignored.add(entryPoint);
+											}
 										}
-									}
-									for (DasEntryPoint entryPoint:ignored){
-										try {
-											this.processEntryPoint(entryPoint,refDsn,writer);
-										} catch (BadReferenceObjectException e) {
-											logger.error("The entry point was ignored:"+entryPoint.getSegmentId());
+										for (DasEntryPoint entryPoint:ignored){
+											try {
+												this.processEntryPoint(entryPoint,refDsn,writer,typeahead);
+											} catch (BadReferenceObjectException e) {
+												logger.error("The entry point was ignored:"+entryPoint.getSegmentId());
+											}
 										}
 									}
+									writer.optimize();
+									writer.close();
+									typeahead.close();
+								} finally {
+									//the temporary file of the suggestions is deleted if the indexing failed
+									typeahead.abort();
 								}
-								writer.optimize();
-								writer.close();
 							}
 						} catch (DataSourceException e) {
 							throw new SearcherException("Error trying to query information of a data source",e);
@@ -105,15 +115,18 @@ public class Indexer {
 		}
 	}
 
-	private void processEntryPoint(DasEntryPoint entryPoint, AnnotationDataSource refDsn, IndexWriter writer) throws BadReferenceObjectException, DataSourceException, CorruptIndexException, IOException {
+	private void processEntryPoint(DasEntryPoint entryPoint, AnnotationDataSource refDsn, IndexWriter writer, Typeahead.Builder typeahead) throws BadReferenceObjectException, DataSourceException, CorruptIndexException, IOException {
 
 		DasAnnotatedSegment segment;
 			segment = refDsn.getFeatures(entryPoint.getSegmentId(), null);
 		for (DasFeature feature:segment.getFeatures()){
+			typeahead.add(feature.getFeatureId(), feature.getFeatureLabel(), segment.getSegmentId(), feature.getStartCoordinate(), feature.getStopCoordinate());
 			Document doc = new Document();
 			String type="",method="",notes="",links="",targets="",parents="",parts="",segmentS="";
 
 			doc.add(new Field("segmentId", segment.getSegmentId(),																Field.Store.YES,	Field.Index.ANALYZED));
+			//the whole id as a single term, for the counts of hits per segment
+			doc.add(new Field(MyDasCollector.SEGMENT_KEY, segment.getSegmentId(), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
 			segmentS +=segment.getSegmentId();
 			if (segment.getSegmentLabel()!=null) {
 				doc.add(new Field("segmentLabel", segment.getSegmentLabel(),																Field.Store.YES,	Field.Index.ANALYZED));
@@ -124,11 +137,11 @@ public class Indexer {
 				segmentS += " "+segment.getVersion();
 			}
 			if (segment.getStartCoordinate()!=null) {
-				doc.add(new Field("segmentStart", ""+segment.getStartCoordinate(),																Field.Store.YES,	Field.Index.ANALYZED));
+				doc.add(new NumericField("segmentStart", Field.Store.YES, true).setIntValue(segment.getStartCoordinate()));
 				segmentS += " "+segment.getStartCoordinate();
 			}
 			if (segment.getStopCoordinate()!=null) {
-				doc.add(new Field("segmentStop", ""+segment.getStopCoordinate(),																Field.Store.YES,	Field.Index.ANALYZED));
+				doc.add(new NumericField("segmentStop", Field.Store.YES, true).setIntValue(segment.getStopCoordinate()));
 				segmentS += " "+segment.getStopCoordinate();
 			}
 
@@ -167,8 +180,9 @@ public class Indexer {
 				}
 				doc.add(new Field("method",method, Field.Store.NO, Field.Index.ANALYZED));
 			}
-			doc.add(new Field("start",""+feature.getStartCoordinate(), Field.Store.YES, Field.Index.ANALYZED));
-			doc.add(new Field("stop",""+feature.getStopCoordinate(), Field.Store.YES, Field.Index.ANALYZED));
+			//coordinates are trie encoded, so the range queries of the Searcher are numeric
+			doc.add(new NumericField("start", Field.Store.YES, true).setIntValue(feature.getStartCoordinate()));
+			doc.add(new NumericField("stop", Field.Store.YES, true).setIntValue(feature.getStopCoordinate()));
 
 			if (feature.getScore()!=null) doc.add(new Field("score",""+feature.getScore(), Field.Store.YES, Field.Index.ANALYZED));
 			if (feature.getOrientation()!=null) doc.add(new Field("orientation",""+feature.getOrientation(), Field.Store.YES, Field.Index.ANALYZED));
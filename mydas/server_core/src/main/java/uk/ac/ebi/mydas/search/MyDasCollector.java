@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TopDocs;
@@ -25,12 +26,24 @@ import org.apache.lucene.search.ScoreDoc;
  */
 public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 
-	private static Map<String,Integer> hitsPerSegment;
-	private static IndexSearcher searcher;
+	/**
+	 * Field with the id of the segment as a single term, whose values are read from the
+	 * {@link FieldCache} of each reader to count the hits per segment, rather than the stored
+	 * fields of every hit.  Indexes written before it was added have to be written again for the
+	 * hits to be counted per segment.
+	 */
+	static final String SEGMENT_KEY = "segmentKey";
+
+	private final Map<String,Integer> hitsPerSegment;
+	/**
+	 * The segments of the documents of the current reader, and the hits of each one.
+	 */
+	private FieldCache.StringIndex segments;
+	private int[] segmentHits;
 	// Assumes docs are scored in order.
 	private static class InOrderTopScoreDocCollector extends MyDasCollector {
-		private InOrderTopScoreDocCollector(int numHits) {
-			super(numHits);
+		private InOrderTopScoreDocCollector(int numHits, ScoreDoc after, boolean countPerSegment) {
+			super(numHits, after, countPerSegment);
 		}
 
 		@Override
@@ -42,6 +55,10 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 			assert !Float.isNaN(score);
 
 			totalHits++;
+			countSegment(doc);
+			if (isBeforeAfter(score, doc + docBase))
+				return;
+			collectedHits++;
 			if (score <= pqTop.score) {
 				// Since docs are returned in-order (i.e., increasing doc Id), a document
 				// with equal score to pqTop.score cannot compete since HitQueue favors
@@ -51,12 +68,6 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 			pqTop.doc = doc + docBase;
 			pqTop.score = score;
 			pqTop = pq.updateTop();
-			String segmentId=searcher.doc(doc).get("segmentId");
-			Integer current=hitsPerSegment.get(segmentId);
-			if(null==current)
-				hitsPerSegment.put(segmentId, 1);
-			else
-				hitsPerSegment.put(segmentId, current+1);
 		}
 
 		@Override
@@ -67,8 +78,8 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 
 	// Assumes docs are scored out of order.
 	private static class OutOfOrderTopScoreDocCollector extends MyDasCollector {
-		private OutOfOrderTopScoreDocCollector(int numHits) {
-			super(numHits);
+		private OutOfOrderTopScoreDocCollector(int numHits, ScoreDoc after, boolean countPerSegment) {
+			super(numHits, after, countPerSegment);
 		}
 
 		@Override
@@ -79,19 +90,17 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 			assert !Float.isNaN(score);
 
 			totalHits++;
+			countSegment(doc);
 			doc += docBase;
+			if (isBeforeAfter(score, doc))
+				return;
+			collectedHits++;
 			if (score < pqTop.score || (score == pqTop.score && doc > pqTop.doc)) {
 				return;
 			}
 			pqTop.doc = doc;
 			pqTop.score = score;
 			pqTop = pq.updateTop();
-			String segmentId=searcher.doc(doc).get("segmentId");
-			Integer current=hitsPerSegment.get(segmentId);
-			if(null==current)
-				hitsPerSegment.put(segmentId, 1);
-			else
-				hitsPerSegment.put(segmentId, current+1);
 		}
 
 		@Override
@@ -101,23 +110,26 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 	}
 
 	/**
-	 * Creates a new {@link TopScoreDocCollector} given the number of hits to
+	 * Creates a new {@link MyDasCollector} given the number of hits to
 	 * collect and whether documents are scored in order by the input
 	 * {@link Scorer} to {@link #setScorer(Scorer)}.
 	 *
 	 * <p><b>NOTE</b>: The instances returned by this method
 	 * pre-allocate a full array of length
 	 * <code>numHits</code>, and fill the array with sentinel
-	 * objects.
-	 * @param searcher 
+	 * objects, so it should be the size of the requested page.
+	 * @param numHits the number of hits to collect.
+	 * @param after the last hit of the previous page, as in
+	 * {@link IndexSearcher#searchAfter(ScoreDoc, org.apache.lucene.search.Query, int)};
+	 * only the hits that sort after it are collected. null for the first page.
+	 * @param docsScoredInOrder whether documents are scored in order.
+	 * @param countPerSegment whether to count the hits of each segment, for {@link #getSizePerSegment(String)}.
 	 */
-	public static MyDasCollector create(int numHits, boolean docsScoredInOrder, IndexSearcher indexSearcher) {
-		hitsPerSegment = new HashMap<String,Integer>();
-		searcher=indexSearcher;
+	public static MyDasCollector create(int numHits, ScoreDoc after, boolean docsScoredInOrder, boolean countPerSegment) {
 		if (docsScoredInOrder) {
-			return new InOrderTopScoreDocCollector(numHits);
+			return new InOrderTopScoreDocCollector(numHits, after, countPerSegment);
 		} else {
-			return new OutOfOrderTopScoreDocCollector(numHits);
+			return new OutOfOrderTopScoreDocCollector(numHits, after, countPerSegment);
 		}
 
 	}
@@ -125,13 +137,56 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 	ScoreDoc pqTop;
 	int docBase = 0;
 	Scorer scorer;
+	IndexReader reader;
+	private final ScoreDoc after;
+	/**
+	 * The hits after the previous page, which may be in the queue; totalHits counts all of them.
+	 */
+	int collectedHits = 0;
 
 	// prevents instantiation
-	private MyDasCollector(int numHits) {
+	private MyDasCollector(int numHits, ScoreDoc after, boolean countPerSegment) {
 		super(new HitQueue(numHits, true));
 		// HitQueue implements getSentinelObject to return a ScoreDoc, so we know
 		// that at this point top() is already initialized.
 		pqTop = pq.top();
+		this.after = after;
+		this.hitsPerSegment = countPerSegment ? new HashMap<String,Integer>() : null;
+	}
+
+	/**
+	 * @return true if the hit sorts before or is the last hit of the previous page.
+	 */
+	boolean isBeforeAfter(float score, int doc) {
+		return after != null && (score > after.score || (score == after.score && doc <= after.doc));
+	}
+
+	void countSegment(int doc) {
+		if (segmentHits != null)
+			segmentHits[segments.order[doc]]++;
+	}
+
+	/**
+	 * Adds the hits per segment of the current reader to those of the previous ones.
+	 */
+	private void addSegmentHits() {
+		if (segmentHits == null)
+			return;
+		//the first value is for the documents without segment
+		for (int i = 1; i < segmentHits.length; i++) {
+			if (segmentHits[i] == 0)
+				continue;
+			Integer current=hitsPerSegment.get(segments.lookup[i]);
+			hitsPerSegment.put(segments.lookup[i], current == null ? segmentHits[i] : current + segmentHits[i]);
+		}
+		segments = null;
+		segmentHits = null;
+	}
+
+	@Override
+	protected int topDocsSize() {
+		//the queue is pre-populated, so the rest of it are sentinels
+		return collectedHits < pq.size() ? collectedHits : pq.size();
 	}
 
 	@Override
@@ -156,8 +211,14 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 	}
 
 	@Override
-	public void setNextReader(IndexReader reader, int base) {
+	public void setNextReader(IndexReader reader, int base) throws IOException {
+		this.reader = reader;
 		docBase = base;
+		if (hitsPerSegment != null) {
+			addSegmentHits();
+			segments = FieldCache.DEFAULT.getStringIndex(reader, SEGMENT_KEY);
+			segmentHits = new int[segments.lookup.length];
+		}
 	}
 
 	@Override
@@ -165,7 +226,14 @@ public abstract class MyDasCollector extends TopDocsCollector<ScoreDoc> {
 		this.scorer = scorer;
 	}
 	
+	/**
+	 * @return the number of hits of the segment, among all the hits of the query; null if the
+	 * segment has none or the hits were not counted per segment.
+	 */
 	public Integer getSizePerSegment(String segmentId){
+		if (hitsPerSegment == null)
+			return null;
+		addSegmentHits();
 		return hitsPerSegment.get(segmentId);
 	}
 	
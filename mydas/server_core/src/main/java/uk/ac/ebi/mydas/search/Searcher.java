@@ -7,20 +7,39 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -42,6 +61,44 @@ import uk.ac.ebi.mydas.model.DasType;
 
 public class Searcher {
 	private static final Logger logger = Logger.getLogger(Searcher.class);
+	/**
+	 * Most hits returned by a search, when no rows are requested; also the most hits skipped to
+	 * reach a page whose previous page was not just returned.  The pages starting after them are
+	 * empty.
+	 */
+	private static final int MAX_HITS = 100000;
+	/**
+	 * Fewest hits skipped by each pass over the hits of the query, when the hits before the
+	 * requested page are skipped page by page; the queue of a pass is as large as the page or
+	 * this, so skipping costs neither memory that grows with the offset nor a pass per hit of
+	 * small pages.
+	 */
+	private static final int MIN_SKIP_PASS = 1000;
+	/**
+	 * The last hit of the recently returned pages, by index, index version, query and position,
+	 * so the next page starts after it without skipping the previous ones again.
+	 */
+	private static final Map<String,ScoreDoc> CURSORS = new LinkedHashMap<String,ScoreDoc>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,ScoreDoc> eldest) {
+			return size() > 256;
+		}
+	};
+	/**
+	 * The searchers of each index.
+	 */
+	private static final ConcurrentMap<String,SearcherManager> MANAGERS = new ConcurrentHashMap<String,SearcherManager>();
+	/**
+	 * The filters of the segment id, category and type constraints, by index and constraint; each
+	 * one caches a bitset per reader.  The coordinates requested in a segment and the feature ids
+	 * differ from request to request, so they are not cached.
+	 */
+	private static final Map<String,Filter> FILTERS = new LinkedHashMap<String,Filter>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Filter> eldest) {
+			return size() > 256;
+		}
+	};
 	private String dirPath, dataSourceName;
 	private DasFeatureRequestFilter filter=null;
 	
@@ -52,100 +109,271 @@ public class Searcher {
 	
 	public Collection<DasAnnotatedSegment> search(DasFeatureRequestFilter filter) throws SearcherException{
 		this.filter=filter;
-		String query = this.getMergedQuery(filter);
+		List<String> constraints = this.getCachedConstraints(filter);
+		String featureIds = this.getFeatureIdsConstraint(filter);
 		if (filter.getRows()==null)
-			return this.search(query, null,null);
-		return this.search(query, filter.getRows().getFrom(), filter.getRows().getTo());
+			return this.search(filter.getAdvanceQuery(), constraints, featureIds, filter.getRequestedSegments(), null,null);
+		return this.search(filter.getAdvanceQuery(), constraints, featureIds, filter.getRequestedSegments(), filter.getRows().getFrom(), filter.getRows().getTo());
 	}
 	public Collection<DasAnnotatedSegment> search(String query, Integer from, Integer to) throws SearcherException{
-		try {
-			query = URLDecoder.decode(query,"UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new SearcherException("Error trying to URLdecode the query",e);
-		}
-		
-		StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
+		return this.search(query, Collections.<String>emptyList(), null, null, from, to);
+	}
 
-		Directory fsDir=null;
-		try {
-			fsDir = FSDirectory.open(new File(dirPath+"/"+dataSourceName));
-		} catch (IOException e) {
-			throw new SearcherException("Error trying to open the index file",e);
-		}
-		IndexSearcher searcher=null;
+	/**
+	 * @param query the free text query of the user.
+	 * @param constraints clauses that the hits must match, which are evaluated as cached filters.
+	 * @param featureIds clause of the feature ids the hits must have, added to the query rather
+	 * than cached; null for any feature.
+	 * @param segments the segments the hits must be in, null for any segment.
+	 */
+	private Collection<DasAnnotatedSegment> search(String query, List<String> constraints, String featureIds, Collection<SegmentQuery> segments, Integer from, Integer to) throws SearcherException{
+		query = decode(query==null? "" : query);
+		String indexKey=dirPath+"/"+dataSourceName;
+		SearcherManager manager=getSearcherManager(indexKey);
+		IndexSearcher searcher=manager.acquire();
 		try {
-			searcher = new IndexSearcher(fsDir);
-		} catch (CorruptIndexException e) {
-			throw new SearcherException("The index file is corrupt",e);
-		} catch (IOException e) {
-			throw new SearcherException("Error trying to open the index file.",e);
+			return search(searcher, indexKey, query, constraints, featureIds, segments, from, to);
+		} finally {
+			try {
+				manager.release(searcher);
+			} catch (IOException e) {
+				logger.error("Error releasing the searcher of "+indexKey, e);
+			}
 		}
+	}
 
-
+	private Collection<DasAnnotatedSegment> search(IndexSearcher searcher, String indexKey, String query, List<String> constraints, String featureIds, Collection<SegmentQuery> requestedSegments, Integer from, Integer to) throws SearcherException{
 		Query q=null;
 		try {
-			q = new QueryParser(Version.LUCENE_30, "title", analyzer).parse(query);
+			q = query.trim().length()==0? new MatchAllDocsQuery() : new CoordinateQueryParser(new StandardAnalyzer(Version.LUCENE_30)).parse(query);
 		} catch (ParseException e) {
 			throw new SearcherException("Error parsing the query.",e);
 		}
-
-		int hitsPerPage = 100000;
-		MyDasCollector collector = MyDasCollector.create(hitsPerPage, true,searcher);
-		try {
-			searcher.search(q, collector);
-		} catch (IOException e) {
-			throw new SearcherException("Error in I/O operations while searching.",e);
+		StringBuilder constraintsKey=new StringBuilder();
+		for (String constraint:constraints) {
+			constraint=decode(constraint);
+			q = new FilteredQuery(q, getFilter(indexKey, constraint));
+			constraintsKey.append(constraint).append('\n');
 		}
-		ScoreDoc[] hits;
-//		if (from==null)
-			hits= collector.topDocs().scoreDocs;
-//		else
-//			hits= collector.topDocs(from,to-from).scoreDocs;
-		filter.setPaginated(true);
-		filter.setTotalFeatures(collector.getTotalHits());
-		Collection<DasAnnotatedSegment> segments= new ArrayList<DasAnnotatedSegment>();
-		if (hits.length==0)
+		if (featureIds!=null) {
+			featureIds=decode(featureIds);
 			try {
-				segments.add(new DasUnknownFeatureSegment(query));
-			} catch (DataSourceException e1) {
-				throw new SearcherException("The resultset was empty but was impossible to generete the XML",e1);
+				BooleanQuery withFeatureIds=new BooleanQuery();
+				withFeatureIds.add(q, BooleanClause.Occur.MUST);
+				withFeatureIds.add(new CoordinateQueryParser(new StandardAnalyzer(Version.LUCENE_30)).parse(featureIds), BooleanClause.Occur.MUST);
+				q = withFeatureIds;
+			} catch (ParseException e) {
+				throw new SearcherException("Error parsing the query.",e);
 			}
-			
+			constraintsKey.append(featureIds).append('\n');
+		}
+		if (requestedSegments!=null && !requestedSegments.isEmpty()) {
+			q = new FilteredQuery(q, getSegmentsFilter(indexKey, requestedSegments));
+			for (SegmentQuery segment:requestedSegments)
+				constraintsKey.append(segment.getSegmentId()).append(':').append(segment.getStartCoordinate()).append(',').append(segment.getStopCoordinate()).append('\n');
+		}
 
-		if ((to==null)||(to>hits.length)) 
-			to=hits.length;
 		if ((from==null)||(from<1))  
 			from=1;
-		for(int i=from;i<=to;++i) {
-			int docId = hits[i-1].doc;
+		if ((to==null)||(to-from+1>MAX_HITS))
+			to=from+MAX_HITS-1;
+		//the queue of the collector is preallocated, so it is not larger than the index
+		int pageSize=Math.max(1, Math.min(to-from+1, searcher.maxDoc()));
+		String cursorKey=indexKey+"\n"+searcher.getIndexReader().getVersion()+"\n"+query+"\n"+constraintsKey;
+
+		MyDasCollector collector;
+		ScoreDoc[] hits;
+		try {
+			//starts after the last hit of the previous page if it was just returned, otherwise
+			//skips the hits of the previous pages first
+			ScoreDoc after=getCursor(cursorKey+(from-1));
+			boolean pastHits=false;
+			if (after==null && from>1) {
+				if (from-1>MAX_HITS) {
+					logger.debug("Only the first "+MAX_HITS+" hits can be skipped, the page starting at "+from+" is empty");
+					pastHits=true;
+				} else {
+					after=skip(searcher, q, from-1, Math.max(pageSize, MIN_SKIP_PASS));
+					pastHits=(after==null);
+				}
+			}
+			if (pastHits) {
+				//the hits are still counted, for the totals
+				collector = MyDasCollector.create(1, null, true, true);
+				searcher.search(q, collector);
+				hits= new ScoreDoc[0];
+			} else {
+				collector = MyDasCollector.create(pageSize, after, true, true);
+				searcher.search(q, collector);
+				hits= collector.topDocs().scoreDocs;
+				if (hits.length>0 && hits.length==to-from+1)
+					putCursor(cursorKey+to, hits[hits.length-1]);
+			}
+		} catch (IOException e) {
+			throw new SearcherException("Error in I/O operations while searching.",e);
+		}
+		if (filter!=null) {
+			filter.setPaginated(true);
+			filter.setTotalFeatures(collector.getTotalHits());
+		}
+		//segments grouped by id, in the order of their first hit
+		Map<String,DasAnnotatedSegment> segments= new LinkedHashMap<String,DasAnnotatedSegment>();
+		for(ScoreDoc hit:hits) {
 			try {
-				DasAnnotatedSegment segment = getSegmentFromDoc(searcher.doc(docId));
-				segment.setTotalFeatures(collector.getSizePerSegment(searcher.doc(docId).get("segmentId")));
-				addSegment2Collection(segments,segment);
+				DasAnnotatedSegment segment = getSegmentFromDoc(searcher.doc(hit.doc));
+				DasAnnotatedSegment segmentAdded = segments.get(segment.getSegmentId());
+				if (segmentAdded!=null) {
+					segmentAdded.getFeatures().addAll(segment.getFeatures());
+				} else {
+					segment.setTotalFeatures(collector.getSizePerSegment(segment.getSegmentId()));
+					segments.put(segment.getSegmentId(), segment);
+				}
 			} catch (CorruptIndexException e) {
 				throw new SearcherException("Error recovering one of the result docs.",e);
 			} catch (IOException e) {
 				throw new SearcherException("I/O Error while recovering one of the result docs.",e);
 			}
 		}
+		Collection<DasAnnotatedSegment> result= new ArrayList<DasAnnotatedSegment>(segments.values());
+		if (result.isEmpty())
+			try {
+				result.add(new DasUnknownFeatureSegment(query));
+			} catch (DataSourceException e1) {
+				throw new SearcherException("The resultset was empty but was impossible to generete the XML",e1);
+			}
+
+		return result;
+	}
+
+	/**
+	 * Walks over the first hits of the query, each pass starting after the last hit of the
+	 * previous one, so the memory used does not grow with the number of hits skipped.
+	 * @param skip the number of hits to skip.
+	 * @param passSize the most hits skipped by each pass.
+	 * @return the last hit skipped, null if the query has fewer hits.
+	 */
+	private static ScoreDoc skip(IndexSearcher searcher, Query q, int skip, int passSize) throws IOException {
+		ScoreDoc after=null;
+		while (skip>0) {
+			int size=Math.max(1, Math.min(Math.min(skip, passSize), searcher.maxDoc()));
+			MyDasCollector collector = MyDasCollector.create(size, after, true, false);
+			searcher.search(q, collector);
+			ScoreDoc[] skipped= collector.topDocs().scoreDocs;
+			if (skipped.length<size)
+				return null;
+			after=skipped[skipped.length-1];
+			skip-=size;
+		}
+		return after;
+	}
+
+	private static String decode(String query) throws SearcherException {
+		try {
+			return URLDecoder.decode(query,"UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new SearcherException("Error trying to URLdecode the query",e);
+		}
+	}
 
+	/**
+	 * @return the searchers of the index, which are shared by the requests and refreshed when
+	 * the index is written again, so the cached filters of its readers are reused.
+	 */
+	private static SearcherManager getSearcherManager(String indexKey) throws SearcherException {
+		SearcherManager manager=MANAGERS.get(indexKey);
 		try {
-			searcher.close();
+			if (manager==null) {
+				Directory fsDir = FSDirectory.open(new File(indexKey));
+				SearcherManager created = new SearcherManager(fsDir, null);
+				manager = MANAGERS.putIfAbsent(indexKey, created);
+				if (manager==null)
+					manager = created;
+				else
+					created.close();
+			} else {
+				manager.maybeRefresh();
+			}
+		} catch (CorruptIndexException e) {
+			throw new SearcherException("The index file is corrupt",e);
 		} catch (IOException e) {
-			throw new SearcherException("Error closing the searcher.",e);
+			throw new SearcherException("Error trying to open the index file.",e);
+		}
+		return manager;
+	}
+
+	/**
+	 * @return a filter of the documents that match the constraint, with its bitset cached per
+	 * reader of the index.
+	 */
+	private static Filter getFilter(String indexKey, String constraint) throws SearcherException {
+		String key=indexKey+"\n"+constraint;
+		synchronized (FILTERS) {
+			Filter filter=FILTERS.get(key);
+			if (filter!=null)
+				return filter;
+		}
+		Query q;
+		try {
+			q = new CoordinateQueryParser(new StandardAnalyzer(Version.LUCENE_30)).parse(constraint);
+		} catch (ParseException e) {
+			throw new SearcherException("Error parsing the query.",e);
+		}
+		Filter filter=new CachingWrapperFilter(new QueryWrapperFilter(q));
+		synchronized (FILTERS) {
+			FILTERS.put(key, filter);
 		}
+		return filter;
+	}
 
-		return segments;
+	/**
+	 * @return a filter of the documents in any of the segments, and overlapping the coordinates
+	 * requested in it if any.  The documents of each segment are a cached filter, while the ranges
+	 * of coordinates are numeric range queries evaluated on each request.
+	 */
+	private static Filter getSegmentsFilter(String indexKey, Collection<SegmentQuery> segments) throws SearcherException {
+		BooleanQuery anySegment=new BooleanQuery();
+		for (SegmentQuery segment:segments) {
+			Query inSegment=new ConstantScoreQuery(getFilter(indexKey, decode("segmentId:"+segment.getSegmentId())));
+			//the features overlapping the requested range
+			if (segment.getStartCoordinate()!=null && segment.getStopCoordinate()!=null) {
+				BooleanQuery overlapping=new BooleanQuery();
+				overlapping.add(inSegment, BooleanClause.Occur.MUST);
+				overlapping.add(NumericRangeQuery.newIntRange("start", null, segment.getStopCoordinate(), true, true), BooleanClause.Occur.MUST);
+				overlapping.add(NumericRangeQuery.newIntRange("stop", segment.getStartCoordinate(), null, true, true), BooleanClause.Occur.MUST);
+				inSegment=overlapping;
+			}
+			anySegment.add(inSegment, BooleanClause.Occur.SHOULD);
+		}
+		return new QueryWrapperFilter(anySegment);
 	}
 
-	private void addSegment2Collection(Collection<DasAnnotatedSegment> segments, DasAnnotatedSegment segment) {
-		for (DasAnnotatedSegment segmentAdded: segments){
-			if (segmentAdded.getSegmentId().equals(segment.getSegmentId())){
-				segmentAdded.getFeatures().addAll(segment.getFeatures());
-				return;
+	/**
+	 * Closes the searchers of all the indexes, when the server is stopped.
+	 */
+	public static void closeSearchers() {
+		for (SearcherManager manager:MANAGERS.values()) {
+			try {
+				manager.close();
+			} catch (IOException e) {
+				logger.error("Error closing the searcher.", e);
 			}
 		}
-		segments.add(segment);
+		MANAGERS.clear();
+		synchronized (FILTERS) {
+			FILTERS.clear();
+		}
+	}
+
+	private static ScoreDoc getCursor(String key) {
+		synchronized (CURSORS) {
+			return CURSORS.get(key);
+		}
+	}
+
+	private static void putCursor(String key, ScoreDoc last) {
+		synchronized (CURSORS) {
+			CURSORS.put(key, last);
+		}
 	}
 
 	private DasAnnotatedSegment getSegmentFromDoc(Document document) throws SearcherException {
@@ -297,33 +525,63 @@ public class Searcher {
 	
 	public String getMergedQuery(DasFeatureRequestFilter filter){
 		String query=filter.getAdvanceQuery();
+		for (String constraint:getConstraints(filter))
+			query=mergeAND(query,constraint);
+		return query;
+	}
+
+	/**
+	 * @return the clauses for the segments, feature ids, categories and types requested, which
+	 * the hits of the query must match.
+	 */
+	public List<String> getConstraints(DasFeatureRequestFilter filter){
+		List<String> constraints=new ArrayList<String>();
 		
 		//getting the query for all the segments
 		String querySegment="";
 		String connector="";
 		if (filter.getRequestedSegments()!=null){
 			for (SegmentQuery segmentQuery:filter.getRequestedSegments()){
-				querySegment = connector + "(segmentId:"+segmentQuery.getSegmentId();
+				querySegment += connector + "(segmentId:"+segmentQuery.getSegmentId();
+				//the features overlapping the requested range
 				if (segmentQuery.getStartCoordinate()!=null && segmentQuery.getStopCoordinate()!=null){
-					querySegment +=" AND segmentStart:["+segmentQuery.getStartCoordinate()+" TO *]";
-					querySegment +=" AND segmentStop:[* TO "+segmentQuery.getStopCoordinate()+"]";
+					querySegment +=" AND start:[* TO "+segmentQuery.getStopCoordinate()+"]";
+					querySegment +=" AND stop:["+segmentQuery.getStartCoordinate()+" TO *]";
 				}
 				querySegment +=")";
 				connector=" OR ";
 			}
-			query=mergeAND(query,querySegment);
+			addConstraint(constraints,querySegment);
 		}
-		
+		addConstraint(constraints,getFeatureIdsConstraint(filter));
+		constraints.addAll(getCachedConstraints(filter));
+		return constraints;
+	}
+
+	/**
+	 * @return the clause for the feature ids requested, null if none is; feature ids are rarely
+	 * requested twice, so the clause is evaluated on each request rather than cached.
+	 */
+	private String getFeatureIdsConstraint(DasFeatureRequestFilter filter){
+		if (filter.getFeatureIds()==null)
+			return null;
 		String queryFeatureIds="";
-		connector="";
-		if (filter.getFeatureIds()!=null){
-			for (String featureId:filter.getFeatureIds()){
-				queryFeatureIds += connector + "featureId:"+featureId;
-				connector=" OR ";
-			}
-			query=mergeAND(query,queryFeatureIds);
+		String connector="";
+		for (String featureId:filter.getFeatureIds()){
+			queryFeatureIds += connector + "featureId:"+featureId;
+			connector=" OR ";
 		}
-		
+		return queryFeatureIds.trim().equals("")? null : queryFeatureIds;
+	}
+
+	/**
+	 * @return the clauses for the categories and types requested, which are the same from request
+	 * to request, so are evaluated as cached filters.
+	 */
+	private List<String> getCachedConstraints(DasFeatureRequestFilter filter){
+		List<String> constraints=new ArrayList<String>();
+		String connector;
+
 		String queryCategories="";
 		connector="";
 		if (filter.getCategoryIds()!=null){
@@ -331,7 +589,7 @@ public class Searcher {
 				queryCategories += connector + "typeCategory:"+category;
 				connector=" OR ";
 			}
-			query=mergeAND(query,queryCategories);
+			addConstraint(constraints,queryCategories);
 		}
 		
 		String queryTypes="";
@@ -341,13 +599,57 @@ public class Searcher {
 				queryTypes += connector + "typeId:"+typeId;
 				connector=" OR ";
 			}
-			query=mergeAND(query,queryTypes);
+			addConstraint(constraints,queryTypes);
 		}
-		return query;
+		return constraints;
+	}
+	private void addConstraint(List<String> constraints,String constraint){
+		if (constraint!=null && !constraint.trim().equals(""))
+			constraints.add(constraint);
 	}
 	private String mergeAND(String q1,String q2){
 		if (q1==null || q1.trim().equals("")) return q2;
 		if (q2==null || q2.trim().equals("")) return q1;
 		return "("+ q1 + ") AND (" + q2 +")";
 	}
+
+	/**
+	 * Parses the queries over the coordinates, which are indexed as numeric fields, as
+	 * NumericRangeQuery: a * leaves a range open on that side, and a single value, e.g. start:1000,
+	 * is a range of that value alone.
+	 */
+	private static class CoordinateQueryParser extends QueryParser {
+		private static final Set<String> NUMERIC_FIELDS = new HashSet<String>(Arrays.asList("start", "stop", "segmentStart", "segmentStop"));
+
+		CoordinateQueryParser(Analyzer analyzer){
+			super(Version.LUCENE_30, "title", analyzer);
+		}
+
+		@Override
+		protected Query getRangeQuery(String field, String part1, String part2, boolean inclusive) throws ParseException {
+			if (!NUMERIC_FIELDS.contains(field))
+				return super.getRangeQuery(field, part1, part2, inclusive);
+			return NumericRangeQuery.newIntRange(field, toInteger(field, part1), toInteger(field, part2), inclusive, inclusive);
+		}
+
+		@Override
+		protected Query getFieldQuery(String field, String queryText, boolean quoted) throws ParseException {
+			if (!NUMERIC_FIELDS.contains(field))
+				return super.getFieldQuery(field, queryText, quoted);
+			Integer value=toInteger(field, queryText);
+			if (value==null)
+				throw new ParseException("The value of "+field+" must be numeric: "+queryText);
+			return NumericRangeQuery.newIntRange(field, value, value, true, true);
+		}
+
+		private Integer toInteger(String field, String part) throws ParseException {
+			if (part==null || part.equals("*"))
+				return null;
+			try {
+				return Integer.valueOf(part.trim());
+			} catch (NumberFormatException e) {
+				throw new ParseException("The value of "+field+" must be numeric: "+part);
+			}
+		}
+	}
 }
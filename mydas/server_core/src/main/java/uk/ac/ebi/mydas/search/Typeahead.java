@@ -0,0 +1,350 @@
+package uk.ac.ebi.mydas.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Prefix lookup of the feature ids and labels of a data source, for "jump to" suggestions.
+ * <p/>
+ * The features are written by the {@link Indexer} next to the lucene index of the data source,
+ * and loaded in memory as a sorted array of lower case keys, so a lookup is a binary search for
+ * the first key with the prefix followed by a scan of the matching ones; no query is parsed and
+ * the lucene index is not used.
+ * <p/>
+ * The same features are hashed by their exact id, to locate the segment and coordinates of a
+ * feature without asking the data source.
+ */
+public class Typeahead {
+	private static final Logger logger = Logger.getLogger(Typeahead.class);
+	private static final int MAGIC = 0x4d445441;
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * Ids and labels longer than this are not suggested.
+	 */
+	private static final int MAX_KEY_LENGTH = 1000;
+	/**
+	 * Time between the checks for a new file written by the indexer.
+	 */
+	private static final long CHECK_INTERVAL_MILLIS = 1000;
+	/**
+	 * The loaded suggestions, by file.
+	 */
+	private static final ConcurrentMap<String,Typeahead> LOADED = new ConcurrentHashMap<String,Typeahead>();
+
+	private final long lastModified, length;
+	private volatile long checkedMillis;
+
+	/**
+	 * Sorted keys, and the feature of each one.
+	 */
+	private final String[] keys;
+	private final int[] entries;
+
+	private final String[] featureIds, labels, segmentIds;
+	private final int[] starts, stops;
+
+	/**
+	 * Open addressing hash of the feature ids: each slot holds the feature plus one, 0 if empty.
+	 */
+	private final int[] idTable;
+
+	/**
+	 * A suggested feature.
+	 */
+	public static class Suggestion {
+		private final String featureId, label, segmentId;
+		private final int start, stop;
+
+		Suggestion(String featureId, String label, String segmentId, int start, int stop) {
+			this.featureId = featureId;
+			this.label = label;
+			this.segmentId = segmentId;
+			this.start = start;
+			this.stop = stop;
+		}
+		public String getFeatureId() {
+			return featureId;
+		}
+		/**
+		 * @return the label, null if the feature has none.
+		 */
+		public String getLabel() {
+			return label;
+		}
+		public String getSegmentId() {
+			return segmentId;
+		}
+		public int getStart() {
+			return start;
+		}
+		public int getStop() {
+			return stop;
+		}
+	}
+
+	private Typeahead(File file, List<Suggestion> features) {
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		this.checkedMillis = System.currentTimeMillis();
+		int size = features.size();
+		featureIds = new String[size];
+		labels = new String[size];
+		segmentIds = new String[size];
+		starts = new int[size];
+		stops = new int[size];
+		List<Key> unsorted = new ArrayList<Key>(size * 2);
+		for (int i = 0; i < size; i++) {
+			Suggestion feature = features.get(i);
+			featureIds[i] = feature.getFeatureId();
+			labels[i] = feature.getLabel();
+			segmentIds[i] = feature.getSegmentId();
+			starts[i] = feature.getStart();
+			stops[i] = feature.getStop();
+			String idKey = normalise(feature.getFeatureId());
+			unsorted.add(new Key(idKey, i));
+			if (feature.getLabel() != null) {
+				String labelKey = normalise(feature.getLabel());
+				if (!labelKey.equals(idKey))
+					unsorted.add(new Key(labelKey, i));
+			}
+		}
+		idTable = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+		for (int i = 0; i < size; i++) {
+			int slot = featureIds[i].hashCode() & (idTable.length - 1);
+			while (idTable[slot] != 0)
+				slot = (slot + 1) & (idTable.length - 1);
+			idTable[slot] = i + 1;
+		}
+		Key[] sorted = unsorted.toArray(new Key[unsorted.size()]);
+		Arrays.sort(sorted);
+		keys = new String[sorted.length];
+		entries = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			keys[i] = sorted[i].key;
+			entries[i] = sorted[i].entry;
+		}
+	}
+
+	private static class Key implements Comparable<Key> {
+		private final String key;
+		private final int entry;
+
+		Key(String key, int entry) {
+			this.key = key;
+			this.entry = entry;
+		}
+		public int compareTo(Key other) {
+			int c = key.compareTo(other.key);
+			return c != 0 ? c : entry - other.entry;
+		}
+	}
+
+	/**
+	 * @param dirPath the directory of the indexes.
+	 * @param dataSourceName the name of the data source.
+	 * @return the file of the suggestions of the data source.
+	 */
+	public static File getFile(String dirPath, String dataSourceName) {
+		return new File(dirPath, dataSourceName + ".typeahead");
+	}
+
+	/**
+	 * @param dirPath the directory of the indexes.
+	 * @param dataSourceName the name of the data source.
+	 * @return the suggestions of the data source, loaded again when the indexer has written them
+	 * again; null if the data source has not been indexed.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static Typeahead forIndex(String dirPath, String dataSourceName) throws IOException {
+		File file = getFile(dirPath, dataSourceName);
+		String key = file.getAbsolutePath();
+		Typeahead typeahead = LOADED.get(key);
+		if (typeahead != null && !typeahead.isStale(file))
+			return typeahead;
+		synchronized (LOADED) {
+			typeahead = LOADED.get(key);
+			if (typeahead != null && typeahead.isCurrent(file))
+				return typeahead;
+			if (!file.isFile()) {
+				LOADED.remove(key);
+				return null;
+			}
+			long begin = System.currentTimeMillis();
+			typeahead = load(file);
+			LOADED.put(key, typeahead);
+			logger.info("Loaded " + typeahead.featureIds.length + " typeahead features from " + file + " in " + (System.currentTimeMillis() - begin) + "ms");
+			return typeahead;
+		}
+	}
+
+	private boolean isStale(File file) {
+		long now = System.currentTimeMillis();
+		if (now - checkedMillis < CHECK_INTERVAL_MILLIS)
+			return false;
+		checkedMillis = now;
+		return !isCurrent(file);
+	}
+
+	private boolean isCurrent(File file) {
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+
+	private static Typeahead load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException(file + " is not a typeahead file of this version, the data source must be indexed again");
+			List<Suggestion> features = new ArrayList<Suggestion>();
+			while (in.readBoolean()) {
+				String featureId = in.readUTF();
+				String label = in.readUTF();
+				String segmentId = in.readUTF();
+				int start = in.readInt();
+				int stop = in.readInt();
+				features.add(new Suggestion(featureId, label.length() == 0 ? null : label, segmentId, start, stop));
+			}
+			return new Typeahead(file, features);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String normalise(String text) {
+		return text.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * @param prefix of the feature ids or labels, in any case.
+	 * @param max the most suggestions to return.
+	 * @return the features whose id or label starts with the prefix, in the order of their keys,
+	 * so an exact match comes first.
+	 */
+	public List<Suggestion> lookup(String prefix, int max) {
+		String normalised = normalise(prefix);
+		List<Suggestion> suggestions = new ArrayList<Suggestion>(Math.min(max, 16));
+		List<Integer> returned = new ArrayList<Integer>(Math.min(max, 16));
+		for (int i = lowerBound(normalised); i < keys.length && suggestions.size() < max && keys[i].startsWith(normalised); i++) {
+			Integer entry = entries[i];
+			//a feature can match by both its id and its label
+			if (returned.contains(entry))
+				continue;
+			returned.add(entry);
+			suggestions.add(new Suggestion(featureIds[entry], labels[entry], segmentIds[entry], starts[entry], stops[entry]));
+		}
+		return suggestions;
+	}
+
+	/**
+	 * @param featureId exact id of a feature.
+	 * @return the feature with its segment and coordinates, more than one if the id is found in
+	 * several segments; empty if the id was not indexed.
+	 */
+	public List<Suggestion> locate(String featureId) {
+		List<Suggestion> locations = new ArrayList<Suggestion>(1);
+		int slot = featureId.hashCode() & (idTable.length - 1);
+		for (int entry = idTable[slot]; entry != 0; entry = idTable[slot]) {
+			if (featureIds[entry - 1].equals(featureId))
+				locations.add(new Suggestion(featureIds[entry - 1], labels[entry - 1], segmentIds[entry - 1], starts[entry - 1], stops[entry - 1]));
+			slot = (slot + 1) & (idTable.length - 1);
+		}
+		return locations;
+	}
+
+	private int lowerBound(String key) {
+		int low = 0, high = keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle].compareTo(key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the number of features that can be suggested.
+	 */
+	public int size() {
+		return featureIds.length;
+	}
+
+	/**
+	 * Writes the features of a data source as they are indexed, to a temporary file that replaces
+	 * the previous one when it is closed.
+	 */
+	public static class Builder {
+		private final File file, temporary;
+		private final DataOutputStream out;
+		private boolean closed = false;
+
+		public Builder(File file) throws IOException {
+			this.file = file;
+			this.temporary = new File(file.getPath() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporary))));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+		}
+
+		public void add(String featureId, String label, String segmentId, int start, int stop) throws IOException {
+			if (featureId == null || featureId.length() > MAX_KEY_LENGTH || segmentId == null || segmentId.length() > MAX_KEY_LENGTH)
+				return;
+			out.writeBoolean(true);
+			out.writeUTF(featureId);
+			out.writeUTF(label == null || label.length() > MAX_KEY_LENGTH ? "" : label);
+			out.writeUTF(segmentId);
+			out.writeInt(start);
+			out.writeInt(stop);
+		}
+
+		/**
+		 * Completes the file and replaces the previous one with it.
+		 */
+		public void close() throws IOException {
+			out.writeBoolean(false);
+			out.close();
+			//renaming over the previous file replaces it at once, so it is never missing for forIndex;
+			//some file systems do not allow it, and the previous file is deleted first
+			if (!temporary.renameTo(file)) {
+				if (file.exists() && !file.delete())
+					throw new IOException("The previous typeahead file " + file + " cannot be replaced");
+				if (!temporary.renameTo(file))
+					throw new IOException("The typeahead file " + temporary + " cannot be renamed to " + file);
+			}
+			closed = true;
+		}
+
+		/**
+		 * Discards the features written so far, unless the builder has been closed; the previous
+		 * file is kept.
+		 */
+		public void abort() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.warn("Error closing the typeahead file " + temporary, e);
+			}
+			if (temporary.exists() && !temporary.delete())
+				logger.warn("The temporary typeahead file " + temporary + " cannot be deleted");
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import junit.framework.TestCase;
+import uk.ac.ebi.mydas.model.DasEntryPoint;
+import uk.ac.ebi.mydas.model.DasEntryPointOrientation;
+import uk.ac.ebi.mydas.model.DasType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests the JSON and binary encodings of the compact response formats.
+ */
+public class CompactEncoderTest extends TestCase {
+
+    public void testJsonStructure() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoder encoder = CompactEncoder.newEncoder(ResponseFormat.JSON, bytes);
+        encoder.startObject(null);
+        encoder.value("id", "one");
+        encoder.value("count", 3);
+        encoder.value("score", 1.5);
+        encoder.value("subparts", true);
+        encoder.startArray("items");
+        encoder.value("ignored", "a");
+        encoder.value("ignored", 2);
+        encoder.startObject(null);
+        encoder.endObject();
+        encoder.endArray();
+        encoder.startArray("empty");
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+        assertEquals("{\"id\":\"one\",\"count\":3,\"score\":1.5,\"subparts\":true,\"items\":[\"a\",2,{}],\"empty\":[]}",
+                bytes.toString("UTF-8"));
+    }
+
+    public void testJsonNullsAreSkipped() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoder encoder = CompactEncoder.newEncoder(ResponseFormat.JSON, bytes);
+        encoder.startObject(null);
+        encoder.value("label", (String) null);
+        encoder.value("start", (Integer) null);
+        encoder.value("id", "x");
+        encoder.value("stop", (Integer) null);
+        encoder.value("nan", Double.NaN);
+        encoder.value("infinite", Double.POSITIVE_INFINITY);
+        encoder.endObject();
+        encoder.flush();
+        assertEquals("{\"id\":\"x\",\"nan\":null,\"infinite\":null}", bytes.toString("UTF-8"));
+    }
+
+    public void testJsonEscaping() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoder encoder = CompactEncoder.newEncoder(ResponseFormat.JSON, bytes);
+        encoder.startObject(null);
+        encoder.value("a\"b", "quote\" backslash\\ newline\n return\r tab\t bell\u0007 nul\u0000 ls\u2028 ps\u2029 \u00e9");
+        encoder.endObject();
+        encoder.flush();
+        assertEquals("{\"a\\\"b\":\"quote\\\" backslash\\\\ newline\\n return\\r tab\\t bell\\u0007 nul\\u0000"
+                + " ls\\u2028 ps\\u2029 \u00e9\"}", bytes.toString("UTF-8"));
+    }
+
+    public void testBinaryLayout() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoder encoder = CompactEncoder.newEncoder(ResponseFormat.BINARY, bytes);
+        encoder.startObject(null);
+        encoder.value("id", "\u00e9");
+        encoder.value("id", "b");
+        encoder.value("label", (String) null);
+        encoder.startArray("n");
+        encoder.value(null, 7);
+        encoder.value(null, 0.5);
+        encoder.value(null, false);
+        encoder.endArray();
+        encoder.endObject();
+        encoder.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertTrue(Arrays.equals(BinaryEncoder.MAGIC, magic));
+        assertEquals(BinaryEncoder.VERSION, in.readByte());
+
+        assertRecord(in, BinaryEncoder.TAG_START_OBJECT, BinaryEncoder.NO_NAME);
+        // The first use of a name defines it, later uses only refer to its index.
+        assertEquals(BinaryEncoder.TAG_NAME, in.readByte());
+        assertEquals(0, in.readUnsignedShort());
+        assertEquals("id", readString(in));
+        assertRecord(in, BinaryEncoder.TAG_STRING, 0);
+        assertEquals("\u00e9", readString(in));
+        assertRecord(in, BinaryEncoder.TAG_STRING, 0);
+        assertEquals("b", readString(in));
+        // The null label is not written at all, so "n" is the second name.
+        assertEquals(BinaryEncoder.TAG_NAME, in.readByte());
+        assertEquals(1, in.readUnsignedShort());
+        assertEquals("n", readString(in));
+        assertRecord(in, BinaryEncoder.TAG_START_ARRAY, 1);
+        assertRecord(in, BinaryEncoder.TAG_INT, BinaryEncoder.NO_NAME);
+        assertEquals(7, in.readInt());
+        assertRecord(in, BinaryEncoder.TAG_DOUBLE, BinaryEncoder.NO_NAME);
+        assertEquals(0.5, in.readDouble(), 0);
+        assertRecord(in, BinaryEncoder.TAG_BOOLEAN, BinaryEncoder.NO_NAME);
+        assertFalse(in.readBoolean());
+        assertEquals(BinaryEncoder.TAG_END_ARRAY, in.readByte());
+        assertEquals(BinaryEncoder.TAG_END_OBJECT, in.readByte());
+        assertEquals(-1, in.read());
+    }
+
+    public void testBinaryEmptyDocument() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactEncoder.newEncoder(ResponseFormat.BINARY, bytes).flush();
+        assertTrue(Arrays.equals(new byte[]{'D', 'A', 'S', 'B', BinaryEncoder.VERSION}, bytes.toByteArray()));
+    }
+
+    public void testWriteAllTypes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Map<DasType, Integer> types = new LinkedHashMap<DasType, Integer>();
+        types.put(new DasType("exon", "transcription", "SO:0000147", null), 12);
+        types.put(new DasType("gene", null, null, null), null);
+        new CompactResponseWriter(CompactEncoder.newEncoder(ResponseFormat.JSON, bytes)).writeAllTypes("http://h/das/ds/types", types);
+        assertEquals("{\"href\":\"http://h/das/ds/types\",\"segments\":[{\"label\":\"Complete datasource summary\",\"types\":["
+                + "{\"id\":\"exon\",\"cvId\":\"SO:0000147\",\"category\":\"transcription\",\"count\":12},"
+                + "{\"id\":\"gene\"}]}]}", bytes.toString("UTF-8"));
+    }
+
+    public void testWriteEntryPoints() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DasEntryPoint chromosome = new DasEntryPoint("1", 1, 1000, "Chromosome", "36", DasEntryPointOrientation.POSITIVE_ORIENTATION, "A \"quoted\" one", true);
+        DasEntryPoint contig = new DasEntryPoint("ctg", null, null, null, null, DasEntryPointOrientation.NO_INTRINSIC_ORIENTATION, null, false);
+        new CompactResponseWriter(CompactEncoder.newEncoder(ResponseFormat.JSON, bytes))
+                .writeEntryPoints("http://h/das/ds/entry_points", "v1", 2, 1, 2, Arrays.asList(chromosome, contig));
+        assertEquals("{\"href\":\"http://h/das/ds/entry_points\",\"version\":\"v1\",\"total\":2,\"start\":1,\"end\":2,\"entryPoints\":["
+                + "{\"id\":\"1\",\"start\":1,\"stop\":1000,\"version\":\"36\",\"type\":\"Chromosome\",\"orientation\":\"+\",\"subparts\":true,"
+                + "\"description\":\"A \\\"quoted\\\" one\"},"
+                + "{\"id\":\"ctg\"}]}", bytes.toString("UTF-8"));
+    }
+
+    public void testWriteEntryPointsStopsAtStop() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DasEntryPoint contig = new DasEntryPoint("ctg", null, null, null, null, DasEntryPointOrientation.NO_INTRINSIC_ORIENTATION, null, false);
+        new CompactResponseWriter(CompactEncoder.newEncoder(ResponseFormat.JSON, bytes))
+                .writeEntryPoints("h", null, 5, 3, 3, Arrays.asList(contig, contig, contig));
+        assertEquals("{\"href\":\"h\",\"total\":5,\"start\":3,\"end\":3,\"entryPoints\":[{\"id\":\"ctg\"}]}", bytes.toString("UTF-8"));
+        bytes.reset();
+        new CompactResponseWriter(CompactEncoder.newEncoder(ResponseFormat.JSON, bytes))
+                .writeEntryPoints("h", null, 0, 1, 0, Collections.<DasEntryPoint>emptyList());
+        assertEquals("{\"href\":\"h\",\"total\":0,\"start\":1,\"end\":0,\"entryPoints\":[]}", bytes.toString("UTF-8"));
+    }
+
+    private static void assertRecord(DataInputStream in, byte tag, int nameIndex) throws IOException {
+        assertEquals(tag, in.readByte());
+        assertEquals(nameIndex, in.readUnsignedShort());
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return new String(value, "UTF-8");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.controller;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Tests the slow request log.
+ */
+public class SlowRequestLogTest extends TestCase {
+
+    private SlowRequestLog log;
+
+    @Override
+    protected void setUp() {
+        log = new SlowRequestLog(0, 4);
+    }
+
+    @Override
+    protected void tearDown() {
+        log.shutdown();
+    }
+
+    public void testKeyphraseNotRecorded() throws IOException {
+        RequestTimer timer = RequestTimer.begin("keyphrase=s3cr3t;dsn=test");
+        timer.setCommand(null, "indexer");
+        timer.end();
+        log.record(timer);
+
+        List<SlowRequestLog.Entry> entries = log.getEntries();
+        assertEquals(1, entries.size());
+        String entry = entries.get(0).toString();
+        assertTrue(entry, entry.contains("command=indexer"));
+        assertTrue(entry, entry.contains("query=\"dsn=test;\""));
+        assertFalse(entry, entry.contains("s3cr3t"));
+        assertFalse(entry, entry.contains("keyphrase"));
+
+        StringWriter text = new StringWriter();
+        log.writeText(text);
+        assertFalse(text.toString().contains("s3cr3t"));
+    }
+
+    public void testEncodedKeyphraseNotRecorded() {
+        assertEquals("segment=1:1,10", SlowRequestLog.withoutKeyphrase("KeyPhrase=s3cr3t&segment=1:1,10"));
+        assertEquals("segment=1", SlowRequestLog.withoutKeyphrase("segment=1;key%70hrase=s3cr3t"));
+        assertEquals("", SlowRequestLog.withoutKeyphrase("keyphrase"));
+        assertNull(SlowRequestLog.withoutKeyphrase(null));
+    }
+
+    public void testFastRequestNotRecorded() {
+        SlowRequestLog slow = new SlowRequestLog(60000, 4);
+        try {
+            RequestTimer timer = RequestTimer.begin("segment=1");
+            timer.setCommand("test", "features");
+            timer.end();
+            slow.record(timer);
+            assertTrue(slow.getEntries().isEmpty());
+        } finally {
+            slow.shutdown();
+        }
+    }
+}
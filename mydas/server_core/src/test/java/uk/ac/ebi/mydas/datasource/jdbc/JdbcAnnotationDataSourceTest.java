@@ -0,0 +1,280 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.jdbc;
+
+import junit.framework.TestCase;
+import uk.ac.ebi.mydas.configuration.DataSourceConfiguration;
+import uk.ac.ebi.mydas.configuration.Mydasserver;
+import uk.ac.ebi.mydas.configuration.PropertyType;
+import uk.ac.ebi.mydas.exceptions.BadReferenceObjectException;
+import uk.ac.ebi.mydas.exceptions.DataSourceException;
+import uk.ac.ebi.mydas.model.DasAnnotatedSegment;
+import uk.ac.ebi.mydas.model.DasEntryPoint;
+import uk.ac.ebi.mydas.model.DasFeature;
+import uk.ac.ebi.mydas.model.DasMethod;
+import uk.ac.ebi.mydas.model.DasType;
+import uk.ac.ebi.mydas.model.Range;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Runs JdbcAnnotationDataSource and JdbcConnectionPool against an in-memory H2 database.
+ */
+public class JdbcAnnotationDataSourceTest extends TestCase {
+
+    private static int databases = 0;
+
+    private String url;
+
+    /**
+     * Keeps the in-memory database alive between the connections of the pool.
+     */
+    private Connection keeper;
+
+    private TestDataSource dataSource;
+
+    protected void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        url = "jdbc:h2:mem:mydas" + (databases++);
+        keeper = DriverManager.getConnection(url, "sa", "");
+        Statement statement = keeper.createStatement();
+        statement.execute("CREATE TABLE segment (id VARCHAR(20) PRIMARY KEY, seg_start INT, seg_stop INT, seg_version VARCHAR(10))");
+        statement.execute("CREATE TABLE feature (id VARCHAR(20) PRIMARY KEY, segment VARCHAR(20), feature_start INT, feature_end INT)");
+        statement.execute("INSERT INTO segment VALUES ('chr1', 1, 1000, 'v1'), ('chr2', 1, 500, 'v2')");
+        statement.execute("INSERT INTO feature VALUES ('f1', 'chr1', 10, 20), ('f2', 'chr1', 100, 200), ('f3', 'chr1', 150, 300),"
+                + " ('f4', 'chr1', 900, 950), ('f5', 'chr2', 5, 50)");
+        statement.close();
+        dataSource = new TestDataSource();
+        dataSource.init(null, null, configuration(url, "2"));
+    }
+
+    protected void tearDown() throws Exception {
+        dataSource.destroy();
+        keeper.close();
+    }
+
+    public void testFeaturesOfSegment() throws Exception {
+        DasAnnotatedSegment segment = dataSource.getFeatures("chr1", null);
+        assertEquals("chr1", segment.getSegmentId());
+        assertEquals(Integer.valueOf(1000), segment.getStopCoordinate());
+        assertEquals("v1", segment.getVersion());
+        assertEquals(Arrays.asList("f1", "f2", "f3", "f4"), ids(segment.getFeatures()));
+    }
+
+    public void testFeaturesInRange() throws Exception {
+        DasAnnotatedSegment segment = dataSource.getFeatures("chr1", 150, 160, null);
+        assertEquals(Arrays.asList("f2", "f3"), ids(segment.getFeatures()));
+        segment = dataSource.getFeatures("chr1", 400, 800, null);
+        assertEquals(Collections.<String>emptyList(), ids(segment.getFeatures()));
+    }
+
+    public void testPaginatedFeaturesKeepTheTotal() throws Exception {
+        DasAnnotatedSegment segment = dataSource.getFeatures("chr1", null, new Range(2, 3));
+        assertEquals(Arrays.asList("f2", "f3"), ids(segment.getFeatures()));
+        assertEquals(Integer.valueOf(4), segment.getTotalFeatures());
+    }
+
+    public void testUnknownSegment() throws Exception {
+        try {
+            dataSource.getFeatures("chrX", null);
+            fail("An unknown segment must be rejected");
+        } catch (BadReferenceObjectException e) {
+            assertEquals("chrX", e.getSegment());
+        }
+    }
+
+    public void testFeatureIdsAreQueriedInBatches() throws Exception {
+        // The duplicate id is queried once, so four ids in two batches of two.
+        Collection<DasAnnotatedSegment> segments = dataSource.getFeatures(Arrays.asList("f5", "f1", "f3", "f1", "missing"), null);
+        assertEquals(2, segments.size());
+        List<String> found = new ArrayList<String>();
+        for (DasAnnotatedSegment segment : segments) {
+            for (DasFeature feature : segment.getFeatures()) {
+                found.add(segment.getSegmentId() + ":" + feature.getFeatureId());
+            }
+        }
+        Collections.sort(found);
+        assertEquals(Arrays.asList("chr1:f1", "chr1:f3", "chr2:f5"), found);
+        assertEquals(Collections.singleton(2), dataSource.batchSizes);
+    }
+
+    public void testEntryPoints() throws Exception {
+        assertEquals(2, dataSource.getTotalEntryPoints());
+        Collection<DasEntryPoint> all = dataSource.getEntryPoints(null, null);
+        assertEquals(2, all.size());
+        Collection<DasEntryPoint> second = dataSource.getEntryPoints(2, 2);
+        assertEquals(1, second.size());
+        assertEquals("chr2", second.iterator().next().getSegmentId());
+    }
+
+    public void testMissingUrl() throws Exception {
+        try {
+            new TestDataSource().init(null, null, configuration(null, null));
+            fail("A data source without jdbc_url must not start");
+        } catch (DataSourceException e) {
+            assertTrue(e.getMessage().contains(JdbcAnnotationDataSource.PROPERTY_URL));
+        }
+    }
+
+    public void testPoolIsBounded() throws Exception {
+        JdbcConnectionPool pool = new JdbcConnectionPool(url, "sa", "", 1, 0, 4, 50);
+        JdbcConnectionPool.PooledConnection connection = pool.acquire();
+        try {
+            pool.acquire();
+            fail("A second connection must not be given by a pool of one");
+        } catch (DataSourceException e) {
+            assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        pool.release(connection, false);
+        assertSame(connection, pool.acquire());
+        pool.close();
+    }
+
+    public void testPoolCachesStatements() throws Exception {
+        JdbcConnectionPool pool = new JdbcConnectionPool(url, "sa", "", 1, 0, 1, 50);
+        JdbcConnectionPool.PooledConnection connection = pool.acquire();
+        PreparedStatement first = connection.prepare("SELECT id FROM segment");
+        assertSame(first, connection.prepare("SELECT id FROM segment"));
+        // A cache of one statement closes the eldest when another one is prepared.
+        connection.prepare("SELECT id FROM feature");
+        assertTrue(first.isClosed());
+        pool.release(connection, false);
+        pool.close();
+    }
+
+    public void testBrokenConnectionIsClosed() throws Exception {
+        JdbcConnectionPool pool = new JdbcConnectionPool(url, "sa", "", 1, 0, 4, 50);
+        JdbcConnectionPool.PooledConnection broken = pool.acquire();
+        pool.release(broken, true);
+        assertTrue(broken.getConnection().isClosed());
+        JdbcConnectionPool.PooledConnection fresh = pool.acquire();
+        assertNotSame(broken, fresh);
+        pool.release(fresh, false);
+        pool.close();
+        assertTrue(fresh.getConnection().isClosed());
+        try {
+            pool.acquire();
+            fail("A closed pool must not give connections");
+        } catch (DataSourceException e) {
+            assertTrue(e.getMessage().endsWith("is closed"));
+        }
+    }
+
+    private static List<String> ids(Collection<DasFeature> features) {
+        List<String> ids = new ArrayList<String>();
+        for (DasFeature feature : features) {
+            ids.add(feature.getFeatureId());
+        }
+        return ids;
+    }
+
+    private static DataSourceConfiguration configuration(String url, String inBatchSize) {
+        Mydasserver.Datasources.Datasource datasource = new Mydasserver.Datasources.Datasource();
+        datasource.setDnaCommandEnabled(new Mydasserver.Datasources.Datasource.DnaCommandEnabled());
+        datasource.setUseFeatureIdForFeatureLabel(new Mydasserver.Datasources.Datasource.UseFeatureIdForFeatureLabel());
+        datasource.setIncludeTypesWithZeroCount(new Mydasserver.Datasources.Datasource.IncludeTypesWithZeroCount());
+        Mydasserver.Datasources.Datasource.Version version = new Mydasserver.Datasources.Datasource.Version();
+        version.setUri("jdbc_test");
+        version.setCreated("2012-01-01");
+        addProperty(version, JdbcAnnotationDataSource.PROPERTY_URL, url);
+        addProperty(version, JdbcAnnotationDataSource.PROPERTY_USER, "sa");
+        addProperty(version, JdbcAnnotationDataSource.PROPERTY_POOL_SIZE, "2");
+        addProperty(version, JdbcAnnotationDataSource.PROPERTY_IN_BATCH_SIZE, inBatchSize);
+        datasource.getVersion().add(version);
+        return new DataSourceConfiguration(datasource, 0);
+    }
+
+    private static void addProperty(Mydasserver.Datasources.Datasource.Version version, String key, String value) {
+        if (value != null) {
+            PropertyType property = new PropertyType();
+            property.setKey(key);
+            property.setValue(value);
+            version.getProperty().add(property);
+        }
+    }
+
+    private static class TestDataSource extends JdbcAnnotationDataSource {
+
+        private final Collection<Integer> batchSizes = new HashSet<Integer>();
+
+        protected String getSegmentQuery() {
+            return "SELECT seg_start AS start, seg_stop AS stop, seg_version AS version FROM segment WHERE id = ?";
+        }
+
+        protected String getFeaturesQuery() {
+            return "SELECT id, segment, feature_start, feature_end FROM feature WHERE segment = ? ORDER BY feature_start";
+        }
+
+        protected String getFeaturesInRangeQuery() {
+            return "SELECT id, segment, feature_start, feature_end FROM feature"
+                    + " WHERE segment = ? AND feature_start <= ? AND feature_end >= ? ORDER BY feature_start";
+        }
+
+        protected String getFeaturesByIdQuery(int count) {
+            batchSizes.add(count);
+            return "SELECT id, segment AS segment_id, feature_start, feature_end FROM feature WHERE id IN (" + placeholders(count) + ")";
+        }
+
+        protected String getEntryPointsQuery() {
+            return "SELECT id AS segment_id, seg_start AS start, seg_stop AS stop FROM segment ORDER BY id";
+        }
+
+        protected String getTotalEntryPointsQuery() {
+            return "SELECT COUNT(*) FROM segment";
+        }
+
+        protected DasFeature mapFeature(ResultSet row) throws SQLException, DataSourceException {
+            return new DasFeature(row.getString("id"), null, new DasType("exon", null, null, null), new DasMethod("test", null, null),
+                    row.getInt("feature_start"), row.getInt("feature_end"), null, null, null, null, null, null, null, null);
+        }
+
+        public Collection<DasType> getTypes() {
+            return Collections.emptyList();
+        }
+
+        public Integer getTotalCountForType(DasType type) {
+            return null;
+        }
+
+        public URL getLinkURL(String field, String id) {
+            return null;
+        }
+
+        public String getEntryPointVersion() {
+            return "1.0";
+        }
+    }
+}
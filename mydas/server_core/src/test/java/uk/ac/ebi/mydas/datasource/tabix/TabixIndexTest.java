@@ -0,0 +1,187 @@
+/*
+ * Copyright 2007 Philip Jones, EMBL-European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * For further details of the mydas project, including source code,
+ * downloads and documentation, please see:
+ *
+ * http://code.google.com/p/mydas/
+ *
+ */
+
+package uk.ac.ebi.mydas.datasource.tabix;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds, writes and reads tabix indexes of small GFF files, and queries them.
+ */
+public class TabixIndexTest extends TestCase {
+
+    private final List<File> files = new ArrayList<File>();
+
+    protected void tearDown() throws Exception {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    public void testHeaderlessFile() throws Exception {
+        File data = compress("chr1\ttest\texon\t100\t120\t.\t+\t.\tID=f1\n"
+                + "chr1\ttest\texon\t200\t250\t.\t+\t.\tID=f2\n");
+        TabixReader reader = open(data);
+        try {
+            assertEquals(Arrays.asList("ID=f1"), query(reader, "chr1", 100, 120));
+            assertEquals(Arrays.asList("ID=f2"), query(reader, "chr1", 130, 300));
+            assertEquals(Arrays.asList("ID=f1", "ID=f2"), query(reader, "chr1", 1, 1000));
+            assertEquals(0, reader.readHeader().size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testFileWithHeader() throws Exception {
+        File data = compress("##gff-version 3\n"
+                + "##sequence-region chr1 1 1000\n"
+                + "chr1\ttest\texon\t100\t120\t.\t+\t.\tID=f1\n"
+                + "chr1\ttest\texon\t200\t250\t.\t+\t.\tID=f2\n"
+                + "chr2\ttest\texon\t5\t10\t.\t-\t.\tID=f3\n");
+        TabixReader reader = open(data);
+        try {
+            assertEquals(Arrays.asList("##gff-version 3", "##sequence-region chr1 1 1000"), reader.readHeader());
+            assertEquals(Arrays.asList("chr1", "chr2"), reader.getSequenceNames());
+            assertEquals(Arrays.asList("ID=f1"), query(reader, "chr1", 110, 110));
+            assertEquals(Arrays.asList("ID=f3"), query(reader, "chr2", 1, 1000));
+            assertEquals(0, query(reader, "chr1", 121, 199).size());
+            assertEquals(0, query(reader, "chrX", 1, 1000).size());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testMultiBlockFile() throws Exception {
+        // Enough lines for several BGZF blocks and many 16kb windows of the linear index.
+        StringBuilder text = new StringBuilder();
+        List<int[]> intervals = new ArrayList<int[]>();
+        for (String sequence : new String[]{"chr1", "chr2"}) {
+            for (int i = 0; i < 6000; i++) {
+                int start = 1 + i * 97;
+                // Some long features span many windows and large bins.
+                int stop = start + (i % 500 == 0 ? 200000 : 50);
+                text.append(sequence).append("\ttest\texon\t").append(start).append('\t').append(stop)
+                        .append("\t.\t+\t.\tID=").append(sequence).append('_').append(i).append('\n');
+                intervals.add(new int[]{sequence.equals("chr1") ? 1 : 2, start, stop, i});
+            }
+        }
+        assertTrue("The test file must span several blocks", text.length() > 4 * 0x10000);
+        File data = compress(text.toString());
+        TabixReader reader = open(data);
+        try {
+            int[][] regions = {{1, 1}, {1, 100}, {16000, 17000}, {100000, 100100}, {300000, 400000}, {581000, 600000}};
+            for (int sequence = 1; sequence <= 2; sequence++) {
+                for (int[] region : regions) {
+                    List<String> expected = new ArrayList<String>();
+                    for (int[] interval : intervals) {
+                        if (interval[0] == sequence && interval[1] <= region[1] && interval[2] >= region[0]) {
+                            expected.add("ID=chr" + sequence + '_' + interval[3]);
+                        }
+                    }
+                    assertEquals("chr" + sequence + ":" + region[0] + "," + region[1],
+                            expected, query(reader, "chr" + sequence, region[0], region[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        File data = compress("#comment\n"
+                + "chr1\ttest\texon\t1\t20000\t.\t+\t.\tID=f1\n"
+                + "chr1\ttest\texon\t40000\t40010\t.\t+\t.\tID=f2\n"
+                + "chr2\ttest\texon\t3\t4\t.\t+\t.\tID=f3\n");
+        BgzfReader bgzf = new BgzfReader(data, 2);
+        TabixIndex built;
+        try {
+            built = TabixIndex.build(bgzf, TabixFormat.GFF);
+        } finally {
+            bgzf.close();
+        }
+        File indexFile = new File(data.getPath() + ".tbi");
+        files.add(indexFile);
+        built.write(indexFile);
+        TabixIndex read = TabixIndex.read(indexFile);
+        assertEquals(TabixFormat.GFF, read.getFormat());
+        assertEquals(built.getSequenceNames(), read.getSequenceNames());
+        int[][] regions = {{0, 1}, {0, 100000}, {19999, 20000}, {30000, 39999}, {39999, 40000}};
+        for (String sequence : new String[]{"chr1", "chr2", "chrX"}) {
+            for (int[] region : regions) {
+                assertTrue(Arrays.equals(built.query(sequence, region[0], region[1]), read.query(sequence, region[0], region[1])));
+            }
+        }
+    }
+
+    public void testUnsortedFileIsRejected() throws Exception {
+        File data = compress("chr1\ttest\texon\t200\t250\t.\t+\t.\tID=f2\n"
+                + "chr1\ttest\texon\t100\t120\t.\t+\t.\tID=f1\n");
+        try {
+            TabixIndexBuilder.buildIndex(data, TabixFormat.GFF);
+            fail("An unsorted file must not be indexed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not sorted"));
+        }
+    }
+
+    private File compress(String text) throws IOException {
+        File source = File.createTempFile("tabix", ".gff");
+        files.add(source);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(source), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        File compressed = new File(source.getPath() + ".gz");
+        files.add(compressed);
+        TabixIndexBuilder.compress(source, compressed);
+        return compressed;
+    }
+
+    private TabixReader open(File data) throws IOException {
+        File index = TabixIndexBuilder.buildIndex(data, TabixFormat.GFF);
+        files.add(index);
+        return new TabixReader(data, index, TabixFormat.GFF, 4);
+    }
+
+    private static List<String> query(TabixReader reader, String sequence, int start, int stop) throws IOException {
+        final List<String> ids = new ArrayList<String>();
+        reader.query(sequence, start, stop, new TabixReader.LineHandler() {
+            public boolean line(String line, String[] columns, long virtualOffset) {
+                ids.add(columns[8]);
+                return true;
+            }
+        });
+        return ids;
+    }
+}